@@ -23,5 +23,8 @@ public enum AlertCategory {
 	RESOLUTION_CHANGE,
 	
 	// The source name resolved to nothing / NXDOMAIN
-	RESOLUTION_EMPTY
+	RESOLUTION_EMPTY,
+
+	// The destination was changed by something else since it was last written
+	DESTINATION_DRIFT
 }
@@ -9,6 +9,15 @@ import org.eclipse.jdt.annotation.Nullable;
  * Interface for representing an alias
  */
 public interface Alias {
+	/**
+	 * getType
+	 * 
+	 * Get what the alias copies from the source names to the destination.
+	 * 
+	 * @return							Alias type
+	 */
+	public @NonNull AliasType getType();
+	
 	/**
 	 * getSourceNames
 	 * 
@@ -26,6 +35,159 @@ public interface Alias {
 	 * @return							Iterable of servers or null
 	 */
 	public @Nullable Iterable<@NonNull String> getSourceServers();
+	
+	/**
+	 * getSourceMode
+	 * 
+	 * Get how the source names are resolved.  In authoritative mode the source servers, if any,
+	 * are used in place of the root servers as the starting point.
+	 * 
+	 * @return							Source mode
+	 */
+	public @NonNull SourceMode getSourceMode();
+	
+	/**
+	 * getSourceTransport
+	 * 
+	 * Get the protocol used to query the source servers.
+	 * 
+	 * @return							Source transport
+	 */
+	public @NonNull SourceTransport getSourceTransport();
+	
+	/**
+	 * getSourceTimeout
+	 * 
+	 * Get how long to wait for all of the source names to be resolved before giving up on the
+	 * ones that haven't answered.
+	 * 
+	 * @return							Timeout in milliseconds
+	 */
+	public long getSourceTimeout();
+	
+	/**
+	 * isDualStack
+	 * 
+	 * Whether AAAA records should be looked up and maintained alongside the A records.
+	 * 
+	 * @return							True to maintain both A and AAAA records
+	 */
+	public boolean isDualStack();
+	
+	/**
+	 * getMaxNegativeTtl
+	 * 
+	 * Get the longest time an empty answer for a source name is trusted before the name is
+	 * looked up again, no matter what the negative TTL of the source zone says.
+	 * 
+	 * @return							Maximum negative TTL in seconds
+	 */
+	public long getMaxNegativeTtl();
+	
+	/**
+	 * getSourceQuorum
+	 * 
+	 * Get how many of the listed servers have to give the same addresses before they're used.
+	 * When this is set every listed server is asked for every name, instead of taking the first
+	 * one that answers.
+	 * 
+	 * @return							Number of servers that have to agree, or 0 if not used
+	 */
+	public int getSourceQuorum();
+	
+	/**
+	 * getSourceZone
+	 * 
+	 * Get the zone the source names live in, if lookups should be gated on its SOA serial.  The
+	 * names are then only looked up again when the serial changes or the serial ceiling passes.
+	 * 
+	 * @return							Source zone, or null to look names up on their TTL
+	 */
+	public @Nullable String getSourceZone();
+	
+	/**
+	 * getSerialInterval
+	 * 
+	 * Get how often the serial of the source zone is checked.
+	 * 
+	 * @return							Interval in seconds
+	 */
+	public long getSerialInterval();
+	
+	/**
+	 * getSerialCeiling
+	 * 
+	 * Get the longest a name goes without being looked up while the serial doesn't change.
+	 * 
+	 * @return							Ceiling in seconds
+	 */
+	public long getSerialCeiling();
+	
+	/**
+	 * getAdditionDamping
+	 * 
+	 * Get how long a set of addresses that adds to what the destination holds has to be seen
+	 * before it's written.
+	 * 
+	 * @return							Threshold
+	 */
+	public @NonNull DampingThreshold getAdditionDamping();
+	
+	/**
+	 * getRemovalDamping
+	 * 
+	 * Get how long a set of addresses that drops any of what the destination holds has to be
+	 * seen before it's written.
+	 * 
+	 * @return							Threshold
+	 */
+	public @NonNull DampingThreshold getRemovalDamping();
+	
+	/**
+	 * getEmptyDamping
+	 * 
+	 * Get how long an empty result has to be seen before the destination records are removed.
+	 * 
+	 * @return							Threshold
+	 */
+	public @NonNull DampingThreshold getEmptyDamping();
+
+	/**
+	 * getHealthPort
+	 * 
+	 * Get the TCP port addresses are probed on before they're written to the destination.
+	 * 
+	 * @return							Port, or 0 to write addresses without probing them
+	 */
+	public int getHealthPort();
+	
+	/**
+	 * getHealthTimeout
+	 * 
+	 * Get how long a probe waits for the connection before the address counts as down.
+	 * 
+	 * @return							Timeout in milliseconds
+	 */
+	public long getHealthTimeout();
+	
+	/**
+	 * getHealthInterval
+	 * 
+	 * Get how long a probe result is used before the address is probed again.
+	 * 
+	 * @return							Interval in seconds
+	 */
+	public long getHealthInterval();
+
+	/**
+	 * getDeadline
+	 * 
+	 * Get how long one run of the alias can take from start to finish, covering the lookups,
+	 * health probes and destination updates together.
+	 * 
+	 * @return							Deadline in milliseconds
+	 */
+	public long getDeadline();
 
 	/**
 	 * getDestinationZone
@@ -0,0 +1,15 @@
+package com.teaglu.dnsalias.alias;
+
+/**
+ * AliasType
+ *
+ * What an alias copies from its source names to the destination.
+ */
+public enum AliasType {
+	// Copy the addresses of the source names into A records, and AAAA records for dual stack
+	ADDRESS,
+
+	// Expand the SPF record of the source name into a flat list of addresses, published as TXT
+	// records chained together when they don't fit in one
+	SPF
+}
@@ -0,0 +1,77 @@
+package com.teaglu.dnsalias.alias;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * DampingThreshold
+ *
+ * How long a new set of addresses has to hold steady before it's written to the destination.
+ * The threshold is met once the set has been seen for a number of polls in a row, or has been
+ * seen continuously for a number of seconds, whichever comes first.  Either part can be left
+ * out by setting it to zero, and with both left out every change is written straight away.
+ */
+public final class DampingThreshold {
+	public static final @NonNull DampingThreshold NONE= new DampingThreshold(0, 0);
+
+	private final int polls;
+	private final long seconds;
+
+	private DampingThreshold(int polls, long seconds) {
+		this.polls= polls;
+		this.seconds= seconds;
+	}
+
+	/**
+	 * Create
+	 *
+	 * @param polls						Polls in a row the set has to be seen for, or 0
+	 * @param seconds					Seconds the set has to be seen for, or 0
+	 *
+	 * @return							Threshold
+	 */
+	public static @NonNull DampingThreshold Create(int polls, long seconds) {
+		if ((polls <= 1) && (seconds <= 0)) {
+			return NONE;
+		}
+
+		return new DampingThreshold(Math.max(0, polls), Math.max(0, seconds));
+	}
+
+	public int getPolls() {
+		return polls;
+	}
+
+	public long getSeconds() {
+		return seconds;
+	}
+
+	/**
+	 * isMet
+	 *
+	 * @param seenPolls					Polls in a row the set has been seen for
+	 * @param seenMsec					Milliseconds since the set was first seen
+	 *
+	 * @return							Whether the set can be written
+	 */
+	public boolean isMet(int seenPolls, long seenMsec) {
+		if (this == NONE) {
+			return true;
+		}
+
+		return ((polls > 0) && (seenPolls >= polls)) ||
+				((seconds > 0) && (seenMsec >= (seconds * 1000)));
+	}
+
+	@Override
+	public String toString() {
+		if (this == NONE) {
+			return "none";
+		} else if (seconds == 0) {
+			return polls + " polls";
+		} else if (polls == 0) {
+			return seconds + " seconds";
+		} else {
+			return polls + " polls or " + seconds + " seconds";
+		}
+	}
+}
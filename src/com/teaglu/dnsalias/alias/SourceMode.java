@@ -0,0 +1,19 @@
+package com.teaglu.dnsalias.alias;
+
+/**
+ * SourceMode
+ * 
+ * How the source names of an alias are resolved.
+ */
+public enum SourceMode {
+	// Send recursive queries to the listed servers or the system resolvers
+	RECURSIVE,
+	
+	// Walk down from the root hints or listed servers to the authoritative servers for each
+	// name, and ask them directly
+	AUTHORITATIVE,
+	
+	// Keep a copy of the zone each name is in by zone transfer from the listed servers, and
+	// answer from the copy
+	TRANSFER
+}
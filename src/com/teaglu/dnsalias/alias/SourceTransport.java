@@ -0,0 +1,20 @@
+package com.teaglu.dnsalias.alias;
+
+/**
+ * SourceTransport
+ * 
+ * Protocol used to send queries for the source names of an alias.
+ */
+public enum SourceTransport {
+	// Plain DNS over UDP, falling back to TCP for truncated answers
+	UDP,
+	
+	// DNS over TCP with a persistent connection
+	TCP,
+	
+	// DNS over TLS on port 853
+	TLS,
+	
+	// DNS over HTTPS on port 443
+	HTTPS
+}
@@ -8,17 +8,78 @@ import org.eclipse.jdt.annotation.Nullable;
 
 import com.teaglu.composite.Composite;
 import com.teaglu.composite.exception.MissingValueException;
+import com.teaglu.composite.exception.RangeException;
 import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.composite.exception.UndefinedOptionException;
 import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.alias.AliasType;
+import com.teaglu.dnsalias.alias.DampingThreshold;
+import com.teaglu.dnsalias.alias.SourceMode;
+import com.teaglu.dnsalias.alias.SourceTransport;
 
 public class CompositeAlias implements Alias {
+	private @NonNull AliasType type= AliasType.ADDRESS;
 	private final @NonNull List<@NonNull String> sourceNames= new ArrayList<>(5);
 	private List<@NonNull String> sourceServers;
+	private @NonNull SourceMode sourceMode= SourceMode.RECURSIVE;
+	private @NonNull SourceTransport sourceTransport= SourceTransport.UDP;
+	private long sourceTimeout;
+	private boolean dualStack;
+	private long maxNegativeTtl;
+	private int sourceQuorum;
+	private String sourceZone;
+	private long serialInterval;
+	private long serialCeiling;
+	private @NonNull DampingThreshold additionDamping= DampingThreshold.NONE;
+	private @NonNull DampingThreshold removalDamping= DampingThreshold.NONE;
+	private @NonNull DampingThreshold emptyDamping= DampingThreshold.NONE;
+	private int healthPort;
+	private long healthTimeout;
+	private long healthInterval;
+	private long deadline;
+	
+	// Default for how long to wait on source names, in seconds
+	private static final int DEFAULT_SOURCE_TIMEOUT= 30;
+	
+	// Default for the longest an empty answer is trusted, in seconds
+	private static final int DEFAULT_MAX_NEGATIVE_TTL= 900;
+	
+	// Defaults for how often the source zone serial is checked, and the longest a name goes
+	// without a lookup while it doesn't change, in seconds
+	private static final int DEFAULT_SERIAL_INTERVAL= 60;
+	private static final int DEFAULT_SERIAL_CEILING= 3600;
+	
+	// Defaults for how long a health probe waits in milliseconds, and how long its result is
+	// used in seconds
+	private static final int DEFAULT_HEALTH_TIMEOUT= 1000;
+	private static final int DEFAULT_HEALTH_INTERVAL= 30;
+	
+	// Default for how long one run of an alias can take, in seconds.  This is raised to the
+	// source timeout if that's longer.
+	private static final int DEFAULT_DEADLINE= 120;
 	
 	private final @NonNull String destinationZone;
 	private final @NonNull String destinationName;
 	
 	private CompositeAlias(@NonNull Composite config) throws SchemaException {
+		{
+			String typeName= config.getOptionalString("type");
+			if (typeName != null) {
+				switch (typeName) {
+				case "address":
+					type= AliasType.ADDRESS;
+					break;
+					
+				case "spf":
+					type= AliasType.SPF;
+					break;
+					
+				default:
+					throw new UndefinedOptionException("Alias type " + typeName + " not known");
+				}
+			}
+		}
+		
 		{
 			Composite source= config.getRequiredObject("source");
 			
@@ -45,6 +106,122 @@ public class CompositeAlias implements Alias {
 					}
 				}
 			}
+			
+			String mode= source.getOptionalString("mode");
+			if (mode != null) {
+				switch (mode) {
+				case "recursive":
+					sourceMode= SourceMode.RECURSIVE;
+					break;
+					
+				case "authoritative":
+					sourceMode= SourceMode.AUTHORITATIVE;
+					break;
+					
+				case "transfer":
+					sourceMode= SourceMode.TRANSFER;
+					break;
+					
+				default:
+					throw new UndefinedOptionException("Source mode " + mode + " not known");
+				}
+			}
+			
+			String transport= source.getOptionalString("transport");
+			if (transport != null) {
+				switch (transport) {
+				case "udp":
+					sourceTransport= SourceTransport.UDP;
+					break;
+					
+				case "tcp":
+					sourceTransport= SourceTransport.TCP;
+					break;
+					
+				case "tls":
+					sourceTransport= SourceTransport.TLS;
+					break;
+					
+				case "https":
+					sourceTransport= SourceTransport.HTTPS;
+					break;
+					
+				default:
+					throw new UndefinedOptionException("Source transport " + transport + " not known");
+				}
+			}
+			
+			// Transfers have to come from servers that have been told to allow them
+			if ((sourceMode == SourceMode.TRANSFER) && (sourceServers == null)) {
+				throw new MissingValueException("source.servers");
+			}
+			
+			// The system resolvers and the servers found by walking down from the root are only
+			// reachable with plain DNS.
+			if ((sourceTransport == SourceTransport.TLS) ||
+					(sourceTransport == SourceTransport.HTTPS))
+			{
+				if (sourceServers == null) {
+					throw new MissingValueException("source.servers");
+				}
+				if (sourceMode != SourceMode.RECURSIVE) {
+					throw new UndefinedOptionException(
+							"Source transport " + transport + " requires recursive mode");
+				}
+			}
+			
+			Integer timeoutSeconds= source.getOptionalInteger("timeout");
+			if (timeoutSeconds == null) {
+				timeoutSeconds= DEFAULT_SOURCE_TIMEOUT;
+			} else if (timeoutSeconds < 1) {
+				throw new RangeException("source.timeout must be at least 1 second");
+			}
+			sourceTimeout= timeoutSeconds * 1000L;
+			
+			dualStack= source.getOptionalBoolean("dualStack", false);
+			
+			Integer maxNegativeTtlSeconds= source.getOptionalInteger("maxNegativeTtl");
+			if (maxNegativeTtlSeconds == null) {
+				maxNegativeTtlSeconds= DEFAULT_MAX_NEGATIVE_TTL;
+			} else if (maxNegativeTtlSeconds < 1) {
+				throw new RangeException("source.maxNegativeTtl must be at least 1 second");
+			}
+			maxNegativeTtl= maxNegativeTtlSeconds;
+			
+			// Quorum is only meaningful against a fixed list of servers that are each asked
+			Integer quorum= source.getOptionalInteger("quorum");
+			if (quorum != null) {
+				if (sourceServers == null) {
+					throw new MissingValueException("source.servers");
+				}
+				if (sourceMode != SourceMode.RECURSIVE) {
+					throw new UndefinedOptionException("Source quorum requires recursive mode");
+				}
+				if ((quorum < 1) || (quorum > sourceServers.size())) {
+					throw new RangeException(
+							"source.quorum must be between 1 and the number of servers listed");
+				}
+				sourceQuorum= quorum;
+			}
+			
+			sourceZone= source.getOptionalString("zone");
+			
+			Integer serialIntervalSeconds= source.getOptionalInteger("serialInterval");
+			if (serialIntervalSeconds == null) {
+				serialIntervalSeconds= DEFAULT_SERIAL_INTERVAL;
+			} else if (serialIntervalSeconds < 1) {
+				throw new RangeException("source.serialInterval must be at least 1 second");
+			}
+			serialInterval= serialIntervalSeconds;
+			
+			Integer serialCeilingSeconds= source.getOptionalInteger("serialCeiling");
+			if (serialCeilingSeconds == null) {
+				serialCeilingSeconds= Math.max(DEFAULT_SERIAL_CEILING, serialIntervalSeconds);
+			} else if (serialCeilingSeconds < serialIntervalSeconds) {
+				throw new RangeException(
+						"source.serialCeiling can't be less than source.serialInterval");
+			}
+			serialCeiling= serialCeilingSeconds;
 		}
 		
 		{
@@ -70,15 +247,115 @@ public class CompositeAlias implements Alias {
 			
 			destinationName= name;
 			destinationZone= zone;
+			
+			Composite damping= destination.getOptionalObject("damping");
+			if (damping != null) {
+				additionDamping= parseDamping(damping, "additions");
+				removalDamping= parseDamping(damping, "removals");
+				emptyDamping= parseDamping(damping, "empty");
+			}
+		}
+		
+		{
+			Composite health= config.getOptionalObject("health");
+			if (health != null) {
+				int port= health.getRequiredInteger("port");
+				if ((port < 1) || (port > 65535)) {
+					throw new RangeException("health.port must be between 1 and 65535");
+				}
+				healthPort= port;
+				
+				Integer timeoutMsec= health.getOptionalInteger("timeout");
+				if (timeoutMsec == null) {
+					timeoutMsec= DEFAULT_HEALTH_TIMEOUT;
+				} else if (timeoutMsec < 1) {
+					throw new RangeException("health.timeout must be at least 1 millisecond");
+				}
+				healthTimeout= timeoutMsec;
+				
+				Integer intervalSeconds= health.getOptionalInteger("interval");
+				if (intervalSeconds == null) {
+					intervalSeconds= DEFAULT_HEALTH_INTERVAL;
+				} else if (intervalSeconds < 1) {
+					throw new RangeException("health.interval must be at least 1 second");
+				}
+				healthInterval= intervalSeconds;
+			}
+		}
+		
+		// An SPF record is read from the one name it's published on, and the names it refers to
+		// can be anywhere, so they can't come from a copy of one zone.  Its addresses aren't
+		// probed or damped either, since they're mail senders and not servers to connect to.
+		if (type == AliasType.SPF) {
+			if (sourceNames.size() != 1) {
+				throw new RangeException("An SPF alias must have exactly one source name");
+			}
+			if (sourceMode == SourceMode.TRANSFER) {
+				throw new UndefinedOptionException("Source mode transfer can't be used for SPF");
+			}
+			if (sourceQuorum > 0) {
+				throw new UndefinedOptionException("Source quorum can't be used for SPF");
+			}
+			if (healthPort > 0) {
+				throw new UndefinedOptionException("Health probes can't be used for SPF");
+			}
+			if ((additionDamping != DampingThreshold.NONE) ||
+					(removalDamping != DampingThreshold.NONE) ||
+					(emptyDamping != DampingThreshold.NONE))
+			{
+				throw new UndefinedOptionException("Damping can't be used for SPF");
+			}
+		}
+		
+		{
+			long sourceTimeoutSeconds= sourceTimeout / 1000;
+			
+			Integer deadlineSeconds= config.getOptionalInteger("deadline");
+			if (deadlineSeconds == null) {
+				deadline= Math.max(DEFAULT_DEADLINE, sourceTimeoutSeconds) * 1000;
+			} else if (deadlineSeconds < sourceTimeoutSeconds) {
+				throw new RangeException("deadline can't be less than source.timeout");
+			} else {
+				deadline= deadlineSeconds * 1000L;
+			}
 		}
 	}
 	
+	private static @NonNull DampingThreshold parseDamping(
+			@NonNull Composite damping,
+			@NonNull String name) throws SchemaException
+	{
+		Composite threshold= damping.getOptionalObject(name);
+		if (threshold == null) {
+			return DampingThreshold.NONE;
+		}
+		
+		Integer polls= threshold.getOptionalInteger("polls");
+		if ((polls != null) && (polls < 1)) {
+			throw new RangeException("destination.damping." + name + ".polls must be at least 1");
+		}
+		
+		Integer seconds= threshold.getOptionalInteger("seconds");
+		if ((seconds != null) && (seconds < 0)) {
+			throw new RangeException("destination.damping." + name + ".seconds can't be negative");
+		}
+		
+		return DampingThreshold.Create(
+				(polls == null) ? 0 : polls,
+				(seconds == null) ? 0 : seconds);
+	}
+	
 	public static @NonNull Alias Create(
 			@NonNull Composite config) throws SchemaException
 	{
 		return new CompositeAlias(config);
 	}
 
+	@Override
+	public @NonNull AliasType getType() {
+		return type;
+	}
+
 	@Override
 	public @NonNull Iterable<@NonNull String> getSourceNames() {
 		return sourceNames;
@@ -89,6 +366,86 @@ public class CompositeAlias implements Alias {
 		return sourceServers;
 	}
 
+	@Override
+	public @NonNull SourceMode getSourceMode() {
+		return sourceMode;
+	}
+
+	@Override
+	public @NonNull SourceTransport getSourceTransport() {
+		return sourceTransport;
+	}
+
+	@Override
+	public long getSourceTimeout() {
+		return sourceTimeout;
+	}
+
+	@Override
+	public boolean isDualStack() {
+		return dualStack;
+	}
+
+	@Override
+	public long getMaxNegativeTtl() {
+		return maxNegativeTtl;
+	}
+
+	@Override
+	public int getSourceQuorum() {
+		return sourceQuorum;
+	}
+
+	@Override
+	public @Nullable String getSourceZone() {
+		return sourceZone;
+	}
+
+	@Override
+	public long getSerialInterval() {
+		return serialInterval;
+	}
+
+	@Override
+	public long getSerialCeiling() {
+		return serialCeiling;
+	}
+
+	@Override
+	public @NonNull DampingThreshold getAdditionDamping() {
+		return additionDamping;
+	}
+
+	@Override
+	public @NonNull DampingThreshold getRemovalDamping() {
+		return removalDamping;
+	}
+
+	@Override
+	public @NonNull DampingThreshold getEmptyDamping() {
+		return emptyDamping;
+	}
+
+	@Override
+	public int getHealthPort() {
+		return healthPort;
+	}
+
+	@Override
+	public long getHealthTimeout() {
+		return healthTimeout;
+	}
+
+	@Override
+	public long getHealthInterval() {
+		return healthInterval;
+	}
+
+	@Override
+	public long getDeadline() {
+		return deadline;
+	}
+
 	@Override
 	public @NonNull String getDestinationZone() {
 		return destinationZone;
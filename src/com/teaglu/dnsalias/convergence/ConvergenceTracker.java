@@ -0,0 +1,51 @@
+package com.teaglu.dnsalias.convergence;
+
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsZone;
+
+/**
+ * ConvergenceTracker
+ *
+ * Watches writes to a provider until they're actually being served, since a provider call
+ * returning only means the change was accepted.  How long that takes is kept for each provider
+ * type.  Implementations are shared by every alias and must be thread-safe.
+ */
+public interface ConvergenceTracker {
+	/**
+	 * track
+	 *
+	 * Start watching a write.  This returns straight away, and the callback is run on the
+	 * tracker's own threads once the write is served, or once the tracker gives up on it.
+	 *
+	 * @param description				What was written, for messages
+	 * @param zone						Zone object the write was made through
+	 * @param apex						Zone apex
+	 * @param records					Records as written, where a record with no values means
+	 * 									the name and type were deleted
+	 * @param served					Run once the write is served
+	 */
+	public void track(
+			@NonNull String description,
+			@NonNull DnsZone zone,
+			@NonNull String apex,
+			@NonNull List<@NonNull DnsRecord> records,
+			@NonNull Runnable served);
+
+	/**
+	 * logStatistics
+	 *
+	 * Write how long writes have taken to be served to the log, for each provider type.
+	 */
+	public void logStatistics();
+
+	/**
+	 * stop
+	 *
+	 * Stop watching.  Callbacks for writes still being watched aren't run.
+	 */
+	public void stop();
+}
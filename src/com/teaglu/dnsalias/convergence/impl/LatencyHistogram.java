@@ -0,0 +1,99 @@
+package com.teaglu.dnsalias.convergence.impl;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * LatencyHistogram
+ *
+ * Counts of how long writes took to be served, in fixed buckets.  The buckets are coarse since
+ * the time is only known to within the polling interval anyway.
+ */
+final class LatencyHistogram {
+	// Upper bound of each bucket in seconds.  Anything longer goes in the last bucket.
+	private static final int @NonNull [] BOUNDS= { 1, 2, 5, 10, 30, 60, 120, 300, 600 };
+
+	private final long @NonNull [] counts= new long[BOUNDS.length + 1];
+
+	private long served;
+	private long totalMsec;
+	private long longestMsec;
+
+	// Writes that were given up on before they were seen
+	private long abandoned;
+
+	/**
+	 * record
+	 *
+	 * Count a write that was served.
+	 *
+	 * @param msec						Time from the write until it was seen
+	 */
+	synchronized void record(long msec) {
+		int bucket= 0;
+		while ((bucket < BOUNDS.length) && (msec > (BOUNDS[bucket] * 1000L))) {
+			bucket++;
+		}
+
+		counts[bucket]++;
+		served++;
+		totalMsec+= msec;
+		longestMsec= Math.max(longestMsec, msec);
+	}
+
+	/**
+	 * recordAbandoned
+	 *
+	 * Count a write that still wasn't served when the tracker gave up.
+	 */
+	synchronized void recordAbandoned() {
+		abandoned++;
+	}
+
+	/**
+	 * describe
+	 *
+	 * Describe the counts for the log.
+	 *
+	 * @return							Description
+	 */
+	synchronized @NonNull String describe() {
+		StringBuilder builder= new StringBuilder();
+		builder.append(served);
+		builder.append(" served");
+
+		if (served > 0) {
+			builder.append(", average ");
+			builder.append(totalMsec / served);
+			builder.append("ms, longest ");
+			builder.append(longestMsec);
+			builder.append("ms [");
+
+			for (int bucket= 0; bucket < counts.length; bucket++) {
+				if (bucket > 0) {
+					builder.append(", ");
+				}
+
+				if (bucket < BOUNDS.length) {
+					builder.append("<=");
+					builder.append(BOUNDS[bucket]);
+				} else {
+					builder.append(">");
+					builder.append(BOUNDS[BOUNDS.length - 1]);
+				}
+				builder.append("s: ");
+				builder.append(counts[bucket]);
+			}
+			builder.append("]");
+		}
+
+		if (abandoned > 0) {
+			builder.append(", ");
+			builder.append(abandoned);
+			builder.append(" never seen");
+		}
+
+		@SuppressWarnings("null")
+		@NonNull String rval= builder.toString();
+		return rval;
+	}
+}
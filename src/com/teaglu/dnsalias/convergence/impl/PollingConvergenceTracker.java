@@ -0,0 +1,477 @@
+package com.teaglu.dnsalias.convergence.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.convergence.ConvergenceTracker;
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.dns.address.Inet4SetBuilder;
+import com.teaglu.dnsalias.dns.address.Inet6SetBuilder;
+import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.resolver.SourceResolver;
+
+/**
+ * PollingConvergenceTracker
+ *
+ * Implementation of ConvergenceTracker that polls until a write is served.  Providers that
+ * report the status of a change, like Route53, are asked directly.  For the others every
+ * authoritative server of the zone is asked for the records, and the write counts as served
+ * once every server that answers has them.
+ *
+ * Polls start a second after the write and get further apart the longer it takes, so the time
+ * recorded is within about a quarter of the real one.
+ */
+public class PollingConvergenceTracker implements ConvergenceTracker {
+	private static final Logger log= LoggerFactory.getLogger(PollingConvergenceTracker.class);
+
+	// Shortest and longest time between polls of one write
+	private static final long MINIMUM_POLL_MSEC= 1_000;
+	private static final long MAXIMUM_POLL_MSEC= 15_000;
+
+	// How long a write is watched before giving up on it
+	private static final long ABANDON_MSEC= 15 * 60_000;
+
+	// Most writes watched at once.  Past this new writes aren't watched, and their callback is
+	// run straight away.
+	private static final int MAXIMUM_PENDING= 1000;
+
+	// How long the nameservers found for a zone are used before they're looked up again
+	private static final long NAMESERVER_MSEC= 60 * 60_000;
+
+	// Finds the nameservers of destination zones
+	private final @NonNull SourceResolver authoritativeResolver;
+
+	// Sends each query to the one nameserver it is given, without caching what it says
+	private final @NonNull SourceResolver directResolver;
+
+	private final @NonNull ScheduledExecutorService pollService;
+
+	private final @NonNull AtomicInteger pendingCount= new AtomicInteger();
+
+	// Writes that weren't watched because too many already were
+	private final @NonNull AtomicInteger skippedCount= new AtomicInteger();
+
+	// Latency for each provider type, guarded by the map
+	private final @NonNull Map<@NonNull String, @NonNull LatencyHistogram> histograms=
+			new TreeMap<>();
+
+	private static class Nameservers {
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+		private final long expires;
+
+		private Nameservers(@NonNull List<@NonNull InetSocketAddress> servers, long expires) {
+			this.servers= servers;
+			this.expires= expires;
+		}
+	}
+
+	private final @NonNull Map<@NonNull Name, @NonNull Nameservers> nameserverMap=
+			new ConcurrentHashMap<>();
+
+	private PollingConvergenceTracker(
+			@NonNull SourceResolver authoritativeResolver,
+			@NonNull SourceResolver directResolver)
+	{
+		this.authoritativeResolver= authoritativeResolver;
+		this.directResolver= directResolver;
+
+		AtomicInteger threadCounter= new AtomicInteger(1);
+
+		@SuppressWarnings("null")
+		@NonNull ScheduledExecutorService tmpService= Executors.newScheduledThreadPool(2,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread= new Thread(runnable,
+								"convergence-" + threadCounter.getAndIncrement());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+		pollService= tmpService;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a tracker and start its threads.
+	 *
+	 * @param authoritativeResolver		Resolver that finds the authoritative servers itself
+	 * @param directResolver			Resolver that sends queries to the servers it's given
+	 *
+	 * @return							New tracker
+	 */
+	public static @NonNull ConvergenceTracker Create(
+			@NonNull SourceResolver authoritativeResolver,
+			@NonNull SourceResolver directResolver)
+	{
+		return new PollingConvergenceTracker(authoritativeResolver, directResolver);
+	}
+
+	private class Pending implements Runnable {
+		private final @NonNull String description;
+		private final @NonNull DnsZone zone;
+		private final @NonNull Name apex;
+		private final @NonNull List<@NonNull DnsRecord> records;
+		private final @NonNull Runnable served;
+		private final long written;
+
+		private Pending(
+				@NonNull String description,
+				@NonNull DnsZone zone,
+				@NonNull Name apex,
+				@NonNull List<@NonNull DnsRecord> records,
+				@NonNull Runnable served)
+		{
+			this.description= description;
+			this.zone= zone;
+			this.apex= apex;
+			this.records= records;
+			this.served= served;
+			this.written= System.currentTimeMillis();
+		}
+
+		@Override
+		public void run() {
+			CompletableFuture<@NonNull Boolean> check;
+			try {
+				check= isServed(this);
+			} catch (IOException checkException) {
+				log.debug("Unable to check whether the write to " + description +
+						" is served", checkException);
+				check= CompletableFuture.completedFuture(Boolean.FALSE);
+			} catch (DnsException checkException) {
+				log.debug("Unable to check whether the write to " + description +
+						" is served", checkException);
+				check= CompletableFuture.completedFuture(Boolean.FALSE);
+			}
+
+			// The answers complete on the resolver's thread, so the rest is handed back to ours.
+			// Once stopped there's nothing to hand it to, and the write is just dropped.
+			check.whenCompleteAsync((seen, exception) -> {
+				finish((seen != null) && seen.booleanValue());
+			}, pollService);
+		}
+
+		private void finish(boolean seen) {
+			long elapsed= System.currentTimeMillis() - written;
+			LatencyHistogram histogram= getHistogram(zone.getProviderType());
+
+			if (seen) {
+				histogram.record(elapsed);
+				log.debug("The write to " + description + " was served after " + elapsed +
+						" milliseconds");
+			} else if (elapsed >= ABANDON_MSEC) {
+				histogram.recordAbandoned();
+				log.warn("The write to " + description + " still isn't served after " +
+						TimeUnit.MILLISECONDS.toMinutes(elapsed) + " minutes - giving up on it");
+			} else {
+				long delay= Math.max(MINIMUM_POLL_MSEC, Math.min(MAXIMUM_POLL_MSEC, elapsed / 4));
+				schedule(this, delay);
+				return;
+			}
+
+			pendingCount.decrementAndGet();
+			served.run();
+		}
+	}
+
+	@Override
+	public void track(
+			@NonNull String description,
+			@NonNull DnsZone zone,
+			@NonNull String apex,
+			@NonNull List<@NonNull DnsRecord> records,
+			@NonNull Runnable served)
+	{
+		Name apexName;
+		try {
+			apexName= Name.fromString(apex, Name.root);
+		} catch (TextParseException parseException) {
+			served.run();
+			return;
+		}
+
+		if (pendingCount.incrementAndGet() > MAXIMUM_PENDING) {
+			pendingCount.decrementAndGet();
+			skippedCount.incrementAndGet();
+
+			served.run();
+			return;
+		}
+
+		schedule(new Pending(description, zone, apexName, records, served), MINIMUM_POLL_MSEC);
+	}
+
+	private void schedule(@NonNull Pending pending, long delay) {
+		try {
+			pollService.schedule(pending, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException rejectedException) {
+			// Stopped
+		}
+	}
+
+	private @NonNull LatencyHistogram getHistogram(@NonNull String providerType) {
+		synchronized (histograms) {
+			LatencyHistogram histogram= histograms.get(providerType);
+			if (histogram == null) {
+				histogram= new LatencyHistogram();
+				histograms.put(providerType, histogram);
+			}
+
+			return histogram;
+		}
+	}
+
+	// Every server is asked about every record at once, so a poll takes as long as the slowest
+	// server instead of all of them added up
+	private @NonNull CompletableFuture<@NonNull Boolean> isServed(
+			@NonNull Pending pending) throws DnsException, IOException
+	{
+		Boolean providerStatus= pending.zone.isSynchronized();
+		if (providerStatus != null) {
+			return CompletableFuture.completedFuture(providerStatus);
+		}
+
+		List<@NonNull InetSocketAddress> servers= getNameservers(pending.apex);
+
+		// For each record, whether each server has it, or null if the server didn't answer
+		List<List<CompletableFuture<Boolean>>> checks= new ArrayList<>(pending.records.size());
+		List<CompletableFuture<Boolean>> all= new ArrayList<>();
+
+		for (DnsRecord record : pending.records) {
+			String relative= record.getName();
+			Name name= (relative.isBlank() || relative.equals("@")) ?
+					pending.apex : Name.fromString(relative, pending.apex);
+
+			int type= Type.value(record.getType().name());
+
+			@SuppressWarnings("null")
+			byte @NonNull [] query=
+					Message.newQuery(Record.newRecord(name, type, DClass.IN)).toWire();
+
+			List<CompletableFuture<Boolean>> answers= new ArrayList<>(servers.size());
+			for (InetSocketAddress server : servers) {
+				@SuppressWarnings("null")
+				@NonNull List<@NonNull InetSocketAddress> single= Collections.singletonList(server);
+
+				CompletableFuture<Boolean> answer= directResolver.exchangeAsync(query, single)
+						.handle((wire, exception) -> {
+							if (exception != null) {
+								return null;
+							}
+
+							try {
+								return matches(record, name, type, new Message(wire));
+							} catch (IOException parseException) {
+								return null;
+							}
+						});
+
+				answers.add(answer);
+				all.add(answer);
+			}
+
+			checks.add(answers);
+		}
+
+		return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()]))
+				.thenApply(done -> {
+					for (List<CompletableFuture<Boolean>> answers : checks) {
+						// A server that doesn't answer can't say either way, but at least one
+						// has to
+						int answered= 0;
+						for (CompletableFuture<Boolean> answer : answers) {
+							Boolean matched= answer.join();
+							if (matched != null) {
+								if (!matched.booleanValue()) {
+									return Boolean.FALSE;
+								}
+								answered++;
+							}
+						}
+
+						if (answered == 0) {
+							return Boolean.FALSE;
+						}
+					}
+
+					return Boolean.TRUE;
+				});
+	}
+
+	// Whether a server's answer holds exactly the values that were written
+	private static boolean matches(
+			@NonNull DnsRecord record,
+			@NonNull Name name,
+			int type,
+			@NonNull Message response)
+	{
+		int rcode= response.getRcode();
+		if ((rcode != Rcode.NOERROR) && (rcode != Rcode.NXDOMAIN)) {
+			return false;
+		}
+
+		List<@NonNull Record> answers= new ArrayList<>(4);
+		for (Record answer : response.getSection(Section.ANSWER)) {
+			if ((answer.getType() == type) && answer.getName().equals(name)) {
+				answers.add(answer);
+			}
+		}
+
+		switch (type) {
+		case Type.A: {
+			Inet4SetBuilder expected= new Inet4SetBuilder();
+			for (String value : record.getValues()) {
+				expected.add(value);
+			}
+
+			Inet4SetBuilder actual= new Inet4SetBuilder();
+			for (Record answer : answers) {
+				actual.add(((ARecord)answer).getAddress().getAddress(), 0);
+			}
+
+			return actual.matches(expected.build());
+		}
+
+		case Type.AAAA: {
+			Inet6SetBuilder expected= new Inet6SetBuilder();
+			for (String value : record.getValues()) {
+				expected.add(value);
+			}
+
+			Inet6SetBuilder actual= new Inet6SetBuilder();
+			for (Record answer : answers) {
+				actual.add(((AAAARecord)answer).getAddress().getAddress(), 0);
+			}
+
+			return actual.matches(expected.build());
+		}
+
+		case Type.TXT: {
+			Set<String> expected= new HashSet<>();
+			for (String value : record.getValues()) {
+				expected.add(value);
+			}
+
+			Set<String> actual= new HashSet<>();
+			for (Record answer : answers) {
+				actual.add(String.join("", ((TXTRecord)answer).getStrings()));
+			}
+
+			return actual.equals(expected);
+		}
+
+		default:
+			// Nothing else is written
+			return true;
+		}
+	}
+
+	// Authoritative servers of a zone, from its NS records and their addresses
+	private @NonNull List<@NonNull InetSocketAddress> getNameservers(
+			@NonNull Name apex) throws IOException
+	{
+		long now= System.currentTimeMillis();
+
+		Nameservers known= nameserverMap.get(apex);
+		if ((known != null) && (known.expires > now)) {
+			return known.servers;
+		}
+
+		@SuppressWarnings("null")
+		@NonNull Message query= Message.newQuery(Record.newRecord(apex, Type.NS, DClass.IN));
+		Message response= authoritativeResolver.send(query, null);
+
+		List<@NonNull InetSocketAddress> servers= new ArrayList<>(4);
+		for (Record answer : response.getSection(Section.ANSWER)) {
+			if (answer instanceof NSRecord) {
+				Name target= ((NSRecord)answer).getTarget();
+
+				@SuppressWarnings("null")
+				@NonNull Message addressQuery=
+						Message.newQuery(Record.newRecord(target, Type.A, DClass.IN));
+
+				try {
+					Message addressResponse= authoritativeResolver.send(addressQuery, null);
+					for (Record address : addressResponse.getSection(Section.ANSWER)) {
+						if (address instanceof ARecord) {
+							InetAddress inetAddress= ((ARecord)address).getAddress();
+							servers.add(new InetSocketAddress(inetAddress, 53));
+						}
+					}
+				} catch (IOException addressException) {
+					log.debug("Unable to find the address of nameserver " + target,
+							addressException);
+				}
+			}
+		}
+
+		if (servers.isEmpty()) {
+			throw new IOException("Unable to find the nameservers for " + apex);
+		}
+
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull InetSocketAddress> tmpServers=
+				Collections.unmodifiableList(servers);
+
+		nameserverMap.put(apex, new Nameservers(tmpServers, now + NAMESERVER_MSEC));
+		return tmpServers;
+	}
+
+	@Override
+	public void logStatistics() {
+		synchronized (histograms) {
+			for (Map.Entry<@NonNull String, @NonNull LatencyHistogram> entry
+					: histograms.entrySet())
+			{
+				log.info("Writes to " + entry.getKey() + ": " + entry.getValue().describe());
+			}
+		}
+
+		int skipped= skippedCount.getAndSet(0);
+		if (skipped > 0) {
+			log.info(skipped + " writes weren't watched because " + MAXIMUM_PENDING +
+					" already were");
+		}
+	}
+
+	@Override
+	public void stop() {
+		pollService.shutdownNow();
+	}
+}
@@ -6,6 +6,7 @@ import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 
 import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.processor.Deadline;
 
 /**
  * DnsProvider
@@ -24,6 +25,28 @@ public interface DnsProvider {
 	 * @throws DnsException				Usually zone not found
 	 * @throws IOException				Error talking to API
 	 */
+	public default @Nullable DnsZone getZone(
+			@NonNull String apex) throws DnsException, IOException
+	{
+		return getZone(apex, Deadline.NONE);
+	}
+
+	/**
+	 * getZone
+	 * 
+	 * Same as above, but every API call made looking up the zone and through the zone it
+	 * returns is limited to whatever is left of the deadline, and fails if it has already
+	 * passed.  The only exception is isSynchronized, which is asked later by whoever the zone is
+	 * handed on to.
+	 * 
+	 * @param apex						Zone name i.e. contoso.com
+	 * @param deadline					Deadline of the run the zone is for
+	 * @return							Reference to zone structure
+	 * 
+	 * @throws DnsException				Usually zone not found
+	 * @throws IOException				Error talking to API
+	 */
 	public @Nullable DnsZone getZone(
-			@NonNull String apex) throws DnsException, IOException;
+			@NonNull String apex,
+			@NonNull Deadline deadline) throws DnsException, IOException;
 }
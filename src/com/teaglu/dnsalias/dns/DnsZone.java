@@ -2,6 +2,7 @@ package com.teaglu.dnsalias.dns;
 
 import java.io.IOException;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 
 import com.teaglu.dnsalias.dns.exception.DnsException;
 
@@ -73,4 +74,29 @@ public interface DnsZone {
 	 * @throws IOException
 	 */
 	public long getNegativeTtl() throws DnsException, IOException;
+
+	/**
+	 * getProviderType
+	 * 
+	 * Type of the provider the zone belongs to, the same as the type in the provider
+	 * configuration.
+	 * 
+	 * @return							Provider type i.e. route53
+	 */
+	public @NonNull String getProviderType();
+
+	/**
+	 * isSynchronized
+	 * 
+	 * Ask the provider whether every change made through this object is being served by all of
+	 * its nameservers.  Providers that don't report this return null, and their nameservers have
+	 * to be asked instead.
+	 * 
+	 * @return							Whether the changes are served, or null if the provider
+	 * 									can't say
+	 * 
+	 * @throws DnsException
+	 * @throws IOException
+	 */
+	public @Nullable Boolean isSynchronized() throws DnsException, IOException;
 }
@@ -0,0 +1,225 @@
+package com.teaglu.dnsalias.dns.address;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * AddressAnswerParser
+ *
+ * Reads the addresses out of an A or AAAA answer straight from the wire format, without building
+ * a message, records or names along the way.  Names are compared where they sit in the buffer,
+ * following compression pointers as needed, and addresses go directly into a set builder, so a
+ * caller reusing its builders reads an answer without allocating anything.
+ *
+ * Only the common shape of answer is handled: a single question, no error, and an answer section
+ * made up of the CNAME chain for the name followed by its address records, possibly with
+ * signatures.  Anything else - including empty answers, which need the authority section for
+ * their negative TTL - is left for the caller to read with a full parser.
+ */
+public final class AddressAnswerParser {
+	/**
+	 * Returned when the answer isn't one this parser handles.
+	 */
+	public static final long UNHANDLED= -1;
+
+	private static final int HEADER_LENGTH= 12;
+
+	private static final int TYPE_A= 1;
+	private static final int TYPE_CNAME= 5;
+	private static final int TYPE_AAAA= 28;
+	private static final int TYPE_RRSIG= 46;
+
+	private static final int CLASS_IN= 1;
+
+	// Bound on compression pointers followed while comparing two names, which is more than any
+	// legitimate message uses and stops a pointer loop from running forever.
+	private static final int MAXIMUM_POINTERS= 64;
+
+	private AddressAnswerParser() {}
+
+	private static int readShort(byte @NonNull [] message, int offset) {
+		return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+	}
+
+	// Step over a name, returning the offset after it or -1 if it runs off the end
+	private static int skipName(byte @NonNull [] message, int offset) {
+		while (offset < message.length) {
+			int length= message[offset] & 0xFF;
+			if (length == 0) {
+				return offset + 1;
+			}
+			if ((length & 0xC0) == 0xC0) {
+				return (offset + 2 <= message.length) ? (offset + 2) : -1;
+			}
+			if ((length & 0xC0) != 0) {
+				return -1;
+			}
+
+			offset+= length + 1;
+		}
+
+		return -1;
+	}
+
+	// Compare two names in the message, ignoring ASCII case the same way DNS does
+	private static boolean namesEqual(byte @NonNull [] message, int first, int second) {
+		int pointers= 0;
+
+		while (true) {
+			while ((first < message.length) && ((message[first] & 0xC0) == 0xC0)) {
+				if ((first + 1 >= message.length) || (++pointers > MAXIMUM_POINTERS)) {
+					return false;
+				}
+				first= ((message[first] & 0x3F) << 8) | (message[first + 1] & 0xFF);
+			}
+			while ((second < message.length) && ((message[second] & 0xC0) == 0xC0)) {
+				if ((second + 1 >= message.length) || (++pointers > MAXIMUM_POINTERS)) {
+					return false;
+				}
+				second= ((message[second] & 0x3F) << 8) | (message[second + 1] & 0xFF);
+			}
+
+			if ((first >= message.length) || (second >= message.length)) {
+				return false;
+			}
+
+			int length= message[first] & 0xFF;
+			if (((length & 0xC0) != 0) || (length != (message[second] & 0xFF))) {
+				return false;
+			}
+			if (length == 0) {
+				return true;
+			}
+			if ((first + length >= message.length) || (second + length >= message.length)) {
+				return false;
+			}
+
+			if (first != second) {
+				for (int i= 1; i <= length; i++) {
+					int a= message[first + i];
+					int b= message[second + i];
+					if ((a >= 'A') && (a <= 'Z')) {
+						a+= 'a' - 'A';
+					}
+					if ((b >= 'A') && (b <= 'Z')) {
+						b+= 'a' - 'A';
+					}
+					if (a != b) {
+						return false;
+					}
+				}
+			}
+
+			first+= length + 1;
+			second+= length + 1;
+		}
+	}
+
+	/**
+	 * readAddresses
+	 *
+	 * Read the addresses from an answer into the builder for the type asked for.  The builder
+	 * may have been partly filled when UNHANDLED is returned, so it should be cleared before the
+	 * answer is read some other way.
+	 *
+	 * @param message					Answer in wire format
+	 * @param type						Record type asked for, either A (1) or AAAA (28)
+	 * @param v4Builder					Builder for A records
+	 * @param v6Builder					Builder for AAAA records
+	 *
+	 * @return							Lowest TTL of the address records, or UNHANDLED
+	 */
+	public static long readAddresses(
+			byte @NonNull [] message,
+			int type,
+			@NonNull Inet4SetBuilder v4Builder,
+			@NonNull Inet6SetBuilder v6Builder)
+	{
+		int rdataLength= (type == TYPE_A) ? 4 : (type == TYPE_AAAA) ? 16 : -1;
+		if ((rdataLength == -1) || (message.length < HEADER_LENGTH)) {
+			return UNHANDLED;
+		}
+
+		// Has to be a response, not truncated, with no error
+		int flags= readShort(message, 2);
+		if (((flags & 0x8000) == 0) || ((flags & 0x0200) != 0) || ((flags & 0x000F) != 0)) {
+			return UNHANDLED;
+		}
+
+		int questionCount= readShort(message, 4);
+		int answerCount= readShort(message, 6);
+		if ((questionCount != 1) || (answerCount == 0)) {
+			return UNHANDLED;
+		}
+
+		int offset= skipName(message, HEADER_LENGTH);
+		if ((offset == -1) || (offset + 4 > message.length) ||
+				(readShort(message, offset) != type) ||
+				(readShort(message, offset + 2) != CLASS_IN))
+		{
+			return UNHANDLED;
+		}
+		offset+= 4;
+
+		// Records have to belong to the name asked for, or to the last CNAME target after it
+		int owner= HEADER_LENGTH;
+
+		long lowestTtl= Long.MAX_VALUE;
+		boolean found= false;
+
+		for (int answerNo= 0; answerNo < answerCount; answerNo++) {
+			int recordOwner= offset;
+
+			offset= skipName(message, offset);
+			if ((offset == -1) || (offset + 10 > message.length)) {
+				return UNHANDLED;
+			}
+
+			int recordType= readShort(message, offset);
+			int recordClass= readShort(message, offset + 2);
+			long ttl= ((long)readShort(message, offset + 4) << 16) | readShort(message, offset + 6);
+			int length= readShort(message, offset + 8);
+			offset+= 10;
+
+			if ((offset + length > message.length) || (recordClass != CLASS_IN)) {
+				return UNHANDLED;
+			}
+
+			if (recordType == TYPE_RRSIG) {
+				// Signatures don't change the answer
+			} else if (recordType == TYPE_CNAME) {
+				if (found || !namesEqual(message, recordOwner, owner) ||
+						(skipName(message, offset) != offset + length))
+				{
+					return UNHANDLED;
+				}
+
+				owner= offset;
+			} else if (recordType == type) {
+				if ((length != rdataLength) || !namesEqual(message, recordOwner, owner)) {
+					return UNHANDLED;
+				}
+
+				if (type == TYPE_A) {
+					v4Builder.add(message, offset);
+				} else {
+					v6Builder.add(message, offset);
+				}
+
+				// RFC 2181 says a TTL with the top bit set is to be read as zero
+				if (ttl > Integer.MAX_VALUE) {
+					ttl= 0;
+				}
+				if (ttl < lowestTtl) {
+					lowestTtl= ttl;
+				}
+				found= true;
+			} else {
+				return UNHANDLED;
+			}
+
+			offset+= length;
+		}
+
+		return found ? lowestTtl : UNHANDLED;
+	}
+}
@@ -0,0 +1,236 @@
+package com.teaglu.dnsalias.dns.address;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Inet4Set
+ * 
+ * Immutable set of IPv4 addresses held as a sorted array of ints, along with a 64-bit
+ * fingerprint of the contents.  Two sets with different fingerprints are known to be different
+ * with a single comparison, which is the common case when checking whether anything changed.
+ * 
+ * Addresses are sorted as unsigned values, so they come out in the order people expect to
+ * read them.  Sets are built with Inet4SetBuilder.
+ */
+public final class Inet4Set {
+	// Sorted addresses with no duplicates
+	private final int[] addresses;
+	
+	// Fingerprint of the sorted addresses
+	private final long fingerprint;
+	
+	public static final @NonNull Inet4Set EMPTY= new Inet4Set(new int[0], fingerprint(new int[0], 0));
+	
+	Inet4Set(int[] addresses, long fingerprint) {
+		this.addresses= addresses;
+		this.fingerprint= fingerprint;
+	}
+	
+	/**
+	 * fingerprint
+	 * 
+	 * Compute the fingerprint of the first count entries of a sorted array.  Each address goes
+	 * through the SplitMix64 finalizer before being folded in, so a change in any bit changes
+	 * roughly half the bits of the result.
+	 * 
+	 * @param sorted					Sorted addresses
+	 * @param count						Number of entries to use
+	 * 
+	 * @return							Fingerprint
+	 */
+	static long fingerprint(int[] sorted, int count) {
+		long hash= 0x9E3779B97F4A7C15L * (count + 1);
+		for (int i= 0; i < count; i++) {
+			hash= mix(hash ^ (sorted[i] & 0xFFFFFFFFL));
+		}
+		
+		return hash;
+	}
+	
+	static long mix(long value) {
+		value+= 0x9E3779B97F4A7C15L;
+		value= (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value= (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+	
+	public int size() {
+		return addresses.length;
+	}
+	
+	public boolean isEmpty() {
+		return addresses.length == 0;
+	}
+	
+	/**
+	 * get
+	 * 
+	 * Return one address as an int in network order, i.e. 10.0.0.1 is 0x0A000001.
+	 * 
+	 * @param index						Index from 0 to size() - 1
+	 * @return							Address
+	 */
+	public int get(int index) {
+		return addresses[index];
+	}
+	
+	/**
+	 * getInetAddress
+	 * 
+	 * Return one address as an InetAddress, for handing to the network classes.
+	 * 
+	 * @param index						Index from 0 to size() - 1
+	 * @return							Address
+	 */
+	public @NonNull InetAddress getInetAddress(int index) {
+		int address= addresses[index];
+		byte[] bytes= {
+				(byte)(address >>> 24), (byte)(address >>> 16), (byte)(address >>> 8), (byte)address
+		};
+		
+		try {
+			@SuppressWarnings("null")
+			@NonNull InetAddress inetAddress= InetAddress.getByAddress(bytes);
+			return inetAddress;
+		} catch (UnknownHostException lengthException) {
+			// Only thrown for an array that isn't 4 or 16 bytes
+			throw new IllegalStateException(lengthException);
+		}
+	}
+	
+	public long getFingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * containsAll
+	 * 
+	 * @param other						Another set
+	 * @return							Whether every address in the other set is in this one
+	 */
+	public boolean containsAll(@NonNull Inet4Set other) {
+		// Both are sorted, so one pass over each is enough
+		int index= 0;
+		for (int address : other.addresses) {
+			while ((index < addresses.length) &&
+					(Integer.compareUnsigned(addresses[index], address) < 0))
+			{
+				index++;
+			}
+			if ((index == addresses.length) || (addresses[index] != address)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * contains
+	 * 
+	 * @param address					Address as an int in network order
+	 * @return							Whether the address is in the set
+	 */
+	public boolean contains(int address) {
+		int low= 0;
+		int high= addresses.length - 1;
+		
+		while (low <= high) {
+			int middle= (low + high) >>> 1;
+			int compare= Integer.compareUnsigned(addresses[middle], address);
+			
+			if (compare < 0) {
+				low= middle + 1;
+			} else if (compare > 0) {
+				high= middle - 1;
+			} else {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * sameAs
+	 * 
+	 * Compare against the first count entries of a sorted array, without having to build a set
+	 * out of it first.
+	 * 
+	 * @param sorted					Sorted addresses with no duplicates
+	 * @param count						Number of entries to use
+	 * @param otherFingerprint			Fingerprint of those entries
+	 * 
+	 * @return							Whether they hold the same addresses
+	 */
+	boolean sameAs(int[] sorted, int count, long otherFingerprint) {
+		if ((fingerprint != otherFingerprint) || (addresses.length != count)) {
+			return false;
+		}
+		
+		return Arrays.equals(addresses, 0, count, sorted, 0, count);
+	}
+	
+	/**
+	 * toString
+	 * 
+	 * Format a single address in dotted quad form.
+	 * 
+	 * @param address					Address as an int in network order
+	 * @return							Dotted quad
+	 */
+	public static @NonNull String toString(int address) {
+		StringBuilder builder= new StringBuilder(15);
+		appendAddress(builder, address);
+		
+		@SuppressWarnings("null")
+		@NonNull String rval= builder.toString();
+		return rval;
+	}
+	
+	private static void appendAddress(@NonNull StringBuilder builder, int address) {
+		builder.append((address >>> 24) & 0xFF);
+		builder.append('.');
+		builder.append((address >>> 16) & 0xFF);
+		builder.append('.');
+		builder.append((address >>> 8) & 0xFF);
+		builder.append('.');
+		builder.append(address & 0xFF);
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof Inet4Set)) {
+			return false;
+		}
+		
+		Inet4Set otherSet= (Inet4Set)other;
+		return otherSet.sameAs(addresses, addresses.length, fingerprint);
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int)(fingerprint ^ (fingerprint >>> 32));
+	}
+	
+	// Comma separated list, which is how sets show up in alerts and logs
+	@Override
+	public String toString() {
+		StringBuilder builder= new StringBuilder();
+		for (int i= 0; i < addresses.length; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			appendAddress(builder, addresses[i]);
+		}
+		
+		return builder.toString();
+	}
+}
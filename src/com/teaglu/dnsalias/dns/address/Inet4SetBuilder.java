@@ -0,0 +1,179 @@
+package com.teaglu.dnsalias.dns.address;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Inet4SetBuilder
+ * 
+ * Reusable builder for Inet4Set.  The builder keeps its buffer between uses, so a caller that
+ * holds on to one builder and only calls build() when matches() says something changed doesn't
+ * allocate anything in the steady state.
+ * 
+ * This class is not thread-safe.
+ */
+public final class Inet4SetBuilder {
+	private int[] buffer= new int[8];
+	private int count;
+	
+	// Set when the buffer has been sorted and de-duplicated since the last add
+	private boolean normalized;
+	private long fingerprint;
+	
+	public Inet4SetBuilder() {}
+	
+	public void clear() {
+		count= 0;
+		normalized= false;
+	}
+	
+	public int size() {
+		normalize();
+		return count;
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Add an address as an int in network order.
+	 * 
+	 * @param address					Address
+	 */
+	public void add(int address) {
+		if (count == buffer.length) {
+			buffer= Arrays.copyOf(buffer, count * 2);
+		}
+		buffer[count++]= address;
+		normalized= false;
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Add an address from 4 bytes in network order, which is how it appears in rdata.
+	 * 
+	 * @param bytes						Buffer
+	 * @param offset					Offset of the first byte
+	 */
+	public void add(byte[] bytes, int offset) {
+		add(((bytes[offset] & 0xFF) << 24) |
+				((bytes[offset + 1] & 0xFF) << 16) |
+				((bytes[offset + 2] & 0xFF) << 8) |
+				(bytes[offset + 3] & 0xFF));
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Add every address in an existing set.
+	 * 
+	 * @param set						Set to add
+	 */
+	public void add(@NonNull Inet4Set set) {
+		for (int i= 0; i < set.size(); i++) {
+			add(set.get(i));
+		}
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Parse an address in dotted quad form and add it.
+	 * 
+	 * @param text						Address text
+	 * @return							False if the text isn't a valid IPv4 address
+	 */
+	public boolean add(@NonNull String text) {
+		int address= 0;
+		int octet= 0;
+		int digits= 0;
+		int dots= 0;
+		
+		int length= text.length();
+		for (int pos= 0; pos < length; pos++) {
+			char c= text.charAt(pos);
+			if ((c >= '0') && (c <= '9')) {
+				octet= (octet * 10) + (c - '0');
+				if ((++digits > 3) || (octet > 255)) {
+					return false;
+				}
+			} else if ((c == '.') && (digits > 0) && (dots < 3)) {
+				address= (address << 8) | octet;
+				octet= 0;
+				digits= 0;
+				dots++;
+			} else {
+				return false;
+			}
+		}
+		
+		if ((dots != 3) || (digits == 0)) {
+			return false;
+		}
+		
+		add((address << 8) | octet);
+		return true;
+	}
+	
+	// Sort as unsigned values, drop duplicates, and work out the fingerprint
+	private void normalize() {
+		if (normalized) {
+			return;
+		}
+		
+		// Flipping the sign bit makes a signed sort come out in unsigned order, without
+		// needing a comparator and the boxing that goes with it.
+		for (int i= 0; i < count; i++) {
+			buffer[i]^= Integer.MIN_VALUE;
+		}
+		Arrays.sort(buffer, 0, count);
+		
+		int unique= 0;
+		for (int i= 0; i < count; i++) {
+			int address= buffer[i] ^ Integer.MIN_VALUE;
+			if ((unique == 0) || (buffer[unique - 1] != address)) {
+				buffer[unique++]= address;
+			}
+		}
+		count= unique;
+		
+		fingerprint= Inet4Set.fingerprint(buffer, count);
+		normalized= true;
+	}
+	
+	/**
+	 * matches
+	 * 
+	 * Check whether the builder holds exactly the same addresses as a set.  This doesn't
+	 * allocate anything.
+	 * 
+	 * @param set						Set to compare, or null
+	 * @return							True if the set is non-null and the same
+	 */
+	public boolean matches(@Nullable Inet4Set set) {
+		if (set == null) {
+			return false;
+		}
+		
+		normalize();
+		return set.sameAs(buffer, count, fingerprint);
+	}
+	
+	/**
+	 * build
+	 * 
+	 * Build an immutable set from what's been added.  The builder can keep being used.
+	 * 
+	 * @return							New set
+	 */
+	public @NonNull Inet4Set build() {
+		normalize();
+		if (count == 0) {
+			return Inet4Set.EMPTY;
+		}
+		
+		return new Inet4Set(Arrays.copyOf(buffer, count), fingerprint);
+	}
+}
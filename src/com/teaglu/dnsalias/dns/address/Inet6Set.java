@@ -0,0 +1,239 @@
+package com.teaglu.dnsalias.dns.address;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Inet6Set
+ * 
+ * Immutable set of IPv6 addresses, the IPv6 counterpart to Inet4Set.  Each address is held as
+ * two longs - the high 64 bits followed by the low 64 bits - in one flat array sorted as
+ * unsigned values.  A 64-bit fingerprint of the contents makes the usual "did anything change"
+ * check a single comparison when something did.
+ */
+public final class Inet6Set {
+	// High and low halves of each address, interleaved, sorted, no duplicates
+	private final long[] addresses;
+	
+	// Fingerprint of the sorted addresses
+	private final long fingerprint;
+	
+	public static final @NonNull Inet6Set EMPTY= new Inet6Set(new long[0], fingerprint(new long[0], 0));
+	
+	Inet6Set(long[] addresses, long fingerprint) {
+		this.addresses= addresses;
+		this.fingerprint= fingerprint;
+	}
+	
+	/**
+	 * fingerprint
+	 * 
+	 * Compute the fingerprint of the first count addresses (2 * count longs) of a sorted array.
+	 * 
+	 * @param sorted					Sorted addresses
+	 * @param count						Number of addresses to use
+	 * 
+	 * @return							Fingerprint
+	 */
+	static long fingerprint(long[] sorted, int count) {
+		long hash= 0xC2B2AE3D27D4EB4FL * (count + 1);
+		for (int i= 0; i < (count * 2); i++) {
+			hash= Inet4Set.mix(hash ^ sorted[i]);
+		}
+		
+		return hash;
+	}
+	
+	public int size() {
+		return addresses.length / 2;
+	}
+	
+	public boolean isEmpty() {
+		return addresses.length == 0;
+	}
+	
+	/**
+	 * getHigh
+	 * 
+	 * @param index						Index from 0 to size() - 1
+	 * @return							First 64 bits of the address in network order
+	 */
+	public long getHigh(int index) {
+		return addresses[index * 2];
+	}
+	
+	/**
+	 * getLow
+	 * 
+	 * @param index						Index from 0 to size() - 1
+	 * @return							Last 64 bits of the address in network order
+	 */
+	public long getLow(int index) {
+		return addresses[(index * 2) + 1];
+	}
+	
+	/**
+	 * getInetAddress
+	 * 
+	 * Return one address as an InetAddress, for handing to the network classes.
+	 * 
+	 * @param index						Index from 0 to size() - 1
+	 * @return							Address
+	 */
+	public @NonNull InetAddress getInetAddress(int index) {
+		long high= addresses[index * 2];
+		long low= addresses[(index * 2) + 1];
+		
+		byte[] bytes= new byte[16];
+		for (int i= 0; i < 8; i++) {
+			bytes[i]= (byte)(high >>> (56 - (i * 8)));
+			bytes[i + 8]= (byte)(low >>> (56 - (i * 8)));
+		}
+		
+		try {
+			@SuppressWarnings("null")
+			@NonNull InetAddress inetAddress= InetAddress.getByAddress(bytes);
+			return inetAddress;
+		} catch (UnknownHostException lengthException) {
+			// Only thrown for an array that isn't 4 or 16 bytes
+			throw new IllegalStateException(lengthException);
+		}
+	}
+	
+	public long getFingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * containsAll
+	 * 
+	 * @param other						Another set
+	 * @return							Whether every address in the other set is in this one
+	 */
+	public boolean containsAll(@NonNull Inet6Set other) {
+		// Both are sorted, so one pass over each is enough
+		int index= 0;
+		for (int i= 0; i < other.addresses.length; i+= 2) {
+			long high= other.addresses[i];
+			long low= other.addresses[i + 1];
+			
+			while ((index < addresses.length) &&
+					((Long.compareUnsigned(addresses[index], high) < 0) ||
+					((addresses[index] == high) &&
+					(Long.compareUnsigned(addresses[index + 1], low) < 0))))
+			{
+				index+= 2;
+			}
+			if ((index == addresses.length) ||
+					(addresses[index] != high) || (addresses[index + 1] != low))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	boolean sameAs(long[] sorted, int count, long otherFingerprint) {
+		if ((fingerprint != otherFingerprint) || (addresses.length != (count * 2))) {
+			return false;
+		}
+		
+		return Arrays.equals(addresses, 0, count * 2, sorted, 0, count * 2);
+	}
+	
+	/**
+	 * toString
+	 * 
+	 * Format one address in the RFC 5952 form, i.e. lower case with the longest run of zero
+	 * groups shortened to "::".
+	 * 
+	 * @param high						First 64 bits
+	 * @param low						Last 64 bits
+	 * 
+	 * @return							Formatted address
+	 */
+	public static @NonNull String toString(long high, long low) {
+		StringBuilder builder= new StringBuilder(39);
+		appendAddress(builder, high, low);
+		
+		@SuppressWarnings("null")
+		@NonNull String rval= builder.toString();
+		return rval;
+	}
+	
+	private static int group(long high, long low, int group) {
+		long half= (group < 4) ? high : low;
+		return (int)((half >>> ((3 - (group & 3)) * 16)) & 0xFFFF);
+	}
+	
+	private static void appendAddress(@NonNull StringBuilder builder, long high, long low) {
+		// Find the longest run of zero groups - a run of one isn't shortened
+		int bestStart= -1;
+		int bestLength= 1;
+		for (int start= 0; start < 8; ) {
+			if (group(high, low, start) != 0) {
+				start++;
+				continue;
+			}
+			
+			int end= start;
+			while ((end < 8) && (group(high, low, end) == 0)) {
+				end++;
+			}
+			if ((end - start) > bestLength) {
+				bestStart= start;
+				bestLength= end - start;
+			}
+			start= end;
+		}
+		
+		for (int i= 0; i < 8; i++) {
+			if (i == bestStart) {
+				builder.append("::");
+				i+= bestLength - 1;
+				continue;
+			}
+			
+			if ((i > 0) && (i != (bestStart + bestLength))) {
+				builder.append(':');
+			}
+			builder.append(Integer.toHexString(group(high, low, i)));
+		}
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof Inet6Set)) {
+			return false;
+		}
+		
+		Inet6Set otherSet= (Inet6Set)other;
+		return otherSet.sameAs(addresses, addresses.length / 2, fingerprint);
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int)(fingerprint ^ (fingerprint >>> 32));
+	}
+	
+	// Comma separated list, which is how sets show up in alerts and logs
+	@Override
+	public String toString() {
+		StringBuilder builder= new StringBuilder();
+		for (int i= 0; i < size(); i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			appendAddress(builder, getHigh(i), getLow(i));
+		}
+		
+		return builder.toString();
+	}
+}
@@ -0,0 +1,202 @@
+package com.teaglu.dnsalias.dns.address;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Inet6SetBuilder
+ * 
+ * Reusable builder for Inet6Set, with the same no-allocation matches() / build() pattern as
+ * Inet4SetBuilder.
+ * 
+ * This class is not thread-safe.
+ */
+public final class Inet6SetBuilder {
+	// High and low halves interleaved
+	private long[] buffer= new long[16];
+	private int count;
+	
+	// Set when the buffer has been sorted and de-duplicated since the last add
+	private boolean normalized;
+	private long fingerprint;
+	
+	public Inet6SetBuilder() {}
+	
+	public void clear() {
+		count= 0;
+		normalized= false;
+	}
+	
+	public int size() {
+		normalize();
+		return count;
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Add an address as two longs in network order.
+	 * 
+	 * @param high						First 64 bits
+	 * @param low						Last 64 bits
+	 */
+	public void add(long high, long low) {
+		if ((count * 2) == buffer.length) {
+			buffer= Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		buffer[count * 2]= high;
+		buffer[(count * 2) + 1]= low;
+		count++;
+		normalized= false;
+	}
+	
+	private static long readLong(byte[] bytes, int offset) {
+		long value= 0;
+		for (int i= 0; i < 8; i++) {
+			value= (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Add an address from 16 bytes in network order, which is how it appears in rdata.
+	 * 
+	 * @param bytes						Buffer
+	 * @param offset					Offset of the first byte
+	 */
+	public void add(byte[] bytes, int offset) {
+		add(readLong(bytes, offset), readLong(bytes, offset + 8));
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Add every address in an existing set.
+	 * 
+	 * @param set						Set to add
+	 */
+	public void add(@NonNull Inet6Set set) {
+		for (int i= 0; i < set.size(); i++) {
+			add(set.getHigh(i), set.getLow(i));
+		}
+	}
+	
+	/**
+	 * add
+	 * 
+	 * Parse an address in text form and add it.  This is only used on provider read paths, so
+	 * it leans on InetAddress rather than having its own parser.
+	 * 
+	 * @param text						Address text
+	 * @return							False if the text isn't a valid IPv6 address
+	 */
+	public boolean add(@NonNull String text) {
+		// Without a colon InetAddress would treat this as a host name and go look it up
+		if (text.indexOf(':') < 0) {
+			return false;
+		}
+		
+		try {
+			InetAddress address= InetAddress.getByName(text);
+			if (!(address instanceof Inet6Address)) {
+				return false;
+			}
+			
+			add(address.getAddress(), 0);
+			return true;
+		} catch (UnknownHostException formatException) {
+			return false;
+		}
+	}
+	
+	private static int compare(long[] values, int a, int b) {
+		int rval= Long.compareUnsigned(values[a * 2], values[b * 2]);
+		if (rval == 0) {
+			rval= Long.compareUnsigned(values[(a * 2) + 1], values[(b * 2) + 1]);
+		}
+		return rval;
+	}
+	
+	// Sort, drop duplicates, and work out the fingerprint.  Insertion sort keeps the pairs
+	// together without any temporary objects, and these sets are small.
+	private void normalize() {
+		if (normalized) {
+			return;
+		}
+		
+		for (int i= 1; i < count; i++) {
+			long high= buffer[i * 2];
+			long low= buffer[(i * 2) + 1];
+			
+			int j= i - 1;
+			while (j >= 0) {
+				int compare= Long.compareUnsigned(buffer[j * 2], high);
+				if (compare == 0) {
+					compare= Long.compareUnsigned(buffer[(j * 2) + 1], low);
+				}
+				if (compare <= 0) {
+					break;
+				}
+				
+				buffer[(j + 1) * 2]= buffer[j * 2];
+				buffer[((j + 1) * 2) + 1]= buffer[(j * 2) + 1];
+				j--;
+			}
+			buffer[(j + 1) * 2]= high;
+			buffer[((j + 1) * 2) + 1]= low;
+		}
+		
+		int unique= 0;
+		for (int i= 0; i < count; i++) {
+			if ((unique == 0) || (compare(buffer, unique - 1, i) != 0)) {
+				buffer[unique * 2]= buffer[i * 2];
+				buffer[(unique * 2) + 1]= buffer[(i * 2) + 1];
+				unique++;
+			}
+		}
+		count= unique;
+		
+		fingerprint= Inet6Set.fingerprint(buffer, count);
+		normalized= true;
+	}
+	
+	/**
+	 * matches
+	 * 
+	 * Check whether the builder holds exactly the same addresses as a set, without allocating.
+	 * 
+	 * @param set						Set to compare, or null
+	 * @return							True if the set is non-null and the same
+	 */
+	public boolean matches(@Nullable Inet6Set set) {
+		if (set == null) {
+			return false;
+		}
+		
+		normalize();
+		return set.sameAs(buffer, count, fingerprint);
+	}
+	
+	/**
+	 * build
+	 * 
+	 * Build an immutable set from what's been added.  The builder can keep being used.
+	 * 
+	 * @return							New set
+	 */
+	public @NonNull Inet6Set build() {
+		normalize();
+		if (count == 0) {
+			return Inet6Set.EMPTY;
+		}
+		
+		return new Inet6Set(Arrays.copyOf(buffer, count * 2), fingerprint);
+	}
+}
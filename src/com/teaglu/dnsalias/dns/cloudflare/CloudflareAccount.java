@@ -9,21 +9,32 @@ import org.eclipse.jdt.annotation.Nullable;
 import com.google.gson.JsonObject;
 import com.teaglu.composite.Composite;
 import com.teaglu.dnsalias.dns.exception.DnsApiException;
+import com.teaglu.dnsalias.processor.Deadline;
 
+/**
+ * CloudflareAccount
+ *
+ * Calls to the Cloudflare API with the credentials of one account.  Each call is limited to
+ * whatever is left of the deadline it's given.
+ */
 public interface CloudflareAccount {
 	public @NonNull Composite create(
 			@NonNull String relativeUrl,
-			@NonNull JsonObject body) throws IOException, DnsApiException;
+			@NonNull JsonObject body,
+			@NonNull Deadline deadline) throws IOException, DnsApiException;
 
 	public @NonNull	Iterable<@NonNull Composite> query(
 			@NonNull String relativeUrl,
 			@Nullable Map<@NonNull String,
-			@Nullable String> parameters) throws IOException, DnsApiException;
+			@Nullable String> parameters,
+			@NonNull Deadline deadline) throws IOException, DnsApiException;
 	
 	public @NonNull	Composite update(
 			@NonNull String relativeUrl,
-			@NonNull JsonObject body) throws IOException, DnsApiException;
+			@NonNull JsonObject body,
+			@NonNull Deadline deadline) throws IOException, DnsApiException;
 
 	public void delete(
-			@NonNull String relativeUrl) throws IOException, DnsApiException;
+			@NonNull String relativeUrl,
+			@NonNull Deadline deadline) throws IOException, DnsApiException;
 }
@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
@@ -22,6 +23,7 @@ import com.teaglu.configure.secret.SecretProvider;
 import com.teaglu.configure.secret.SecretReplacer;
 import com.teaglu.configure.secret.replacer.AtIdSecretReplacer;
 import com.teaglu.dnsalias.dns.exception.DnsApiException;
+import com.teaglu.dnsalias.processor.Deadline;
 
 public class CloudflareAccountImpl implements CloudflareAccount {
 	private @NonNull String apiToken;
@@ -38,9 +40,10 @@ public class CloudflareAccountImpl implements CloudflareAccount {
 	@Override
 	public @NonNull Iterable<@NonNull Composite> query(
 			@NonNull String relativeUrl,
-			@Nullable Map<@NonNull String, @Nullable String> parameters) throws IOException, DnsApiException
+			@Nullable Map<@NonNull String, @Nullable String> parameters,
+			@NonNull Deadline deadline) throws IOException, DnsApiException
 	{
-		Composite response= call("GET", relativeUrl, parameters, null);
+		Composite response= call("GET", relativeUrl, parameters, null, deadline);
 		
 		try {
 			checkResponse(response);			
@@ -54,9 +57,10 @@ public class CloudflareAccountImpl implements CloudflareAccount {
 	public @NonNull Composite singleAction(
 			@NonNull String verb,
 			@NonNull String relativeUrl,
-			@NonNull JsonObject body) throws IOException, DnsApiException
+			@NonNull JsonObject body,
+			@NonNull Deadline deadline) throws IOException, DnsApiException
 	{
-		Composite response= call(verb, relativeUrl, null, body);
+		Composite response= call(verb, relativeUrl, null, body, deadline);
 		checkResponse(response);
 		
 		try {
@@ -70,24 +74,27 @@ public class CloudflareAccountImpl implements CloudflareAccount {
 	@Override
 	public @NonNull Composite update(
 			@NonNull String relativeUrl,
-			@NonNull JsonObject body) throws IOException, DnsApiException
+			@NonNull JsonObject body,
+			@NonNull Deadline deadline) throws IOException, DnsApiException
 	{
-		return singleAction("PATCH", relativeUrl, body);
+		return singleAction("PATCH", relativeUrl, body, deadline);
 	}
 	
 	@Override
 	public @NonNull Composite create(
 			@NonNull String relativeUrl,
-			@NonNull JsonObject body) throws IOException, DnsApiException
+			@NonNull JsonObject body,
+			@NonNull Deadline deadline) throws IOException, DnsApiException
 	{
-		return singleAction("POST", relativeUrl, body);
+		return singleAction("POST", relativeUrl, body, deadline);
 	}
 	
 	@Override
 	public void delete(
-			@NonNull String relativeUrl) throws IOException, DnsApiException
+			@NonNull String relativeUrl,
+			@NonNull Deadline deadline) throws IOException, DnsApiException
 	{
-		Composite response= call("DELETE", relativeUrl, null, null);
+		Composite response= call("DELETE", relativeUrl, null, null, deadline);
 		checkResponse(response);
 	}
 
@@ -115,10 +122,22 @@ public class CloudflareAccountImpl implements CloudflareAccount {
 			@NonNull String verb,
 			@NonNull String relativeUrl,
 			@Nullable Map<@NonNull String, @Nullable String> parameters,
-			@Nullable JsonObject body) throws IOException, DnsApiException
+			@Nullable JsonObject body,
+			@NonNull Deadline deadline) throws IOException, DnsApiException
 	{
 		Composite response= null;
 
+		// Connecting and each read are held to whatever is left of the deadline
+		int timeoutMsec= 0;
+		if (deadline != Deadline.NONE) {
+			long remaining= deadline.getExpires() - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new SocketTimeoutException(
+						"The deadline passed before the Cloudflare API could be called");
+			}
+			timeoutMsec= (int)Math.min(remaining, Integer.MAX_VALUE);
+		}
+
 		StringBuilder path= new StringBuilder("https://api.cloudflare.com/client/v4");
 		path.append(relativeUrl);
 		if (parameters != null) {
@@ -151,6 +170,9 @@ public class CloudflareAccountImpl implements CloudflareAccount {
 
 		HttpURLConnection connection= (HttpURLConnection)url.openConnection();
 		try {
+			connection.setConnectTimeout(timeoutMsec);
+			connection.setReadTimeout(timeoutMsec);
+
 			connection.setRequestProperty("User-Agent", "Teaglu-DNS");
 			connection.setRequestMethod(verb);
 			
@@ -11,6 +11,7 @@ import com.teaglu.configure.secret.SecretProvider;
 import com.teaglu.dnsalias.dns.DnsProvider;
 import com.teaglu.dnsalias.dns.DnsZone;
 import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.processor.Deadline;
 
 public class CloudflareDnsProvider implements DnsProvider {
 	private @NonNull CloudflareAccount account;
@@ -31,8 +32,9 @@ public class CloudflareDnsProvider implements DnsProvider {
 
 	@Override
 	public @Nullable DnsZone getZone(
-			@NonNull String apex) throws DnsException, IOException
+			@NonNull String apex,
+			@NonNull Deadline deadline) throws DnsException, IOException
 	{
-		return new CloudflareDnsZone(account, apex);
+		return new CloudflareDnsZone(account, apex, deadline);
 	}
 }
@@ -1,8 +1,6 @@
 package com.teaglu.dnsalias.dns.cloudflare;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -20,9 +18,14 @@ import com.teaglu.composite.exception.SchemaException;
 import com.teaglu.dnsalias.dns.DnsRecord;
 import com.teaglu.dnsalias.dns.DnsRecordType;
 import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.dns.address.Inet4SetBuilder;
+import com.teaglu.dnsalias.dns.address.Inet6SetBuilder;
 import com.teaglu.dnsalias.dns.exception.DnsApiException;
 import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.dns.record.AAAARecord;
 import com.teaglu.dnsalias.dns.record.ARecord;
+import com.teaglu.dnsalias.dns.record.TxtRecord;
+import com.teaglu.dnsalias.processor.Deadline;
 
 public class CloudflareDnsZone implements DnsZone {
 	private static final Logger log= LoggerFactory.getLogger(CloudflareDnsZone.class);
@@ -31,18 +34,23 @@ public class CloudflareDnsZone implements DnsZone {
 	private @NonNull String zoneName;
 	private @NonNull String zoneId;
 
+	// Deadline of the run the zone was looked up for
+	private final @NonNull Deadline deadline;
+
 	CloudflareDnsZone(
 			@NonNull CloudflareAccount account,
-			@NonNull String apex) throws DnsException, IOException
+			@NonNull String apex,
+			@NonNull Deadline deadline) throws DnsException, IOException
 	{
 		this.zoneName= apex;
 		this.account= account;
+		this.deadline= deadline;
 		
 		try {
 			Map<@NonNull String, @Nullable String> parameters= new TreeMap<>();
 			parameters.put("name", apex);
 
-			Iterable<@NonNull Composite> result= account.query("/zones", parameters);
+			Iterable<@NonNull Composite> result= account.query("/zones", parameters, deadline);
 			
 			Iterator<@NonNull Composite> resultIter= result.iterator();
 			if (!resultIter.hasNext()) {
@@ -61,7 +69,18 @@ public class CloudflareDnsZone implements DnsZone {
 	@Override
 	public long getNegativeTtl() throws DnsException {
 		// Cloudflare is always one hours as of 221210 -DAW
-		return 3600_000;
+		return 3600;
+	}
+
+	@Override
+	public @NonNull String getProviderType() {
+		return "cloudflare";
+	}
+
+	// Cloudflare doesn't report when a change has reached its edge
+	@Override
+	public @Nullable Boolean isSynchronized() {
+		return null;
 	}
 	
 	@Override
@@ -83,15 +102,18 @@ public class CloudflareDnsZone implements DnsZone {
 		search.put("name", searchName);
 		search.put("type", searchType);
 		Iterable<@NonNull Composite> results=
-				account.query("/zones/" + zoneId + "/dns_records", search);
+				account.query("/zones/" + zoneId + "/dns_records", search, deadline);
 		
 		// For A records
-		List<@NonNull Inet4Address> v4Addresses= new ArrayList<>(4);
+		Inet4SetBuilder v4Addresses= new Inet4SetBuilder();
 		
 		// For AAAA records
-		//List<Inet6Address> v6Addresses= new ArrayList<>(4);
+		Inet6SetBuilder v6Addresses= new Inet6SetBuilder();
+		
+		// For TXT records
+		List<@NonNull String> texts= new ArrayList<>(2);
 		
-		// For A / AAAA records
+		// For A / AAAA / TXT records
 		Integer ttl= null;
 		
 		for (Composite record : results) {
@@ -104,16 +126,26 @@ public class CloudflareDnsZone implements DnsZone {
 						if (type == DnsRecordType.A) {
 							// Bundle all A records into one at the end
 							String recordContent= record.getRequiredString("content");
-							try {
-								InetAddress address= InetAddress.getByName(recordContent);
-								
-								if (address instanceof Inet4Address) {
-									v4Addresses.add((Inet4Address)address);
-								}
-							} catch (NumberFormatException formatException) {
+							if (!v4Addresses.add(recordContent)) {
+								log.warn("Ignoring unparseable address " + recordContent);
+							}
+							
+							if (ttl == null) {
+								ttl= record.getOptionalInteger("ttl");
+							}
+						} else if (type == DnsRecordType.AAAA) {
+							// Same for AAAA records
+							String recordContent= record.getRequiredString("content");
+							if (!v6Addresses.add(recordContent)) {
 								log.warn("Ignoring unparseable address " + recordContent);
 							}
 							
+							if (ttl == null) {
+								ttl= record.getOptionalInteger("ttl");
+							}
+						} else if (type == DnsRecordType.TXT) {
+							texts.add(parseTxtContent(record.getRequiredString("content")));
+							
 							if (ttl == null) {
 								ttl= record.getOptionalInteger("ttl");
 							}
@@ -129,9 +161,43 @@ public class CloudflareDnsZone implements DnsZone {
 		}
 
 		if (type == DnsRecordType.A) {
-			rval.add(ARecord.Create(searchName, v4Addresses, ttl));
+			rval.add(ARecord.Create(searchName, v4Addresses.build(), ttl));
+		} else if (type == DnsRecordType.AAAA) {
+			rval.add(AAAARecord.Create(searchName, v6Addresses.build(), ttl));
+		} else if (type == DnsRecordType.TXT) {
+			rval.add(TxtRecord.Create(searchName, texts, ttl));
+		}
+		
+		return rval;
+	}
+	
+	// Cloudflare hands back long TXT content as quoted strings, and short content either quoted
+	// or as it was written, so anything in quotes is joined back together.
+	private static @NonNull String parseTxtContent(@NonNull String content) {
+		if (!content.startsWith("\"")) {
+			return content;
+		}
+		
+		StringBuilder output= new StringBuilder(content.length());
+		boolean quoted= false;
+		
+		int contentLen= content.length();
+		for (int pos= 0; pos < contentLen; pos++) {
+			char c= content.charAt(pos);
+			
+			if (c == '\"') {
+				quoted= !quoted;
+			} else if (!quoted) {
+				// Space between strings
+			} else if ((c == '\\') && (pos + 1 < contentLen)) {
+				output.append(content.charAt(++pos));
+			} else {
+				output.append(c);
+			}
 		}
 		
+		@SuppressWarnings("null")
+		@NonNull String rval= output.toString();
 		return rval;
 	}
 	
@@ -181,7 +247,7 @@ public class CloudflareDnsZone implements DnsZone {
 			// 1 = automatic a/p docs
 			request.addProperty("ttl", ttl);
 			
-			account.create("/zones/" + zoneId + "/dns_records", request);
+			account.create("/zones/" + zoneId + "/dns_records", request, deadline);
 		}
 	}
 
@@ -202,7 +268,7 @@ public class CloudflareDnsZone implements DnsZone {
 		search.put("name", searchName);
 		search.put("type", type.toString());
 		Iterable<@NonNull Composite> results=
-				account.query("/zones/" + zoneId + "/dns_records", search);
+				account.query("/zones/" + zoneId + "/dns_records", search, deadline);
 
 		boolean anyDeleted= false;
 		
@@ -213,7 +279,7 @@ public class CloudflareDnsZone implements DnsZone {
 				if (foundName.equalsIgnoreCase(searchName)) {
 					String recordId= record.getRequiredString("id");
 					
-					account.delete("/zones/" + zoneId + "/dns_records/" + recordId);
+					account.delete("/zones/" + zoneId + "/dns_records/" + recordId, deadline);
 					anyDeleted= true;
 				}
 			} catch (SchemaException schemaException) {
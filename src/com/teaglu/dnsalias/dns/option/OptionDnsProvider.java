@@ -16,6 +16,7 @@ import com.teaglu.dnsalias.dns.DnsProvider;
 import com.teaglu.dnsalias.dns.DnsProviderFactory;
 import com.teaglu.dnsalias.dns.DnsZone;
 import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.processor.Deadline;
 
 public class OptionDnsProvider implements DnsProvider {
 	private DnsProvider defaultProvider;
@@ -57,7 +58,8 @@ public class OptionDnsProvider implements DnsProvider {
 
 	@Override
 	public @Nullable DnsZone getZone(
-			@NonNull String zoneName) throws DnsException, IOException
+			@NonNull String zoneName,
+			@NonNull Deadline deadline) throws DnsException, IOException
 	{
 		DnsProvider provider= providerMap.get(zoneName);
 		if (provider == null) {
@@ -66,7 +68,7 @@ public class OptionDnsProvider implements DnsProvider {
 		
 		DnsZone zone= null;
 		if (provider != null) {
-			zone= provider.getZone(zoneName);
+			zone= provider.getZone(zoneName, deadline);
 		}
 		
 		return zone;
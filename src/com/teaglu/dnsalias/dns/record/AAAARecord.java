@@ -0,0 +1,83 @@
+package com.teaglu.dnsalias.dns.record;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsRecordType;
+import com.teaglu.dnsalias.dns.address.Inet6Set;
+
+public class AAAARecord implements DnsRecord {
+	private @NonNull String name;
+	private @NonNull Inet6Set addresses;
+	private Integer ttl;
+	
+	// Text values are only built if someone asks for them
+	private List<@NonNull String> values;
+	
+	private AAAARecord(
+			@NonNull String name,
+			@NonNull Inet6Set addresses,
+			@Nullable Integer ttl)
+	{
+		this.name= name;
+		this.addresses= addresses;
+		this.ttl= ttl;
+	}
+	
+	public static @NonNull AAAARecord Create(
+			@NonNull String name,
+			@NonNull Inet6Set addresses,
+			@Nullable Integer ttl)
+	{
+		return new AAAARecord(name, addresses, ttl);
+	}
+	
+	@Override
+	public @NonNull String getName() {
+		return name;
+	}
+
+	@Override
+	public @NonNull DnsRecordType getType() {
+		return DnsRecordType.AAAA;
+	}
+	
+	/**
+	 * getAddresses
+	 * 
+	 * Get the addresses in primitive form, which avoids converting to and from text.
+	 * 
+	 * @return							Address set
+	 */
+	public @NonNull Inet6Set getAddresses() {
+		return addresses;
+	}
+
+	@Override
+	public synchronized @NonNull Iterable<@NonNull String> getValues() {
+		List<@NonNull String> rval= values;
+		if (rval == null) {
+			rval= new ArrayList<>(addresses.size());
+			for (int i= 0; i < addresses.size(); i++) {
+				rval.add(Inet6Set.toString(addresses.getHigh(i), addresses.getLow(i)));
+			}
+			values= rval;
+		}
+		
+		return rval;
+	}
+
+	@Override
+	public @Nullable Integer getPositiveTtl() {
+		return ttl;
+	}
+
+	@Override
+	public @Nullable Integer getPriority() {
+		return null;
+	}
+}
@@ -1,6 +1,5 @@
 package com.teaglu.dnsalias.dns.record;
 
-import java.net.Inet4Address;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,36 +8,32 @@ import org.eclipse.jdt.annotation.Nullable;
 
 import com.teaglu.dnsalias.dns.DnsRecord;
 import com.teaglu.dnsalias.dns.DnsRecordType;
+import com.teaglu.dnsalias.dns.address.Inet4Set;
 
 public class ARecord implements DnsRecord {
 	private @NonNull String name;
-	private @NonNull List<@NonNull String> values= new ArrayList<>(4);
+	private @NonNull Inet4Set addresses;
 	private Integer ttl;
 	
+	// Text values are only built if someone asks for them
+	private List<@NonNull String> values;
+	
 	private ARecord(
 			@NonNull String name,
-			@NonNull Iterable<@NonNull Inet4Address> addresses,
+			@NonNull Inet4Set addresses,
 			@Nullable Integer ttl)
 	{
 		this.name= name;
+		this.addresses= addresses;
 		this.ttl= ttl;
-		
-		for (Inet4Address address : addresses) {
-			String stringAddress= address.getHostAddress();
-			if (stringAddress == null) {
-				throw new RuntimeException("Unexpected null return from getHostAddress()");
-			}
-			
-			values.add(stringAddress);
-		}
 	}
 	
-	public static @NonNull DnsRecord Create(
+	public static @NonNull ARecord Create(
 			@NonNull String name,
-			@NonNull Iterable<@NonNull Inet4Address> values,
+			@NonNull Inet4Set addresses,
 			@Nullable Integer ttl)
 	{
-		return new ARecord(name, values, ttl);
+		return new ARecord(name, addresses, ttl);
 	}
 	
 	@Override
@@ -50,10 +45,30 @@ public class ARecord implements DnsRecord {
 	public @NonNull DnsRecordType getType() {
 		return DnsRecordType.A;
 	}
+	
+	/**
+	 * getAddresses
+	 * 
+	 * Get the addresses in primitive form, which avoids converting to and from text.
+	 * 
+	 * @return							Address set
+	 */
+	public @NonNull Inet4Set getAddresses() {
+		return addresses;
+	}
 
 	@Override
-	public @NonNull Iterable<@NonNull String> getValues() {
-		return values;
+	public synchronized @NonNull Iterable<@NonNull String> getValues() {
+		List<@NonNull String> rval= values;
+		if (rval == null) {
+			rval= new ArrayList<>(addresses.size());
+			for (int i= 0; i < addresses.size(); i++) {
+				rval.add(Inet4Set.toString(addresses.get(i)));
+			}
+			values= rval;
+		}
+		
+		return rval;
 	}
 
 	@Override
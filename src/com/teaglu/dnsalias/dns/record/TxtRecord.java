@@ -1,38 +1,67 @@
 package com.teaglu.dnsalias.dns.record;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 
 import com.teaglu.dnsalias.dns.DnsRecord;
 import com.teaglu.dnsalias.dns.DnsRecordType;
-import com.teaglu.dnsalias.util.IterableOfOne;
 
 public class TxtRecord implements DnsRecord {
 	private @NonNull String name;
-	private @NonNull String value;
+	private @NonNull List<@NonNull String> values;
 	private Integer ttl;
-	
+
 	private TxtRecord(
 			@NonNull String name,
-			@NonNull String value,
+			@NonNull List<@NonNull String> values,
 			@Nullable Integer ttl)
 	{
 		this.name= name;
-		this.value= value;
+		this.values= values;
 		this.ttl= ttl;
 	}
-	
+
 	public static @NonNull DnsRecord Create(
 			@NonNull String name,
 			@NonNull String value,
 			@Nullable Integer ttl)
 	{
-		return new TxtRecord(name, value, ttl);
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull String> values= Collections.singletonList(value);
+
+		return new TxtRecord(name, values, ttl);
 	}
-	
+
+	/**
+	 * Create
+	 *
+	 * Create a record holding several values, which each go out as a separate TXT record with
+	 * the same name.  Each value is the whole text, before it's split into 255 byte strings.
+	 *
+	 * @param name						Name relative to the zone
+	 * @param values					Values
+	 * @param ttl						TTL in seconds, or null for the zone default
+	 *
+	 * @return							Record
+	 */
+	public static @NonNull DnsRecord Create(
+			@NonNull String name,
+			@NonNull List<@NonNull String> values,
+			@Nullable Integer ttl)
+	{
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull String> copy=
+				Collections.unmodifiableList(new ArrayList<>(values));
+
+		return new TxtRecord(name, copy, ttl);
+	}
+
 	@Override
 	public @NonNull String getName() {
-		// TODO Auto-generated method stub
 		return name;
 	}
 
@@ -43,7 +72,7 @@ public class TxtRecord implements DnsRecord {
 
 	@Override
 	public @NonNull Iterable<@NonNull String> getValues() {
-		return new IterableOfOne<String>(value);
+		return values;
 	}
 
 	@Override
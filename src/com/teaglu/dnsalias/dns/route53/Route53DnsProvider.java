@@ -14,6 +14,7 @@ import com.teaglu.dnsalias.dns.DnsZone;
 import com.teaglu.dnsalias.dns.exception.DnsApiException;
 import com.teaglu.dnsalias.dns.exception.DnsException;
 import com.teaglu.dnsalias.dns.exception.DnsZoneNotFoundException;
+import com.teaglu.dnsalias.processor.Deadline;
 
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.route53.Route53Client;
@@ -51,7 +52,8 @@ public class Route53DnsProvider implements DnsProvider {
 	
 	@Override
 	public @Nullable DnsZone getZone(
-			@NonNull String name) throws DnsException, IOException
+			@NonNull String name,
+			@NonNull Deadline deadline) throws DnsException, IOException
 	{
 		try {
 			Route53Client client= connection.buildRoute53Client();
@@ -62,11 +64,11 @@ public class Route53DnsProvider implements DnsProvider {
 				canonicalRoot= canonicalRoot + ".";
 			}
 			
-			String hostedZoneId= getHostedZoneId(client, canonicalRoot);
-			int negativeTtl= getNegativeTtl(hostedZoneId, name);
+			String hostedZoneId= getHostedZoneId(client, canonicalRoot, deadline);
+			int negativeTtl= getNegativeTtl(hostedZoneId, name, deadline);
 			
 			return new Route53DnsZone(client,
-					hostedZoneId, canonicalRoot, negativeTtl);
+					hostedZoneId, canonicalRoot, negativeTtl, deadline);
 		} catch (SdkException sdkException) {
 			throw new DnsApiException("Failed to call AWS endpoint", sdkException);
 		}
@@ -74,7 +76,8 @@ public class Route53DnsProvider implements DnsProvider {
 	
 	private @NonNull String getHostedZoneId(
 			@NonNull Route53Client client,
-			@NonNull String canonicalRoot) throws DnsException
+			@NonNull String canonicalRoot,
+			@NonNull Deadline deadline) throws DnsException
 	{
 		String hostedZoneId= null;
 		
@@ -82,6 +85,7 @@ public class Route53DnsProvider implements DnsProvider {
 			ListHostedZonesByNameRequest request= ListHostedZonesByNameRequest
 					.builder()
 					.dnsName(canonicalRoot)
+					.overrideConfiguration(Route53DnsZone.callOverride(deadline))
 					.build();
 			
 			ListHostedZonesByNameResponse response= client.listHostedZonesByName(request);
@@ -113,7 +117,8 @@ public class Route53DnsProvider implements DnsProvider {
 	
 	private int getNegativeTtl(
 			@NonNull String hostedZoneId,
-			@NonNull String name) throws DnsException
+			@NonNull String name,
+			@NonNull Deadline deadline) throws DnsException
 	{
 		int ttl= 0;
 		
@@ -124,6 +129,7 @@ public class Route53DnsProvider implements DnsProvider {
 					.hostedZoneId(hostedZoneId)
 					.startRecordName(".")
 					.startRecordType(RRType.SOA)
+					.overrideConfiguration(Route53DnsZone.callOverride(deadline))
 					.build();
 			
 			ListResourceRecordSetsResponse soaResponse= client.listResourceRecordSets(soaRequest);
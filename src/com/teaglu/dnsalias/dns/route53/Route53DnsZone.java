@@ -1,28 +1,39 @@
 package com.teaglu.dnsalias.dns.route53;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.InetAddress;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.teaglu.dnsalias.dns.DnsRecord;
 import com.teaglu.dnsalias.dns.DnsRecordType;
 import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.dns.address.Inet4SetBuilder;
+import com.teaglu.dnsalias.dns.address.Inet6SetBuilder;
 import com.teaglu.dnsalias.dns.exception.DnsApiException;
 import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.dns.record.AAAARecord;
 import com.teaglu.dnsalias.dns.record.ARecord;
+import com.teaglu.dnsalias.dns.record.TxtRecord;
+import com.teaglu.dnsalias.processor.Deadline;
 
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.route53.Route53Client;
 import software.amazon.awssdk.services.route53.model.Change;
 import software.amazon.awssdk.services.route53.model.ChangeAction;
 import software.amazon.awssdk.services.route53.model.ChangeBatch;
+import software.amazon.awssdk.services.route53.model.ChangeInfo;
 import software.amazon.awssdk.services.route53.model.ChangeResourceRecordSetsRequest;
+import software.amazon.awssdk.services.route53.model.ChangeResourceRecordSetsResponse;
+import software.amazon.awssdk.services.route53.model.ChangeStatus;
+import software.amazon.awssdk.services.route53.model.GetChangeRequest;
+import software.amazon.awssdk.services.route53.model.GetChangeResponse;
 import software.amazon.awssdk.services.route53.model.ListResourceRecordSetsRequest;
 import software.amazon.awssdk.services.route53.model.ListResourceRecordSetsResponse;
 import software.amazon.awssdk.services.route53.model.RRType;
@@ -50,16 +61,45 @@ public class Route53DnsZone implements DnsZone {
 	// Negative TTL value passed in at creation
 	private final int negativeTtl;
 
+	// Deadline of the run the zone was looked up for, which every call but isSynchronized is
+	// held to
+	private final @NonNull Deadline deadline;
+
+	// ID of the last change made through this object, or null if there hasn't been one.  Changes
+	// to a hosted zone are applied in order, so once it's in sync the earlier ones are too.
+	private volatile String lastChangeId;
+
 	Route53DnsZone(
 			@NonNull Route53Client client,
 			@NonNull String hostedZoneId,
 			@NonNull String canonicalRoot,
-			int negativeTtl)
+			int negativeTtl,
+			@NonNull Deadline deadline)
 	{
 		this.client= client;
 		this.hostedZoneId= hostedZoneId;
 		this.canonicalRoot= canonicalRoot;
 		this.negativeTtl= negativeTtl;
+		this.deadline= deadline;
+	}
+
+	// Give a call whatever is left of the deadline.  The SDK can't be interrupted out of a
+	// call, so this is the only way to keep a slow one inside the deadline.
+	static @Nullable AwsRequestOverrideConfiguration callOverride(
+			@NonNull Deadline deadline) throws DnsApiException
+	{
+		if (deadline == Deadline.NONE) {
+			return null;
+		}
+
+		long remaining= deadline.getExpires() - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new DnsApiException("The deadline passed before Route53 could be called");
+		}
+
+		return AwsRequestOverrideConfiguration.builder()
+				.apiCallTimeout(Duration.ofMillis(remaining))
+				.build();
 	}
 
 	@Override
@@ -67,6 +107,37 @@ public class Route53DnsZone implements DnsZone {
 		return negativeTtl;
 	}
 
+	@Override
+	public @NonNull String getProviderType() {
+		return "route53";
+	}
+
+	@Override
+	public @Nullable Boolean isSynchronized() throws DnsException {
+		String changeId= lastChangeId;
+		if (changeId == null) {
+			return Boolean.TRUE;
+		}
+
+		try {
+			GetChangeResponse response= client.getChange(GetChangeRequest.builder()
+					.id(changeId)
+					.build());
+
+			ChangeInfo info= response.changeInfo();
+			return Boolean.valueOf((info != null) && (info.status() == ChangeStatus.INSYNC));
+		} catch (SdkException sdkException) {
+			throw new DnsApiException("Failed to get change status via SDK", sdkException);
+		}
+	}
+
+	private void changeMade(@NonNull ChangeResourceRecordSetsResponse response) {
+		ChangeInfo info= response.changeInfo();
+		if (info != null) {
+			lastChangeId= info.id();
+		}
+	}
+
 
 	@Override
 	public @NonNull Iterable<@NonNull DnsRecord> findRecords(
@@ -86,6 +157,7 @@ public class Route53DnsZone implements DnsZone {
 				.hostedZoneId(hostedZoneId)
 				.startRecordName(searchName)
 				.startRecordType(searchType)
+				.overrideConfiguration(callOverride(deadline))
 				.build();
 		
 		ListResourceRecordSetsResponse searchResponse=
@@ -94,16 +166,13 @@ public class Route53DnsZone implements DnsZone {
 		for (ResourceRecordSet set : searchResponse.resourceRecordSets()) {
 			if (set.name().equals(searchName) && set.type() == searchType) {
 				if (type == DnsRecordType.A) {
-					List<Inet4Address> addresses= new ArrayList<>(4);
+					Inet4SetBuilder addresses= new Inet4SetBuilder();
 					
 					for (ResourceRecord record : set.resourceRecords()) {
 						String valueString= record.value();
-						InetAddress address= InetAddress.getByName(valueString);
-						if (!(address instanceof Inet4Address)) {
+						if ((valueString == null) || !addresses.add(valueString)) {
 							throw new DnsException("Parsed A record is not an IPV4 address");
 						}
-						
-						addresses.add((Inet4Address)address);
 					}
 					
 					Integer ttl= null;
@@ -111,7 +180,39 @@ public class Route53DnsZone implements DnsZone {
 						ttl= (int)(long)set.ttl();
 					}
 					
-					rval.add(ARecord.Create(name, addresses, ttl));
+					rval.add(ARecord.Create(name, addresses.build(), ttl));
+				} else if (type == DnsRecordType.AAAA) {
+					Inet6SetBuilder addresses= new Inet6SetBuilder();
+					
+					for (ResourceRecord record : set.resourceRecords()) {
+						String valueString= record.value();
+						if ((valueString == null) || !addresses.add(valueString)) {
+							throw new DnsException("Parsed AAAA record is not an IPV6 address");
+						}
+					}
+					
+					Integer ttl= null;
+					if (set.ttl() != null) {
+						ttl= (int)(long)set.ttl();
+					}
+					
+					rval.add(AAAARecord.Create(name, addresses.build(), ttl));
+				} else if (type == DnsRecordType.TXT) {
+					List<@NonNull String> values= new ArrayList<>(set.resourceRecords().size());
+					
+					for (ResourceRecord record : set.resourceRecords()) {
+						String valueString= record.value();
+						if (valueString != null) {
+							values.add(parseTxtRecord(valueString));
+						}
+					}
+					
+					Integer ttl= null;
+					if (set.ttl() != null) {
+						ttl= (int)(long)set.ttl();
+					}
+					
+					rval.add(TxtRecord.Create(name, values, ttl));
 				} else {
 					// FIXME
 				}
@@ -171,6 +272,7 @@ public class Route53DnsZone implements DnsZone {
 					.hostedZoneId(hostedZoneId)
 					.startRecordName(searchName)
 					.startRecordType(searchType)
+					.overrideConfiguration(callOverride(deadline))
 					.build();
 			
 			ListResourceRecordSetsResponse searchResponse=
@@ -247,9 +349,10 @@ public class Route53DnsZone implements DnsZone {
 			ChangeResourceRecordSetsRequest request= ChangeResourceRecordSetsRequest.builder()
 					.hostedZoneId(hostedZoneId)
 					.changeBatch(changeBatch)
+					.overrideConfiguration(callOverride(deadline))
 					.build();
 			
-			client.changeResourceRecordSets(request);
+			changeMade(client.changeResourceRecordSets(request));
 		} catch (SdkException sdkException) {
 			throw new DnsApiException(
 					"Failed to create record via SDK", sdkException);
@@ -280,6 +383,43 @@ public class Route53DnsZone implements DnsZone {
 			return output.toString();
 	}
 
+	// Undo formatTxtRecord, joining the quoted strings back together.  Route53 gives characters
+	// outside of printable ASCII as a backslash and three octal digits.
+	private static @NonNull String parseTxtRecord(@NonNull String value) {
+		StringBuilder output= new StringBuilder(value.length());
+		boolean quoted= false;
+		
+		int valueLen= value.length();
+		for (int pos= 0; pos < valueLen; pos++) {
+			char c= value.charAt(pos);
+			
+			if (c == '\"') {
+				quoted= !quoted;
+			} else if (!quoted) {
+				// Space between strings
+			} else if ((c == '\\') && (pos + 1 < valueLen)) {
+				if ((pos + 3 < valueLen) && isOctal(value.charAt(pos + 1)) &&
+						isOctal(value.charAt(pos + 2)) && isOctal(value.charAt(pos + 3)))
+				{
+					output.append((char)Integer.parseInt(value.substring(pos + 1, pos + 4), 8));
+					pos+= 3;
+				} else {
+					output.append(value.charAt(++pos));
+				}
+			} else {
+				output.append(c);
+			}
+		}
+		
+		@SuppressWarnings("null")
+		@NonNull String rval= output.toString();
+		return rval;
+	}
+	
+	private static boolean isOctal(char c) {
+		return (c >= '0') && (c <= '7');
+	}
+
 	@Override
 	public boolean deleteRecord(
 			@NonNull String name,
@@ -305,6 +445,7 @@ public class Route53DnsZone implements DnsZone {
 					.hostedZoneId(hostedZoneId)
 					.startRecordName(searchName)
 					.startRecordType(searchType)
+					.overrideConfiguration(callOverride(deadline))
 					.build();
 			
 			ListResourceRecordSetsResponse searchResponse=
@@ -330,9 +471,10 @@ public class Route53DnsZone implements DnsZone {
 				ChangeResourceRecordSetsRequest request= ChangeResourceRecordSetsRequest.builder()
 						.hostedZoneId(hostedZoneId)
 						.changeBatch(changeBatch)
+						.overrideConfiguration(callOverride(deadline))
 						.build();
 				
-				client.changeResourceRecordSets(request);
+				changeMade(client.changeResourceRecordSets(request));
 				deleted= true;
 			}
 			
@@ -0,0 +1,34 @@
+package com.teaglu.dnsalias.health;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * HealthProber
+ *
+ * Checks whether addresses accept TCP connections, so addresses that have stopped serving can be
+ * left out of the destination.  Implementations are shared between all processors and must be
+ * thread-safe.
+ */
+public interface HealthProber {
+	/**
+	 * probe
+	 *
+	 * Check whether an address accepts a connection on a port, using a recent result for the same
+	 * address and port if there is one.  This returns immediately, and the future is completed
+	 * when the connection is made or fails.
+	 *
+	 * @param address					Address and port to connect to
+	 * @param timeoutMsec				How long to wait for the connection
+	 * @param maximumAgeMsec			How old a result can be and still be used
+	 *
+	 * @return							Future completed with whether the connection was made.
+	 * 									It's never completed exceptionally.
+	 */
+	public @NonNull CompletableFuture<@NonNull Boolean> probe(
+			@NonNull InetSocketAddress address,
+			long timeoutMsec,
+			long maximumAgeMsec);
+}
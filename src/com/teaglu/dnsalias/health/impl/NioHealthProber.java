@@ -0,0 +1,262 @@
+package com.teaglu.dnsalias.health.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.dnsalias.health.HealthProber;
+
+/**
+ * NioHealthProber
+ *
+ * Implementation of HealthProber using non-blocking connects on a single selector thread, so
+ * any number of probes can be in flight at once without a thread for each one.  A probe only
+ * checks that the connection is accepted - nothing is sent, and the connection is closed as soon
+ * as it's made.
+ *
+ * Results are kept for each address and port, and a probe for an address that's already being
+ * probed waits for that probe instead of opening another connection.  This way aliases sharing
+ * addresses share the probes as well.
+ */
+public class NioHealthProber implements HealthProber {
+	private static final Logger log= LoggerFactory.getLogger(NioHealthProber.class);
+
+	// Most connections open at once.  Probes past this wait for a slot, which keeps a large set
+	// of addresses from running the process out of file descriptors.
+	private static final int MAXIMUM_OPEN= 512;
+
+	// Results older than this are dropped, so addresses that aren't used any more don't pile up
+	private static final long MAXIMUM_RESULT_AGE_MSEC= 60 * 60 * 1000;
+	private static final long PRUNE_INTERVAL_MSEC= 5 * 60 * 1000;
+
+	private static final class Result {
+		private final boolean healthy;
+		private final long time;
+
+		private Result(boolean healthy, long time) {
+			this.healthy= healthy;
+			this.time= time;
+		}
+	}
+
+	// One connection attempt.  Everything but the future is only touched on the selector thread.
+	private static final class Probe {
+		private final @NonNull InetSocketAddress address;
+		private final long timeoutMsec;
+		private final @NonNull CompletableFuture<@NonNull Boolean> future=
+				new CompletableFuture<>();
+
+		private SocketChannel channel;
+		private long deadline;
+		private boolean done;
+
+		private Probe(@NonNull InetSocketAddress address, long timeoutMsec) {
+			this.address= address;
+			this.timeoutMsec= timeoutMsec;
+		}
+	}
+
+	private final @NonNull Map<@NonNull InetSocketAddress, @NonNull Result> results=
+			new ConcurrentHashMap<>();
+
+	private final @NonNull Map<@NonNull InetSocketAddress,
+			@NonNull CompletableFuture<@NonNull Boolean>> inFlight= new ConcurrentHashMap<>();
+
+	// Probes handed over to the selector thread that haven't been started
+	private final @NonNull Queue<@NonNull Probe> waiting= new ConcurrentLinkedQueue<>();
+
+	// Only used on the selector thread - started probes by deadline, including ones that have
+	// finished since, and the number of connections open
+	private final @NonNull PriorityQueue<@NonNull Probe> deadlines= new PriorityQueue<>(
+			(first, second) -> Long.compare(first.deadline, second.deadline));
+	private int openCount;
+	private long nextPrune;
+
+	// Opened along with the thread on the first probe, guarded by this
+	private Selector selector;
+
+	private NioHealthProber() {}
+
+	public static @NonNull HealthProber Create() {
+		return new NioHealthProber();
+	}
+
+	private synchronized @NonNull Selector getSelector() throws IOException {
+		Selector current= selector;
+		if (current == null) {
+			current= Selector.open();
+			selector= current;
+
+			@NonNull Selector threadSelector= current;
+			Thread thread= new Thread(new Runnable() {
+				@Override
+				public void run() {
+					selectLoop(threadSelector);
+				}
+			}, "health-prober");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		return current;
+	}
+
+	@Override
+	public @NonNull CompletableFuture<@NonNull Boolean> probe(
+			@NonNull InetSocketAddress address,
+			long timeoutMsec,
+			long maximumAgeMsec)
+	{
+		Result result= results.get(address);
+		if ((result != null) && ((System.currentTimeMillis() - result.time) < maximumAgeMsec)) {
+			@SuppressWarnings("null")
+			@NonNull CompletableFuture<@NonNull Boolean> future=
+					CompletableFuture.completedFuture(result.healthy);
+
+			return future;
+		}
+
+		Probe probe= new Probe(address, timeoutMsec);
+
+		@SuppressWarnings("null")
+		@NonNull CompletableFuture<@NonNull Boolean> future=
+				inFlight.putIfAbsent(address, probe.future);
+		if (future != null) {
+			return future;
+		}
+
+		// The result goes in before the probe is taken out, so there's no gap where neither
+		// can be seen
+		probe.future.thenAccept(healthy -> {
+			results.put(address, new Result(healthy, System.currentTimeMillis()));
+			inFlight.remove(address, probe.future);
+		});
+
+		try {
+			Selector current= getSelector();
+
+			waiting.add(probe);
+			current.wakeup();
+		} catch (IOException selectorException) {
+			log.error("Unable to open selector for health probes", selectorException);
+			probe.future.complete(false);
+		}
+
+		return probe.future;
+	}
+
+	private void start(@NonNull Selector selector, @NonNull Probe probe, long now) {
+		try {
+			SocketChannel channel= SocketChannel.open();
+			probe.channel= channel;
+			openCount++;
+
+			channel.configureBlocking(false);
+			if (channel.connect(probe.address)) {
+				finish(probe, true);
+				return;
+			}
+
+			channel.register(selector, SelectionKey.OP_CONNECT, probe);
+
+			probe.deadline= now + probe.timeoutMsec;
+			deadlines.add(probe);
+		} catch (IOException connectException) {
+			log.debug("Health probe of " + probe.address + " failed", connectException);
+			finish(probe, false);
+		}
+	}
+
+	private void finish(@NonNull Probe probe, boolean healthy) {
+		if (probe.done) {
+			return;
+		}
+		probe.done= true;
+
+		// Closing the channel also cancels its key
+		SocketChannel channel= probe.channel;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException closeException) {
+			}
+			openCount--;
+		}
+
+		if (!healthy) {
+			log.debug("Health probe of " + probe.address + " failed");
+		}
+
+		probe.future.complete(healthy);
+	}
+
+	private void selectLoop(@NonNull Selector selector) {
+		while (true) {
+			long now= System.currentTimeMillis();
+
+			while (openCount < MAXIMUM_OPEN) {
+				Probe probe= waiting.poll();
+				if (probe == null) {
+					break;
+				}
+
+				start(selector, probe, now);
+			}
+
+			// Drop the finished probes off the top, so the wait is for one still running
+			while (!deadlines.isEmpty() && deadlines.peek().done) {
+				deadlines.poll();
+			}
+
+			long waitMsec= 0;
+			if (!deadlines.isEmpty()) {
+				waitMsec= Math.max(1, deadlines.peek().deadline - now);
+			}
+
+			try {
+				selector.select(waitMsec);
+			} catch (IOException selectException) {
+				log.error("Error waiting on health probes", selectException);
+			}
+
+			Iterator<SelectionKey> iterator= selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key= iterator.next();
+				iterator.remove();
+
+				Probe probe= (Probe)key.attachment();
+				try {
+					if (probe.channel.finishConnect()) {
+						finish(probe, true);
+					}
+				} catch (IOException connectException) {
+					finish(probe, false);
+				}
+			}
+
+			now= System.currentTimeMillis();
+			while (!deadlines.isEmpty() && (deadlines.peek().deadline <= now)) {
+				finish(deadlines.poll(), false);
+			}
+
+			if (now >= nextPrune) {
+				long cutoff= now - MAXIMUM_RESULT_AGE_MSEC;
+				results.values().removeIf(result -> (result.time < cutoff));
+				nextPrune= now + PRUNE_INTERVAL_MSEC;
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.teaglu.dnsalias.notify;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.xbill.DNS.Name;
+
+/**
+ * NotifyHandler
+ *
+ * Something that wants to know when a zone is announced to have changed.
+ */
+public interface NotifyHandler {
+	/**
+	 * zoneNotified
+	 *
+	 * Called once a NOTIFY for a zone has been accepted.  This is called on the listener's own
+	 * threads, so it should return quickly.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void zoneNotified(@NonNull Name zone);
+}
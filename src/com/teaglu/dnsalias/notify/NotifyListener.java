@@ -0,0 +1,27 @@
+package com.teaglu.dnsalias.notify;
+
+import java.io.IOException;
+
+/**
+ * NotifyListener
+ *
+ * Listens for DNS NOTIFY messages (RFC 1996), which primary servers send when a zone changes,
+ * and passes the ones it accepts on to a handler.
+ */
+public interface NotifyListener {
+	/**
+	 * start
+	 *
+	 * Open the listening sockets and start the threads that answer them.
+	 *
+	 * @throws IOException				The sockets couldn't be opened
+	 */
+	public void start() throws IOException;
+
+	/**
+	 * stop
+	 *
+	 * Close the listening sockets, which stops the threads answering them.
+	 */
+	public void stop();
+}
@@ -0,0 +1,131 @@
+package com.teaglu.dnsalias.notify.impl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.xbill.DNS.Address;
+
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+
+/**
+ * AddressAcl
+ *
+ * A list of addresses and networks that are allowed to send something.  Entries are written as
+ * a plain address, which only matches itself, or as a network in CIDR form like 192.0.2.0/24.
+ * Both IPv4 and IPv6 can be used.  Only literal addresses are taken, so building the list never
+ * waits on a lookup.
+ */
+final class AddressAcl {
+	private static final class Network {
+		private final byte @NonNull [] address;
+		private final int prefixLength;
+
+		private Network(byte @NonNull [] address, int prefixLength) {
+			this.address= address;
+			this.prefixLength= prefixLength;
+		}
+
+		private boolean contains(byte @NonNull [] other) {
+			if (other.length != address.length) {
+				return false;
+			}
+
+			int wholeBytes= prefixLength / 8;
+			for (int i= 0; i < wholeBytes; i++) {
+				if (other[i] != address[i]) {
+					return false;
+				}
+			}
+
+			int remainingBits= prefixLength % 8;
+			if (remainingBits > 0) {
+				int mask= (0xFF << (8 - remainingBits)) & 0xFF;
+				if ((other[wholeBytes] & mask) != (address[wholeBytes] & mask)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	private final @NonNull List<@NonNull Network> networks;
+
+	private AddressAcl(@NonNull List<@NonNull Network> networks) {
+		this.networks= networks;
+	}
+
+	/**
+	 * Create
+	 *
+	 * @param entries					Addresses and networks
+	 *
+	 * @return							New list
+	 *
+	 * @throws SchemaException			An entry isn't a valid address or network
+	 */
+	static @NonNull AddressAcl Create(
+			@NonNull Iterable<@NonNull String> entries) throws SchemaException
+	{
+		List<@NonNull Network> networks= new ArrayList<>();
+
+		for (String entry : entries) {
+			String addressText= entry;
+			int prefixLength= -1;
+
+			int slash= entry.indexOf('/');
+			if (slash != -1) {
+				addressText= entry.substring(0, slash);
+				try {
+					prefixLength= Integer.parseInt(entry.substring(slash + 1));
+				} catch (NumberFormatException numberException) {
+					throw new FormatException("Prefix length of [" + entry + "] is not a number");
+				}
+			}
+
+			byte[] address;
+			try {
+				address= Address.getByAddress(addressText).getAddress();
+			} catch (UnknownHostException addressException) {
+				throw new FormatException("[" + entry + "] is not a valid address or network");
+			}
+
+			int addressBits= address.length * 8;
+			if (prefixLength == -1) {
+				prefixLength= addressBits;
+			} else if ((prefixLength < 0) || (prefixLength > addressBits)) {
+				throw new FormatException("Prefix length of [" + entry + "] is out of range");
+			}
+
+			@SuppressWarnings("null")
+			byte @NonNull [] tmpAddress= address;
+			networks.add(new Network(tmpAddress, prefixLength));
+		}
+
+		return new AddressAcl(networks);
+	}
+
+	/**
+	 * contains
+	 *
+	 * @param address					Address to check
+	 *
+	 * @return							Whether any entry matches the address
+	 */
+	boolean contains(@NonNull InetAddress address) {
+		@SuppressWarnings("null")
+		byte @NonNull [] bytes= address.getAddress();
+
+		for (Network network : networks) {
+			if (network.contains(bytes)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
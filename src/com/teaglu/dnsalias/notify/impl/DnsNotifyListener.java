@@ -0,0 +1,499 @@
+package com.teaglu.dnsalias.notify.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.TSIGRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.RangeException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.configure.exception.ConfigException;
+import com.teaglu.configure.secret.SecretProvider;
+import com.teaglu.configure.secret.SecretReplacer;
+import com.teaglu.configure.secret.replacer.AtIdSecretReplacer;
+import com.teaglu.dnsalias.notify.NotifyHandler;
+import com.teaglu.dnsalias.notify.NotifyListener;
+
+/**
+ * DnsNotifyListener
+ *
+ * Implementation of NotifyListener that answers NOTIFY messages on both UDP and TCP, on the same
+ * port.  A NOTIFY is only accepted from an address on the allow list, and if a TSIG key is set
+ * it also has to be signed with that key.  Anything else is refused, and only NOTIFY messages
+ * for the SOA record of a zone are taken - no other kind of query is answered.  Datagrams from
+ * addresses off the allow list are dropped without an answer, since the source of a datagram
+ * can be forged and answering would reflect traffic at whoever it names.
+ *
+ * Primaries send a NOTIFY again until it's answered, so it's answered as soon as it's accepted.
+ */
+public class DnsNotifyListener implements NotifyListener {
+	private static final Logger log= LoggerFactory.getLogger(DnsNotifyListener.class);
+
+	private static final int DEFAULT_PORT= 53;
+
+	// NOTIFY messages are small, but a signed one with a long key name still has to fit
+	private static final int MAXIMUM_UDP_SIZE= 4096;
+
+	// How long a TCP connection can sit without sending anything before it's closed
+	private static final int TCP_IDLE_TIMEOUT_MSEC= 10_000;
+
+	// Threads serving TCP connections, and connections that can wait for one.  Anything past
+	// that is closed straight away, and the primary sends the NOTIFY again.
+	private static final int TCP_THREADS= 4;
+	private static final int TCP_BACKLOG= 16;
+
+	private static final int HEADER_LENGTH= 12;
+
+	// Least time between messages about dropped datagrams, so forged ones can't flood the log
+	private static final long DROP_LOG_MSEC= 60_000;
+
+	private final @NonNull InetSocketAddress bindAddress;
+	private final @NonNull AddressAcl allowed;
+	private final @Nullable TSIG tsig;
+	private final @NonNull NotifyHandler handler;
+
+	// Counter to set thread names
+	private final AtomicInteger threadCounter= new AtomicInteger(1);
+
+	// Datagrams dropped since the last message about them, and when that was
+	private final @NonNull AtomicLong droppedCount= new AtomicLong();
+	private final @NonNull AtomicLong dropLogged= new AtomicLong();
+
+	// Set while running, guarded by this
+	private DatagramSocket udpSocket;
+	private ServerSocket tcpSocket;
+	private ExecutorService connectionService;
+	private volatile boolean running;
+
+	private DnsNotifyListener(
+			@NonNull Composite config,
+			@NonNull SecretProvider secretProvider,
+			@NonNull NotifyHandler handler) throws SchemaException, ConfigException
+	{
+		this.handler= handler;
+
+		String address= config.getOptionalString("address");
+
+		int port= DEFAULT_PORT;
+		Integer configPort= config.getOptionalInteger("port");
+		if (configPort != null) {
+			if ((configPort < 1) || (configPort > 65535)) {
+				throw new RangeException("notify.port must be between 1 and 65535");
+			}
+			port= configPort;
+		}
+
+		if (address == null) {
+			bindAddress= new InetSocketAddress(port);
+		} else {
+			try {
+				bindAddress= new InetSocketAddress(Address.getByAddress(address), port);
+			} catch (UnknownHostException addressException) {
+				throw new FormatException(
+						"notify.address [" + address + "] is not a valid address");
+			}
+		}
+
+		allowed= AddressAcl.Create(config.getRequiredStringArray("allow"));
+
+		Composite tsigConfig= config.getOptionalObject("tsig");
+		if (tsigConfig != null) {
+			SecretReplacer secretReplacer= AtIdSecretReplacer.Create(secretProvider);
+
+			String keyName= tsigConfig.getRequiredString("name");
+			String secret= secretReplacer.replace(tsigConfig.getRequiredString("secret"));
+
+			String algorithmName= tsigConfig.getOptionalString("algorithm");
+			Name algorithm= TSIG.HMAC_SHA256;
+			if (algorithmName != null) {
+				try {
+					algorithm= TSIG.algorithmToName(algorithmName);
+				} catch (IllegalArgumentException algorithmException) {
+					throw new FormatException(
+							"notify.tsig.algorithm [" + algorithmName + "] is not supported");
+				}
+			}
+
+			try {
+				tsig= new TSIG(algorithm, Name.fromString(keyName, Name.root), secret);
+			} catch (TextParseException parseException) {
+				throw new FormatException(
+						"notify.tsig.name [" + keyName + "] is not a valid DNS name");
+			} catch (IllegalArgumentException secretException) {
+				throw new FormatException("notify.tsig.secret is not valid base64");
+			}
+		} else {
+			tsig= null;
+		}
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a listener from the notify section of the configuration.  It doesn't listen until
+	 * it's started.
+	 *
+	 * @param config					Notify configuration
+	 * @param secretProvider			Provider for the TSIG secret
+	 * @param handler					Handler for accepted NOTIFY messages
+	 *
+	 * @return							New listener
+	 *
+	 * @throws SchemaException			The configuration isn't valid
+	 * @throws ConfigException			The TSIG secret couldn't be read
+	 */
+	public static @NonNull NotifyListener Create(
+			@NonNull Composite config,
+			@NonNull SecretProvider secretProvider,
+			@NonNull NotifyHandler handler) throws SchemaException, ConfigException
+	{
+		return new DnsNotifyListener(config, secretProvider, handler);
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+
+		DatagramSocket newUdpSocket= new DatagramSocket(bindAddress);
+		ServerSocket newTcpSocket;
+		try {
+			newTcpSocket= new ServerSocket();
+			newTcpSocket.setReuseAddress(true);
+			newTcpSocket.bind(bindAddress);
+		} catch (IOException bindException) {
+			newUdpSocket.close();
+			throw bindException;
+		}
+
+		udpSocket= newUdpSocket;
+		tcpSocket= newTcpSocket;
+		running= true;
+
+		ThreadPoolExecutor newConnectionService= new ThreadPoolExecutor(
+				TCP_THREADS, TCP_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(TCP_BACKLOG),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread= new Thread(runnable,
+								"notify-worker-" + threadCounter.getAndIncrement());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+
+		newConnectionService.allowCoreThreadTimeOut(true);
+
+		connectionService= newConnectionService;
+
+		Thread udpThread= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				udpLoop(newUdpSocket);
+			}
+		}, "notify-udp");
+		udpThread.setDaemon(true);
+		udpThread.start();
+
+		Thread tcpThread= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tcpLoop(newTcpSocket, newConnectionService);
+			}
+		}, "notify-tcp");
+		tcpThread.setDaemon(true);
+		tcpThread.start();
+
+		log.info("Listening for NOTIFY messages on " + bindAddress);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+
+		running= false;
+
+		udpSocket.close();
+		try {
+			tcpSocket.close();
+		} catch (IOException closeException) {
+		}
+
+		connectionService.shutdownNow();
+
+		udpSocket= null;
+		tcpSocket= null;
+		connectionService= null;
+
+		log.info("Stopped listening for NOTIFY messages on " + bindAddress);
+	}
+
+	private void udpLoop(@NonNull DatagramSocket socket) {
+		byte[] buffer= new byte[MAXIMUM_UDP_SIZE];
+
+		// Closing the socket is what stops the loop
+		while (!socket.isClosed()) {
+			DatagramPacket packet= new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException receiveException) {
+				if (!socket.isClosed()) {
+					log.error("Error receiving NOTIFY message", receiveException);
+				}
+				continue;
+			}
+
+			byte[] data= new byte[packet.getLength()];
+			System.arraycopy(buffer, packet.getOffset(), data, 0, data.length);
+
+			@SuppressWarnings("null")
+			@NonNull InetAddress source= packet.getAddress();
+
+			byte[] response= handle(data, source);
+			if (response != null) {
+				try {
+					socket.send(new DatagramPacket(response, response.length,
+							packet.getSocketAddress()));
+				} catch (IOException sendException) {
+					log.debug("Unable to answer NOTIFY from " + source, sendException);
+				}
+			}
+		}
+	}
+
+	private void tcpLoop(
+			@NonNull ServerSocket socket,
+			@NonNull ExecutorService service)
+	{
+		while (!socket.isClosed()) {
+			Socket connection;
+			try {
+				connection= socket.accept();
+			} catch (IOException acceptException) {
+				if (!socket.isClosed()) {
+					log.error("Error accepting NOTIFY connection", acceptException);
+				}
+				continue;
+			}
+
+			// Nobody else gets as far as a thread
+			InetAddress source= connection.getInetAddress();
+			if ((source == null) || !allowed.contains(source)) {
+				log.warn("Refusing NOTIFY connection from " + source +
+						" which is not on the allow list");
+
+				close(connection);
+				continue;
+			}
+
+			try {
+				service.execute(new Runnable() {
+					@Override
+					public void run() {
+						serveConnection(connection);
+					}
+				});
+			} catch (RejectedExecutionException rejectedException) {
+				// Either every thread and queue slot is taken, or the listener was stopped while
+				// the connection was being accepted
+				if (!socket.isClosed()) {
+					log.warn("Too many NOTIFY connections - closing the one from " + source);
+				}
+
+				close(connection);
+			}
+		}
+	}
+
+	private static void close(@NonNull Socket connection) {
+		try {
+			connection.close();
+		} catch (IOException closeException) {
+		}
+	}
+
+	// Answer messages on one connection until the other end closes it or goes quiet
+	private void serveConnection(@NonNull Socket connection) {
+		@SuppressWarnings("null")
+		@NonNull InetAddress source= connection.getInetAddress();
+
+		try (Socket socket= connection) {
+			socket.setSoTimeout(TCP_IDLE_TIMEOUT_MSEC);
+
+			DataInputStream inputStream=
+					new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream outputStream= socket.getOutputStream();
+
+			while (running) {
+				int length;
+				try {
+					length= inputStream.readUnsignedShort();
+				} catch (EOFException eofException) {
+					break;
+				}
+
+				byte[] data= new byte[length];
+				inputStream.readFully(data);
+
+				byte[] response= handle(data, source);
+				if (response == null) {
+					break;
+				}
+
+				byte[] frame= new byte[response.length + 2];
+				frame[0]= (byte)(response.length >>> 8);
+				frame[1]= (byte)response.length;
+				System.arraycopy(response, 0, frame, 2, response.length);
+
+				outputStream.write(frame);
+				outputStream.flush();
+			}
+		} catch (IOException connectionException) {
+			log.debug("NOTIFY connection from " + source + " closed", connectionException);
+		}
+	}
+
+	// Count a datagram from off the allow list, mentioning it at most once a minute
+	private void dropped(@NonNull InetAddress source) {
+		droppedCount.incrementAndGet();
+
+		long now= System.currentTimeMillis();
+		long last= dropLogged.get();
+		if ((now - last >= DROP_LOG_MSEC) && dropLogged.compareAndSet(last, now)) {
+			log.debug("Dropped " + droppedCount.getAndSet(0) +
+					" datagrams from addresses not on the allow list, most recently " + source);
+		}
+	}
+
+	// Build an answer with no records other than the question, if there was one
+	private static @NonNull Message answer(@NonNull Message request, int rcode) {
+		Message response= new Message(request.getHeader().getID());
+		response.getHeader().setOpcode(request.getHeader().getOpcode());
+		response.getHeader().setFlag(Flags.QR);
+		response.getHeader().setRcode(rcode);
+
+		Record question= request.getQuestion();
+		if (question != null) {
+			response.addRecord(question, Section.QUESTION);
+		}
+
+		return response;
+	}
+
+	// Check a message and build the answer to it, or return null if it shouldn't be answered
+	private byte @Nullable [] handle(byte @NonNull [] data, @NonNull InetAddress source) {
+		// TCP connections are checked when they're accepted, so this only drops datagrams
+		if (!allowed.contains(source)) {
+			dropped(source);
+			return null;
+		}
+
+		if (data.length < HEADER_LENGTH) {
+			return null;
+		}
+
+		Message request;
+		try {
+			request= new Message(data);
+		} catch (IOException parseException) {
+			log.debug("Ignoring message from " + source + " that could not be parsed",
+					parseException);
+			return null;
+		}
+
+		// Never answer an answer
+		if (request.getHeader().getFlag(Flags.QR)) {
+			return null;
+		}
+
+		if (request.getHeader().getOpcode() != Opcode.NOTIFY) {
+			return answer(request, Rcode.NOTIMP).toWire();
+		}
+
+		Record question= request.getQuestion();
+		if ((question == null) ||
+				(question.getType() != Type.SOA) ||
+				(question.getDClass() != DClass.IN))
+		{
+			return answer(request, Rcode.FORMERR).toWire();
+		}
+
+		TSIGRecord requestTsig= request.getTSIG();
+
+		TSIG key= tsig;
+		if (key != null) {
+			if (requestTsig == null) {
+				log.warn("Refusing unsigned NOTIFY from " + source);
+				return answer(request, Rcode.REFUSED).toWire();
+			}
+
+			int error= key.verify(request, data, null);
+			if (error != Rcode.NOERROR) {
+				log.warn("Refusing NOTIFY from " + source + " that failed TSIG checks with " +
+						Rcode.TSIGstring(error));
+				return answer(request, Rcode.NOTAUTH).toWire();
+			}
+		}
+
+		@SuppressWarnings("null")
+		@NonNull Name zone= question.getName();
+
+		log.info("Accepted NOTIFY for " + zone + " from " + source);
+
+		try {
+			handler.zoneNotified(zone);
+		} catch (RuntimeException handlerException) {
+			log.error("Exception handling NOTIFY for " + zone, handlerException);
+		}
+
+		Message response= answer(request, Rcode.NOERROR);
+		response.getHeader().setFlag(Flags.AA);
+
+		if ((key != null) && (requestTsig != null)) {
+			key.apply(response, requestTsig);
+		}
+
+		return response.toWire();
+	}
+}
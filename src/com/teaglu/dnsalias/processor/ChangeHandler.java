@@ -0,0 +1,31 @@
+package com.teaglu.dnsalias.processor;
+
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsZone;
+
+/**
+ * ChangeHandler
+ *
+ * Something that wants to know when a processor has written a change to its destination.
+ */
+public interface ChangeHandler {
+	/**
+	 * destinationChanged
+	 *
+	 * Called once a change has been written to the destination.  This can be called on
+	 * whichever thread did the write, so it should return quickly.
+	 *
+	 * @param zone						Zone object the change was written through
+	 * @param apex						Zone apex
+	 * @param records					Records as written, where a record with no values means
+	 * 									the name and type were deleted
+	 */
+	public void destinationChanged(
+			@NonNull DnsZone zone,
+			@NonNull String apex,
+			@NonNull List<@NonNull DnsRecord> records);
+}
@@ -0,0 +1,92 @@
+package com.teaglu.dnsalias.processor;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Deadline
+ *
+ * The time one run of a processor has to be finished by.  Each stage of the run waits only as
+ * long as the deadline leaves, and stages that haven't started by the time it passes are
+ * skipped.
+ */
+public final class Deadline {
+	public static final @NonNull Deadline NONE= new Deadline(Long.MAX_VALUE, 0);
+
+	// System time the run has to be finished by
+	private final long expires;
+
+	// How long the deadline was set for when it was created
+	private final long timeoutMsec;
+
+	private Deadline(long expires, long timeoutMsec) {
+		this.expires= expires;
+		this.timeoutMsec= timeoutMsec;
+	}
+
+	/**
+	 * Create
+	 *
+	 * @param timeoutMsec				Milliseconds from now, or 0 for no deadline
+	 *
+	 * @return							Deadline
+	 */
+	public static @NonNull Deadline Create(long timeoutMsec) {
+		if (timeoutMsec <= 0) {
+			return NONE;
+		}
+
+		return new Deadline(System.currentTimeMillis() + timeoutMsec, timeoutMsec);
+	}
+
+	/**
+	 * restart
+	 *
+	 * Create a deadline of the same length starting from now, for work that was queued by one
+	 * run and only started later.
+	 *
+	 * @return							New deadline, or NONE if this is NONE
+	 */
+	public @NonNull Deadline restart() {
+		return Create(timeoutMsec);
+	}
+
+	/**
+	 * getExpires
+	 *
+	 * @return							System time of the deadline, or Long.MAX_VALUE for none
+	 */
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * limit
+	 *
+	 * Bring a time in the future in to the deadline if the deadline comes first.
+	 *
+	 * @param time						System time
+	 *
+	 * @return							Whichever of the time and the deadline is earlier
+	 */
+	public long limit(long time) {
+		return Math.min(time, expires);
+	}
+
+	/**
+	 * isExpired
+	 *
+	 * @return							Whether the deadline has passed
+	 */
+	public boolean isExpired() {
+		return (this != NONE) && (System.currentTimeMillis() >= expires);
+	}
+
+	@Override
+	public String toString() {
+		if (this == NONE) {
+			return "none";
+		} else {
+			return Math.max(0, expires - System.currentTimeMillis()) + " milliseconds left";
+		}
+	}
+}
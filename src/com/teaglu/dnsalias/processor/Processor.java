@@ -3,6 +3,7 @@ package com.teaglu.dnsalias.processor;
 import org.eclipse.jdt.annotation.NonNull;
 
 import com.teaglu.dnsalias.alert.AlertSink;
+import com.teaglu.dnsalias.dns.DnsZone;
 import com.teaglu.dnsalias.processor.exception.SourceException;
 import com.teaglu.dnsalias.processor.exception.DestinationException;
 
@@ -21,12 +22,47 @@ public interface Processor {
 	 * and is not required to be thread-safe.  This object may contain state relevant to the
 	 * replication, such as the last known value.
 	 * 
+	 * Each stage only waits as long as the deadline leaves, and the destination isn't touched
+	 * once it has passed.
+	 * 
 	 * @param alertSink					A sink to send any relevant alerts
+	 * @param deadline					When the run has to be finished by
 	 * @return							How many seconds the processor should be re-called after
 	 * 
 	 * @throws SourceException			A problem occurred getting the source data
 	 * @throws DestinationException			A problem occurred updating the DNS provider
 	 */
 	public long process(
-			@NonNull AlertSink alertSink) throws SourceException, DestinationException;
+			@NonNull AlertSink alertSink,
+			@NonNull Deadline deadline) throws SourceException, DestinationException;
+
+	/**
+	 * zoneChanged
+	 * 
+	 * Tell the processor a zone has changed.  If any of its source names are in the zone, what
+	 * it holds for them is dropped so they're all looked up on the next call to process.  Unlike
+	 * process this can be called from any thread.
+	 * 
+	 * @param zone						Zone apex
+	 * @return							Whether any source names are in the zone
+	 */
+	public boolean zoneChanged(@NonNull String zone);
+
+	/**
+	 * reconcile
+	 * 
+	 * Read the destination and compare it to what was last written, in case something else
+	 * has changed it since.  If it has, the change is reported and the destination is read
+	 * again and written over on the next call to process.  Unlike process this can be called
+	 * from any thread.
+	 * 
+	 * @param zone						Destination zone, looked up once for every alias in it
+	 * @param alertSink					A sink to report drift to
+	 * @return							Whether the destination had drifted
+	 * 
+	 * @throws DestinationException		A problem occurred reading the DNS provider
+	 */
+	public boolean reconcile(
+			@NonNull DnsZone zone,
+			@NonNull AlertSink alertSink) throws DestinationException;
 }
@@ -1,339 +1,1474 @@
 package com.teaglu.dnsalias.processor.dnsjava;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
-import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
-import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
-import org.xbill.DNS.DClass;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
 
+import com.teaglu.composite.exception.SchemaException;
 import com.teaglu.dnsalias.alert.AlertCategory;
 import com.teaglu.dnsalias.alert.AlertSink;
 import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.alias.DampingThreshold;
 import com.teaglu.dnsalias.dns.DnsProvider;
 import com.teaglu.dnsalias.dns.DnsRecord;
 import com.teaglu.dnsalias.dns.DnsRecordType;
 import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.dns.address.AddressAnswerParser;
+import com.teaglu.dnsalias.dns.address.Inet4Set;
+import com.teaglu.dnsalias.dns.address.Inet4SetBuilder;
+import com.teaglu.dnsalias.dns.address.Inet6Set;
+import com.teaglu.dnsalias.dns.address.Inet6SetBuilder;
 import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.dns.record.AAAARecord;
 import com.teaglu.dnsalias.dns.record.ARecord;
+import com.teaglu.dnsalias.health.HealthProber;
+import com.teaglu.dnsalias.processor.ChangeHandler;
+import com.teaglu.dnsalias.processor.Deadline;
 import com.teaglu.dnsalias.processor.Processor;
+import com.teaglu.dnsalias.processor.dnsjava.QueryPlan.Question;
 import com.teaglu.dnsalias.processor.exception.SourceException;
 import com.teaglu.dnsalias.processor.exception.DestinationException;
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.resolver.ZoneSerialTracker;
+import com.teaglu.dnsalias.stage.Stage;
 
 /**
  * DnsJavaProcessor
- * 
+ *
  * Implementation of Processor using the dnsjava library
  */
 public class DnsJavaProcessor implements Processor {
 	private static final Logger log= LoggerFactory.getLogger(DnsJavaProcessor.class);
-	
+
 	private @NonNull Alias alias;
 	private @NonNull DnsProvider provider;
-	
-	// Inet4Address doesn't implement Comparable<Inet4Address> for some reason, so unless you
-	// supply a comparator the set will blow up on the first operation.
-	private static class Inet4Comparator implements Comparator<Inet4Address> {
+	private @NonNull SourceResolver sourceResolver;
+
+	// Everything that doesn't change between polls
+	private final @NonNull QueryPlan plan;
+
+	public String toString() {
+		return plan.getDescription();
+	}
+
+	// TTL used when a name has no records to take a TTL from
+	private static final long DEFAULT_TTL= 600;
+
+	// How many lookups in a row can fail for a name that has answered before, while still
+	// using what it last answered.  After that the failure is passed on.
+	private static final int ALLOWED_STALE_LOOKUPS= 3;
+
+	// How long to wait before retrying a name whose lookup failed, in milliseconds
+	private static final long STALE_RETRY_MSEC= 30_000;
+
+	// How long past the probe timeout to wait for health probes, which covers probes that have
+	// to wait for a connection slot
+	private static final long HEALTH_SLACK_MSEC= 1_000;
+
+	// State kept for each source name and record type, so each one is only looked up again
+	// when its own TTL runs out instead of when the shortest TTL of any name runs out.
+	private static class NameState {
+		// Name and type to look up
+		private final @NonNull Question question;
+
+		// Type.A or Type.AAAA
+		private final int type;
+
+		// Addresses from the last successful lookup - only the one matching the type is used
+		private Inet4Set v4Addresses;
+		private Inet6Set v6Addresses;
+
+		// Set once the name has been looked up successfully
+		private boolean resolved;
+
+		// TTL from the last successful lookup
+		private long ttl= DEFAULT_TTL;
+
+		// System time when the name needs to be looked up again
+		private long expires;
+
+		// System time of the last lookup that worked
+		private long lookedUp;
+
+		// Lookups that have failed since the last one that worked
+		private int consecutiveFailures;
+
+		private NameState(@NonNull Question question) {
+			this.question= question;
+			this.type= question.getType();
+		}
+
+		private boolean hasAddresses() {
+			if (type == Type.AAAA) {
+				return (v6Addresses != null) && !v6Addresses.isEmpty();
+			} else {
+				return (v4Addresses != null) && !v4Addresses.isEmpty();
+			}
+		}
+	}
+
+	private final @NonNull List<@NonNull NameState> nameStates= new ArrayList<>(4);
+
+	// The queries in flight for one name.  Normally this is a single query that goes to whichever
+	// server answers first.  With a quorum there is one query per listed server, and each is put
+	// on the completed queue when it finishes so the answers can be read in the order they come.
+	private static class Lookup {
+		private final @NonNull NameState state;
+
+		private final @NonNull List<@NonNull CompletableFuture<byte @NonNull []>> answers=
+				new ArrayList<>(4);
+
+		private final @NonNull BlockingQueue<@NonNull CompletableFuture<byte @NonNull []>> completed=
+				new LinkedBlockingQueue<>();
+
+		private Lookup(@NonNull NameState state) {
+			this.state= state;
+		}
+
+		private void add(@NonNull CompletableFuture<byte @NonNull []> answer) {
+			answers.add(answer);
+			answer.whenComplete((response, exception) -> completed.add(answer));
+		}
+	}
+
+	// One set of addresses given by some of the servers asked in quorum mode
+	private static class Candidate {
+		private Inet4Set v4Addresses;
+		private Inet6Set v6Addresses;
+
+		// Servers that gave this set, and the lowest TTL any of them gave it with
+		private int votes;
+		private long ttl= Long.MAX_VALUE;
+	}
+
+	// Key for an IPv6 address in the union counts
+	private static final class Inet6Key {
+		private final long high;
+		private final long low;
+
+		private Inet6Key(long high, long low) {
+			this.high= high;
+			this.low= low;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Inet6Key)) {
+				return false;
+			}
+
+			Inet6Key otherKey= (Inet6Key)other;
+			return (high == otherKey.high) && (low == otherKey.low);
+		}
+
 		@Override
-		public int compare(Inet4Address a, Inet4Address b) {
-			byte[] aBytes= a.getAddress();
-			byte[] bBytes= b.getAddress();
-			
-			for (int i= 0; i < aBytes.length; i++) {
-				if (aBytes[i] < bBytes[i]) {
-					return -1;
-				} else if (aBytes[i] > bBytes[i]) {
-					return 1;
+		public int hashCode() {
+			return Long.hashCode((high * 31) + low);
+		}
+	}
+
+	// How many names each address came from.  The keys are the union of all names, and this is
+	// adjusted as each name changes rather than being rebuilt from scratch.  This is only
+	// touched when a name changes, so the boxing doesn't matter.
+	private final @NonNull Map<@NonNull Integer, Integer> v4Counts= new HashMap<>();
+	private final @NonNull Map<@NonNull Inet6Key, Integer> v6Counts= new HashMap<>();
+
+	// Reused for every lookup, so a lookup that returns the same thing as last time doesn't
+	// allocate a new set.  Only used on the processing thread.
+	private final @NonNull Inet4SetBuilder v4Builder= new Inet4SetBuilder();
+	private final @NonNull Inet6SetBuilder v6Builder= new Inet6SetBuilder();
+
+	// Set when the union has changed and hasn't been compared to the destination yet
+	private boolean unionChanged= true;
+
+	// What the destination is known to hold.  The IPv6 set is only used for dual stack.
+	private Inet4Set lastV4Destinations= null;
+	private Inet6Set lastV6Destinations= null;
+	private boolean destinationsKnown= false;
+
+	// Stage writes are handed to, or null to write them on the processing thread, and the key
+	// that lets a newer write replace one that hasn't run yet
+	private final @Nullable Stage writeStage;
+	private final @NonNull String writeKey;
+
+	// Told about each change once it has been written, or null
+	private final @Nullable ChangeHandler changeHandler;
+
+	// What was last written to the destination, which can be behind what the processor has
+	// decided on while a write is queued.  Only written by the write itself, except when the
+	// destination is read.
+	private volatile Inet4Set writtenV4Destinations= null;
+	private volatile Inet6Set writtenV6Destinations= null;
+
+	// Set when a write on the write stage fails, and thrown on the next call to process
+	private volatile DestinationException writeFailure;
+
+	// Set when the destination has been found changed by something else, so the next call to
+	// process reads it again and writes over it
+	private volatile boolean driftFound;
+
+	// Shared source zone serials, or null if lookups aren't gated on them
+	private final @Nullable ZoneSerialTracker serialTracker;
+
+	// Serial of the source zone when every name was last looked up
+	private long lastSerial;
+	private boolean serialKnown;
+
+	// Set from another thread when a source zone is announced to have changed
+	private volatile boolean changeAnnounced;
+
+	// Shared health probes, or null if addresses are written without probing them
+	private final @Nullable HealthProber healthProber;
+
+	// What the last probes found, so a change in which addresses are down is logged once
+	private @NonNull String lastUnhealthy= "";
+
+	// Whether changes are held back by the damping thresholds of the alias.  This is off when
+	// the processor only runs once, since there are no later polls for a change to be seen on.
+	private final boolean damped;
+
+	// A change to the destination that hasn't been seen for long enough to write, how many
+	// polls in a row it has been seen on, when it was first seen, and what it has to reach.
+	private boolean held;
+	private Inet4Set heldV4Destinations;
+	private Inet6Set heldV6Destinations;
+	private int heldPolls;
+	private long heldSince;
+	private @NonNull DampingThreshold heldThreshold= DampingThreshold.NONE;
+
+	// Writes that were held back, by the kind of change
+	private long suppressedAdditions;
+	private long suppressedRemovals;
+	private long suppressedEmpty;
+
+	// Negative TTL of the destination zone in seconds, used for empty answers that don't carry
+	// an SOA record of their own.  Read along with the initial destination records.
+	private long zoneNegativeTtl= DEFAULT_TTL;
+
+	private DnsJavaProcessor(
+			@NonNull Alias alias,
+			@NonNull DnsProvider provider,
+			@NonNull SourceResolver sourceResolver,
+			@Nullable ZoneSerialTracker serialTracker,
+			@Nullable HealthProber healthProber,
+			boolean damped,
+			@Nullable Stage writeStage,
+			@Nullable ChangeHandler changeHandler) throws SchemaException
+	{
+		this.alias= alias;
+		this.provider= provider;
+		this.sourceResolver= sourceResolver;
+		this.serialTracker= serialTracker;
+		this.healthProber= (alias.getHealthPort() > 0) ? healthProber : null;
+		this.damped= damped;
+		this.writeStage= writeStage;
+		this.changeHandler= changeHandler;
+
+		plan= QueryPlan.Create(alias);
+		writeKey= "address:" + plan.getDestinationName() + ":" + plan.getDestinationZone();
+		for (Question question : plan.getQuestions()) {
+			nameStates.add(new NameState(question));
+		}
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a processor that can gate lookups on the serial of the source zone, probe addresses
+	 * before writing them, and choosing whether changes are held back by the damping thresholds
+	 * of the alias.  Neither serials nor damping are any use when the processor is only going to
+	 * run once.
+	 *
+	 * @param alias						Alias to process
+	 * @param provider					Provider for the destination zone
+	 * @param sourceResolver			Resolver for the source names
+	 * @param serialTracker				Shared zone serials, or null to not gate lookups
+	 * @param healthProber				Shared health probes, or null to not probe addresses
+	 * @param damped					Whether to apply damping
+	 *
+	 * @return							New processor
+	 *
+	 * @throws SchemaException			The alias can't be turned into queries
+	 */
+	public static @NonNull Processor Create(
+			@NonNull Alias alias,
+			@NonNull DnsProvider provider,
+			@NonNull SourceResolver sourceResolver,
+			@Nullable ZoneSerialTracker serialTracker,
+			@Nullable HealthProber healthProber,
+			boolean damped) throws SchemaException
+	{
+		return new DnsJavaProcessor(
+				alias, provider, sourceResolver, serialTracker, healthProber, damped, null, null);
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a processor that also hands its writes to a stage instead of waiting for them, so
+	 * a slow provider doesn't hold up the next poll.  A write that hasn't started by the time
+	 * there's a newer one is dropped, and a write that fails is thrown from the next call to
+	 * process.
+	 *
+	 * @param alias						Alias to process
+	 * @param provider					Provider for the destination zone
+	 * @param sourceResolver			Resolver for the source names
+	 * @param serialTracker				Shared zone serials, or null to not gate lookups
+	 * @param healthProber				Shared health probes, or null to not probe addresses
+	 * @param damped					Whether to apply damping
+	 * @param writeStage				Stage to write on, or null to write while processing
+	 * @param changeHandler				Told about each change written, or null
+	 *
+	 * @return							New processor
+	 *
+	 * @throws SchemaException			The alias can't be turned into queries
+	 */
+	public static @NonNull Processor Create(
+			@NonNull Alias alias,
+			@NonNull DnsProvider provider,
+			@NonNull SourceResolver sourceResolver,
+			@Nullable ZoneSerialTracker serialTracker,
+			@Nullable HealthProber healthProber,
+			boolean damped,
+			@Nullable Stage writeStage,
+			@Nullable ChangeHandler changeHandler) throws SchemaException
+	{
+		return new DnsJavaProcessor(alias, provider, sourceResolver, serialTracker,
+				healthProber, damped, writeStage, changeHandler);
+	}
+
+	/**
+	 * getSuppressedAdditions
+	 *
+	 * Number of polls where a change adding addresses was held back by damping.
+	 *
+	 * @return							Suppressed write count
+	 */
+	public long getSuppressedAdditions() {
+		return suppressedAdditions;
+	}
+
+	/**
+	 * getSuppressedRemovals
+	 *
+	 * Number of polls where a change removing addresses was held back by damping.
+	 *
+	 * @return							Suppressed write count
+	 */
+	public long getSuppressedRemovals() {
+		return suppressedRemovals;
+	}
+
+	/**
+	 * getSuppressedEmpty
+	 *
+	 * Number of polls where an empty result was held back by damping.
+	 *
+	 * @return							Suppressed write count
+	 */
+	public long getSuppressedEmpty() {
+		return suppressedEmpty;
+	}
+
+	private static <K> void countDown(@NonNull Map<K, Integer> counts, @NonNull K key) {
+		Integer count= counts.get(key);
+		if ((count == null) || (count <= 1)) {
+			counts.remove(key);
+		} else {
+			counts.put(key, count - 1);
+		}
+	}
+
+	private static <K> void countUp(@NonNull Map<K, Integer> counts, @NonNull K key) {
+		Integer count= counts.get(key);
+		counts.put(key, (count == null) ? 1 : count + 1);
+	}
+
+	// Swap the IPv4 addresses for one name, keeping the union counts in step
+	private void replaceAddresses(
+			@NonNull NameState state,
+			@NonNull Inet4Set addresses)
+	{
+		Inet4Set oldAddresses= state.v4Addresses;
+		if (oldAddresses != null) {
+			for (int i= 0; i < oldAddresses.size(); i++) {
+				countDown(v4Counts, oldAddresses.get(i));
+			}
+		}
+
+		for (int i= 0; i < addresses.size(); i++) {
+			countUp(v4Counts, addresses.get(i));
+		}
+
+		state.v4Addresses= addresses;
+		unionChanged= true;
+	}
+
+	// Swap the IPv6 addresses for one name, keeping the union counts in step
+	private void replaceAddresses(
+			@NonNull NameState state,
+			@NonNull Inet6Set addresses)
+	{
+		Inet6Set oldAddresses= state.v6Addresses;
+		if (oldAddresses != null) {
+			for (int i= 0; i < oldAddresses.size(); i++) {
+				countDown(v6Counts, new Inet6Key(oldAddresses.getHigh(i), oldAddresses.getLow(i)));
+			}
+		}
+
+		for (int i= 0; i < addresses.size(); i++) {
+			countUp(v6Counts, new Inet6Key(addresses.getHigh(i), addresses.getLow(i)));
+		}
+
+		state.v6Addresses= addresses;
+		unionChanged= true;
+	}
+
+	// Deal with a failed lookup for one name.  If the name has answered recently we keep using
+	// what it said and try again soon - otherwise the failure is returned to be thrown.
+	private @Nullable SourceException lookupFailed(
+			@NonNull NameState state,
+			@NonNull SourceException exception)
+	{
+		if (state.resolved && (++state.consecutiveFailures <= ALLOWED_STALE_LOOKUPS)) {
+			log.warn("Keeping last known addresses for " + state.question.getLookupName() +
+					" after failed lookup", exception);
+
+			state.expires= System.currentTimeMillis() + STALE_RETRY_MSEC;
+			return null;
+		} else {
+			// Leave it expired so it's tried again on the next run
+			state.expires= 0;
+			return exception;
+		}
+	}
+
+	// Stop waiting on anything still in flight, such as lookups that ran past the deadline.
+	// Lookups that haven't started yet are skipped entirely.
+	private static void cancelLookups(
+			@NonNull List<@NonNull Lookup> lookups)
+	{
+		for (Lookup lookup : lookups) {
+			for (CompletableFuture<byte @NonNull []> answer : lookup.answers) {
+				answer.cancel(true);
+			}
+		}
+	}
+
+	// Read the A records the destination holds
+	private @NonNull Inet4Set readV4Destinations(
+			@NonNull DnsZone zone) throws DnsException, IOException
+	{
+		Inet4SetBuilder v4Destinations= new Inet4SetBuilder();
+		for (DnsRecord record : zone.findRecords(plan.getDestinationName(), DnsRecordType.A)) {
+			if (record instanceof ARecord) {
+				v4Destinations.add(((ARecord)record).getAddresses());
+			} else {
+				for (String value : record.getValues()) {
+					if (!v4Destinations.add(value)) {
+						log.warn("Ignoring unparseable destination address " + value);
+					}
 				}
 			}
-			return 0;
 		}
+
+		return v4Destinations.build();
 	}
-	
-	public String toString() {
-		StringBuilder builder= new StringBuilder("alias([");
-		boolean first= true;
-		for (String name : alias.getSourceNames()) {
-			if (first) {
-				first= false;
+
+	// Read the AAAA records the destination holds
+	private @NonNull Inet6Set readV6Destinations(
+			@NonNull DnsZone zone) throws DnsException, IOException
+	{
+		Inet6SetBuilder v6Destinations= new Inet6SetBuilder();
+		for (DnsRecord record : zone.findRecords(plan.getDestinationName(), DnsRecordType.AAAA)) {
+			if (record instanceof AAAARecord) {
+				v6Destinations.add(((AAAARecord)record).getAddresses());
 			} else {
-				builder.append(",");
+				for (String value : record.getValues()) {
+					if (!v6Destinations.add(value)) {
+						log.warn("Ignoring unparseable destination address " + value);
+					}
+				}
 			}
-			builder.append(name);
 		}
-		builder.append("]->(");
-		if (alias.getDestinationName().isBlank()) {
-			builder.append("@");
-		} else {
-			builder.append(alias.getDestinationName());
-		}
-		builder.append(",");
-		builder.append(alias.getDestinationZone());
-		builder.append("))");
-		
-		return builder.toString();
-	}
-	
-	private static final Inet4Comparator inet4Comparator= new Inet4Comparator();
-	
-	private Set<@NonNull Inet4Address> lastDestinations= null;
-	
-	private DnsJavaProcessor(@NonNull Alias alias, @NonNull DnsProvider provider) {
-		this.alias= alias;
-		this.provider= provider;
+
+		return v6Destinations.build();
 	}
-	
-	public static @NonNull Processor Create(@NonNull Alias alias, @NonNull DnsProvider provider) {
-		return new DnsJavaProcessor(alias, provider);
+
+	// Read what the destination currently holds, so the first run doesn't write a record that
+	// is already correct.
+	private void readDestinations(@NonNull Deadline deadline) throws DestinationException {
+		try {
+			DnsZone zone= provider.getZone(plan.getDestinationZone(), deadline);
+			if (zone == null) {
+				throw new DestinationException(
+						"The destination zone could not be located by the update API");
+			}
+
+			lastV4Destinations= readV4Destinations(zone);
+			if (alias.isDualStack()) {
+				lastV6Destinations= readV6Destinations(zone);
+			}
+
+			writtenV4Destinations= lastV4Destinations;
+			writtenV6Destinations= lastV6Destinations;
+
+			zoneNegativeTtl= zone.getNegativeTtl();
+			destinationsKnown= true;
+
+			log.debug("Retrieved initial set of " +
+					describe(lastV4Destinations, lastV6Destinations));
+		} catch (IOException e) {
+			throw new DestinationException("IO Error retrieving DNS record", e);
+		} catch (DnsException e) {
+			throw new DestinationException("Error retrieving DNS record", e);
+		}
 	}
-	
-	private boolean compareSets(Set<@NonNull Inet4Address> a, Set<@NonNull Inet4Address> b) {
-		for (Inet4Address member : a) {
-			if (!b.contains(member)) {
-				return false;
+
+	// Work out how long an empty answer can be trusted.  Per RFC 2308 this is the lesser of the
+	// TTL of the SOA record in the authority section and its minimum field.  Servers that don't
+	// send the SOA get the negative TTL of the destination zone as a stand-in.
+	private long getNegativeTtl(
+			@NonNull Message response)
+	{
+		long negativeTtl= zoneNegativeTtl;
+
+		List<Record> records= response.getSection(Section.AUTHORITY);
+		for (Record record : records) {
+			if (record instanceof SOARecord) {
+				SOARecord soa= (SOARecord)record;
+				negativeTtl= Math.min(soa.getTTL(), soa.getMinimum());
+				break;
 			}
 		}
-		
-		for (Inet4Address member : b) {
-			if (!a.contains(member)) {
-				return false;
+
+		return Math.max(0, Math.min(negativeTtl, alias.getMaxNegativeTtl()));
+	}
+
+	// Pull the addresses for one name out of a response into the builder for its type, and
+	// return the lowest TTL seen.  The usual answer is read straight from the wire, and only
+	// anything out of the ordinary is parsed into a message.
+	private long readResponse(
+			@NonNull NameState state,
+			byte @NonNull [] response) throws IOException
+	{
+		long ttl= AddressAnswerParser.readAddresses(response, state.type, v4Builder, v6Builder);
+		if (ttl != AddressAnswerParser.UNHANDLED) {
+			return Math.min(ttl, DEFAULT_TTL);
+		}
+
+		v4Builder.clear();
+		v6Builder.clear();
+
+		return readResponse(state, new Message(response));
+	}
+
+	// Same as above for a parsed message.  An empty answer - either NXDOMAIN or a name with no
+	// records of this type - returns the negative TTL instead.
+	private long readResponse(
+			@NonNull NameState state,
+			@NonNull Message response) throws IOException
+	{
+		long lowestTtl= DEFAULT_TTL;
+		boolean found= false;
+
+		// The address comes straight out of the rdata instead of going to text and back
+		// through InetAddress.
+		List<Record> records= response.getSection(Section.ANSWER);
+		for (Record record : records) {
+			if (record.getType() == state.type) {
+				byte[] rdata= record.rdataToWireCanonical();
+
+				if (state.type == Type.AAAA) {
+					if (rdata.length != 16) {
+						throw new IOException("AAAA record rdata is " + rdata.length + " bytes");
+					}
+					v6Builder.add(rdata, 0);
+				} else {
+					if (rdata.length != 4) {
+						throw new IOException("A record rdata is " + rdata.length + " bytes");
+					}
+					v4Builder.add(rdata, 0);
+				}
+
+				long ttl= record.getTTL();
+				if (ttl < lowestTtl) {
+					lowestTtl= ttl;
+				}
+				found= true;
 			}
 		}
-		
-		return true;
+
+		if (!found) {
+			lowestTtl= getNegativeTtl(response);
+
+			log.debug("No records for " + state.question.getLabel() +
+					" (" + Rcode.string(response.getRcode()) + "), rechecking in " +
+					lowestTtl + " seconds");
+		}
+
+		return lowestTtl;
+	}
+
+	// Read the answers for one name from each server as they come back, until enough of them
+	// agree on the same addresses.  This finishes as soon as the quorum is reached, so it waits
+	// on the slowest of the agreeing servers and not on every server.  The builder for the type
+	// is left holding the agreed addresses, and the lowest TTL they were given with is returned.
+	private long readQuorum(
+			@NonNull Lookup lookup,
+			long deadline,
+			int quorum) throws SourceException, InterruptedException
+	{
+		NameState state= lookup.state;
+		int serverCount= lookup.answers.size();
+
+		List<@NonNull Candidate> candidates= new ArrayList<>(2);
+		int mostVotes= 0;
+		Throwable lastFailure= null;
+
+		for (int received= 0; received < serverCount; received++) {
+			// Give up once the servers still out couldn't make up the difference
+			if (mostVotes + (serverCount - received) < quorum) {
+				break;
+			}
+
+			long remaining= deadline - System.currentTimeMillis();
+			CompletableFuture<byte @NonNull []> answer=
+					lookup.completed.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+
+			if (answer == null) {
+				throw new SourceException("Only " + received + " of " + serverCount +
+						" servers answered for [" + state.question.getLookupName() + "] in time, " +
+						"short of a quorum of " + quorum);
+			}
+
+			long ttl;
+			try {
+				byte[] response= answer.get();
+
+				v4Builder.clear();
+				v6Builder.clear();
+
+				ttl= readResponse(state, response);
+			} catch (ExecutionException executionException) {
+				lastFailure= executionException.getCause();
+				continue;
+			} catch (IOException parseException) {
+				lastFailure= parseException;
+				continue;
+			}
+
+			Candidate candidate= null;
+			for (Candidate existing : candidates) {
+				if ((state.type == Type.AAAA) ?
+						v6Builder.matches(existing.v6Addresses) :
+						v4Builder.matches(existing.v4Addresses))
+				{
+					candidate= existing;
+					break;
+				}
+			}
+
+			if (candidate == null) {
+				candidate= new Candidate();
+				if (state.type == Type.AAAA) {
+					candidate.v6Addresses= v6Builder.build();
+				} else {
+					candidate.v4Addresses= v4Builder.build();
+				}
+				candidates.add(candidate);
+			}
+
+			candidate.votes++;
+			candidate.ttl= Math.min(candidate.ttl, ttl);
+			mostVotes= Math.max(mostVotes, candidate.votes);
+
+			if (candidate.votes >= quorum) {
+				if (candidates.size() > 1) {
+					log.debug("Servers disagreed on " + state.question.getLabel() + " - using the " +
+							"answer given by " + candidate.votes + " of " + serverCount);
+				}
+
+				return candidate.ttl;
+			}
+		}
+
+		throw new SourceException("No " + quorum + " of " + serverCount + " servers agreed on " +
+				"the addresses for [" + state.question.getLookupName() + "]", lastFailure);
 	}
-	
-	private String setToString(Set<@NonNull Inet4Address> destinations) {
-		StringBuilder destinationList= new StringBuilder();
-		for (Inet4Address address : destinations) {
-			if (destinationList.length() > 0) {
-				destinationList.append(", ");
+
+	@Override
+	public boolean zoneChanged(@NonNull String zone) {
+		Name zoneName;
+		try {
+			zoneName= Name.fromString(zone, Name.root);
+		} catch (TextParseException parseException) {
+			return false;
+		}
+
+		boolean inZone= zoneName.equals(plan.getSourceZone());
+		for (NameState state : nameStates) {
+			if (state.question.getName().subdomain(zoneName)) {
+				inZone= true;
 			}
-			destinationList.append(address.getHostAddress());
 		}
-		
-		return destinationList.toString();
+
+		if (inZone) {
+			changeAnnounced= true;
+		}
+
+		return inZone;
 	}
-	
+
+	// The destination is left alone once the deadline has passed, so a run that's already late
+	// doesn't take even longer waiting on the provider
+	private static void checkDeadline(
+			@NonNull Deadline deadline,
+			@NonNull String stage) throws DestinationException
+	{
+		if (deadline.isExpired()) {
+			throw new DestinationException("The deadline passed before " + stage);
+		}
+	}
+
+	@Override
+	public boolean reconcile(
+			@NonNull DnsZone zone,
+			@NonNull AlertSink alertSink) throws DestinationException
+	{
+		// Nothing has been read or written yet to compare to
+		Inet4Set expectedV4= writtenV4Destinations;
+		Inet6Set expectedV6= writtenV6Destinations;
+		if (expectedV4 == null) {
+			return false;
+		}
+
+		Inet4Set actualV4;
+		Inet6Set actualV6= null;
+		try {
+			actualV4= readV4Destinations(zone);
+			if (alias.isDualStack() && (expectedV6 != null)) {
+				actualV6= readV6Destinations(zone);
+			}
+		} catch (IOException e) {
+			throw new DestinationException("IO Error retrieving DNS record", e);
+		} catch (DnsException e) {
+			throw new DestinationException("Error retrieving DNS record", e);
+		}
+
+		// A write made while the records were being read could have been caught half way
+		if ((writtenV4Destinations != expectedV4) || (writtenV6Destinations != expectedV6)) {
+			return false;
+		}
+
+		if (actualV4.equals(expectedV4) && ((actualV6 == null) || actualV6.equals(expectedV6))) {
+			return false;
+		}
+
+		StringBuilder messageBuild= new StringBuilder();
+		messageBuild.append("The DNS resolution for [");
+		messageBuild.append(plan.getDestinationLabel());
+		messageBuild.append("] in zone [");
+		messageBuild.append(plan.getDestinationZone());
+		messageBuild.append("] was changed from [");
+		messageBuild.append(describe(expectedV4, expectedV6));
+		messageBuild.append("] to [");
+		messageBuild.append(describe(actualV4, actualV6));
+		messageBuild.append("] by something else, and will be written over");
+
+		@SuppressWarnings("null")
+		@NonNull String message= messageBuild.toString();
+
+		log.warn(message);
+		alertSink.sendAlert(AlertCategory.DESTINATION_DRIFT, message, null);
+
+		driftFound= true;
+		return true;
+	}
+
 	@Override
 	public long process(
-			@NonNull AlertSink alertSink) throws SourceException, DestinationException
+			@NonNull AlertSink alertSink,
+			@NonNull Deadline deadline) throws SourceException, DestinationException
 	{
-		if (lastDestinations == null) {
+		// The destination is read again after a failed write, so whatever it ended up holding
+		// is written over on the next run
+		DestinationException failure= writeFailure;
+		if (failure != null) {
+			writeFailure= null;
+			destinationsKnown= false;
+			unionChanged= true;
+
+			throw failure;
+		}
+
+		if (driftFound) {
+			driftFound= false;
+			destinationsKnown= false;
+			unionChanged= true;
+		}
+
+		if (!destinationsKnown) {
+			checkDeadline(deadline, "the destination records could be read");
+			readDestinations(deadline);
+		}
+
+		List<@NonNull InetSocketAddress> nameservers= plan.getServers();
+
+		// Only the names whose TTL has run out are looked up.  All of those queries are sent at
+		// once - including the A and AAAA queries for the same name - so the alias takes as
+		// long as the slowest query instead of the total.
+		long lookupStart= System.currentTimeMillis();
+
+		// With a source zone, the zone serial decides whether names are looked up at all.  If it
+		// hasn't changed since every name was last looked up, names that are due are held for
+		// another interval instead, up to the ceiling.  If it has, every name is looked up.
+		boolean serialFetched= false;
+		long serial= 0;
+
+		Name sourceZone= plan.getSourceZone();
+		if ((sourceZone != null) && (serialTracker != null)) {
 			try {
-				Set<@NonNull Inet4Address> destinations= new TreeSet<>(inet4Comparator);
-				
-				DnsZone zone= provider.getZone(alias.getDestinationZone());
-				if (zone == null) {
-					throw new DestinationException(
-							"The destination zone could not be located by the update API");
+				serial= serialTracker.getSerial(sourceZone, nameservers, sourceResolver,
+						alias.getSerialInterval() * 1000);
+
+				serialFetched= true;
+			} catch (IOException serialException) {
+				log.debug("Unable to get the serial of " + sourceZone +
+						" - looking names up on their TTL", serialException);
+			}
+		}
+
+		// An announced change counts the same as seeing the serial change
+		boolean announced= changeAnnounced;
+		changeAnnounced= false;
+
+		boolean zoneUnchanged= !announced &&
+				serialFetched && serialKnown && (serial == lastSerial);
+		boolean zoneChanged= announced ||
+				(serialFetched && serialKnown && (serial != lastSerial));
+
+		if (announced) {
+			log.debug("Source zone change announced for " + plan.getDescription() +
+					" - looking up every name");
+		} else if (zoneChanged && (sourceZone != null)) {
+			log.debug("Serial of " + sourceZone + " changed from " + lastSerial + " to " +
+					serial + " - looking up every name");
+
+			// The resolver is shared, and would otherwise answer from what it kept under the old
+			// serial.  An announced change has already been dropped by whoever announced it.
+			sourceResolver.invalidateCache(sourceZone);
+		}
+
+		List<@NonNull Lookup> lookups= new ArrayList<>(4);
+		int quorum= alias.getSourceQuorum();
+
+		for (NameState state : nameStates) {
+			if (!zoneChanged && (state.expires > lookupStart)) {
+				continue;
+			}
+
+			if (zoneUnchanged && state.resolved) {
+				long ceiling= state.lookedUp + (alias.getSerialCeiling() * 1000);
+				if (lookupStart < ceiling) {
+					state.expires= Math.min(
+							lookupStart + (alias.getSerialInterval() * 1000), ceiling);
+
+					continue;
 				}
+			}
 
-				Iterable<@NonNull DnsRecord> records=
-						zone.findRecords(alias.getDestinationName(), DnsRecordType.A);
-				
-				for (DnsRecord record : records) {
-					for (String value : record.getValues()) {
-						InetAddress address= InetAddress.getByName(value);
-						if (address instanceof Inet4Address) {
-							destinations.add((Inet4Address)address);
-						}
-					}
+			// Null nameservers means to use the system ones
+			if (log.isDebugEnabled()) {
+				log.debug("Looking up " + state.question.getLabel() + " using " +
+						((nameservers == null) ? "default" : "listed") + " nameservers" +
+						((quorum > 0) ? (" with a quorum of " + quorum) : ""));
+			}
+
+			Lookup lookup= new Lookup(state);
+			if ((quorum > 0) && (nameservers != null)) {
+				// Every server is asked on its own, and they're all asked at the same time
+				for (InetSocketAddress server : nameservers) {
+					@SuppressWarnings("null")
+					@NonNull List<@NonNull InetSocketAddress> single=
+							Collections.singletonList(server);
+
+					lookup.add(sourceResolver.exchangeAsync(state.question.newQuery(), single));
 				}
-				
-				lastDestinations= destinations;
-				
-				log.debug("Retrieved initial set of " + setToString(destinations));
-			} catch (IOException e) {
-				throw new DestinationException("IO Error retrieving DNS record", e);
-			} catch (DnsException e) {
-				throw new DestinationException("Error retrieving DNS record", e);
+			} else {
+				lookup.add(sourceResolver.exchangeAsync(state.question.newQuery(), nameservers));
 			}
+
+			lookups.add(lookup);
 		}
-		
-		Set<@NonNull Inet4Address> destinations= new TreeSet<>(inet4Comparator);
-		long lowestTtl= 600;
-		
-		try {
-			Iterable<@NonNull String> nameservers= alias.getSourceServers();
-			
-			for (String sourceName : alias.getSourceNames()) {
-				// DnsJava requires the canonical dot at the end.
-				String lookupName= sourceName;
-				if (!lookupName.endsWith(".")) {
-					lookupName= lookupName + ".";
+
+		// Lookups get the source timeout, or whatever is left before the deadline
+		long lookupDeadline= deadline.limit(lookupStart + alias.getSourceTimeout());
+		SourceException lookupException= null;
+
+		// Whether a name that failed has never answered, so there's nothing to keep for it
+		boolean unresolvedFailure= false;
+		boolean anyFailure= false;
+
+		for (Lookup lookup : lookups) {
+			NameState state= lookup.state;
+			SourceException exception= null;
+
+			try {
+				long lowestTtl;
+				if (quorum > 0) {
+					lowestTtl= readQuorum(lookup, lookupDeadline, quorum);
+				} else {
+					long remaining= Math.max(0, lookupDeadline - System.currentTimeMillis());
+					byte[] queryResponse=
+							lookup.answers.get(0).get(remaining, TimeUnit.MILLISECONDS);
+
+					v4Builder.clear();
+					v6Builder.clear();
+
+					lowestTtl= readResponse(state, queryResponse);
 				}
-				
-				Record queryRecord= Record.newRecord(
-						Name.fromString(lookupName), Type.A, DClass.IN);
-
-				// Null nameservers in the alias record means to use the system ones
-				if (nameservers == null) {
-					log.debug("Looking up " + sourceName + " using default nameservers");
-					
-					Message queryMessage= Message.newQuery(queryRecord);
-					
-					try {
-						Resolver resolver= new SimpleResolver();
-						
-						Message queryResponse= resolver.send(queryMessage);
-						
-						List<Record> records= queryResponse.getSection(Section.ANSWER);
-						for (Record record : records) {
-							if (record.getType() == Type.A) {
-								InetAddress address= InetAddress.getByName(record.rdataToString());
-								if (address instanceof Inet4Address) {
-									destinations.add((Inet4Address)address);
-									
-									long ttl= record.getTTL();
-									if (ttl < lowestTtl) {
-										lowestTtl= ttl;
-									}
-								}
-							}
-						}
-					} catch (IOException lookupException) {
-						throw new SourceException(
-								"Unable to resolve [" + lookupName + "] with system resolver.",
-								lookupException);
+
+				// TTL is counted from when the query was sent, so we err on the early side.  An
+				// empty answer is held for its negative TTL the same way, and since it matches
+				// the last empty answer it doesn't cause another trip to the destination.
+				state.ttl= lowestTtl;
+				state.expires= lookupStart + (lowestTtl * 1000);
+				state.lookedUp= lookupStart;
+				state.consecutiveFailures= 0;
+
+				if (state.type == Type.AAAA) {
+					if (!state.resolved || !v6Builder.matches(state.v6Addresses)) {
+						replaceAddresses(state, v6Builder.build());
 					}
 				} else {
-					boolean anySuccess= false;
-					IOException lastException= null;
-					
-					Iterator<@NonNull String> nameserverIter= nameservers.iterator();
-					while (nameserverIter.hasNext() && destinations.isEmpty()) {
-						@SuppressWarnings("null")
-						String nameserver= nameserverIter.next();
-						
-						log.debug("Looking up " + sourceName + " using nameserver " + nameserver);
-						
-						Message queryMessage= Message.newQuery(queryRecord);
-						try {
-							Resolver resolver= new SimpleResolver(nameserver);
-							
-							Message queryResponse= resolver.send(queryMessage);
-							
-							List<Record> records= queryResponse.getSection(Section.ANSWER);
-							for (Record record : records) {
-								if (record.getType() == Type.A) {
-									InetAddress address= InetAddress.getByName(record.rdataToString());
-									if (address instanceof Inet4Address) {
-										destinations.add((Inet4Address)address);
-										
-										long ttl= record.getTTL();
-										if (ttl < lowestTtl) {
-											lowestTtl= ttl;
-										}
-									}
-								}
-							}
-							
-							anySuccess= true;
-						} catch (IOException lookupException) {
-							lastException= lookupException;
-						}
-					}
-					
-					if (!anySuccess) {
-						throw new SourceException(
-								"Unable to resolve [" + lookupName + "] with any listed " +
-								"resolver.  The exception attached is the last.",
-								lastException);
+					if (!state.resolved || !v4Builder.matches(state.v4Addresses)) {
+						replaceAddresses(state, v4Builder.build());
 					}
 				}
+				state.resolved= true;
+			} catch (ExecutionException executionException) {
+				exception= new SourceException(
+						"Unable to resolve [" + state.question.getLookupName() + "] with " +
+						((nameservers == null) ? "system resolvers" : "any listed resolver") +
+						".  The exception attached is the last.",
+						executionException.getCause());
+			} catch (TimeoutException timeoutException) {
+				exception= new SourceException(
+						"Unable to resolve [" + state.question.getLookupName() + "] within " +
+						(lookupDeadline - lookupStart) + " milliseconds",
+						timeoutException);
+			} catch (InterruptedException interruptedException) {
+				exception= new SourceException(
+						"Interrupted while resolving [" + state.question.getLookupName() + "]",
+						interruptedException);
+			} catch (IOException parseException) {
+				exception= new SourceException(
+						"Unable to parse address returned for [" + state.question.getLookupName() + "]",
+						parseException);
+			} catch (SourceException quorumException) {
+				exception= quorumException;
 			}
-		} catch (TextParseException e) {
-			throw new SourceException("Error parsing text on DNS lookup", e);
-		}
-		
-		boolean noChange= false;
-		if (lastDestinations != null) {
-			if (compareSets(lastDestinations, destinations)) {
-				noChange= true;
+
+			if (exception != null) {
+				anyFailure= true;
+				if (!state.resolved) {
+					unresolvedFailure= true;
+				}
+
+				exception= lookupFailed(state, exception);
+				if ((exception != null) && (lookupException == null)) {
+					lookupException= exception;
+				}
 			}
 		}
 
-		if (!noChange) {
-			if (!destinations.isEmpty()) {
-				log.debug("Targets: " + setToString(destinations));
-				
+		cancelLookups(lookups);
+
+		// Listed servers that keep failing may have moved
+		if ((nameservers != null) && !lookups.isEmpty()) {
+			plan.reportLookups(anyFailure);
+		}
+
+		// The serial only counts as seen once every name due was looked up under it
+		if (serialFetched && (lookupException == null)) {
+			lastSerial= serial;
+			serialKnown= true;
+		}
+
+		// A held change is checked on every poll, even when nothing was different this time,
+		// and so are health probes since an address can go down without the source changing
+		boolean probing= (healthProber != null);
+
+		if (lookupException != null) {
+			// Names that did answer still go out, and the ones that didn't keep what they last
+			// returned.  That's only safe once every failed name has answered at some point,
+			// or its addresses would be missing from what gets written.
+			if (!unresolvedFailure && (unionChanged || held || probing)) {
 				try {
-					DnsZone zone= provider.getZone(alias.getDestinationZone());
-					if (zone == null) {
-						throw new DestinationException(
-								"The destination zone could not be located by the update API");
-					}
-	
-					zone.createRecord(ARecord.Create(
-							alias.getDestinationName(), destinations, (int)lowestTtl),
-							true);
-				} catch (IOException e) {
-					throw new DestinationException("IO Error updating DNS record", e);
-				} catch (DnsException e) {
-					throw new DestinationException("Error updating DNS record", e);
+					publish(alertSink, true, deadline);
+					unionChanged= false;
+				} catch (DestinationException destinationException) {
+					log.warn("Unable to write the names that did answer for " +
+							alias.getDestinationName(), destinationException);
+				}
+			}
+
+			throw lookupException;
+		}
+
+		if (unionChanged || held || probing) {
+			publish(alertSink, !lookups.isEmpty() || probing, deadline);
+			unionChanged= false;
+		}
+
+		// Come back when the next name runs out, rounding up to whole seconds
+		long earliest= System.currentTimeMillis() + (DEFAULT_TTL * 1000);
+		for (NameState state : nameStates) {
+			if (state.expires < earliest) {
+				earliest= state.expires;
+			}
+		}
+
+		// Or when a held change will have been seen for long enough
+		if (held && (heldThreshold.getSeconds() > 0)) {
+			earliest= Math.min(earliest, heldSince + (heldThreshold.getSeconds() * 1000));
+		}
+
+		// Or when the probe results are due to be refreshed
+		if (probing) {
+			earliest= Math.min(earliest, lookupStart + (alias.getHealthInterval() * 1000));
+		}
+
+		return Math.max(0, (earliest - System.currentTimeMillis() + 999) / 1000);
+	}
+
+	// The record gets the shortest TTL of any name that contributed to it
+	private long getLowestTtl(int type) {
+		long lowestTtl= DEFAULT_TTL;
+		for (NameState state : nameStates) {
+			if ((state.type == type) && state.hasAddresses()) {
+				if (state.ttl < lowestTtl) {
+					lowestTtl= state.ttl;
 				}
+			}
+		}
+
+		return lowestTtl;
+	}
+
+	private static @NonNull String describe(
+			@Nullable Inet4Set v4Addresses,
+			@Nullable Inet6Set v6Addresses)
+	{
+		StringBuilder builder= new StringBuilder();
+		if (v4Addresses != null) {
+			builder.append(v4Addresses.toString());
+		}
+		if ((v6Addresses != null) && !v6Addresses.isEmpty()) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(v6Addresses.toString());
+		}
+
+		@SuppressWarnings("null")
+		@NonNull String rval= builder.toString();
+		return rval;
+	}
+
+	// Decide whether a change to the destination has been seen for long enough to be written.
+	// The threshold depends on the kind of change - an empty result is the most drastic, then
+	// anything that drops an address, and a change that only adds addresses is the least.
+	private boolean checkDamping(
+			@NonNull Inet4Set v4Destinations,
+			@Nullable Inet6Set v6Destinations,
+			boolean polled)
+	{
+		boolean empty= v4Destinations.isEmpty() &&
+				((v6Destinations == null) || v6Destinations.isEmpty());
+
+		boolean removal= ((lastV4Destinations != null) &&
+				!v4Destinations.containsAll(lastV4Destinations)) ||
+				((v6Destinations != null) && (lastV6Destinations != null) &&
+				!v6Destinations.containsAll(lastV6Destinations));
+
+		DampingThreshold threshold= empty ? alias.getEmptyDamping() :
+				removal ? alias.getRemovalDamping() : alias.getAdditionDamping();
+
+		if (threshold == DampingThreshold.NONE) {
+			held= false;
+			return true;
+		}
+
+		long now= System.currentTimeMillis();
+
+		// Only a poll that actually looked something up counts as seeing the change again
+		if (held && v4Destinations.equals(heldV4Destinations) &&
+				Objects.equals(v6Destinations, heldV6Destinations))
+		{
+			if (polled) {
+				heldPolls++;
+			}
+		} else {
+			held= true;
+			heldV4Destinations= v4Destinations;
+			heldV6Destinations= v6Destinations;
+			heldPolls= 1;
+			heldSince= now;
+		}
+
+		heldThreshold= threshold;
+
+		if (threshold.isMet(heldPolls, now - heldSince)) {
+			log.info("Change to [" + describe(v4Destinations, v6Destinations) + "] for " +
+					plan.getDescription() + " was seen for " + heldPolls + " polls over " +
+					((now - heldSince) / 1000) + " seconds - writing it (writes held back so far: " +
+					suppressedAdditions + " additions, " + suppressedRemovals + " removals, " +
+					suppressedEmpty + " empty)");
+
+			held= false;
+			return true;
+		}
+
+		if (empty) {
+			suppressedEmpty++;
+		} else if (removal) {
+			suppressedRemovals++;
+		} else {
+			suppressedAdditions++;
+		}
+
+		log.debug("Holding change to [" + describe(v4Destinations, v6Destinations) + "] for " +
+				plan.getDescription() + " - seen for " + heldPolls + " polls, needs " + threshold);
+
+		return false;
+	}
+
+	private static boolean passed(
+			@NonNull CompletableFuture<@NonNull Boolean> probe,
+			long deadline)
+	{
+		try {
+			return probe.get(
+					Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | ExecutionException probeException) {
+			return false;
+		} catch (InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Probe every address at once, and keep the ones that accept a connection in the builders.
+	// Returns a description of the addresses that failed, which is empty if none did.
+	private @NonNull String probeAddresses(
+			@NonNull HealthProber prober,
+			@NonNull Inet4Set v4Addresses,
+			@Nullable Inet6Set v6Addresses,
+			@NonNull Deadline deadline)
+	{
+		int port= alias.getHealthPort();
+		long timeoutMsec= alias.getHealthTimeout();
+		long maximumAgeMsec= alias.getHealthInterval() * 1000;
+
+		List<@NonNull CompletableFuture<@NonNull Boolean>> v4Probes=
+				new ArrayList<>(v4Addresses.size());
+		for (int i= 0; i < v4Addresses.size(); i++) {
+			v4Probes.add(prober.probe(
+					new InetSocketAddress(v4Addresses.getInetAddress(i), port),
+					timeoutMsec, maximumAgeMsec));
+		}
+
+		List<@NonNull CompletableFuture<@NonNull Boolean>> v6Probes= new ArrayList<>();
+		if (v6Addresses != null) {
+			for (int i= 0; i < v6Addresses.size(); i++) {
+				v6Probes.add(prober.probe(
+						new InetSocketAddress(v6Addresses.getInetAddress(i), port),
+						timeoutMsec, maximumAgeMsec));
+			}
+		}
+
+		long probeDeadline=
+				deadline.limit(System.currentTimeMillis() + timeoutMsec + HEALTH_SLACK_MSEC);
+		StringBuilder unhealthy= new StringBuilder();
+
+		v4Builder.clear();
+		for (int i= 0; i < v4Addresses.size(); i++) {
+			if (passed(v4Probes.get(i), probeDeadline)) {
+				v4Builder.add(v4Addresses.get(i));
 			} else {
-				try {
-					DnsZone zone= provider.getZone(alias.getDestinationZone());
-					if (zone == null) {
-						throw new DestinationException(
-								"The destination zone could not be located by the update API");
+				unhealthy.append((unhealthy.length() == 0) ? "" : ", ");
+				unhealthy.append(Inet4Set.toString(v4Addresses.get(i)));
+			}
+		}
+
+		v6Builder.clear();
+		if (v6Addresses != null) {
+			for (int i= 0; i < v6Addresses.size(); i++) {
+				if (passed(v6Probes.get(i), probeDeadline)) {
+					v6Builder.add(v6Addresses.getHigh(i), v6Addresses.getLow(i));
+				} else {
+					unhealthy.append((unhealthy.length() == 0) ? "" : ", ");
+					unhealthy.append(Inet6Set.toString(
+							v6Addresses.getHigh(i), v6Addresses.getLow(i)));
+				}
+			}
+		}
+
+		@SuppressWarnings("null")
+		@NonNull String rval= unhealthy.toString();
+		return rval;
+	}
+
+	// A change to the destination.  It's compared to what was last written instead of what the
+	// processor last decided on, since a queued write can be replaced by a newer one before it
+	// runs and the newer one has to make up for both.
+	private class Write implements Runnable {
+		private final @NonNull Inet4Set v4Destinations;
+		private final @Nullable Inet6Set v6Destinations;
+		private final int v4Ttl;
+		private final int v6Ttl;
+		private final @NonNull AlertSink alertSink;
+
+		// Deadline of the run that decided on the change.  A write on the write stage gets a
+		// deadline of the same length once it's taken off the queue, since a backed up stage
+		// says nothing about whether the change is still right.
+		private final @NonNull Deadline deadline;
+
+		private Write(
+				@NonNull Inet4Set v4Destinations,
+				@Nullable Inet6Set v6Destinations,
+				int v4Ttl,
+				int v6Ttl,
+				@NonNull AlertSink alertSink,
+				@NonNull Deadline deadline)
+		{
+			this.v4Destinations= v4Destinations;
+			this.v6Destinations= v6Destinations;
+			this.v4Ttl= v4Ttl;
+			this.v6Ttl= v6Ttl;
+			this.alertSink= alertSink;
+			this.deadline= deadline;
+		}
+
+		@Override
+		public void run() {
+			try {
+				write(deadline.restart());
+			} catch (DestinationException destinationException) {
+				log.warn("Unable to write " + plan.getDescription() + " on the write stage",
+						destinationException);
+
+				writeFailure= destinationException;
+			}
+		}
+
+		private void write(@NonNull Deadline writeDeadline) throws DestinationException {
+			Inet4Set lastV4= writtenV4Destinations;
+			Inet6Set lastV6= writtenV6Destinations;
+
+			boolean v4Change= !v4Destinations.equals(lastV4);
+			boolean v6Change= (v6Destinations != null) && !v6Destinations.equals(lastV6);
+			if (!v4Change && !v6Change) {
+				return;
+			}
+
+			checkDeadline(writeDeadline, "the write could be made");
+
+			// What was written, with an empty record standing for a deleted one
+			List<@NonNull DnsRecord> written= new ArrayList<>(2);
+
+			DnsZone zone;
+			try {
+				zone= provider.getZone(plan.getDestinationZone(), writeDeadline);
+				if (zone == null) {
+					throw new DestinationException(
+							"The destination zone could not be located by the update API");
+				}
+
+				if (v4Change) {
+					ARecord record= ARecord.Create(
+							plan.getDestinationName(),
+							v4Destinations,
+							v4Ttl);
+
+					if (!v4Destinations.isEmpty()) {
+						zone.createRecord(record, true);
+					} else {
+						zone.deleteRecord(plan.getDestinationName(), DnsRecordType.A);
 					}
-	
-					zone.deleteRecord(alias.getDestinationName(), DnsRecordType.A);
-				} catch (IOException e) {
-					throw new DestinationException("IO Error updating DNS record", e);
-				} catch (DnsException e) {
-					throw new DestinationException("Error updating DNS record", e);
+					written.add(record);
 				}
+
+				Inet6Set v6Targets= v6Destinations;
+				if (v6Change && (v6Targets != null)) {
+					AAAARecord record= AAAARecord.Create(
+							plan.getDestinationName(),
+							v6Targets,
+							v6Ttl);
+
+					if (!v6Targets.isEmpty()) {
+						zone.createRecord(record, true);
+					} else {
+						zone.deleteRecord(plan.getDestinationName(), DnsRecordType.AAAA);
+					}
+					written.add(record);
+				}
+			} catch (IOException e) {
+				throw new DestinationException("IO Error updating DNS record", e);
+			} catch (DnsException e) {
+				throw new DestinationException("Error updating DNS record", e);
 			}
 
+			writtenV4Destinations= v4Destinations;
+			if (v6Destinations != null) {
+				writtenV6Destinations= v6Destinations;
+			}
+
+			boolean empty= v4Destinations.isEmpty() &&
+					((v6Destinations == null) || v6Destinations.isEmpty());
+
 			StringBuilder messageBuild= new StringBuilder();
 			messageBuild.append("The DNS resolution for [");
-			if (alias.getDestinationName().isBlank()) {
-				messageBuild.append("@");
-			} else {
-				messageBuild.append(alias.getDestinationName());
-			}
+			messageBuild.append(plan.getDestinationLabel());
 			messageBuild.append("] in zone [");
-			messageBuild.append(alias.getDestinationZone());
+			messageBuild.append(plan.getDestinationZone());
 			messageBuild.append("] has been updated from [");
-			if (lastDestinations == null) {
+			if (lastV4 == null) {
 				messageBuild.append("UNKNOWN");
 			} else {
-				messageBuild.append(setToString(lastDestinations));
+				messageBuild.append(describe(lastV4, lastV6));
 			}
 			messageBuild.append("] to [");
-			messageBuild.append(setToString(destinations));
+			messageBuild.append(describe(v4Destinations, v6Destinations));
 			messageBuild.append("]");
-			
+
 			@SuppressWarnings("null")
 			@NonNull String message= messageBuild.toString();
-			
-			alertSink.sendAlert(destinations.isEmpty() ?
+
+			alertSink.sendAlert(empty ?
 					AlertCategory.RESOLUTION_EMPTY : AlertCategory.RESOLUTION_CHANGE,
 					message,
 					null);
+
+			ChangeHandler handler= changeHandler;
+			if (handler != null) {
+				handler.destinationChanged(zone, plan.getDestinationZone(), written);
+			}
 		}
-		
-		lastDestinations= destinations;
-		
-		return lowestTtl;
+	}
+
+	// Compare the union of all names to what the destination has, and update whichever record
+	// types are different.  Both types are written using the same zone lookup.
+	private void publish(
+			@NonNull AlertSink alertSink,
+			boolean polled,
+			@NonNull Deadline deadline) throws DestinationException
+	{
+		v4Builder.clear();
+		for (Integer address : v4Counts.keySet()) {
+			v4Builder.add(address);
+		}
+		@NonNull Inet4Set v4Destinations= v4Builder.build();
+
+		Inet6Set v6Destinations= null;
+		if (alias.isDualStack()) {
+			v6Builder.clear();
+			for (Inet6Key address : v6Counts.keySet()) {
+				v6Builder.add(address.high, address.low);
+			}
+			v6Destinations= v6Builder.build();
+		}
+
+		// Addresses that don't accept a connection are left out.  If none of them do, every
+		// address is kept, since it's more likely that probing is broken than that everything
+		// went down at once, and writing nothing would take the name down for certain.
+		HealthProber prober= healthProber;
+		if (prober != null) {
+			String unhealthy= probeAddresses(prober, v4Destinations, v6Destinations, deadline);
+
+			boolean anyHealthy= (v4Builder.size() > 0) || (v6Builder.size() > 0);
+			if (!unhealthy.equals(lastUnhealthy)) {
+				if (unhealthy.isEmpty()) {
+					log.info("Every address for " + plan.getDescription() + " passed probes");
+				} else if (anyHealthy) {
+					log.warn("Leaving out [" + unhealthy + "] for " + plan.getDescription() +
+							" after failed probes on port " + alias.getHealthPort());
+				} else {
+					log.warn("Every address for " + plan.getDescription() + " failed probes " +
+							"on port " + alias.getHealthPort() + " - keeping all of them");
+				}
+				lastUnhealthy= unhealthy;
+			}
+
+			if (anyHealthy) {
+				v4Destinations= v4Builder.build();
+				if (v6Destinations != null) {
+					v6Destinations= v6Builder.build();
+				}
+			}
+		}
+
+		// Fingerprints make these a single comparison when the sets differ
+		boolean v4Change= !v4Destinations.equals(lastV4Destinations);
+		boolean v6Change= (v6Destinations != null) && !v6Destinations.equals(lastV6Destinations);
+
+		// Checked before damping, so a late run doesn't count as seeing a held change again
+		if (v4Change || v6Change) {
+			checkDeadline(deadline, "the destination could be updated");
+		}
+
+		if (!v4Change && !v6Change) {
+			if (held) {
+				log.debug("Dropping held change for " + plan.getDescription() +
+						" - the source is back to what the destination has");
+
+				held= false;
+			}
+		} else if (damped && !checkDamping(v4Destinations, v6Destinations, polled)) {
+			// Nothing is written, and the destination is still what it was
+			return;
+		} else {
+			log.debug("Targets: " + describe(v4Destinations, v6Destinations));
+
+			Write write= new Write(v4Destinations, v6Destinations,
+					(int)getLowestTtl(Type.A), (int)getLowestTtl(Type.AAAA), alertSink, deadline);
+
+			Stage stage= writeStage;
+			if (stage == null) {
+				write.write(deadline);
+			} else {
+				stage.submit(writeKey, write);
+			}
+		}
+
+		lastV4Destinations= v4Destinations;
+		lastV6Destinations= v6Destinations;
+		destinationsKnown= true;
 	}
 }
@@ -0,0 +1,386 @@
+package com.teaglu.dnsalias.processor.dnsjava;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.processor.exception.SourceException;
+
+/**
+ * QueryPlan
+ *
+ * Everything about an alias that doesn't change from one poll to the next, worked out once when
+ * the alias is configured.  A new plan is only built when the alias configuration changes, since
+ * that creates a new processor.
+ *
+ * The only part that can change is the list of server endpoints.  Listed servers given by name
+ * are resolved again every few minutes, and straight away after lookups through them keep
+ * failing, so a server that moves to a new address is followed without a restart.
+ */
+final class QueryPlan {
+	private static final Logger log= LoggerFactory.getLogger(QueryPlan.class);
+
+	private static final int TLS_PORT= 853;
+	private static final int HTTPS_PORT= 443;
+
+	// How often listed servers are resolved again.  The system resolver doesn't hand back TTLs,
+	// so this stands in for them, on top of whatever caching the JVM does.
+	private static final long SERVER_REFRESH_MSEC= 5 * 60 * 1000;
+
+	// Polls in a row with failed lookups before the servers are resolved again early
+	private static final int SERVER_FAILURES_BEFORE_REFRESH= 2;
+
+	// Query IDs should be hard to guess, the same as dnsjava does for its own queries
+	private static final SecureRandom idRandom= new SecureRandom();
+
+	/**
+	 * Question
+	 *
+	 * One name and type to be looked up, with the query already encoded.
+	 */
+	static final class Question {
+		private final @NonNull Name name;
+		private final int type;
+
+		// Name as text with the trailing dot, for messages
+		private final @NonNull String lookupName;
+
+		// Name and type, for debug messages
+		private final @NonNull String label;
+
+		// Encoded query - only the ID changes between polls
+		private final byte @NonNull [] wire;
+
+		private Question(@NonNull Name name, int type) {
+			this.name= name;
+			this.type= type;
+
+			@SuppressWarnings("null")
+			@NonNull String tmpLookupName= name.toString();
+			lookupName= tmpLookupName;
+
+			label= lookupName + "/" + Type.string(type);
+
+			@SuppressWarnings("null")
+			byte @NonNull [] tmpWire= Message.newQuery(
+					Record.newRecord(name, type, DClass.IN)).toWire();
+
+			wire= tmpWire;
+		}
+
+		@NonNull Name getName() {
+			return name;
+		}
+
+		int getType() {
+			return type;
+		}
+
+		@NonNull String getLookupName() {
+			return lookupName;
+		}
+
+		@NonNull String getLabel() {
+			return label;
+		}
+
+		/**
+		 * newQuery
+		 *
+		 * Copy the encoded question with a new random ID.
+		 *
+		 * @return							Query in wire format
+		 */
+		byte @NonNull [] newQuery() {
+			byte[] query= wire.clone();
+
+			int id= idRandom.nextInt(0x10000);
+			query[0]= (byte)(id >>> 8);
+			query[1]= (byte)id;
+
+			@SuppressWarnings("null")
+			byte @NonNull [] tmpQuery= query;
+
+			return tmpQuery;
+		}
+	}
+
+	private final @NonNull List<@NonNull Question> questions;
+
+	// Zone whose serial gates the lookups, or null if they aren't gated
+	private final @Nullable Name sourceZone;
+
+	// Listed source servers, or null to use the system servers
+	private final @Nullable List<@NonNull String> serverNames;
+
+	// Port the listed servers are queried on, which depends on the transport
+	private final int serverPort;
+
+	// Guarded by this - resolved endpoints for the listed servers, the last address found for
+	// each listed name, and when they're due to be resolved again
+	private @Nullable List<@NonNull InetSocketAddress> servers;
+	private @Nullable InetSocketAddress @Nullable [] lastResolved;
+	private long refreshTime;
+	private int serverFailures;
+
+	private final @NonNull String destinationZone;
+	private final @NonNull String destinationName;
+
+	// Destination name for messages, with @ for the apex
+	private final @NonNull String destinationLabel;
+
+	// Used as the processor description
+	private final @NonNull String description;
+
+	private QueryPlan(@NonNull Alias alias) throws SchemaException {
+		List<@NonNull Question> questionList= new ArrayList<>(4);
+
+		StringBuilder descriptionBuild= new StringBuilder("alias([");
+		boolean first= true;
+
+		for (String sourceName : alias.getSourceNames()) {
+			if (first) {
+				first= false;
+			} else {
+				descriptionBuild.append(",");
+			}
+			descriptionBuild.append(sourceName);
+
+			// Parsing against the root adds the canonical dot at the end if it's missing
+			Name parsedName;
+			try {
+				parsedName= Name.fromString(sourceName, Name.root);
+			} catch (TextParseException parseException) {
+				throw new FormatException(
+						"Source name [" + sourceName + "] is not a valid DNS name");
+			}
+
+			@SuppressWarnings("null")
+			@NonNull Name name= parsedName;
+
+			questionList.add(new Question(name, Type.A));
+			if (alias.isDualStack()) {
+				questionList.add(new Question(name, Type.AAAA));
+			}
+		}
+
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull Question> tmpQuestions=
+				Collections.unmodifiableList(questionList);
+		questions= tmpQuestions;
+
+		String zone= alias.getSourceZone();
+		if (zone == null) {
+			sourceZone= null;
+		} else {
+			try {
+				sourceZone= Name.fromString(zone, Name.root);
+			} catch (TextParseException parseException) {
+				throw new FormatException("Source zone [" + zone + "] is not a valid DNS name");
+			}
+		}
+
+		switch (alias.getSourceTransport()) {
+		case TLS:
+			serverPort= TLS_PORT;
+			break;
+
+		case HTTPS:
+			serverPort= HTTPS_PORT;
+			break;
+
+		default:
+			serverPort= SimpleResolver.DEFAULT_PORT;
+			break;
+		}
+
+		Iterable<@NonNull String> sourceServers= alias.getSourceServers();
+		if (sourceServers == null) {
+			serverNames= null;
+		} else {
+			List<@NonNull String> serverList= new ArrayList<>(4);
+			for (String server : sourceServers) {
+				serverList.add(server);
+			}
+			serverNames= serverList;
+		}
+
+		destinationZone= alias.getDestinationZone();
+		destinationName= alias.getDestinationName();
+		destinationLabel= destinationName.isBlank() ? "@" : destinationName;
+
+		descriptionBuild.append("]->(");
+		descriptionBuild.append(destinationLabel);
+		descriptionBuild.append(",");
+		descriptionBuild.append(destinationZone);
+		descriptionBuild.append("))");
+
+		@SuppressWarnings("null")
+		@NonNull String tmpDescription= descriptionBuild.toString();
+		description= tmpDescription;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Compile the plan for an alias.  Listed servers are resolved at the same time, but one that
+	 * can't be resolved yet doesn't stop the plan from being built.
+	 *
+	 * @param alias						Alias to compile
+	 * @return							Compiled plan
+	 *
+	 * @throws SchemaException			A source name or zone isn't a valid DNS name
+	 */
+	static @NonNull QueryPlan Create(@NonNull Alias alias) throws SchemaException {
+		QueryPlan plan= new QueryPlan(alias);
+
+		try {
+			plan.getServers();
+		} catch (SourceException sourceException) {
+			log.warn("Unable to resolve source servers for " + plan.description +
+					" - will retry on first poll");
+		}
+
+		return plan;
+	}
+
+	@NonNull List<@NonNull Question> getQuestions() {
+		return questions;
+	}
+
+	@Nullable Name getSourceZone() {
+		return sourceZone;
+	}
+
+	@NonNull String getDestinationZone() {
+		return destinationZone;
+	}
+
+	@NonNull String getDestinationName() {
+		return destinationName;
+	}
+
+	@NonNull String getDestinationLabel() {
+		return destinationLabel;
+	}
+
+	@NonNull String getDescription() {
+		return description;
+	}
+
+	/**
+	 * getServers
+	 *
+	 * Return the endpoints of the listed source servers, or null if the system resolvers should
+	 * be used.  A server that can't be found is left out, so one bad entry doesn't stop the
+	 * others from being used, and is tried again on the next call.  A server that was found
+	 * before but can't be found now keeps its last address.
+	 *
+	 * @return							Server endpoints or null
+	 *
+	 * @throws SourceException			None of the listed servers could be resolved
+	 */
+	synchronized @Nullable List<@NonNull InetSocketAddress> getServers() throws SourceException {
+		List<@NonNull String> names= serverNames;
+		if (names == null) {
+			return null;
+		}
+
+		long now= System.currentTimeMillis();
+
+		List<@NonNull InetSocketAddress> current= servers;
+		if ((current != null) && (now < refreshTime)) {
+			return current;
+		}
+
+		InetSocketAddress[] previous= lastResolved;
+		if (previous == null) {
+			previous= new InetSocketAddress[names.size()];
+			lastResolved= previous;
+		}
+
+		List<@NonNull InetSocketAddress> addresses= new ArrayList<>(names.size());
+		UnknownHostException lastException= null;
+
+		for (int i= 0; i < names.size(); i++) {
+			String nameserver= names.get(i);
+
+			InetSocketAddress address;
+			try {
+				address= new InetSocketAddress(InetAddress.getByName(nameserver), serverPort);
+			} catch (UnknownHostException hostException) {
+				address= previous[i];
+				if (address != null) {
+					log.warn("Unable to find address of nameserver " + nameserver +
+							" - keeping " + address.getAddress().getHostAddress());
+				} else {
+					log.warn("Unable to find address of nameserver " + nameserver);
+					lastException= hostException;
+
+					continue;
+				}
+			}
+
+			if ((previous[i] != null) && !address.equals(previous[i])) {
+				log.info("Nameserver " + nameserver + " moved from " +
+						previous[i].getAddress().getHostAddress() + " to " +
+						address.getAddress().getHostAddress());
+			}
+
+			previous[i]= address;
+			addresses.add(address);
+		}
+
+		if (addresses.isEmpty()) {
+			throw new SourceException(
+					"Unable to find the address of any listed nameserver", lastException);
+		}
+
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull InetSocketAddress> tmpAddresses=
+				Collections.unmodifiableList(addresses);
+
+		// A server that was never found is tried again on the next call
+		servers= tmpAddresses;
+		refreshTime= (lastException == null) ? (now + SERVER_REFRESH_MSEC) : 0;
+		serverFailures= 0;
+
+		return tmpAddresses;
+	}
+
+	/**
+	 * reportLookups
+	 *
+	 * Record whether lookups through the listed servers worked on a poll.  After a few polls in
+	 * a row with failures the servers are resolved again on the next call to getServers, in case
+	 * one has moved.
+	 *
+	 * @param failed					Whether any lookup failed
+	 */
+	synchronized void reportLookups(boolean failed) {
+		if (!failed) {
+			serverFailures= 0;
+		} else if (++serverFailures >= SERVER_FAILURES_BEFORE_REFRESH) {
+			refreshTime= 0;
+		}
+	}
+}
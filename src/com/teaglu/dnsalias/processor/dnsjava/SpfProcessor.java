@@ -0,0 +1,1236 @@
+package com.teaglu.dnsalias.processor.dnsjava;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.dnsalias.alert.AlertCategory;
+import com.teaglu.dnsalias.alert.AlertSink;
+import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.dns.DnsProvider;
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsRecordType;
+import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.dns.record.TxtRecord;
+import com.teaglu.dnsalias.processor.ChangeHandler;
+import com.teaglu.dnsalias.processor.Deadline;
+import com.teaglu.dnsalias.processor.Processor;
+import com.teaglu.dnsalias.processor.exception.DestinationException;
+import com.teaglu.dnsalias.processor.exception.SourceException;
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.stage.Stage;
+
+/**
+ * SpfProcessor
+ *
+ * Implementation of Processor that flattens the SPF record of the source name.  Every include,
+ * a and mx term is looked up and replaced by the networks it stands for, so a mail receiver
+ * checking the published record makes one lookup for it instead of one for every term along the
+ * way.  This keeps senders with deep chains of includes under the limit of ten lookups in
+ * RFC 7208.
+ *
+ * The lookups for all the terms of a record are sent at once, and each answer is kept until its
+ * TTL runs out, so the records are only walked again once something they were built from can
+ * have changed.  If the flattened record is too long for one TXT record the networks are spread
+ * over a chain of records under the destination name, each one including the next.  Records
+ * are only written when they change.
+ */
+public class SpfProcessor implements Processor {
+	private static final Logger log= LoggerFactory.getLogger(SpfProcessor.class);
+
+	// Longest an answer is kept, and the TTL used when an answer has nothing to take one from
+	private static final long DEFAULT_TTL= 600;
+
+	// Shortest an answer is kept, so a zero TTL doesn't have the records walked continuously
+	private static final long MINIMUM_TTL= 30;
+
+	// Includes and redirects followed from the source record before giving up
+	private static final int MAXIMUM_DEPTH= 10;
+
+	// Most lookups one walk can make, which stops a record that fans out without end
+	private static final int MAXIMUM_LOOKUPS= 250;
+
+	// RFC 7208 makes an mx term with more exchanges than this an error
+	private static final int MAXIMUM_EXCHANGES= 10;
+
+	// Longest value written to one TXT record.  This keeps an answer with one record inside the
+	// 512 bytes of a plain UDP response, leaving room for the question and the record header.
+	private static final int MAXIMUM_RECORD_LENGTH= 450;
+
+	// Most chained records after the first
+	private static final int MAXIMUM_CHAIN= 9;
+
+	// Lookups a receiver makes for the published record before giving up with an error
+	private static final int LOOKUP_LIMIT= 10;
+
+	// Chained records are named with this and a number, under the destination name
+	private static final @NonNull String CHAIN_PREFIX= "_spf";
+
+	private final @NonNull Alias alias;
+	private final @NonNull DnsProvider provider;
+	private final @NonNull SourceResolver sourceResolver;
+
+	// Everything that doesn't change between polls
+	private final @NonNull QueryPlan plan;
+
+	// Name the SPF record is read from
+	private final @NonNull Name sourceName;
+
+	// Full destination name without the trailing dot, which the chained records go under
+	private final @NonNull String destinationDomain;
+
+	public String toString() {
+		return plan.getDescription();
+	}
+
+	// One answer, kept until its TTL runs out.  Only the list for the type asked for is used.
+	private static final class Answer {
+		private final @NonNull Name name;
+
+		private final @NonNull List<@NonNull String> texts= new ArrayList<>(2);
+		private final @NonNull List<byte @NonNull []> addresses= new ArrayList<>(4);
+		private final @NonNull List<@NonNull Name> exchanges= new ArrayList<>(2);
+
+		private long ttl= DEFAULT_TTL;
+		private long expires;
+
+		private Answer(@NonNull Name name) {
+			this.name= name;
+		}
+	}
+
+	// Answers by name and type.  These are filled in on the resolver threads, and dropped from
+	// any thread when a zone is announced to have changed.
+	private final @NonNull Map<@NonNull String, @NonNull Answer> answers=
+			new ConcurrentHashMap<>();
+
+	// One pass over the records, starting from the source name
+	private static final class Walk {
+		// Servers to ask, or null for the system resolvers
+		private final @Nullable List<@NonNull InetSocketAddress> servers;
+
+		// Each name and type is only looked up once in a walk, however often it's referred to
+		private final @NonNull Map<@NonNull String, @NonNull CompletableFuture<@NonNull Answer>>
+				lookups= new ConcurrentHashMap<>();
+
+		// Queries sent, so any still out when the walk ends can be cancelled
+		private final @NonNull List<@NonNull CompletableFuture<byte @NonNull []>> queries=
+				Collections.synchronizedList(new ArrayList<>());
+
+		private final @NonNull AtomicInteger queryCount= new AtomicInteger();
+
+		// Lowest TTL of any answer used, and when the first of them runs out
+		private final @NonNull AtomicLong lowestTtl= new AtomicLong(DEFAULT_TTL);
+		private final @NonNull AtomicLong earliestExpiry= new AtomicLong(Long.MAX_VALUE);
+
+		private Walk(@Nullable List<@NonNull InetSocketAddress> servers) {
+			this.servers= servers;
+		}
+
+		private void used(@NonNull Answer answer) {
+			lowestTtl.accumulateAndGet(answer.ttl, Math::min);
+			earliestExpiry.accumulateAndGet(answer.expires, Math::min);
+		}
+	}
+
+	// One term of a flattened record.  Networks are kept apart from terms that are written out
+	// the way they were read, since only networks can be folded into a record that includes them.
+	private static final class Item {
+		private final char qualifier;
+		private final @NonNull String body;
+		private final boolean network;
+
+		private Item(char qualifier, @NonNull String body, boolean network) {
+			this.qualifier= qualifier;
+			this.body= body;
+			this.network= network;
+		}
+
+		private @NonNull String format() {
+			return (qualifier == '+') ? body : (qualifier + body);
+		}
+
+		// Whether the term means the same thing in a chained record.  A chained record is only
+		// reached through an include, which only counts a pass, and it's on a different name, so
+		// nothing that depends on the name of the record it's in can be moved there.
+		private boolean isChainable() {
+			return (qualifier == '+') && (body.indexOf('%') == -1) && !body.equals("ptr");
+		}
+	}
+
+	// The flattened form of one record
+	private static final class Flattened {
+		private final @NonNull List<@NonNull Item> items;
+
+		// Qualifier of the all term, or 0 if there isn't one
+		private final char allQualifier;
+
+		// Modifiers, written out as they were read
+		private final @NonNull List<@NonNull String> modifiers;
+
+		// Set when the record keeps a redirect that couldn't be followed
+		private final boolean opaque;
+
+		private Flattened(
+				@NonNull List<@NonNull Item> items,
+				char allQualifier,
+				@NonNull List<@NonNull String> modifiers,
+				boolean opaque)
+		{
+			this.items= items;
+			this.allQualifier= allQualifier;
+			this.modifiers= modifiers;
+			this.opaque= opaque;
+		}
+
+		// Whether an include of this record can be replaced by its networks.  An include only
+		// matches on a pass, so that holds if every term is a network that passes and nothing
+		// passes everything else.
+		private boolean isFoldable() {
+			if (opaque || (allQualifier == '+')) {
+				return false;
+			}
+
+			for (Item item : items) {
+				if (!item.network || (item.qualifier != '+')) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	// What the destination holds - the first record and then each chained record in order, or
+	// an empty list if there's no SPF record.  Null until it has been read.
+	private List<@NonNull String> lastRecords;
+
+	// System time when the first answer the published records were built from runs out
+	private long nextWalk;
+
+	// Set from another thread when a zone holding one of the names is announced to have changed
+	private volatile boolean changeAnnounced;
+
+	// Stage writes are handed to, or null to write them on the processing thread, and the key
+	// that lets a newer write replace one that hasn't run yet
+	private final @Nullable Stage writeStage;
+	private final @NonNull String writeKey;
+
+	// Told about each change once it has been written, or null
+	private final @Nullable ChangeHandler changeHandler;
+
+	// What was last written, which can be behind lastRecords while a write is queued.  Only
+	// written by the write itself, except when the destination is read.
+	private volatile List<@NonNull String> writtenRecords;
+
+	// Set when a write on the write stage fails, and thrown on the next call to process
+	private volatile DestinationException writeFailure;
+
+	// Set when the destination has been found changed by something else, so the next call to
+	// process reads it again and writes over it
+	private volatile boolean driftFound;
+
+	// Whether moving terms ahead of the networks has been logged, so it's only logged once
+	private boolean reorderLogged;
+
+	private SpfProcessor(
+			@NonNull Alias alias,
+			@NonNull DnsProvider provider,
+			@NonNull SourceResolver sourceResolver,
+			@Nullable Stage writeStage,
+			@Nullable ChangeHandler changeHandler) throws SchemaException
+	{
+		this.alias= alias;
+		this.provider= provider;
+		this.sourceResolver= sourceResolver;
+		this.writeStage= writeStage;
+		this.changeHandler= changeHandler;
+
+		plan= QueryPlan.Create(alias);
+		writeKey= "spf:" + plan.getDestinationName() + ":" + plan.getDestinationZone();
+		sourceName= plan.getQuestions().get(0).getName();
+
+		String zone= plan.getDestinationZone();
+		if (zone.endsWith(".")) {
+			zone= zone.substring(0, zone.length() - 1);
+		}
+
+		String name= plan.getDestinationName();
+
+		@SuppressWarnings("null")
+		@NonNull String tmpDomain= (name.isBlank() || name.equals("@")) ?
+				zone : (name + "." + zone);
+		destinationDomain= tmpDomain;
+
+		try {
+			Name.fromString(getChainDomain(MAXIMUM_CHAIN), Name.root);
+		} catch (TextParseException parseException) {
+			throw new FormatException(
+					"Destination [" + destinationDomain + "] is not a valid DNS name");
+		}
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a processor that publishes the flattened SPF record of the source name.
+	 *
+	 * @param alias						Alias to process
+	 * @param provider					Provider for the destination zone
+	 * @param sourceResolver			Resolver for the names in the record
+	 *
+	 * @return							New processor
+	 *
+	 * @throws SchemaException			The source or destination isn't a valid DNS name
+	 */
+	public static @NonNull Processor Create(
+			@NonNull Alias alias,
+			@NonNull DnsProvider provider,
+			@NonNull SourceResolver sourceResolver) throws SchemaException
+	{
+		return new SpfProcessor(alias, provider, sourceResolver, null, null);
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a processor that hands its writes to a stage instead of waiting for them.  A write
+	 * that hasn't started by the time there's a newer one is dropped, and a write that fails is
+	 * thrown from the next call to process.
+	 *
+	 * @param alias						Alias to process
+	 * @param provider					Provider for the destination zone
+	 * @param sourceResolver			Resolver for the names in the record
+	 * @param writeStage				Stage to write on, or null to write while processing
+	 * @param changeHandler				Told about each change written, or null
+	 *
+	 * @return							New processor
+	 *
+	 * @throws SchemaException			The source or destination isn't a valid DNS name
+	 */
+	public static @NonNull Processor Create(
+			@NonNull Alias alias,
+			@NonNull DnsProvider provider,
+			@NonNull SourceResolver sourceResolver,
+			@Nullable Stage writeStage,
+			@Nullable ChangeHandler changeHandler) throws SchemaException
+	{
+		return new SpfProcessor(alias, provider, sourceResolver, writeStage, changeHandler);
+	}
+
+	// Name of a chained record relative to the destination zone
+	private @NonNull String getChainName(int index) {
+		String name= plan.getDestinationName();
+		if (name.isBlank() || name.equals("@")) {
+			return CHAIN_PREFIX + index;
+		} else {
+			return CHAIN_PREFIX + index + "." + name;
+		}
+	}
+
+	// Full name of a chained record, as it's written in an include
+	private @NonNull String getChainDomain(int index) {
+		return CHAIN_PREFIX + index + "." + destinationDomain;
+	}
+
+	private static <T> @NonNull CompletableFuture<T> failed(@NonNull Throwable exception) {
+		CompletableFuture<T> future= new CompletableFuture<>();
+		future.completeExceptionally(exception);
+
+		return future;
+	}
+
+	// Read the answer to one lookup.  A name that doesn't exist is the same as one with no
+	// records of the type, and either is kept for the negative TTL.
+	private static @NonNull Answer readAnswer(
+			@NonNull Name name,
+			int type,
+			byte @NonNull [] wire) throws IOException
+	{
+		Message response= new Message(wire);
+
+		int rcode= response.getRcode();
+		if ((rcode != Rcode.NOERROR) && (rcode != Rcode.NXDOMAIN)) {
+			throw new IOException("Lookup of " + name + "/" + Type.string(type) +
+					" returned " + Rcode.string(rcode));
+		}
+
+		Answer answer= new Answer(name);
+		long lowestTtl= DEFAULT_TTL;
+		boolean found= false;
+
+		for (Record record : response.getSection(Section.ANSWER)) {
+			if (record.getType() != type) {
+				continue;
+			}
+
+			if (record instanceof TXTRecord) {
+				// A value longer than 255 bytes is split into strings that go back together
+				StringBuilder text= new StringBuilder();
+				for (byte[] string : ((TXTRecord)record).getStringsAsByteArrays()) {
+					text.append(new String(string, StandardCharsets.ISO_8859_1));
+				}
+
+				@SuppressWarnings("null")
+				@NonNull String tmpText= text.toString();
+				answer.texts.add(tmpText);
+			} else if (record instanceof MXRecord) {
+				@SuppressWarnings("null")
+				@NonNull Name target= ((MXRecord)record).getTarget();
+				answer.exchanges.add(target);
+			} else {
+				@SuppressWarnings("null")
+				byte @NonNull [] rdata= record.rdataToWireCanonical();
+				answer.addresses.add(rdata);
+			}
+
+			lowestTtl= Math.min(lowestTtl, record.getTTL());
+			found= true;
+		}
+
+		if (!found) {
+			for (Record record : response.getSection(Section.AUTHORITY)) {
+				if (record instanceof SOARecord) {
+					SOARecord soa= (SOARecord)record;
+					lowestTtl= Math.min(lowestTtl, Math.min(soa.getTTL(), soa.getMinimum()));
+					break;
+				}
+			}
+		}
+
+		answer.ttl= Math.max(MINIMUM_TTL, lowestTtl);
+		return answer;
+	}
+
+	// Look up a name, using the kept answer if it hasn't run out
+	private @NonNull CompletableFuture<@NonNull Answer> lookup(
+			@NonNull Walk walk,
+			@NonNull Name name,
+			int type)
+	{
+		String key= name.toString() + "/" + type;
+
+		@SuppressWarnings("null")
+		@NonNull CompletableFuture<@NonNull Answer> future= walk.lookups.computeIfAbsent(key, k -> {
+			Answer kept= answers.get(k);
+			if ((kept != null) && (kept.expires > System.currentTimeMillis())) {
+				return CompletableFuture.completedFuture(kept);
+			}
+
+			if (walk.queryCount.incrementAndGet() > MAXIMUM_LOOKUPS) {
+				return failed(new SourceException("Flattening the SPF record for " +
+						sourceName + " takes more than " + MAXIMUM_LOOKUPS + " lookups"));
+			}
+
+			@SuppressWarnings("null")
+			byte @NonNull [] query= Message.newQuery(
+					Record.newRecord(name, type, DClass.IN)).toWire();
+
+			long sent= System.currentTimeMillis();
+
+			CompletableFuture<byte @NonNull []> response=
+					sourceResolver.exchangeAsync(query, walk.servers);
+			walk.queries.add(response);
+
+			return response.thenApply(wire -> {
+				try {
+					Answer answer= readAnswer(name, type, wire);
+					answer.expires= sent + (answer.ttl * 1000);
+
+					answers.put(k, answer);
+					return answer;
+				} catch (IOException parseException) {
+					throw new CompletionException(parseException);
+				}
+			});
+		});
+
+		return future.thenApply(answer -> {
+			walk.used(answer);
+			return answer;
+		});
+	}
+
+	private static @NonNull Name parseName(
+			@NonNull String domain,
+			@NonNull Name from) throws SourceException
+	{
+		try {
+			@SuppressWarnings("null")
+			@NonNull Name name= Name.fromString(domain, Name.root);
+			return name;
+		} catch (TextParseException parseException) {
+			throw new SourceException(
+					"The SPF record for " + from + " refers to an invalid name " + domain);
+		}
+	}
+
+	// The networks a name's addresses fall in, with the prefixes of the a or mx term
+	private @NonNull CompletableFuture<@NonNull List<@NonNull Item>> addressItems(
+			@NonNull Walk walk,
+			@NonNull Name name,
+			@NonNull SpfTerm term)
+	{
+		CompletableFuture<@NonNull Answer> v4Lookup= lookup(walk, name, Type.A);
+		CompletableFuture<@NonNull Answer> v6Lookup= lookup(walk, name, Type.AAAA);
+
+		return v4Lookup.thenCombine(v6Lookup, (v4Answer, v6Answer) -> {
+			List<@NonNull Item> items= new ArrayList<>(
+					v4Answer.addresses.size() + v6Answer.addresses.size());
+
+			for (byte[] address : v4Answer.addresses) {
+				items.add(new Item(term.getQualifier(),
+						"ip4:" + SpfTerm.formatNetwork(address, term.getV4Prefix()), true));
+			}
+			for (byte[] address : v6Answer.addresses) {
+				items.add(new Item(term.getQualifier(),
+						"ip6:" + SpfTerm.formatNetwork(address, term.getV6Prefix()), true));
+			}
+
+			return items;
+		});
+	}
+
+	// The networks the mail exchanges of a name fall in
+	private @NonNull CompletableFuture<@NonNull List<@NonNull Item>> exchangeItems(
+			@NonNull Walk walk,
+			@NonNull Name name,
+			@NonNull SpfTerm term)
+	{
+		return lookup(walk, name, Type.MX).thenCompose(answer -> {
+			if (answer.exchanges.size() > MAXIMUM_EXCHANGES) {
+				return failed(new SourceException("The mx term for " + name + " has more than " +
+						MAXIMUM_EXCHANGES + " exchanges"));
+			}
+
+			List<@NonNull CompletableFuture<@NonNull List<@NonNull Item>>> parts=
+					new ArrayList<>(answer.exchanges.size());
+			for (Name exchange : answer.exchanges) {
+				parts.add(addressItems(walk, exchange, term));
+			}
+
+			return join(parts);
+		});
+	}
+
+	private static @NonNull CompletableFuture<@NonNull List<@NonNull Item>> join(
+			@NonNull List<@NonNull CompletableFuture<@NonNull List<@NonNull Item>>> parts)
+	{
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(
+				done -> {
+					List<@NonNull Item> items= new ArrayList<>();
+					for (CompletableFuture<@NonNull List<@NonNull Item>> part : parts) {
+						items.addAll(part.join());
+					}
+
+					return items;
+				});
+	}
+
+	// Find and flatten the SPF record of a name
+	private @NonNull CompletableFuture<@NonNull Flattened> flatten(
+			@NonNull Walk walk,
+			@NonNull Name domain,
+			int depth)
+	{
+		return lookup(walk, domain, Type.TXT).thenCompose(answer -> {
+			String record= null;
+			for (String text : answer.texts) {
+				if (SpfTerm.isRecord(text)) {
+					if (record != null) {
+						return failed(new SourceException(
+								"There is more than one SPF record for " + domain));
+					}
+					record= text;
+				}
+			}
+
+			if (record == null) {
+				return failed(new SourceException("There is no SPF record for " + domain));
+			}
+
+			try {
+				return flatten(walk, domain, SpfTerm.parse(record, domain.toString()), depth);
+			} catch (SourceException parseException) {
+				return failed(parseException);
+			}
+		});
+	}
+
+	// Flatten the terms of one record.  Lookups for every term go out at once, and the results
+	// are put back together in the order of the terms, since the first term that matches wins.
+	private @NonNull CompletableFuture<@NonNull Flattened> flatten(
+			@NonNull Walk walk,
+			@NonNull Name domain,
+			@NonNull List<@NonNull SpfTerm> terms,
+			int depth) throws SourceException
+	{
+		List<@NonNull CompletableFuture<@NonNull List<@NonNull Item>>> parts= new ArrayList<>();
+		List<@NonNull String> modifiers= new ArrayList<>(2);
+		char allQualifier= 0;
+		SpfTerm redirect= null;
+
+		for (SpfTerm term : terms) {
+			if (term.isModifier()) {
+				if (term.getName().equals("redirect")) {
+					redirect= term;
+				} else {
+					modifiers.add(term.getText());
+				}
+				continue;
+			}
+
+			// Nothing after an all term is ever reached
+			if (allQualifier != 0) {
+				continue;
+			}
+
+			char qualifier= term.getQualifier();
+			String value= term.getValue();
+
+			switch (term.getName()) {
+			case "all":
+				allQualifier= qualifier;
+				break;
+
+			case "ip4":
+			case "ip6":
+				parts.add(CompletableFuture.completedFuture(Collections.singletonList(
+						new Item(qualifier, term.getName() + ":" + value, true))));
+				break;
+
+			case "a":
+			case "mx":
+				if ((value != null) && (value.indexOf('%') != -1)) {
+					// Macros depend on the message being checked, so this is left to the receiver
+					parts.add(CompletableFuture.completedFuture(Collections.singletonList(
+							new Item(qualifier, term.getText(), false))));
+				} else {
+					Name target= (value == null) ? domain : parseName(value, domain);
+
+					parts.add(term.getName().equals("a") ?
+							addressItems(walk, target, term) : exchangeItems(walk, target, term));
+				}
+				break;
+
+			case "include":
+				if ((value == null) || (value.indexOf('%') != -1)) {
+					parts.add(CompletableFuture.completedFuture(Collections.singletonList(
+							new Item(qualifier, term.getText(), false))));
+				} else if (depth >= MAXIMUM_DEPTH) {
+					throw new SourceException("The SPF record for " + sourceName +
+							" has includes nested more than " + MAXIMUM_DEPTH + " deep");
+				} else {
+					parts.add(flatten(walk, parseName(value, domain), depth + 1).thenApply(
+							included -> {
+								if (!included.isFoldable()) {
+									return Collections.singletonList(
+											new Item(qualifier, term.getText(), false));
+								}
+
+								// Whatever passes in the included record gets the qualifier
+								// of the include
+								List<@NonNull Item> items= new ArrayList<>(included.items.size());
+								for (Item item : included.items) {
+									items.add(new Item(qualifier, item.body, true));
+								}
+								return items;
+							}));
+				}
+				break;
+
+			default:
+				// Both exists and ptr are checked against the message, so they're left as is
+				parts.add(CompletableFuture.completedFuture(Collections.singletonList(
+						new Item(qualifier, term.getText(), false))));
+				break;
+			}
+		}
+
+		char finalAllQualifier= allQualifier;
+		CompletableFuture<@NonNull Flattened> own= join(parts).thenApply(
+				items -> new Flattened(items, finalAllQualifier, modifiers, false));
+
+		// A redirect only applies when there's no all term, and then it's the same as putting
+		// the terms of the other record at the end
+		if ((redirect == null) || (allQualifier != 0)) {
+			return own;
+		}
+
+		String target= redirect.getValue();
+		if ((target == null) || (target.indexOf('%') != -1) || (depth >= MAXIMUM_DEPTH)) {
+			return keepRedirect(own, redirect);
+		}
+
+		CompletableFuture<@NonNull Flattened> redirected=
+				flatten(walk, parseName(target, domain), depth + 1);
+
+		SpfTerm finalRedirect= redirect;
+		return own.thenCombine(redirected, (mine, other) -> {
+			if (other.opaque) {
+				return new Flattened(mine.items, mine.allQualifier,
+						withRedirect(mine.modifiers, finalRedirect), true);
+			}
+
+			List<@NonNull Item> items= new ArrayList<>(mine.items.size() + other.items.size());
+			items.addAll(mine.items);
+			items.addAll(other.items);
+
+			return new Flattened(items, other.allQualifier, mine.modifiers, false);
+		});
+	}
+
+	private static @NonNull CompletableFuture<@NonNull Flattened> keepRedirect(
+			@NonNull CompletableFuture<@NonNull Flattened> own,
+			@NonNull SpfTerm redirect)
+	{
+		return own.thenApply(mine -> new Flattened(mine.items, mine.allQualifier,
+				withRedirect(mine.modifiers, redirect), true));
+	}
+
+	private static @NonNull List<@NonNull String> withRedirect(
+			@NonNull List<@NonNull String> modifiers,
+			@NonNull SpfTerm redirect)
+	{
+		List<@NonNull String> rval= new ArrayList<>(modifiers.size() + 1);
+		rval.add(redirect.getText());
+		rval.addAll(modifiers);
+
+		return rval;
+	}
+
+	// Lay the flattened record out as the first record and its chain.  Everything goes in one
+	// record if it fits.  Otherwise the terms that can't be moved stay in the first record, and
+	// the rest fill it and then as many chained records as it takes, each including the next.
+	private @NonNull List<@NonNull String> layout(
+			@NonNull Flattened flattened) throws SourceException
+	{
+		// A term that comes again later is never reached the second time
+		Set<@NonNull String> seen= new HashSet<>();
+		List<@NonNull Item> items= new ArrayList<>(flattened.items.size());
+		for (Item item : flattened.items) {
+			if (seen.add(item.body)) {
+				items.add(item);
+			}
+		}
+
+		StringBuilder tail= new StringBuilder();
+		if (flattened.allQualifier == '+') {
+			tail.append(" all");
+		} else if (flattened.allQualifier != 0) {
+			tail.append(' ').append(flattened.allQualifier).append("all");
+		}
+		for (String modifier : flattened.modifiers) {
+			tail.append(' ').append(modifier);
+		}
+
+		StringBuilder single= new StringBuilder(SpfTerm.VERSION);
+		for (Item item : items) {
+			single.append(' ').append(item.format());
+		}
+		single.append(tail);
+
+		List<@NonNull String> records= new ArrayList<>(2);
+		if (single.length() <= MAXIMUM_RECORD_LENGTH) {
+			@SuppressWarnings("null")
+			@NonNull String tmpSingle= single.toString();
+			records.add(tmpSingle);
+
+			return records;
+		}
+
+		StringBuilder first= new StringBuilder(SpfTerm.VERSION);
+		List<@NonNull Item> moved= new ArrayList<>(items.size());
+		boolean reordered= false;
+
+		for (Item item : items) {
+			if (item.isChainable()) {
+				moved.add(item);
+			} else {
+				first.append(' ').append(item.format());
+				reordered|= !moved.isEmpty();
+			}
+		}
+
+		if (reordered && !reorderLogged) {
+			reorderLogged= true;
+			log.warn("Moving terms of the SPF record for " + sourceName + " ahead of the " +
+					"networks so the networks can be chained - this changes the result if they " +
+					"overlap");
+		}
+
+		if (first.length() + tail.length() + (" include:" + getChainDomain(1)).length() >
+				MAXIMUM_RECORD_LENGTH)
+		{
+			throw new SourceException("The terms of the SPF record for " + sourceName +
+					" that can't be chained don't fit in one record");
+		}
+
+		List<@NonNull StringBuilder> builders= new ArrayList<>(4);
+		builders.add(first);
+		StringBuilder current= first;
+
+		for (int i= 0; i < moved.size(); i++) {
+			String text= " " + moved.get(i).format();
+			String link= " include:" + getChainDomain(builders.size());
+
+			// Leave room to link to the next record unless this is the last term
+			int reserve= ((current == first) ? tail.length() : 0) +
+					((i + 1 < moved.size()) ? link.length() : 0);
+
+			if (current.length() + text.length() + reserve > MAXIMUM_RECORD_LENGTH) {
+				if (builders.size() > MAXIMUM_CHAIN) {
+					throw new SourceException("The flattened SPF record for " + sourceName +
+							" needs more than " + MAXIMUM_CHAIN + " chained records");
+				}
+
+				current.append(link);
+				current= new StringBuilder(SpfTerm.VERSION);
+				builders.add(current);
+			}
+
+			current.append(text);
+		}
+
+		first.append(tail);
+
+		for (StringBuilder builder : builders) {
+			@SuppressWarnings("null")
+			@NonNull String record= builder.toString();
+			records.add(record);
+		}
+
+		return records;
+	}
+
+	// Count the lookups a receiver makes for the published records, not counting whatever is
+	// in records that are still included as they are
+	private static int countLookups(@NonNull List<@NonNull String> records) {
+		int count= 0;
+		for (String record : records) {
+			try {
+				for (SpfTerm term : SpfTerm.parse(record, "")) {
+					if (term.isLookup()) {
+						count++;
+					}
+				}
+			} catch (SourceException parseException) {
+				// Only records built here are counted, and those always parse
+			}
+		}
+
+		return count;
+	}
+
+	// Find the SPF value among the TXT records on a name
+	private static @Nullable String findRecord(
+			@NonNull DnsZone zone,
+			@NonNull String name) throws DnsException, IOException
+	{
+		for (DnsRecord record : zone.findRecords(name, DnsRecordType.TXT)) {
+			for (String value : record.getValues()) {
+				if (SpfTerm.isRecord(value)) {
+					return value;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private @NonNull DnsZone getZone(
+			@NonNull Deadline deadline) throws DnsException, IOException, DestinationException
+	{
+		DnsZone zone= provider.getZone(plan.getDestinationZone(), deadline);
+		if (zone == null) {
+			throw new DestinationException(
+					"The destination zone could not be located by the update API");
+		}
+
+		return zone;
+	}
+
+	// Read the first record and each chained record the destination holds, until one isn't
+	// there
+	private @NonNull List<@NonNull String> readRecords(
+			@NonNull DnsZone zone) throws DnsException, IOException
+	{
+		List<@NonNull String> records= new ArrayList<>(2);
+
+		String record= findRecord(zone, plan.getDestinationName());
+		while (record != null) {
+			records.add(record);
+
+			if (records.size() > MAXIMUM_CHAIN) {
+				break;
+			}
+			record= findRecord(zone, getChainName(records.size()));
+		}
+
+		return records;
+	}
+
+	// Read what the destination currently holds, so the first run doesn't write records that
+	// are already correct.
+	private void readDestinations(@NonNull Deadline deadline) throws DestinationException {
+		try {
+			List<@NonNull String> records= readRecords(getZone(deadline));
+
+			lastRecords= records;
+			writtenRecords= records;
+
+			log.debug("Retrieved initial SPF record with " + Math.max(0, records.size() - 1) +
+					" chained records for " + plan.getDescription());
+		} catch (IOException e) {
+			throw new DestinationException("IO Error retrieving DNS record", e);
+		} catch (DnsException e) {
+			throw new DestinationException("Error retrieving DNS record", e);
+		}
+	}
+
+	private static void checkDeadline(
+			@NonNull Deadline deadline,
+			@NonNull String stage) throws DestinationException
+	{
+		if (deadline.isExpired()) {
+			throw new DestinationException("The deadline passed before " + stage);
+		}
+	}
+
+	@Override
+	public boolean zoneChanged(@NonNull String zone) {
+		Name zoneName;
+		try {
+			zoneName= Name.fromString(zone, Name.root);
+		} catch (TextParseException parseException) {
+			return false;
+		}
+
+		boolean inZone= sourceName.subdomain(zoneName) || zoneName.equals(plan.getSourceZone());
+		if (answers.values().removeIf(answer -> answer.name.subdomain(zoneName))) {
+			inZone= true;
+		}
+
+		if (inZone) {
+			changeAnnounced= true;
+		}
+
+		return inZone;
+	}
+
+	@Override
+	public boolean reconcile(
+			@NonNull DnsZone zone,
+			@NonNull AlertSink alertSink) throws DestinationException
+	{
+		// Nothing has been read or written yet to compare to
+		List<@NonNull String> expected= writtenRecords;
+		if (expected == null) {
+			return false;
+		}
+
+		List<@NonNull String> actual;
+		try {
+			actual= readRecords(zone);
+		} catch (IOException e) {
+			throw new DestinationException("IO Error retrieving DNS record", e);
+		} catch (DnsException e) {
+			throw new DestinationException("Error retrieving DNS record", e);
+		}
+
+		// A write made while the records were being read could have been caught half way
+		if ((writtenRecords != expected) || actual.equals(expected)) {
+			return false;
+		}
+
+		StringBuilder messageBuild= new StringBuilder();
+		messageBuild.append("The SPF record for [");
+		messageBuild.append(plan.getDestinationLabel());
+		messageBuild.append("] in zone [");
+		messageBuild.append(plan.getDestinationZone());
+		messageBuild.append("] was changed from [");
+		messageBuild.append(expected.isEmpty() ? "NONE" : String.join("] [", expected));
+		messageBuild.append("] to [");
+		messageBuild.append(actual.isEmpty() ? "NONE" : String.join("] [", actual));
+		messageBuild.append("] by something else, and will be written over");
+
+		@SuppressWarnings("null")
+		@NonNull String message= messageBuild.toString();
+
+		log.warn(message);
+		alertSink.sendAlert(AlertCategory.DESTINATION_DRIFT, message, null);
+
+		driftFound= true;
+		return true;
+	}
+
+	@Override
+	public long process(
+			@NonNull AlertSink alertSink,
+			@NonNull Deadline deadline) throws SourceException, DestinationException
+	{
+		// The destination is read again after a failed write, and the record rebuilt, so
+		// whatever it ended up holding is written over on the next run
+		DestinationException failure= writeFailure;
+		if (failure != null) {
+			writeFailure= null;
+			lastRecords= null;
+			nextWalk= 0;
+
+			throw failure;
+		}
+
+		if (driftFound) {
+			driftFound= false;
+			lastRecords= null;
+			nextWalk= 0;
+		}
+
+		if (lastRecords == null) {
+			checkDeadline(deadline, "the destination records could be read");
+			readDestinations(deadline);
+		}
+
+		// Nothing the records were built from has run out, so they'd come out the same
+		long walkStart= System.currentTimeMillis();
+
+		boolean announced= changeAnnounced;
+		changeAnnounced= false;
+
+		if (!announced && (walkStart < nextWalk)) {
+			return (nextWalk - walkStart + 999) / 1000;
+		}
+
+		Walk walk= new Walk(plan.getServers());
+		long walkDeadline= deadline.limit(walkStart + alias.getSourceTimeout());
+
+		Flattened flattened;
+		try {
+			flattened= flatten(walk, sourceName, 0).get(
+					Math.max(0, walkDeadline - walkStart), TimeUnit.MILLISECONDS);
+		} catch (ExecutionException executionException) {
+			Throwable cause= executionException.getCause();
+			while ((cause instanceof CompletionException) && (cause.getCause() != null)) {
+				cause= cause.getCause();
+			}
+
+			if (cause instanceof SourceException) {
+				throw (SourceException)cause;
+			}
+
+			throw new SourceException(
+					"Unable to look up the SPF record for [" + sourceName + "]", cause);
+		} catch (TimeoutException timeoutException) {
+			throw new SourceException("Unable to flatten the SPF record for [" + sourceName +
+					"] within " + (walkDeadline - walkStart) + " milliseconds", timeoutException);
+		} catch (InterruptedException interruptedException) {
+			throw new SourceException("Interrupted while flattening the SPF record for [" +
+					sourceName + "]", interruptedException);
+		} finally {
+			synchronized (walk.queries) {
+				for (CompletableFuture<byte @NonNull []> query : walk.queries) {
+					query.cancel(true);
+				}
+			}
+		}
+
+		// Names the record doesn't refer to any more aren't kept
+		answers.keySet().retainAll(walk.lookups.keySet());
+
+		List<@NonNull String> records= layout(flattened);
+		publish(records, (int)walk.lowestTtl.get(), alertSink, deadline);
+
+		nextWalk= walk.earliestExpiry.get();
+		return Math.max(0, (nextWalk - System.currentTimeMillis() + 999) / 1000);
+	}
+
+	// Hand the records to the write stage if they're different from what the destination
+	// holds, or write them straight away without one
+	private void publish(
+			@NonNull List<@NonNull String> records,
+			int ttl,
+			@NonNull AlertSink alertSink,
+			@NonNull Deadline deadline) throws DestinationException
+	{
+		List<@NonNull String> last= lastRecords;
+		if ((last == null) || records.equals(last)) {
+			return;
+		}
+
+		checkDeadline(deadline, "the destination could be updated");
+
+		int lookups= countLookups(records);
+		if (lookups > LOOKUP_LIMIT) {
+			log.warn("The flattened SPF record for " + plan.getDescription() + " still takes " +
+					lookups + " lookups, which is more than receivers allow");
+		}
+
+		Write write= new Write(records, ttl, alertSink, deadline);
+
+		Stage stage= writeStage;
+		if (stage == null) {
+			write.write(deadline);
+		} else {
+			stage.submit(writeKey, write);
+		}
+
+		lastRecords= records;
+	}
+
+	// A change to the records.  It's compared to what was last written instead of lastRecords,
+	// since a queued write can be replaced by a newer one before it runs.
+	private class Write implements Runnable {
+		private final @NonNull List<@NonNull String> records;
+		private final int ttl;
+		private final @NonNull AlertSink alertSink;
+
+		// Deadline of the run that built the records.  A write on the write stage gets one of
+		// the same length once it's taken off the queue instead.
+		private final @NonNull Deadline deadline;
+
+		private Write(
+				@NonNull List<@NonNull String> records,
+				int ttl,
+				@NonNull AlertSink alertSink,
+				@NonNull Deadline deadline)
+		{
+			this.records= records;
+			this.ttl= ttl;
+			this.alertSink= alertSink;
+			this.deadline= deadline;
+		}
+
+		@Override
+		public void run() {
+			try {
+				write(deadline.restart());
+			} catch (DestinationException destinationException) {
+				log.warn("Unable to write " + plan.getDescription() + " on the write stage",
+						destinationException);
+
+				writeFailure= destinationException;
+			}
+		}
+
+		// Chained records are written first, starting from the end, so no record ever includes
+		// one that isn't there yet, and chained records that aren't needed any more are only
+		// removed once nothing includes them.
+		private void write(@NonNull Deadline writeDeadline) throws DestinationException {
+			List<@NonNull String> last= writtenRecords;
+			if ((last == null) || records.equals(last)) {
+				return;
+			}
+
+			checkDeadline(writeDeadline, "the write could be made");
+
+			// What was written, with an empty record standing for a deleted one
+			List<@NonNull DnsRecord> written= new ArrayList<>(2);
+
+			DnsZone zone;
+			try {
+				zone= getZone(writeDeadline);
+
+				for (int index= records.size() - 1; index > 0; index--) {
+					if ((index < last.size()) && records.get(index).equals(last.get(index))) {
+						continue;
+					}
+
+					DnsRecord record= TxtRecord.Create(
+							getChainName(index), records.get(index), ttl);
+
+					zone.createRecord(record, true);
+					written.add(record);
+				}
+
+				if (last.isEmpty() || !records.get(0).equals(last.get(0))) {
+					// The name can have other TXT records, like site verifications, which are
+					// kept
+					List<@NonNull String> values= new ArrayList<>(2);
+					for (DnsRecord record : zone.findRecords(
+							plan.getDestinationName(), DnsRecordType.TXT))
+					{
+						for (String value : record.getValues()) {
+							if (!SpfTerm.isRecord(value)) {
+								values.add(value);
+							}
+						}
+					}
+					values.add(records.get(0));
+
+					DnsRecord record= TxtRecord.Create(plan.getDestinationName(), values, ttl);
+
+					zone.createRecord(record, true);
+					written.add(record);
+				}
+
+				for (int index= records.size(); index < last.size(); index++) {
+					zone.deleteRecord(getChainName(index), DnsRecordType.TXT);
+
+					@SuppressWarnings("null")
+					@NonNull List<@NonNull String> noValues= Collections.emptyList();
+					written.add(TxtRecord.Create(getChainName(index), noValues, null));
+				}
+			} catch (IOException e) {
+				throw new DestinationException("IO Error updating DNS record", e);
+			} catch (DnsException e) {
+				throw new DestinationException("Error updating DNS record", e);
+			}
+
+			writtenRecords= records;
+
+			StringBuilder messageBuild= new StringBuilder();
+			messageBuild.append("The SPF record for [");
+			messageBuild.append(plan.getDestinationLabel());
+			messageBuild.append("] in zone [");
+			messageBuild.append(plan.getDestinationZone());
+			messageBuild.append("] has been updated from [");
+			messageBuild.append(last.isEmpty() ? "NONE" : String.join("] [", last));
+			messageBuild.append("] to [");
+			messageBuild.append(String.join("] [", records));
+			messageBuild.append("]");
+
+			@SuppressWarnings("null")
+			@NonNull String message= messageBuild.toString();
+
+			alertSink.sendAlert(AlertCategory.RESOLUTION_CHANGE, message, null);
+
+			ChangeHandler handler= changeHandler;
+			if (handler != null) {
+				handler.destinationChanged(zone, plan.getDestinationZone(), written);
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.teaglu.dnsalias.processor.dnsjava;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.xbill.DNS.Address;
+
+import com.teaglu.dnsalias.dns.address.Inet4Set;
+import com.teaglu.dnsalias.dns.address.Inet6Set;
+import com.teaglu.dnsalias.processor.exception.SourceException;
+
+/**
+ * SpfTerm
+ *
+ * One mechanism or modifier from an SPF record, following the syntax in RFC 7208.  Only as much
+ * is checked as the flattening needs - a term that can't be flattened is written out the same
+ * way it was read.
+ */
+final class SpfTerm {
+	// The version tag every SPF record starts with
+	static final @NonNull String VERSION= "v=spf1";
+
+	// Domain and the optional IPv4 and IPv6 prefix lengths of an a or mx mechanism
+	private static final @NonNull Pattern DUAL_CIDR= Pattern.compile(
+			"^(.*?)(?:/(\\d{1,2}))?(?://(\\d{1,3}))?$");
+
+	// Pass, fail, soft fail or neutral
+	private final char qualifier;
+
+	// Mechanism or modifier name in lower case
+	private final @NonNull String name;
+
+	// Domain or network after the name, or null if there isn't one
+	private final @Nullable String value;
+
+	// Prefix lengths for a and mx, which are the whole address if not given
+	private final int v4Prefix;
+	private final int v6Prefix;
+
+	private final boolean modifier;
+
+	// The term as it was read, without the qualifier
+	private final @NonNull String text;
+
+	private SpfTerm(
+			char qualifier,
+			@NonNull String name,
+			@Nullable String value,
+			int v4Prefix,
+			int v6Prefix,
+			boolean modifier,
+			@NonNull String text)
+	{
+		this.qualifier= qualifier;
+		this.name= name;
+		this.value= value;
+		this.v4Prefix= v4Prefix;
+		this.v6Prefix= v6Prefix;
+		this.modifier= modifier;
+		this.text= text;
+	}
+
+	/**
+	 * isRecord
+	 *
+	 * Check whether a TXT value is an SPF record.
+	 *
+	 * @param text						TXT value
+	 * @return							Whether it starts with the SPF version tag
+	 */
+	static boolean isRecord(@NonNull String text) {
+		return text.regionMatches(true, 0, VERSION, 0, VERSION.length()) &&
+				((text.length() == VERSION.length()) || (text.charAt(VERSION.length()) == ' '));
+	}
+
+	/**
+	 * parse
+	 *
+	 * Split an SPF record into its terms.
+	 *
+	 * @param record					SPF record, starting with the version tag
+	 * @param domain					Domain the record was read from, for messages
+	 *
+	 * @return							Terms in the order they appear
+	 *
+	 * @throws SourceException			The record isn't valid
+	 */
+	static @NonNull List<@NonNull SpfTerm> parse(
+			@NonNull String record,
+			@NonNull String domain) throws SourceException
+	{
+		List<@NonNull SpfTerm> terms= new ArrayList<>(8);
+
+		String[] parts= record.trim().split(" +");
+		for (int i= 1; i < parts.length; i++) {
+			@SuppressWarnings("null")
+			@NonNull String part= parts[i];
+
+			terms.add(parseTerm(part, domain));
+		}
+
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull SpfTerm> rval= Collections.unmodifiableList(terms);
+		return rval;
+	}
+
+	private static @NonNull SpfTerm parseTerm(
+			@NonNull String part,
+			@NonNull String domain) throws SourceException
+	{
+		char qualifier= '+';
+		String text= part;
+
+		char first= part.charAt(0);
+		if ((first == '+') || (first == '-') || (first == '~') || (first == '?')) {
+			qualifier= first;
+			text= part.substring(1);
+		}
+
+		// A modifier has an equals sign before anything that could start a domain
+		int equals= text.indexOf('=');
+		int colon= text.indexOf(':');
+		int slash= text.indexOf('/');
+		if ((equals > 0) && ((colon == -1) || (equals < colon)) &&
+				((slash == -1) || (equals < slash)))
+		{
+			if (text.length() != part.length()) {
+				throw new SourceException(
+						"The SPF record for " + domain + " has a qualifier on modifier " + part);
+			}
+
+			@SuppressWarnings("null")
+			@NonNull String modifierName= text.substring(0, equals).toLowerCase(Locale.ROOT);
+
+			return new SpfTerm(qualifier, modifierName, text.substring(equals + 1),
+					-1, -1, true, text);
+		}
+
+		int end= text.length();
+		if ((colon != -1) && (colon < end)) {
+			end= colon;
+		}
+		if ((slash != -1) && (slash < end)) {
+			end= slash;
+		}
+
+		@SuppressWarnings("null")
+		@NonNull String mechanism= text.substring(0, end).toLowerCase(Locale.ROOT);
+		String rest= text.substring(end);
+
+		switch (mechanism) {
+		case "all":
+			if (!rest.isEmpty()) {
+				break;
+			}
+			return new SpfTerm(qualifier, mechanism, null, -1, -1, false, text);
+
+		case "include":
+		case "exists":
+			if (!rest.startsWith(":") || (rest.length() == 1)) {
+				break;
+			}
+			return new SpfTerm(qualifier, mechanism, rest.substring(1), -1, -1, false, text);
+
+		case "ptr":
+			if (rest.isEmpty()) {
+				return new SpfTerm(qualifier, mechanism, null, -1, -1, false, text);
+			} else if (rest.startsWith(":") && (rest.length() > 1)) {
+				return new SpfTerm(qualifier, mechanism, rest.substring(1), -1, -1, false, text);
+			}
+			break;
+
+		case "a":
+		case "mx": {
+			Matcher matcher= DUAL_CIDR.matcher(rest);
+			if (!matcher.matches()) {
+				break;
+			}
+
+			String target= matcher.group(1);
+			if (target.isEmpty()) {
+				target= null;
+			} else if (target.startsWith(":") && (target.length() > 1)) {
+				target= target.substring(1);
+			} else {
+				break;
+			}
+
+			int v4Prefix= (matcher.group(2) == null) ? 32 : Integer.parseInt(matcher.group(2));
+			int v6Prefix= (matcher.group(3) == null) ? 128 : Integer.parseInt(matcher.group(3));
+			if ((v4Prefix > 32) || (v6Prefix > 128)) {
+				break;
+			}
+
+			return new SpfTerm(qualifier, mechanism, target, v4Prefix, v6Prefix, false, text);
+		}
+
+		case "ip4":
+		case "ip6": {
+			if (!rest.startsWith(":")) {
+				break;
+			}
+
+			String network= rest.substring(1);
+			int prefix= (mechanism.equals("ip4")) ? 32 : 128;
+
+			int prefixStart= network.indexOf('/');
+			if (prefixStart != -1) {
+				try {
+					prefix= Integer.parseInt(network.substring(prefixStart + 1));
+				} catch (NumberFormatException numberException) {
+					break;
+				}
+				network= network.substring(0, prefixStart);
+			}
+
+			int family= (mechanism.equals("ip4")) ? Address.IPv4 : Address.IPv6;
+			byte[] address= Address.toByteArray(network, family);
+			if ((address == null) || (prefix < 0) || (prefix > (address.length * 8))) {
+				break;
+			}
+
+			return new SpfTerm(qualifier, mechanism, formatNetwork(address, prefix),
+					-1, -1, false, text);
+		}
+
+		default:
+			break;
+		}
+
+		throw new SourceException(
+				"The SPF record for " + domain + " has an invalid term " + part);
+	}
+
+	/**
+	 * formatNetwork
+	 *
+	 * Format an address as an ip4 or ip6 network, with the bits past the prefix cleared and the
+	 * prefix left off for a single address.  The same network always comes out the same way, so
+	 * networks can be compared as text.
+	 *
+	 * @param address					Address, either 4 or 16 bytes
+	 * @param prefix					Prefix length
+	 *
+	 * @return							Network, without the mechanism name
+	 */
+	static @NonNull String formatNetwork(byte @NonNull [] address, int prefix) {
+		long high= 0;
+		long low= 0;
+		for (int i= 0; i < address.length; i++) {
+			int keepBits= Math.max(0, Math.min(8, prefix - (i * 8)));
+			long octet= address[i] & (0xFF00 >>> keepBits) & 0xFF;
+
+			if (i < address.length - 8) {
+				high|= octet << ((address.length - 9 - i) * 8);
+			} else {
+				low|= octet << ((address.length - 1 - i) * 8);
+			}
+		}
+
+		String network= (address.length == 4) ?
+				Inet4Set.toString((int)low) : Inet6Set.toString(high, low);
+
+		@SuppressWarnings("null")
+		@NonNull String rval= (prefix == (address.length * 8)) ? network : (network + "/" + prefix);
+		return rval;
+	}
+
+	/**
+	 * isLookup
+	 *
+	 * Whether a receiver has to make a DNS lookup for the term, which RFC 7208 limits to ten for
+	 * one check.
+	 *
+	 * @return							Whether the term counts against the lookup limit
+	 */
+	boolean isLookup() {
+		switch (name) {
+		case "include":
+		case "a":
+		case "mx":
+		case "ptr":
+		case "exists":
+			return !modifier;
+
+		case "redirect":
+			return modifier;
+
+		default:
+			return false;
+		}
+	}
+
+	char getQualifier() {
+		return qualifier;
+	}
+
+	@NonNull String getName() {
+		return name;
+	}
+
+	@Nullable String getValue() {
+		return value;
+	}
+
+	int getV4Prefix() {
+		return v4Prefix;
+	}
+
+	int getV6Prefix() {
+		return v6Prefix;
+	}
+
+	boolean isModifier() {
+		return modifier;
+	}
+
+	@NonNull String getText() {
+		return text;
+	}
+}
@@ -3,6 +3,9 @@ package com.teaglu.dnsalias.processor.exception;
 public class SourceException extends Exception {
 	private static final long serialVersionUID = 1L;
 
+	public SourceException(String message) {
+		super(message);
+	}
 	public SourceException(String message, Throwable cause) {
 		super(message, cause);
 	}
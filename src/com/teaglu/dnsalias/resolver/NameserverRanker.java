@@ -0,0 +1,49 @@
+package com.teaglu.dnsalias.resolver;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * NameserverRanker
+ *
+ * Keeps track of how well each nameserver has been responding, so that queries can be sent to
+ * the best server first.  A single ranker is shared by every alias, so that what one alias
+ * learns about a slow server benefits all the others.
+ */
+public interface NameserverRanker {
+	/**
+	 * order
+	 *
+	 * Return the servers in the order they should be tried.  The caller is expected to try
+	 * them in order and report the result of each attempt.
+	 *
+	 * @param servers					Candidate servers
+	 * @return							Same servers, best first
+	 */
+	public @NonNull List<@NonNull InetSocketAddress> order(
+			@NonNull List<@NonNull InetSocketAddress> servers);
+
+	/**
+	 * reportSuccess
+	 *
+	 * Record that a server answered a query.
+	 *
+	 * @param server					Server that answered
+	 * @param rttMsec					Round trip time in milliseconds
+	 */
+	public void reportSuccess(
+			@NonNull InetSocketAddress server,
+			long rttMsec);
+
+	/**
+	 * reportFailure
+	 *
+	 * Record that a server timed out or returned an unusable answer.
+	 *
+	 * @param server					Server that failed
+	 */
+	public void reportFailure(
+			@NonNull InetSocketAddress server);
+}
@@ -0,0 +1,49 @@
+package com.teaglu.dnsalias.resolver;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * QueryBudget
+ *
+ * How many queries a second can be sent to a nameserver, and how many can be sent at once to one
+ * that has been quiet.
+ */
+public final class QueryBudget {
+	private final double rate;
+	private final double burst;
+
+	private QueryBudget(double rate, double burst) {
+		this.rate= rate;
+		this.burst= burst;
+	}
+
+	/**
+	 * Create
+	 *
+	 * @param rate						Queries a second
+	 * @param burst						Queries that can be sent at once, at least 1
+	 *
+	 * @return							Budget
+	 */
+	public static @NonNull QueryBudget Create(double rate, double burst) {
+		return new QueryBudget(rate, Math.max(1.0, burst));
+	}
+
+	/**
+	 * getRate
+	 *
+	 * @return							Queries a second
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * getBurst
+	 *
+	 * @return							Queries that can be sent at once
+	 */
+	public double getBurst() {
+		return burst;
+	}
+}
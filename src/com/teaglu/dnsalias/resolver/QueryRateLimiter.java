@@ -0,0 +1,67 @@
+package com.teaglu.dnsalias.resolver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * QueryRateLimiter
+ *
+ * Keeps the queries sent to each nameserver under a budget, so that hundreds of aliases sharing
+ * a server don't trip its response rate limiting.  A single limiter is shared by every alias,
+ * since the server doesn't care which alias a query came from.
+ */
+public interface QueryRateLimiter {
+	/**
+	 * tryAcquire
+	 *
+	 * Take a query from a server's budget if there's one left right now, without waiting.  This
+	 * is for checking whether another server should be used instead.
+	 *
+	 * @param server					Server the query would be sent to
+	 * @return							Whether the query can be sent
+	 */
+	public boolean tryAcquire(@NonNull InetSocketAddress server);
+
+	/**
+	 * acquire
+	 *
+	 * Take a query from a server's budget, waiting for it to refill if it has run out.  Waiting
+	 * queries are let through in turn between flows, so a flow with many queries can't hold
+	 * back the others.  No thread is held while a query waits.
+	 *
+	 * @param server					Server the query will be sent to
+	 * @param flow						Flow the query belongs to, for taking turns
+	 *
+	 * @return							Future completed when the query can be sent, or
+	 * 									exceptionally with an IOException if it waited too long
+	 */
+	public @NonNull CompletableFuture<@Nullable Void> acquire(
+			@NonNull InetSocketAddress server,
+			@NonNull String flow);
+
+	/**
+	 * setBudget
+	 *
+	 * Change the budgets, for when the configuration changes.  Servers without a budget of
+	 * their own get the default.  A server already holding more than its new burst is cut back
+	 * to it.
+	 *
+	 * @param defaultBudget				Budget for servers not listed
+	 * @param serverBudgets				Budgets for particular server addresses, on any port
+	 */
+	public void setBudget(
+			@NonNull QueryBudget defaultBudget,
+			@NonNull Map<@NonNull InetAddress, @NonNull QueryBudget> serverBudgets);
+
+	/**
+	 * logStatistics
+	 *
+	 * Write how often each server's budget ran out since the last call to the log.
+	 */
+	public void logStatistics();
+}
@@ -0,0 +1,64 @@
+package com.teaglu.dnsalias.resolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+
+/**
+ * SourceResolver
+ *
+ * Sends queries for source names to a set of nameservers.  Implementations are shared between
+ * all processors and must be thread-safe.
+ */
+public interface SourceResolver {
+	/**
+	 * send
+	 *
+	 * Send a query to the listed servers, stopping at the first one that gives a usable
+	 * answer.  A request is only considered failed if every server has failed.
+	 *
+	 * @param query						Query message
+	 * @param servers					Servers to use, or null to use the system resolvers
+	 *
+	 * @return							Response message
+	 *
+	 * @throws IOException				No server returned a usable answer
+	 */
+	public @NonNull Message send(
+			@NonNull Message query,
+			@Nullable List<@NonNull InetSocketAddress> servers) throws IOException;
+
+	/**
+	 * exchangeAsync
+	 * 
+	 * Same as send, but takes and returns wire format and returns immediately, completing the
+	 * future when an answer arrives or all servers have failed.  This allows several names to be
+	 * looked up at the same time, and lets the caller read the answer without parsing all of it.
+	 * 
+	 * @param query						Query in wire format
+	 * @param servers					Servers to use, or null to use the system resolvers
+	 * 
+	 * @return							Future completed with the answer in wire format, or
+	 * 									exceptionally with the IOException send would have thrown
+	 */
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query,
+			@Nullable List<@NonNull InetSocketAddress> servers);
+
+	/**
+	 * invalidateCache
+	 *
+	 * Drop any answers kept for names in a zone, for when the zone is known to have changed.
+	 * Resolvers that don't keep answers have nothing to do.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public default void invalidateCache(@NonNull Name zone) {
+	}
+}
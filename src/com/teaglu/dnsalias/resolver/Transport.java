@@ -0,0 +1,66 @@
+package com.teaglu.dnsalias.resolver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Transport
+ *
+ * Carries queries to a single nameserver over some protocol.  Transports that keep connections
+ * open share them between every caller, so implementations must be thread-safe.
+ *
+ * Queries and answers are passed in wire format, so a caller that only wants a few fields out of
+ * the answer doesn't have to pay for a full parse of it.
+ */
+public interface Transport {
+	/**
+	 * exchangeAsync
+	 *
+	 * Send a query and return straight away.  No thread is held while the answer is waited on,
+	 * so any number of queries can be outstanding.  The future is completed on whatever thread
+	 * the answer arrives on, so anything chained to it must be quick and must not block.
+	 *
+	 * @param query						Query in wire format
+	 *
+	 * @return							Future completed with the answer in wire format, with the
+	 * 									same ID as the query, or exceptionally with an IOException
+	 * 									if the server could not be reached or didn't answer in time
+	 */
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query);
+
+	/**
+	 * exchange
+	 *
+	 * Send a query and wait for the answer.
+	 *
+	 * @param query						Query in wire format
+	 *
+	 * @return							Answer in wire format, with the same ID as the query
+	 *
+	 * @throws IOException				The server could not be reached or didn't answer in time
+	 */
+	public default byte @NonNull [] exchange(
+			byte @NonNull [] query) throws IOException
+	{
+		CompletableFuture<byte @NonNull []> future= exchangeAsync(query);
+		try {
+			return future.get();
+		} catch (InterruptedException interruptedException) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("Interrupted waiting for an answer");
+		} catch (ExecutionException executionException) {
+			Throwable cause= executionException.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException("Error waiting for an answer", cause);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.teaglu.dnsalias.resolver;
+
+import java.net.InetSocketAddress;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * TransportFactory
+ *
+ * Provides the transport for each nameserver.  Factories for connection-based protocols hand back
+ * the same transport for the same server, so the connection is shared by every alias using it.
+ */
+public interface TransportFactory {
+	/**
+	 * getTransport
+	 *
+	 * Get the transport for a server, creating it if needed.
+	 *
+	 * @param server					Server address and port
+	 * @return							Transport to the server
+	 */
+	public @NonNull Transport getTransport(
+			@NonNull InetSocketAddress server);
+}
@@ -0,0 +1,22 @@
+package com.teaglu.dnsalias.resolver;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.xbill.DNS.Name;
+
+/**
+ * ZoneChangeHandler
+ *
+ * Something that wants to know when a resolver finds out on its own that a zone has changed,
+ * such as a transfer bringing in a new serial.
+ */
+public interface ZoneChangeHandler {
+	/**
+	 * zoneChanged
+	 *
+	 * Called once the change is what the resolver answers with.  This is called on the
+	 * resolver's own threads, so it should return quickly.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void zoneChanged(@NonNull Name zone);
+}
@@ -0,0 +1,49 @@
+package com.teaglu.dnsalias.resolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.xbill.DNS.Name;
+
+/**
+ * ZoneSerialTracker
+ *
+ * Keeps track of the SOA serials of source zones, so aliases can skip looking up names in a zone
+ * that hasn't changed.  Implementations are shared between all processors and must be
+ * thread-safe.
+ */
+public interface ZoneSerialTracker {
+	/**
+	 * getSerial
+	 *
+	 * Get the serial of a zone, only asking for it if it hasn't been asked for within the
+	 * interval.
+	 *
+	 * @param zone						Zone apex
+	 * @param servers					Servers to ask, or null to use the system resolvers
+	 * @param resolver					Resolver to send the query with
+	 * @param intervalMsec				How old a known serial can be and still be used
+	 *
+	 * @return							Serial as an unsigned value
+	 *
+	 * @throws IOException				The serial couldn't be fetched
+	 */
+	public long getSerial(
+			@NonNull Name zone,
+			@Nullable List<@NonNull InetSocketAddress> servers,
+			@NonNull SourceResolver resolver,
+			long intervalMsec) throws IOException;
+
+	/**
+	 * invalidate
+	 *
+	 * Forget the serial of a zone, so the next caller asks for it no matter how recently it was
+	 * asked for.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void invalidate(@NonNull Name zone);
+}
@@ -0,0 +1,767 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.SourceResolver;
+
+/**
+ * CachingSourceResolver
+ *
+ * Implementation of SourceResolver that keeps the record sets from answers until their TTL runs
+ * out, and answers from them instead of passing the query on.  One of these is shared by every
+ * alias, so aliases that end up at the same name - like several customer names that are all
+ * CNAMEs for the same load balancer - only query it once per TTL between them.
+ *
+ * The record sets that answer the question are kept under their own names, so a CNAME chain is
+ * cached one step at a time and a later query can be answered by following the chain through
+ * the cache.  Records in the answer for names off the chain are never kept.
+ *
+ * Answers sent back through exchangeAsync are also kept whole, keyed by the question exactly as
+ * it was sent.  A repeat of the same question is answered by copying the answer and patching in
+ * the query ID and the TTLs left, without parsing the query or building a message.
+ *
+ * Entries are kept separately for each set of servers, since aliases pointed at different servers
+ * are usually pointed there because they expect different answers.  Only positive answers are
+ * kept - empty answers are held by the processor for their negative TTL instead.  SOA records
+ * aren't kept at all, since they're only asked for to check zone serials.
+ */
+public class CachingSourceResolver implements SourceResolver {
+	private static final Logger log= LoggerFactory.getLogger(CachingSourceResolver.class);
+
+	// Default bound on the number of record sets kept
+	private static final int DEFAULT_MAX_ENTRIES= 10_000;
+
+	// Longest CNAME chain that will be followed through the cache
+	private static final int MAXIMUM_CNAME_STEPS= 8;
+
+	// How often the hit and miss counts are logged
+	private static final long STATISTICS_INTERVAL_MSEC= 15 * 60 * 1000;
+
+	// Length of the fixed header at the start of every message
+	private static final int HEADER_LENGTH= 12;
+
+	// Recursion desired, in the third byte of the header
+	private static final int RD_BIT= 0x01;
+
+	// Key used in place of a server list for the system resolvers
+	private static final @NonNull List<@NonNull InetSocketAddress> SYSTEM_SERVERS=
+			Collections.emptyList();
+
+	private static int readShort(byte @NonNull [] wire, int offset) {
+		return ((wire[offset] & 0xFF) << 8) | (wire[offset + 1] & 0xFF);
+	}
+
+	private static long readInt(byte @NonNull [] wire, int offset) {
+		return ((long)readShort(wire, offset) << 16) | readShort(wire, offset + 2);
+	}
+
+	private static void writeInt(byte @NonNull [] wire, int offset, long value) {
+		wire[offset]= (byte)(value >>> 24);
+		wire[offset + 1]= (byte)(value >>> 16);
+		wire[offset + 2]= (byte)(value >>> 8);
+		wire[offset + 3]= (byte)value;
+	}
+
+	// Skip over a name, returning where it ends or -1 if it runs off the end
+	private static int skipName(byte @NonNull [] wire, int position) {
+		while (position < wire.length) {
+			int length= wire[position] & 0xFF;
+			if (length == 0) {
+				return position + 1;
+			} else if ((length & 0xC0) == 0xC0) {
+				return position + 2;
+			} else if (length > 63) {
+				return -1;
+			}
+
+			position+= length + 1;
+		}
+
+		return -1;
+	}
+
+	// Find where the TTL of each record in a message is, leaving out the OPT record since its
+	// TTL field holds flags.  Returns null if the message can't be walked.
+	private static int @Nullable [] findTtlOffsets(byte @NonNull [] wire) {
+		if (wire.length < HEADER_LENGTH) {
+			return null;
+		}
+
+		int questions= readShort(wire, 4);
+		int records= readShort(wire, 6) + readShort(wire, 8) + readShort(wire, 10);
+
+		int position= HEADER_LENGTH;
+		for (int question= 0; question < questions; question++) {
+			position= skipName(wire, position);
+			if ((position < 0) || (position + 4 > wire.length)) {
+				return null;
+			}
+			position+= 4;
+		}
+
+		int[] offsets= new int[records];
+		int count= 0;
+		for (int record= 0; record < records; record++) {
+			position= skipName(wire, position);
+			if ((position < 0) || (position + 10 > wire.length)) {
+				return null;
+			}
+
+			if (readShort(wire, position) != Type.OPT) {
+				offsets[count++]= position + 4;
+			}
+			position+= 10 + readShort(wire, position + 8);
+		}
+
+		if (position > wire.length) {
+			return null;
+		}
+
+		return Arrays.copyOf(offsets, count);
+	}
+
+	// Anything kept until a time runs out
+	private interface Expiring {
+		long getExpires();
+	}
+
+	private static final class CacheKey {
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+		private final @NonNull Name name;
+		private final int type;
+		private final int hash;
+
+		private CacheKey(
+				@NonNull List<@NonNull InetSocketAddress> servers,
+				@NonNull Name name,
+				int type)
+		{
+			this.servers= servers;
+			this.name= name;
+			this.type= type;
+
+			// Name hashes ignore case the same way Name.equals does
+			this.hash= (((servers.hashCode() * 31) + name.hashCode()) * 31) + type;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof CacheKey)) {
+				return false;
+			}
+
+			CacheKey otherKey= (CacheKey)other;
+			return (hash == otherKey.hash) &&
+					(type == otherKey.type) &&
+					name.equals(otherKey.name) &&
+					servers.equals(otherKey.servers);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	// One record set.  The rdata is kept already encoded, so putting together an answer with a
+	// lower TTL doesn't have to encode it again.
+	private static final class CacheEntry implements Expiring {
+		private final @NonNull Name name;
+		private final int type;
+		private final byte @NonNull [] @NonNull [] rdata;
+
+		// System time when the record set runs out
+		private final long expires;
+
+		// Where a CNAME points, or null for other types
+		private final @Nullable Name target;
+
+		private CacheEntry(@NonNull RRset rrset, long now) {
+			@SuppressWarnings("null")
+			@NonNull Name tmpName= rrset.getName();
+			name= tmpName;
+			type= rrset.getType();
+
+			List<Record> records= rrset.rrs(false);
+			rdata= new byte[records.size()][];
+
+			Name cnameTarget= null;
+			for (int i= 0; i < records.size(); i++) {
+				Record record= records.get(i);
+
+				rdata[i]= record.rdataToWireCanonical();
+				if (record instanceof CNAMERecord) {
+					cnameTarget= ((CNAMERecord)record).getTarget();
+				}
+			}
+
+			target= cnameTarget;
+			expires= now + (rrset.getTTL() * 1000);
+		}
+
+		@Override
+		public long getExpires() {
+			return expires;
+		}
+
+		// Add the record set to a message with whatever TTL it has left
+		private void addTo(@NonNull Message message, long now) {
+			long ttl= (expires - now + 999) / 1000;
+			for (byte[] data : rdata) {
+				message.addRecord(
+						Record.newRecord(name, type, DClass.IN, ttl, data),
+						Section.ANSWER);
+			}
+		}
+	}
+
+	// Key for a whole answer - the question section exactly as it was sent
+	private static final class AnswerKey {
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+		private final byte @NonNull [] question;
+		private final int hash;
+
+		private AnswerKey(
+				@NonNull List<@NonNull InetSocketAddress> servers,
+				byte @NonNull [] question)
+		{
+			this.servers= servers;
+			this.question= question;
+			this.hash= (servers.hashCode() * 31) + Arrays.hashCode(question);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof AnswerKey)) {
+				return false;
+			}
+
+			AnswerKey otherKey= (AnswerKey)other;
+			return (hash == otherKey.hash) &&
+					Arrays.equals(question, otherKey.question) &&
+					servers.equals(otherKey.servers);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	// A whole answer as it was sent back
+	private static final class AnswerEntry implements Expiring {
+		private final byte @NonNull [] wire;
+		private final int @NonNull [] ttlOffsets;
+
+		// Names in the answer, so it can be dropped when any of their zones change
+		private final @NonNull List<@NonNull Name> names;
+
+		// System time when the answer was kept, and when its first record runs out
+		private final long stored;
+		private final long expires;
+
+		private AnswerEntry(
+				byte @NonNull [] wire,
+				int @NonNull [] ttlOffsets,
+				@NonNull List<@NonNull Name> names,
+				long stored,
+				long expires)
+		{
+			this.wire= wire;
+			this.ttlOffsets= ttlOffsets;
+			this.names= names;
+			this.stored= stored;
+			this.expires= expires;
+		}
+
+		// Returns null if the answer can't be walked, or has a record that can't be kept
+		private static @Nullable AnswerEntry Create(
+				byte @NonNull [] wire,
+				@NonNull Message response,
+				long now)
+		{
+			int[] ttlOffsets= findTtlOffsets(wire);
+			if ((ttlOffsets == null) || (ttlOffsets.length == 0)) {
+				return null;
+			}
+
+			long lowestTtl= Long.MAX_VALUE;
+			for (int offset : ttlOffsets) {
+				lowestTtl= Math.min(lowestTtl, readInt(wire, offset));
+			}
+
+			// TTLs with the top bit set are treated as zero
+			if ((lowestTtl <= 0) || (lowestTtl > Integer.MAX_VALUE)) {
+				return null;
+			}
+
+			List<@NonNull Name> names= new ArrayList<>(2);
+			for (RRset rrset : response.getSectionRRsets(Section.ANSWER)) {
+				@SuppressWarnings("null")
+				@NonNull Name name= rrset.getName();
+				names.add(name);
+			}
+
+			return new AnswerEntry(wire, ttlOffsets, names, now, now + (lowestTtl * 1000));
+		}
+
+		@Override
+		public long getExpires() {
+			return expires;
+		}
+
+		// Copy the answer for a query, with the query's ID and whatever TTLs are left
+		private byte @NonNull [] copyFor(byte @NonNull [] query, long now) {
+			byte[] copy= wire.clone();
+			copy[0]= query[0];
+			copy[1]= query[1];
+			copy[2]= (byte)((copy[2] & ~RD_BIT) | (query[2] & RD_BIT));
+
+			long elapsed= (now - stored) / 1000;
+			for (int offset : ttlOffsets) {
+				writeInt(copy, offset, readInt(wire, offset) - elapsed);
+			}
+
+			@SuppressWarnings("null")
+			byte @NonNull [] rval= copy;
+			return rval;
+		}
+
+		private boolean covers(@NonNull Name zone) {
+			for (Name name : names) {
+				if (name.subdomain(zone)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	private final @NonNull SourceResolver delegate;
+	private final int maxEntries;
+
+	// Reads don't lock, and updates only lock part of the table
+	private final @NonNull Map<@NonNull CacheKey, @NonNull CacheEntry> cache=
+			new ConcurrentHashMap<>();
+
+	// Whole answers, which are only kept when every record in them is also in the cache above
+	private final @NonNull Map<@NonNull AnswerKey, @NonNull AnswerEntry> answers=
+			new ConcurrentHashMap<>();
+
+	private final @NonNull LongAdder hits= new LongAdder();
+	private final @NonNull LongAdder misses= new LongAdder();
+
+	private final @NonNull AtomicLong nextStatistics=
+			new AtomicLong(System.currentTimeMillis() + STATISTICS_INTERVAL_MSEC);
+
+	private CachingSourceResolver(
+			@NonNull SourceResolver delegate,
+			int maxEntries)
+	{
+		this.delegate= delegate;
+		this.maxEntries= maxEntries;
+	}
+
+	public static @NonNull CachingSourceResolver Create(
+			@NonNull SourceResolver delegate)
+	{
+		return new CachingSourceResolver(delegate, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * getHits
+	 *
+	 * Number of queries that were answered from the cache.
+	 *
+	 * @return							Hit count
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * getMisses
+	 *
+	 * Number of queries that had to be sent to a server.
+	 *
+	 * @return							Miss count
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * logStatistics
+	 *
+	 * Write the hit and miss counts to the log.
+	 */
+	public void logStatistics() {
+		long hitCount= hits.sum();
+		long missCount= misses.sum();
+		long total= hitCount + missCount;
+
+		log.info("Source cache answered " + hitCount + " of " + total + " queries" +
+				((total > 0) ? (" (" + ((hitCount * 100) / total) + "%)") : "") +
+				", holding " + cache.size() + " record sets and " + answers.size() + " answers");
+	}
+
+	private void checkStatistics(long now) {
+		long next= nextStatistics.get();
+		if ((now >= next) && nextStatistics.compareAndSet(next, now + STATISTICS_INTERVAL_MSEC)) {
+			logStatistics();
+		}
+	}
+
+	/**
+	 * invalidate
+	 *
+	 * Drop every record set for a name in a zone, for when the zone is known to have changed.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void invalidate(@NonNull Name zone) {
+		cache.keySet().removeIf(key -> key.name.subdomain(zone));
+		answers.values().removeIf(entry -> entry.covers(zone));
+	}
+
+	@Override
+	public void invalidateCache(@NonNull Name zone) {
+		invalidate(zone);
+	}
+
+	private static @NonNull List<@NonNull InetSocketAddress> getServerKey(
+			@Nullable List<@NonNull InetSocketAddress> servers)
+	{
+		return (servers == null) ? SYSTEM_SERVERS : servers;
+	}
+
+	private @Nullable CacheEntry getEntry(@NonNull CacheKey key, long now) {
+		CacheEntry entry= cache.get(key);
+		if ((entry != null) && (entry.expires <= now)) {
+			cache.remove(key, entry);
+			entry= null;
+		}
+
+		return entry;
+	}
+
+	// Try to answer a query from the cache, following any CNAMEs along the way.  Returns null
+	// unless the whole chain down to records of the type asked for is cached.
+	private @Nullable Message lookup(
+			@NonNull Message query,
+			@NonNull List<@NonNull InetSocketAddress> serverKey,
+			long now)
+	{
+		Record question= query.getQuestion();
+		if ((question == null) || (question.getDClass() != DClass.IN)) {
+			return null;
+		}
+
+		int type= question.getType();
+
+		@SuppressWarnings("null")
+		@NonNull Name name= question.getName();
+
+		List<@NonNull CacheEntry> chain= new ArrayList<>(2);
+		for (int step= 0; step <= MAXIMUM_CNAME_STEPS; step++) {
+			CacheEntry entry= getEntry(new CacheKey(serverKey, name, type), now);
+			if (entry != null) {
+				chain.add(entry);
+
+				Message response= new Message(query.getHeader().getID());
+				response.getHeader().setFlag(Flags.QR);
+				response.getHeader().setFlag(Flags.RA);
+				if (query.getHeader().getFlag(Flags.RD)) {
+					response.getHeader().setFlag(Flags.RD);
+				}
+				response.addRecord(question, Section.QUESTION);
+
+				for (CacheEntry chainEntry : chain) {
+					chainEntry.addTo(response, now);
+				}
+
+				return response;
+			}
+
+			if (type == Type.CNAME) {
+				break;
+			}
+
+			CacheEntry cnameEntry= getEntry(new CacheKey(serverKey, name, Type.CNAME), now);
+			if ((cnameEntry == null) || (cnameEntry.target == null)) {
+				break;
+			}
+
+			chain.add(cnameEntry);
+
+			@SuppressWarnings("null")
+			@NonNull Name target= cnameEntry.target;
+			name= target;
+		}
+
+		return null;
+	}
+
+	// Keep the record sets in a positive answer that belong to the question - the one for the
+	// name asked about, or each step of a CNAME chain from it in order.  Anything else in the
+	// answer is left out, so a bad or spoofed answer can't plant records for some other name in
+	// front of every alias.  Returns whether the answer was all chain, ending at the type asked
+	// for, so it can be kept whole.
+	private boolean store(
+			@NonNull List<@NonNull InetSocketAddress> serverKey,
+			@NonNull Message response)
+	{
+		Record question= response.getQuestion();
+
+		// SOA records are only asked for to see whether a zone has changed, so they always go
+		// to the server
+		if ((response.getRcode() != Rcode.NOERROR) || (question == null) ||
+				(question.getDClass() != DClass.IN) || (question.getType() == Type.SOA))
+		{
+			return false;
+		}
+
+		int type= question.getType();
+		List<RRset> rrsets= response.getSectionRRsets(Section.ANSWER);
+
+		long now= System.currentTimeMillis();
+		Name name= question.getName();
+
+		int kept= 0;
+		boolean complete= false;
+		for (int step= 0; step <= MAXIMUM_CNAME_STEPS; step++) {
+			RRset found= null;
+			for (RRset rrset : rrsets) {
+				if (rrset.getName().equals(name) && (rrset.getDClass() == DClass.IN) &&
+						((rrset.getType() == type) || (rrset.getType() == Type.CNAME)))
+				{
+					found= rrset;
+					if (rrset.getType() == type) {
+						break;
+					}
+				}
+			}
+
+			if ((found == null) || (found.getTTL() <= 0)) {
+				break;
+			}
+
+			CacheEntry entry= new CacheEntry(found, now);
+			cache.put(new CacheKey(serverKey, entry.name, entry.type), entry);
+			kept++;
+
+			if (entry.type == type) {
+				complete= true;
+				break;
+			} else if (entry.target == null) {
+				break;
+			}
+			name= entry.target;
+		}
+
+		if (cache.size() > maxEntries) {
+			trim(cache, now);
+		}
+
+		return complete && (kept == rrsets.size());
+	}
+
+	// Get back under the bound, dropping expired entries first and then whatever comes up
+	private <K, V extends Expiring> void trim(@NonNull Map<K, V> map, long now) {
+		Iterator<Map.Entry<K, V>> iterator= map.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue().getExpires() <= now) {
+				iterator.remove();
+			}
+		}
+
+		iterator= map.entrySet().iterator();
+		while ((map.size() > maxEntries) && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	// Key a query by its question section exactly as it was sent, without parsing it.  Returns
+	// null unless there is exactly one question with an uncompressed name, which is all any
+	// query here has.
+	private static @Nullable AnswerKey getAnswerKey(
+			@NonNull List<@NonNull InetSocketAddress> serverKey,
+			byte @NonNull [] query)
+	{
+		if ((query.length < HEADER_LENGTH) || (readShort(query, 4) != 1)) {
+			return null;
+		}
+
+		int position= HEADER_LENGTH;
+		while ((position < query.length) && (query[position] != 0)) {
+			int length= query[position] & 0xFF;
+			if (length > 63) {
+				return null;
+			}
+			position+= length + 1;
+		}
+
+		// The root label and then the type and class
+		int end= position + 5;
+		if (end > query.length) {
+			return null;
+		}
+
+		return new AnswerKey(serverKey, Arrays.copyOfRange(query, HEADER_LENGTH, end));
+	}
+
+	private @Nullable AnswerEntry getAnswer(@NonNull AnswerKey key, long now) {
+		AnswerEntry entry= answers.get(key);
+		if ((entry != null) && (entry.expires <= now)) {
+			answers.remove(key, entry);
+			entry= null;
+		}
+
+		return entry;
+	}
+
+	private void storeAnswer(
+			@NonNull AnswerKey key,
+			byte @NonNull [] wire,
+			@NonNull Message response,
+			long now)
+	{
+		AnswerEntry entry= AnswerEntry.Create(wire, response, now);
+		if (entry == null) {
+			return;
+		}
+
+		answers.put(key, entry);
+
+		if (answers.size() > maxEntries) {
+			trim(answers, now);
+		}
+	}
+
+	@Override
+	public @NonNull Message send(
+			@NonNull Message query,
+			@Nullable List<@NonNull InetSocketAddress> servers) throws IOException
+	{
+		long now= System.currentTimeMillis();
+		checkStatistics(now);
+
+		List<@NonNull InetSocketAddress> serverKey= getServerKey(servers);
+
+		Message cached= lookup(query, serverKey, now);
+		if (cached != null) {
+			hits.increment();
+			return cached;
+		}
+
+		misses.increment();
+
+		Message response= delegate.send(query, servers);
+		store(serverKey, response);
+
+		return response;
+	}
+
+	@Override
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query,
+			@Nullable List<@NonNull InetSocketAddress> servers)
+	{
+		long now= System.currentTimeMillis();
+		checkStatistics(now);
+
+		List<@NonNull InetSocketAddress> serverKey= getServerKey(servers);
+
+		// A repeat of a question already answered only has to copy the answer
+		AnswerKey answerKey= getAnswerKey(serverKey, query);
+		if (answerKey != null) {
+			AnswerEntry answer= getAnswer(answerKey, now);
+			if (answer != null) {
+				hits.increment();
+
+				@SuppressWarnings("null")
+				@NonNull CompletableFuture<byte @NonNull []> future=
+						CompletableFuture.completedFuture(answer.copyFor(query, now));
+
+				return future;
+			}
+		}
+
+		Message queryMessage;
+		try {
+			queryMessage= new Message(query);
+		} catch (IOException parseException) {
+			CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+			future.completeExceptionally(parseException);
+
+			return future;
+		}
+
+		Message cached= lookup(queryMessage, serverKey, now);
+		if (cached != null) {
+			hits.increment();
+
+			@SuppressWarnings("null")
+			byte @NonNull [] wire= cached.toWire();
+			if (answerKey != null) {
+				storeAnswer(answerKey, wire, cached, now);
+			}
+
+			@SuppressWarnings("null")
+			@NonNull CompletableFuture<byte @NonNull []> future=
+					CompletableFuture.completedFuture(wire.clone());
+
+			return future;
+		}
+
+		misses.increment();
+
+		// The delegate's own future is handed back, so cancelling it still reaches the delegate.
+		// Only misses are parsed in full, which happens once per TTL for each question.
+		CompletableFuture<byte @NonNull []> future= delegate.exchangeAsync(query, servers);
+		future.thenAccept(response -> {
+			try {
+				Message responseMessage= new Message(response);
+				if (store(serverKey, responseMessage) && (answerKey != null)) {
+					@SuppressWarnings("null")
+					byte @NonNull [] copy= response.clone();
+
+					storeAnswer(answerKey, copy, responseMessage, System.currentTimeMillis());
+				}
+			} catch (IOException parseException) {
+				log.debug("Not caching answer that could not be parsed", parseException);
+			}
+		});
+
+		return future;
+	}
+}
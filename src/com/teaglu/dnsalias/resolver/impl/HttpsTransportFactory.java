@@ -0,0 +1,166 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.teaglu.dnsalias.resolver.Transport;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+
+/**
+ * HttpsTransportFactory
+ *
+ * Implementation of TransportFactory for DNS over HTTPS (RFC 8484).  Every server shares a
+ * single HTTP client, which keeps an HTTP/2 connection open to each server and sends concurrent
+ * queries over it as separate streams.  The client also takes care of TLS session resumption.
+ *
+ * Queries are posted to the /dns-query path, which is what the public DoH services use.  They
+ * are sent asynchronously, so no thread waits on an answer.
+ */
+public class HttpsTransportFactory implements TransportFactory {
+	private static final String QUERY_PATH= "/dns-query";
+	private static final String MEDIA_TYPE= "application/dns-message";
+
+	private static final int HTTPS_PORT= 443;
+
+	// How long to wait for a connection to be set up
+	private static final Duration CONNECT_TIMEOUT= Duration.ofSeconds(5);
+
+	// How long to wait for an answer
+	private static final Duration QUERY_TIMEOUT= Duration.ofSeconds(10);
+
+	private class HttpsTransport implements Transport {
+		private final @NonNull URI uri;
+
+		private HttpsTransport(@NonNull InetSocketAddress server) {
+			String host= server.getHostString();
+			if (host.indexOf(':') != -1) {
+				host= "[" + host + "]";
+			}
+
+			String port= (server.getPort() == HTTPS_PORT) ? "" : (":" + server.getPort());
+
+			@SuppressWarnings("null")
+			@NonNull URI tmpUri= URI.create("https://" + host + port + QUERY_PATH);
+			uri= tmpUri;
+		}
+
+		@Override
+		public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+				byte @NonNull [] query)
+		{
+			CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+			if (query.length < 2) {
+				future.completeExceptionally(new IOException("Query is too short to carry an ID"));
+				return future;
+			}
+
+			// The ID is zero on the wire so that identical queries can be cached by HTTP caches
+			byte[] wireQuery= query.clone();
+			wireQuery[0]= 0;
+			wireQuery[1]= 0;
+
+			HttpRequest request= HttpRequest.newBuilder(uri)
+					.timeout(QUERY_TIMEOUT)
+					.header("Content-Type", MEDIA_TYPE)
+					.header("Accept", MEDIA_TYPE)
+					.POST(HttpRequest.BodyPublishers.ofByteArray(wireQuery))
+					.build();
+
+			client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete(
+					(httpResponse, exception) -> {
+				if (exception != null) {
+					Throwable cause= exception;
+					if ((cause instanceof CompletionException) && (cause.getCause() != null)) {
+						cause= cause.getCause();
+					}
+
+					future.completeExceptionally((cause instanceof IOException) ? cause :
+							new IOException("Error waiting for answer from " + uri, cause));
+					return;
+				}
+
+				if (httpResponse.statusCode() != 200) {
+					future.completeExceptionally(new IOException("Server " + uri +
+							" returned HTTP status " + httpResponse.statusCode()));
+					return;
+				}
+
+				byte[] response= httpResponse.body();
+				if ((response == null) || (response.length < 12)) {
+					future.completeExceptionally(new IOException(
+							"Server " + uri + " returned an answer too short to use"));
+					return;
+				}
+
+				response[0]= query[0];
+				response[1]= query[1];
+
+				future.complete(response);
+			});
+
+			return future;
+		}
+	}
+
+	private final @NonNull HttpClient client;
+
+	private final @NonNull Map<@NonNull InetSocketAddress, @NonNull Transport> transportMap=
+			new ConcurrentHashMap<>();
+
+	private HttpsTransportFactory(@Nullable SSLContext sslContext) {
+		HttpClient.Builder builder= HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(CONNECT_TIMEOUT);
+
+		if (sslContext != null) {
+			builder.sslContext(sslContext);
+		}
+
+		@SuppressWarnings("null")
+		@NonNull HttpClient tmpClient= builder.build();
+
+		client= tmpClient;
+	}
+
+	public static @NonNull TransportFactory Create() {
+		return new HttpsTransportFactory(null);
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a factory whose client uses a particular TLS context, such as one that trusts a
+	 * private CA.
+	 *
+	 * @param sslContext				Context for the client
+	 * @return							New factory
+	 */
+	public static @NonNull TransportFactory Create(@NonNull SSLContext sslContext) {
+		return new HttpsTransportFactory(sslContext);
+	}
+
+	@Override
+	public @NonNull Transport getTransport(
+			@NonNull InetSocketAddress server)
+	{
+		@SuppressWarnings("null")
+		@NonNull Transport transport= transportMap.computeIfAbsent(
+				server, k -> new HttpsTransport(server));
+
+		return transport;
+	}
+}
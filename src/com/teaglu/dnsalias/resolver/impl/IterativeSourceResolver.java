@@ -0,0 +1,709 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.SourceResolver;
+
+/**
+ * IterativeSourceResolver
+ *
+ * Implementation of SourceResolver that finds the authoritative servers for a name itself and
+ * asks them directly, the way a recursive resolver would.  Answers come straight from the
+ * authoritative servers with their full TTL, instead of whatever is left in some other
+ * resolver's cache, and no servers have to be listed for each alias.
+ *
+ * Resolution starts from the root hints, or from the servers passed in if there are any.
+ * Those are usually recursive resolvers that would answer from their own cache, so they are
+ * only asked for the nameservers of the zone a name is in.  Only authoritative answers are
+ * taken - a server that sends anything else is lame for the zone, and the next one is tried.
+ * Delegations found along the way are kept until their TTL runs out, so normally a lookup only
+ * costs a single query to the server that owns the name.  Queries are sent through another
+ * SourceResolver, so the servers for each zone are still ranked against each other.
+ *
+ * A lookup under a delegation we already know is chained onto the answer without holding a
+ * thread, including CNAMEs followed into other known zones.  Walking down from the root takes a
+ * series of queries that depend on each other, so that runs on a small fixed pool instead.
+ *
+ * Only IPv4 addresses are used to reach nameservers.
+ */
+public class IterativeSourceResolver implements SourceResolver {
+	private static final Logger log= LoggerFactory.getLogger(IterativeSourceResolver.class);
+
+	// Most referrals followed for one name before giving up
+	private static final int MAXIMUM_REFERRALS= 16;
+
+	// Most CNAMEs followed out of the zone that answered
+	private static final int MAXIMUM_CNAME_STEPS= 8;
+
+	// How deep lookups of nameserver addresses can nest when there is no glue
+	private static final int MAXIMUM_DEPTH= 4;
+
+	// How many nameservers without glue are looked up for one referral
+	private static final int MAXIMUM_NAMESERVER_LOOKUPS= 3;
+
+	// Trim expired delegations when there are more than this many
+	private static final int DELEGATION_TRIM_SIZE= 5_000;
+
+	// Threads for walking down from the root.  Known delegations make walks rare, so any beyond
+	// this wait their turn in the queue.
+	private static final int WALK_THREADS= 8;
+
+	// IPv4 addresses of the root servers A through M
+	private static final String[] ROOT_ADDRESSES= {
+			"198.41.0.4",
+			"170.247.170.2",
+			"192.33.4.12",
+			"199.7.91.13",
+			"192.203.230.10",
+			"192.5.5.241",
+			"192.112.36.4",
+			"198.97.190.53",
+			"192.36.148.17",
+			"192.58.128.30",
+			"193.0.14.129",
+			"199.7.83.42",
+			"202.12.27.33"
+	};
+
+	private static final @NonNull List<@NonNull InetSocketAddress> ROOT_HINTS= buildRootHints();
+
+	private static @NonNull List<@NonNull InetSocketAddress> buildRootHints() {
+		List<@NonNull InetSocketAddress> hints= new ArrayList<>(ROOT_ADDRESSES.length);
+		for (String address : ROOT_ADDRESSES) {
+			try {
+				// Literal addresses never go to DNS
+				hints.add(new InetSocketAddress(
+						InetAddress.getByName(address), SimpleResolver.DEFAULT_PORT));
+			} catch (UnknownHostException e) {
+				throw new RuntimeException("Unable to parse root hint " + address);
+			}
+		}
+
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull InetSocketAddress> rval= Collections.unmodifiableList(hints);
+		return rval;
+	}
+
+	// Servers for a zone cut, learned from a referral
+	private static final class Delegation {
+		private final @NonNull Name zone;
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+		private final long expires;
+
+		private Delegation(
+				@NonNull Name zone,
+				@NonNull List<@NonNull InetSocketAddress> servers,
+				long expires)
+		{
+			this.zone= zone;
+			this.servers= servers;
+			this.expires= expires;
+		}
+	}
+
+	private final @NonNull SourceResolver delegate;
+
+	private final @NonNull Map<@NonNull Name, @NonNull Delegation> delegations=
+			new ConcurrentHashMap<>();
+
+	private final @NonNull ExecutorService executorService;
+
+	// Counter to set thread names
+	private final AtomicInteger threadCounter= new AtomicInteger(1);
+
+	private IterativeSourceResolver(@NonNull SourceResolver delegate) {
+		this.delegate= delegate;
+
+		ThreadPoolExecutor tmpExecutorService= new ThreadPoolExecutor(
+				WALK_THREADS, WALK_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread= new Thread(runnable,
+								"iterative-worker-" + threadCounter.getAndIncrement());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+
+		tmpExecutorService.allowCoreThreadTimeOut(true);
+
+		executorService= tmpExecutorService;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create an iterative resolver.
+	 *
+	 * @param delegate					Resolver used to send each query to a set of servers
+	 * @return							New resolver
+	 */
+	public static @NonNull SourceResolver Create(@NonNull SourceResolver delegate) {
+		return new IterativeSourceResolver(delegate);
+	}
+
+	// Find the deepest delegation we already know about that covers a name
+	private @Nullable Delegation findDelegation(@NonNull Name name) {
+		long now= System.currentTimeMillis();
+
+		// The last label is the root, which is never cached
+		for (int strip= 0; strip < name.labels() - 1; strip++) {
+			Name candidate= (strip == 0) ? name : new Name(name, strip);
+
+			Delegation delegation= delegations.get(candidate);
+			if (delegation != null) {
+				if (delegation.expires > now) {
+					return delegation;
+				}
+
+				delegations.remove(candidate, delegation);
+			}
+		}
+
+		return null;
+	}
+
+	private void addDelegation(@NonNull Delegation delegation) {
+		delegations.put(delegation.zone, delegation);
+
+		if (delegations.size() > DELEGATION_TRIM_SIZE) {
+			long now= System.currentTimeMillis();
+
+			Iterator<Map.Entry<@NonNull Name, @NonNull Delegation>> iterator=
+					delegations.entrySet().iterator();
+
+			while (iterator.hasNext()) {
+				if (iterator.next().getValue().expires <= now) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	// Find the NS records in a referral - the ones for a zone between the one we asked and the
+	// name.  A referral has to move down towards the name, or we could go around in circles.
+	private static @Nullable RRset findCut(
+			@NonNull Message response,
+			@NonNull Name name,
+			@NonNull Name zone)
+	{
+		for (RRset rrset : response.getSectionRRsets(Section.AUTHORITY)) {
+			Name owner= rrset.getName();
+
+			if ((rrset.getType() == Type.NS) &&
+					name.subdomain(owner) && owner.subdomain(zone) && !owner.equals(zone))
+			{
+				return rrset;
+			}
+		}
+
+		return null;
+	}
+
+	// Build a delegation from a set of NS records and the glue addresses for them.  Nameservers
+	// without glue are looked up, since that's normal for a zone whose nameservers live in some
+	// other zone.
+	private @NonNull Delegation readDelegation(
+			@NonNull Message response,
+			@NonNull RRset rrset,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth) throws IOException
+	{
+		@SuppressWarnings("null")
+		@NonNull Name cut= rrset.getName();
+
+		long ttl= rrset.getTTL();
+		List<@NonNull Name> nameservers= new ArrayList<>(4);
+
+		for (Record record : rrset.rrs(false)) {
+			@SuppressWarnings("null")
+			@NonNull Name target= ((NSRecord)record).getTarget();
+			nameservers.add(target);
+		}
+
+		List<@NonNull InetSocketAddress> servers= new ArrayList<>(nameservers.size());
+		for (Record record : response.getSection(Section.ADDITIONAL)) {
+			if ((record instanceof ARecord) && nameservers.contains(record.getName())) {
+				servers.add(new InetSocketAddress(
+						((ARecord)record).getAddress(), SimpleResolver.DEFAULT_PORT));
+
+				ttl= Math.min(ttl, record.getTTL());
+			}
+		}
+
+		if (servers.isEmpty() && (depth < MAXIMUM_DEPTH)) {
+			int lookups= 0;
+			for (Name nameserver : nameservers) {
+				if (lookups++ >= MAXIMUM_NAMESERVER_LOOKUPS) {
+					break;
+				}
+
+				try {
+					Message nameserverResponse= resolve(
+							Message.newQuery(Record.newRecord(nameserver, Type.A, DClass.IN)),
+							hints,
+							depth + 1);
+
+					for (Record record : nameserverResponse.getSection(Section.ANSWER)) {
+						if (record instanceof ARecord) {
+							servers.add(new InetSocketAddress(
+									((ARecord)record).getAddress(), SimpleResolver.DEFAULT_PORT));
+
+							ttl= Math.min(ttl, record.getTTL());
+						}
+					}
+				} catch (IOException lookupException) {
+					log.debug("Unable to find address of nameserver " + nameserver,
+							lookupException);
+				}
+
+				if (!servers.isEmpty()) {
+					break;
+				}
+			}
+		}
+
+		if (servers.isEmpty()) {
+			throw new IOException("Unable to find the address of any nameserver for " + cut);
+		}
+
+		@SuppressWarnings("null")
+		@NonNull List<@NonNull InetSocketAddress> tmpServers= Collections.unmodifiableList(servers);
+
+		Delegation delegation= new Delegation(
+				cut, tmpServers, System.currentTimeMillis() + (ttl * 1000));
+
+		if (ttl > 0) {
+			addDelegation(delegation);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Zone " + cut + " is served by " + servers.toString());
+		}
+
+		return delegation;
+	}
+
+	// Pull a referral out of a response, if there is one
+	private @Nullable Delegation readReferral(
+			@NonNull Message response,
+			@NonNull Name name,
+			@NonNull Name zone,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth) throws IOException
+	{
+		RRset rrset= findCut(response, name, zone);
+
+		return (rrset == null) ? null : readDelegation(response, rrset, hints, depth);
+	}
+
+	// Whether a response is an authoritative answer to the question.  Anything else without a
+	// referral came from a server that isn't really serving the zone, or from a cache.
+	private static boolean isAnswer(@NonNull Message response) {
+		int rcode= response.getRcode();
+
+		return response.getHeader().getFlag(Flags.AA) &&
+				((rcode == Rcode.NOERROR) || (rcode == Rcode.NXDOMAIN));
+	}
+
+	// Ask the servers for a zone until one gives an authoritative answer or a referral further
+	// down.  The delegate stops at the first server that answers at all, so when that one turns
+	// out to be lame the others are asked one at a time.  Servers that refuse or fail outright
+	// are already passed over by the delegate.
+	private @NonNull Message ask(
+			@NonNull Message query,
+			@NonNull Name name,
+			@NonNull Name zone,
+			@NonNull List<@NonNull InetSocketAddress> servers) throws IOException
+	{
+		Message response= delegate.send(query, servers);
+		if (isAnswer(response) || (findCut(response, name, zone) != null)) {
+			return response;
+		}
+
+		log.debug("Lame answer for " + name + " from a server for " + zone);
+
+		if (servers.size() > 1) {
+			for (InetSocketAddress server : servers) {
+				@SuppressWarnings("null")
+				@NonNull List<@NonNull InetSocketAddress> single= List.of(server);
+
+				try {
+					response= delegate.send(query, single);
+				} catch (IOException sendException) {
+					log.debug("Server " + server + " failed for " + name, sendException);
+					continue;
+				}
+
+				if (isAnswer(response) || (findCut(response, name, zone) != null)) {
+					return response;
+				}
+			}
+		}
+
+		throw new IOException(
+				"No server for " + zone + " gave an authoritative answer for " + name);
+	}
+
+	// Listed servers are mostly recursive resolvers, which would hand back whatever is left in
+	// their cache if we sent them the question.  They're only asked for the nameservers of the
+	// zone the name is in, walking up a label at a time, and the question goes to those.  A
+	// listed server that is authoritative for some parent zone sends a referral instead, which
+	// does just as well.
+	private @NonNull Delegation seed(
+			@NonNull Name name,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth) throws IOException
+	{
+		for (int strip= 0; strip < name.labels(); strip++) {
+			@SuppressWarnings("null")
+			@NonNull Name candidate= (strip == 0) ? name : new Name(name, strip);
+
+			Message response= delegate.send(
+					Message.newQuery(Record.newRecord(candidate, Type.NS, DClass.IN)), hints);
+
+			for (RRset rrset : response.getSectionRRsets(Section.ANSWER)) {
+				if ((rrset.getType() == Type.NS) && rrset.getName().equals(candidate)) {
+					return readDelegation(response, rrset, hints, depth);
+				}
+			}
+
+			RRset referral= findCut(response, candidate, Name.root);
+			if (referral != null) {
+				return readDelegation(response, referral, hints, depth);
+			}
+		}
+
+		throw new IOException("Listed servers gave no nameservers for " + name);
+	}
+
+	// Follow referrals down to a server that gives a real answer for the question
+	private @NonNull Message iterate(
+			@NonNull Message query,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth) throws IOException
+	{
+		@SuppressWarnings("null")
+		@NonNull Name name= query.getQuestion().getName();
+
+		// Authoritative servers mostly refuse recursive queries, and the rest would answer from
+		// their own cache.
+		Message iterativeQuery= query.clone();
+		iterativeQuery.getHeader().unsetFlag(Flags.RD);
+
+		Name zone= Name.root;
+		List<@NonNull InetSocketAddress> servers= hints;
+
+		Delegation known= findDelegation(name);
+		if ((known == null) && (hints != ROOT_HINTS)) {
+			known= seed(name, hints, depth);
+		}
+
+		if (known != null) {
+			zone= known.zone;
+			servers= known.servers;
+		}
+
+		for (int referral= 0; referral < MAXIMUM_REFERRALS; referral++) {
+			@SuppressWarnings("null")
+			@NonNull Name currentZone= zone;
+
+			Message response= ask(iterativeQuery, name, currentZone, servers);
+			if (isAnswer(response)) {
+				return response;
+			}
+
+			// Anything that isn't an answer out of ask is a referral further down
+			@SuppressWarnings("null")
+			@NonNull Delegation next= readReferral(response, name, currentZone, hints, depth);
+
+			zone= next.zone;
+			servers= next.servers;
+		}
+
+		throw new IOException("Too many referrals resolving " + name);
+	}
+
+	// If the answer is a CNAME chain that leaves the zone without reaching the type we asked
+	// for, return where it ends up so that can be looked up next.
+	private static @Nullable Name getUnansweredTarget(
+			@NonNull Message response,
+			@NonNull Name name,
+			int type)
+	{
+		List<Record> answers= response.getSection(Section.ANSWER);
+
+		Name current= name;
+		for (int step= 0; step <= answers.size(); step++) {
+			Name next= null;
+			for (Record record : answers) {
+				if (record.getName().equals(current)) {
+					if (record.getType() == type) {
+						return null;
+					} else if (record instanceof CNAMERecord) {
+						next= ((CNAMERecord)record).getTarget();
+					}
+				}
+			}
+
+			if (next == null) {
+				break;
+			}
+			current= next;
+		}
+
+		return current.equals(name) ? null : current;
+	}
+
+	// Resolve a question, following CNAMEs into other zones.  The answers from each zone are
+	// put together into one response, the same as a recursive resolver would send back.
+	private @NonNull Message resolve(
+			@NonNull Message query,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth) throws IOException
+	{
+		Record question= query.getQuestion();
+		if (question == null) {
+			throw new IOException("Query has no question");
+		}
+
+		int type= question.getType();
+
+		@SuppressWarnings("null")
+		@NonNull Name name= question.getName();
+
+		Message response= iterate(query, hints, depth);
+		Message lastResponse= response;
+
+		for (int step= 0; step < MAXIMUM_CNAME_STEPS; step++) {
+			Name target= getUnansweredTarget(lastResponse, name, type);
+			if (target == null) {
+				return response;
+			}
+
+			lastResponse= iterate(
+					Message.newQuery(Record.newRecord(target, type, DClass.IN)), hints, depth);
+
+			for (Record record : lastResponse.getSection(Section.ANSWER)) {
+				response.addRecord(record, Section.ANSWER);
+			}
+			response.getHeader().setRcode(lastResponse.getRcode());
+
+			name= target;
+		}
+
+		throw new IOException("CNAME chain too long resolving " + question.getName());
+	}
+
+	@Override
+	public @NonNull Message send(
+			@NonNull Message query,
+			@Nullable List<@NonNull InetSocketAddress> servers) throws IOException
+	{
+		return resolve(query, (servers == null) ? ROOT_HINTS : servers, 0);
+	}
+
+	// Walk down to the servers for a question on the pool
+	private @NonNull CompletableFuture<@NonNull Message> walk(
+			@NonNull Message query,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth)
+	{
+		CompletableFuture<@NonNull Message> future= new CompletableFuture<>();
+
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				// Whoever asked may have given up already
+				if (future.isDone()) {
+					return;
+				}
+
+				try {
+					future.complete(iterate(query, hints, depth));
+				} catch (IOException sendException) {
+					future.completeExceptionally(sendException);
+				} catch (RuntimeException runtimeException) {
+					future.completeExceptionally(runtimeException);
+				}
+			}
+		});
+
+		return future;
+	}
+
+	// Ask the servers of a known delegation directly, only falling back to a walk if they send
+	// a referral further down.
+	private @NonNull CompletableFuture<@NonNull Message> iterateAsync(
+			@NonNull Message query,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int depth)
+	{
+		@SuppressWarnings("null")
+		@NonNull Name name= query.getQuestion().getName();
+
+		Delegation known= findDelegation(name);
+		if (known == null) {
+			return walk(query, hints, depth);
+		}
+
+		Message iterativeQuery= query.clone();
+		iterativeQuery.getHeader().unsetFlag(Flags.RD);
+
+		CompletableFuture<@NonNull Message> future= new CompletableFuture<>();
+
+		delegate.exchangeAsync(iterativeQuery.toWire(), known.servers).whenComplete(
+				(wire, exception) -> {
+			if (exception != null) {
+				future.completeExceptionally(exception);
+				return;
+			}
+
+			Message response;
+			try {
+				response= new Message(wire);
+			} catch (IOException parseException) {
+				future.completeExceptionally(parseException);
+				return;
+			}
+
+			if (isAnswer(response)) {
+				future.complete(response);
+			} else {
+				walk(query, hints, depth).whenComplete((result, walkException) -> {
+					if (walkException != null) {
+						future.completeExceptionally(walkException);
+					} else {
+						future.complete(result);
+					}
+				});
+			}
+		});
+
+		return future;
+	}
+
+	// The same as resolve, but chained on the answers instead of waiting for them
+	private @NonNull CompletableFuture<@NonNull Message> resolveAsync(
+			@NonNull Message query,
+			@NonNull List<@NonNull InetSocketAddress> hints)
+	{
+		Record question= query.getQuestion();
+		if (question == null) {
+			CompletableFuture<@NonNull Message> future= new CompletableFuture<>();
+			future.completeExceptionally(new IOException("Query has no question"));
+
+			return future;
+		}
+
+		@SuppressWarnings("null")
+		@NonNull Name name= question.getName();
+
+		@SuppressWarnings("null")
+		@NonNull CompletableFuture<@NonNull Message> future= iterateAsync(query, hints, 0)
+				.thenCompose(response -> follow(
+						response, response, name, question.getType(), hints, 0));
+
+		return future;
+	}
+
+	// Follow one more step of a CNAME chain out of the zone that answered, if there is one
+	private @NonNull CompletableFuture<@NonNull Message> follow(
+			@NonNull Message response,
+			@NonNull Message lastResponse,
+			@NonNull Name name,
+			int type,
+			@NonNull List<@NonNull InetSocketAddress> hints,
+			int step)
+	{
+		Name target= getUnansweredTarget(lastResponse, name, type);
+		if (target == null) {
+			@SuppressWarnings("null")
+			@NonNull CompletableFuture<@NonNull Message> future=
+					CompletableFuture.completedFuture(response);
+
+			return future;
+		}
+
+		if (step >= MAXIMUM_CNAME_STEPS) {
+			CompletableFuture<@NonNull Message> future= new CompletableFuture<>();
+			future.completeExceptionally(new IOException(
+					"CNAME chain too long resolving " + response.getQuestion().getName()));
+
+			return future;
+		}
+
+		@SuppressWarnings("null")
+		@NonNull CompletableFuture<@NonNull Message> future= iterateAsync(
+				Message.newQuery(Record.newRecord(target, type, DClass.IN)), hints, 0)
+				.thenCompose(nextResponse -> {
+					for (Record record : nextResponse.getSection(Section.ANSWER)) {
+						response.addRecord(record, Section.ANSWER);
+					}
+					response.getHeader().setRcode(nextResponse.getRcode());
+
+					return follow(response, nextResponse, target, type, hints, step + 1);
+				});
+
+		return future;
+	}
+
+	@Override
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query,
+			@Nullable List<@NonNull InetSocketAddress> servers)
+	{
+		Message message;
+		try {
+			message= new Message(query);
+		} catch (IOException parseException) {
+			CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+			future.completeExceptionally(parseException);
+
+			return future;
+		}
+
+		@SuppressWarnings("null")
+		@NonNull CompletableFuture<byte @NonNull []> future= resolveAsync(
+				message, (servers == null) ? ROOT_HINTS : servers)
+				.thenApply(response -> response.toWire());
+
+		return future;
+	}
+}
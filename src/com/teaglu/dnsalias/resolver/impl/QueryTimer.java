@@ -0,0 +1,86 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * QueryTimer
+ *
+ * A single timer thread shared by the transports and the rate limiter.  Queries waiting on an
+ * answer or on their turn are failed or moved along from here, instead of each one holding a
+ * thread while it waits, so any number of them can be outstanding at once.
+ *
+ * Tasks run on the timer thread itself, so they have to be quick and must never block.
+ */
+final class QueryTimer {
+	private static final @NonNull ScheduledThreadPoolExecutor timer= createTimer();
+
+	private QueryTimer() {}
+
+	private static @NonNull ScheduledThreadPoolExecutor createTimer() {
+		ScheduledThreadPoolExecutor executor= new ScheduledThreadPoolExecutor(1,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread= new Thread(runnable, "query-timer");
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+
+		// Nearly every timeout is cancelled because the answer came first
+		executor.setRemoveOnCancelPolicy(true);
+
+		return executor;
+	}
+
+	/**
+	 * schedule
+	 *
+	 * Run a task on the timer thread after a delay.
+	 *
+	 * @param task						Task to run
+	 * @param delayMsec					Delay in milliseconds
+	 *
+	 * @return							Future that can cancel the task
+	 */
+	static @NonNull ScheduledFuture<?> schedule(@NonNull Runnable task, long delayMsec) {
+		@SuppressWarnings("null")
+		@NonNull ScheduledFuture<?> scheduled=
+				timer.schedule(task, Math.max(0, delayMsec), TimeUnit.MILLISECONDS);
+
+		return scheduled;
+	}
+
+	/**
+	 * failAfter
+	 *
+	 * Fail a future with a SocketTimeoutException if it hasn't been completed in time.  The
+	 * timer is cancelled as soon as the future completes some other way.
+	 *
+	 * @param future					Future to fail
+	 * @param timeoutMsec				Timeout in milliseconds
+	 * @param message					Message for the exception
+	 */
+	static void failAfter(
+			@NonNull CompletableFuture<?> future,
+			long timeoutMsec,
+			@NonNull String message)
+	{
+		ScheduledFuture<?> timeout= schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.completeExceptionally(new SocketTimeoutException(message));
+			}
+		}, timeoutMsec);
+
+		future.whenComplete((result, exception) -> timeout.cancel(false));
+	}
+}
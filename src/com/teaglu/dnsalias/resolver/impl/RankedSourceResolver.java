@@ -0,0 +1,287 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.ResolverConfig;
+
+import com.teaglu.dnsalias.resolver.NameserverRanker;
+import com.teaglu.dnsalias.resolver.QueryRateLimiter;
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+
+/**
+ * RankedSourceResolver
+ *
+ * Implementation of SourceResolver that tries servers in the order given by a NameserverRanker,
+ * and feeds the result of every attempt back into the ranker.
+ *
+ * When no servers are listed, all of the system resolvers are used instead of just the first
+ * one, so a dead primary resolver doesn't cost a timeout on every lookup.
+ *
+ * Queries are carried by transports from a TransportFactory, so the same ranking works for
+ * plain DNS and the encrypted protocols.
+ *
+ * With a QueryRateLimiter, a listed server that has used up its budget is passed over for the
+ * next one in the ranking.  Only when every server is over budget does the query wait, on the
+ * best of them, taking turns with queries for other names.  The system resolvers aren't
+ * limited, since they're local to the program.
+ *
+ * Each attempt is chained onto the answer to the one before, so a lookup doesn't hold a thread
+ * while it waits on servers or on the rate limit.
+ */
+public class RankedSourceResolver implements SourceResolver {
+	private static final Logger log= LoggerFactory.getLogger(RankedSourceResolver.class);
+
+	private final @NonNull NameserverRanker ranker;
+	private final @NonNull TransportFactory transportFactory;
+	private final @Nullable QueryRateLimiter rateLimiter;
+
+	private RankedSourceResolver(
+			@NonNull NameserverRanker ranker,
+			@NonNull TransportFactory transportFactory,
+			@Nullable QueryRateLimiter rateLimiter)
+	{
+		this.ranker= ranker;
+		this.transportFactory= transportFactory;
+		this.rateLimiter= rateLimiter;
+	}
+
+	public static @NonNull SourceResolver Create(@NonNull NameserverRanker ranker) {
+		return new RankedSourceResolver(ranker, UdpTransportFactory.Create(), null);
+	}
+
+	public static @NonNull SourceResolver Create(
+			@NonNull NameserverRanker ranker,
+			@NonNull TransportFactory transportFactory)
+	{
+		return new RankedSourceResolver(ranker, transportFactory, null);
+	}
+
+	public static @NonNull SourceResolver Create(
+			@NonNull NameserverRanker ranker,
+			@NonNull TransportFactory transportFactory,
+			@NonNull QueryRateLimiter rateLimiter)
+	{
+		return new RankedSourceResolver(ranker, transportFactory, rateLimiter);
+	}
+
+	// A server returning one of these is broken or mis-configured for this name, and another
+	// server might still give a real answer.
+	private static boolean isServerFailure(int rcode) {
+		switch (rcode) {
+		case Rcode.SERVFAIL:
+		case Rcode.REFUSED:
+		case Rcode.NOTIMP:
+		case Rcode.FORMERR:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	// One query working its way through the servers in ranked order until one gives a usable
+	// answer.  Only one attempt is ever in flight, and each is started from the completion of
+	// the one before, so the fields are never touched by two threads at once.
+	private class Exchange {
+		private final byte @NonNull [] query;
+		private final @NonNull List<@NonNull InetSocketAddress> ordered;
+		private final @Nullable QueryRateLimiter limiter;
+
+		private final @NonNull CompletableFuture<byte @NonNull []> future=
+				new CompletableFuture<>();
+
+		private int nextServer;
+
+		// Servers passed over because they were out of budget, which are tried last
+		private final @NonNull List<@NonNull InetSocketAddress> overBudget= new ArrayList<>();
+		private int nextOverBudget;
+
+		private @Nullable IOException lastException;
+
+		private Exchange(
+				byte @NonNull [] query,
+				@NonNull List<@NonNull InetSocketAddress> ordered,
+				@Nullable QueryRateLimiter limiter)
+		{
+			this.query= query;
+			this.ordered= ordered;
+			this.limiter= limiter;
+		}
+
+		private void next() {
+			// Whoever asked may have given up already
+			if (future.isDone()) {
+				return;
+			}
+
+			QueryRateLimiter tmpLimiter= limiter;
+			while (nextServer < ordered.size()) {
+				InetSocketAddress server= ordered.get(nextServer++);
+				if ((tmpLimiter != null) && !tmpLimiter.tryAcquire(server)) {
+					overBudget.add(server);
+					continue;
+				}
+
+				attempt(server);
+				return;
+			}
+
+			if ((tmpLimiter != null) && (nextOverBudget < overBudget.size())) {
+				InetSocketAddress server= overBudget.get(nextOverBudget++);
+
+				tmpLimiter.acquire(server, getFlow(query)).whenComplete((result, exception) -> {
+					if (exception != null) {
+						failed(exception);
+					} else {
+						attempt(server);
+					}
+				});
+				return;
+			}
+
+			IOException tmpException= lastException;
+			if (tmpException == null) {
+				tmpException= new IOException("Logic error - no servers were attempted");
+			}
+			future.completeExceptionally(tmpException);
+		}
+
+		// Send the query to one server and report how it went to the ranker
+		private void attempt(@NonNull InetSocketAddress server) {
+			if (future.isDone()) {
+				return;
+			}
+
+			long sendStart= System.currentTimeMillis();
+
+			CompletableFuture<byte @NonNull []> sent;
+			try {
+				sent= transportFactory.getTransport(server).exchangeAsync(query);
+			} catch (RuntimeException runtimeException) {
+				future.completeExceptionally(runtimeException);
+				return;
+			}
+
+			sent.whenComplete((response, exception) -> {
+				if (exception != null) {
+					ranker.reportFailure(server);
+
+					log.debug("Query to " + server.toString() + " failed", exception);
+					failed(exception);
+					return;
+				}
+
+				long rtt= System.currentTimeMillis() - sendStart;
+
+				// Transports only hand back answers long enough to have a complete header
+				int rcode= response[3] & 0x0F;
+				if (isServerFailure(rcode)) {
+					ranker.reportFailure(server);
+
+					IOException failureException= new IOException(
+							"Server " + server.toString() + " returned " + Rcode.string(rcode));
+
+					log.debug(failureException.getMessage());
+					failed(failureException);
+					return;
+				}
+
+				ranker.reportSuccess(server, rtt);
+				future.complete(response);
+			});
+		}
+
+		private void failed(@NonNull Throwable exception) {
+			if (exception instanceof IOException) {
+				lastException= (IOException)exception;
+				next();
+			} else {
+				future.completeExceptionally(exception);
+			}
+		}
+	}
+
+	// What a query asks about, so waiting queries for different names take turns.  Turns are by
+	// name and not by alias, since the resolvers don't know which alias asked: aliases reading
+	// the same name share its turn, an alias with several names gets one for each, and the
+	// steps of a CNAME chain each count as a name of their own.
+	private static @NonNull String getFlow(byte @NonNull [] query) {
+		try {
+			Record question= new Message(query).getQuestion();
+			if (question != null) {
+				@SuppressWarnings("null")
+				@NonNull String flow= question.getName().toString();
+				return flow;
+			}
+		} catch (IOException parseException) {
+		}
+
+		return "";
+	}
+
+	@Override
+	public @NonNull Message send(
+			@NonNull Message query,
+			@Nullable List<@NonNull InetSocketAddress> servers) throws IOException
+	{
+		CompletableFuture<byte @NonNull []> future= exchangeAsync(query.toWire(), servers);
+		try {
+			return new Message(future.get());
+		} catch (InterruptedException interruptedException) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("Interrupted waiting for an answer");
+		} catch (ExecutionException executionException) {
+			Throwable cause= executionException.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException("Error waiting for an answer", cause);
+		}
+	}
+
+	@Override
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query,
+			@Nullable List<@NonNull InetSocketAddress> servers)
+	{
+		List<@NonNull InetSocketAddress> candidates= servers;
+		QueryRateLimiter limiter= rateLimiter;
+		if (candidates == null) {
+			@SuppressWarnings("null")
+			@NonNull List<@NonNull InetSocketAddress> systemServers=
+					ResolverConfig.getCurrentConfig().servers();
+
+			candidates= systemServers;
+			limiter= null;
+		}
+
+		CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+		if (candidates.isEmpty()) {
+			future.completeExceptionally(
+					new IOException("No nameservers are available to send the query to"));
+
+			return future;
+		}
+
+		Exchange exchange= new Exchange(query, ranker.order(candidates), limiter);
+		exchange.next();
+
+		return exchange.future;
+	}
+}
@@ -0,0 +1,129 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.resolver.ZoneSerialTracker;
+
+/**
+ * SharedZoneSerialTracker
+ *
+ * Implementation of ZoneSerialTracker that keeps the serial of each zone in memory, asking the
+ * source servers for it with an ordinary SOA query.  One of these is shared by
+ * every alias, so a zone is only asked for its serial once per interval no matter how many
+ * aliases have names in it.  An alias that asks while the serial is being fetched waits for
+ * that answer instead of sending its own query.
+ *
+ * Serials are kept separately for each set of servers, the same way the answer cache is.
+ */
+public class SharedZoneSerialTracker implements ZoneSerialTracker {
+	// Key used in place of a server list for the system resolvers
+	private static final @NonNull List<@NonNull InetSocketAddress> SYSTEM_SERVERS=
+			Collections.emptyList();
+
+	private static final class ZoneKey {
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+		private final @NonNull Name zone;
+
+		private ZoneKey(
+				@NonNull List<@NonNull InetSocketAddress> servers,
+				@NonNull Name zone)
+		{
+			this.servers= servers;
+			this.zone= zone;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof ZoneKey)) {
+				return false;
+			}
+
+			ZoneKey otherKey= (ZoneKey)other;
+			return zone.equals(otherKey.zone) && servers.equals(otherKey.servers);
+		}
+
+		@Override
+		public int hashCode() {
+			return (servers.hashCode() * 31) + zone.hashCode();
+		}
+	}
+
+	// Guarded by itself
+	private static final class ZoneState {
+		private long serial;
+		private long checked;
+		private boolean known;
+	}
+
+	private final @NonNull Map<@NonNull ZoneKey, @NonNull ZoneState> zones=
+			new ConcurrentHashMap<>();
+
+	private SharedZoneSerialTracker() {}
+
+	public static @NonNull ZoneSerialTracker Create() {
+		return new SharedZoneSerialTracker();
+	}
+
+	@Override
+	public long getSerial(
+			@NonNull Name zone,
+			@Nullable List<@NonNull InetSocketAddress> servers,
+			@NonNull SourceResolver resolver,
+			long intervalMsec) throws IOException
+	{
+		@SuppressWarnings("null")
+		@NonNull ZoneState state= zones.computeIfAbsent(
+				new ZoneKey((servers == null) ? SYSTEM_SERVERS : servers, zone),
+				k -> new ZoneState());
+
+		synchronized (state) {
+			long now= System.currentTimeMillis();
+			if (state.known && ((now - state.checked) < intervalMsec)) {
+				return state.serial;
+			}
+
+			Message response= resolver.send(
+					Message.newQuery(Record.newRecord(zone, Type.SOA, DClass.IN)), servers);
+
+			for (Record record : response.getSection(Section.ANSWER)) {
+				if ((record instanceof SOARecord) && record.getName().equals(zone)) {
+					state.serial= ((SOARecord)record).getSerial();
+					state.checked= now;
+					state.known= true;
+
+					return state.serial;
+				}
+			}
+
+			throw new IOException("No SOA record returned for zone " + zone);
+		}
+	}
+
+	@Override
+	public void invalidate(@NonNull Name zone) {
+		for (Map.Entry<@NonNull ZoneKey, @NonNull ZoneState> entry : zones.entrySet()) {
+			if (entry.getKey().zone.equals(zone)) {
+				ZoneState state= entry.getValue();
+				synchronized (state) {
+					state.known= false;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.dnsalias.resolver.NameserverRanker;
+
+/**
+ * SmoothedRttRanker
+ *
+ * Implementation of NameserverRanker that works roughly the way BIND picks between the
+ * authoritative servers for a zone.  Each server keeps a smoothed round trip time, which moves
+ * 30% of the way towards each new measurement.  Failures double the smoothed time and add a
+ * penalty, which successful answers halve.
+ *
+ * Every time a server is picked, the smoothed time and the penalty of the servers that weren't
+ * picked decay a little.  That means a server that was slow or failed once will eventually float
+ * back to the top and get probed again, instead of being written off forever.
+ */
+public class SmoothedRttRanker implements NameserverRanker {
+	private static final Logger log= LoggerFactory.getLogger(SmoothedRttRanker.class);
+
+	// Unknown servers start out with a small random time, so they get tried early but the order
+	// between several unknown servers isn't always the same.
+	private static final long INITIAL_SRTT_MAX_USEC= 32_000;
+
+	// Servers that aren't picked have their time multiplied by this on each pick
+	private static final long DECAY_NUMERATOR= 98;
+	private static final long DECAY_DENOMINATOR= 100;
+
+	// Ceiling so a dead server can still decay back in a reasonable number of picks
+	private static final long MAXIMUM_SRTT_USEC= 10_000_000;
+
+	// Each failure counts as this much extra time when scoring
+	private static final long FAILURE_PENALTY_USEC= 1_000_000;
+
+	// Cap on the penalty, again so a server can recover
+	private static final long MAXIMUM_PENALTY_USEC= 8 * FAILURE_PENALTY_USEC;
+
+	private static class ServerEntry {
+		// Smoothed round trip time in microseconds.  Microseconds are used so that the decay
+		// still does something for fast servers.
+		private long srttUsec;
+
+		// Penalty for failures, worked off by successes and by decay
+		private long penaltyUsec;
+
+		private ServerEntry() {
+			srttUsec= 1 + ThreadLocalRandom.current().nextLong(INITIAL_SRTT_MAX_USEC);
+		}
+
+		private synchronized long getScore() {
+			return srttUsec + penaltyUsec;
+		}
+
+		private synchronized void success(long rttUsec) {
+			srttUsec= ((srttUsec * 7) + (rttUsec * 3)) / 10;
+			penaltyUsec= penaltyUsec / 2;
+		}
+
+		private synchronized void failure() {
+			srttUsec= Math.min(srttUsec * 2, MAXIMUM_SRTT_USEC);
+			penaltyUsec= Math.min(penaltyUsec + FAILURE_PENALTY_USEC, MAXIMUM_PENALTY_USEC);
+		}
+
+		private synchronized void decay() {
+			srttUsec= (srttUsec * DECAY_NUMERATOR) / DECAY_DENOMINATOR;
+
+			// A server that never gets picked can't succeed, so this is the only way a failure
+			// is ever forgotten
+			penaltyUsec= (penaltyUsec * DECAY_NUMERATOR) / DECAY_DENOMINATOR;
+		}
+	}
+
+	private final Map<InetSocketAddress, ServerEntry> serverMap= new ConcurrentHashMap<>();
+
+	private SmoothedRttRanker() {}
+
+	public static @NonNull NameserverRanker Create() {
+		return new SmoothedRttRanker();
+	}
+
+	private @NonNull ServerEntry getEntry(@NonNull InetSocketAddress server) {
+		@SuppressWarnings("null")
+		@NonNull ServerEntry entry= serverMap.computeIfAbsent(server, k -> new ServerEntry());
+
+		return entry;
+	}
+
+	@Override
+	public @NonNull List<@NonNull InetSocketAddress> order(
+			@NonNull List<@NonNull InetSocketAddress> servers)
+	{
+		int count= servers.size();
+
+		List<@NonNull InetSocketAddress> ordered= new ArrayList<>(servers);
+		if (count > 1) {
+			// Take a snapshot of the scores so the sort is consistent even if another thread
+			// reports a result in the middle of it.
+			long[] scores= new long[count];
+			for (int i= 0; i < count; i++) {
+				scores[i]= getEntry(ordered.get(i)).getScore();
+			}
+
+			// Insertion sort - these lists are a handful of servers at most
+			for (int i= 1; i < count; i++) {
+				InetSocketAddress server= ordered.get(i);
+				long score= scores[i];
+
+				int j= i - 1;
+				while ((j >= 0) && (scores[j] > score)) {
+					ordered.set(j + 1, ordered.get(j));
+					scores[j + 1]= scores[j];
+					j--;
+				}
+				ordered.set(j + 1, server);
+				scores[j + 1]= score;
+			}
+
+			// Everything that wasn't picked first moves a little closer to being picked
+			for (int i= 1; i < count; i++) {
+				getEntry(ordered.get(i)).decay();
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug("Nameserver order " + ordered.toString());
+			}
+		}
+
+		return ordered;
+	}
+
+	@Override
+	public void reportSuccess(
+			@NonNull InetSocketAddress server,
+			long rttMsec)
+	{
+		getEntry(server).success(rttMsec * 1000);
+	}
+
+	@Override
+	public void reportFailure(
+			@NonNull InetSocketAddress server)
+	{
+		getEntry(server).failure();
+	}
+}
@@ -0,0 +1,293 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Name;
+
+import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.FormatException;
+import com.teaglu.composite.exception.RangeException;
+import com.teaglu.composite.exception.SchemaException;
+import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.resolver.NameserverRanker;
+import com.teaglu.dnsalias.resolver.QueryBudget;
+import com.teaglu.dnsalias.resolver.QueryRateLimiter;
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+import com.teaglu.dnsalias.resolver.ZoneChangeHandler;
+import com.teaglu.dnsalias.resolver.ZoneSerialTracker;
+
+/**
+ * SourceResolverSet
+ *
+ * The resolvers shared by every alias, one for each way an alias can be resolved.  They all
+ * share a single ranker, so what's learned about a server is used no matter which resolver is
+ * talking to it.  Connections for the encrypted transports are only opened when an alias
+ * actually uses them.  They also share a rate limiter, so the queries from every alias together
+ * stay under the budget for each server.
+ */
+public class SourceResolverSet {
+	// Budget for each listed or authoritative server unless the configuration says otherwise.
+	// Aliases with low TTLs all reading from the same provider nameservers can otherwise trip
+	// their response rate limiting.
+	private static final int DEFAULT_QUERIES_PER_SECOND= 20;
+	private static final int DEFAULT_QUERY_BURST= 40;
+
+	// Plain DNS without a cache, used to walk down from the root
+	private final @NonNull SourceResolver directResolver;
+
+	// Recursive resolvers, which have their answers cached so aliases that share names along
+	// the way don't each query them
+	private final @NonNull CachingSourceResolver udpResolver;
+	private final @NonNull CachingSourceResolver tcpResolver;
+	private final @NonNull CachingSourceResolver tlsResolver;
+	private final @NonNull CachingSourceResolver httpsResolver;
+
+	// Authoritative aliases go straight to the servers that own each name
+	private final @NonNull SourceResolver authoritativeResolver;
+
+	// Transfer aliases are answered from copies of their zones
+	private final @NonNull TransferSourceResolver transferResolver;
+
+	// Source zone serials, for aliases that only look names up when their zone changes
+	private final @NonNull ZoneSerialTracker serialTracker= SharedZoneSerialTracker.Create();
+
+	private final @NonNull QueryRateLimiter rateLimiter= TokenBucketRateLimiter.Create(
+			QueryBudget.Create(DEFAULT_QUERIES_PER_SECOND, DEFAULT_QUERY_BURST));
+
+	private SourceResolverSet() {
+		NameserverRanker ranker= SmoothedRttRanker.Create();
+
+		// Truncated UDP answers go over the same TCP connections as the TCP transport
+		TransportFactory tcpFactory= TcpTransportFactory.Create();
+
+		directResolver= RankedSourceResolver.Create(
+				ranker, UdpTransportFactory.Create(tcpFactory), rateLimiter);
+
+		udpResolver= CachingSourceResolver.Create(directResolver);
+		tcpResolver= CachingSourceResolver.Create(
+				RankedSourceResolver.Create(ranker, tcpFactory, rateLimiter));
+		tlsResolver= CachingSourceResolver.Create(
+				RankedSourceResolver.Create(ranker, TlsTransportFactory.Create(), rateLimiter));
+		httpsResolver= CachingSourceResolver.Create(
+				RankedSourceResolver.Create(ranker, HttpsTransportFactory.Create(), rateLimiter));
+
+		authoritativeResolver= IterativeSourceResolver.Create(directResolver);
+		transferResolver= TransferSourceResolver.Create(directResolver);
+	}
+
+	public static @NonNull SourceResolverSet Create() {
+		return new SourceResolverSet();
+	}
+
+	/**
+	 * configure
+	 *
+	 * Set the query budgets from the rateLimit section of the configuration.  Anything it leaves
+	 * out goes back to the default, so this can be called again whenever the configuration
+	 * changes.
+	 *
+	 * @param config					The rateLimit section, or null if there isn't one
+	 *
+	 * @throws SchemaException			The section isn't valid
+	 */
+	public void configure(@Nullable Composite config) throws SchemaException {
+		QueryBudget defaultBudget=
+				QueryBudget.Create(DEFAULT_QUERIES_PER_SECOND, DEFAULT_QUERY_BURST);
+		Map<@NonNull InetAddress, @NonNull QueryBudget> serverBudgets= new HashMap<>();
+
+		if (config != null) {
+			defaultBudget= parseBudget(config, defaultBudget, "rateLimit");
+
+			Composite serversConfig= config.getOptionalObject("servers");
+			if (serversConfig != null) {
+				for (Map.Entry<String, Composite> entry : serversConfig.getObjectMap()) {
+					String text= entry.getKey();
+
+					// Listed servers are limited by address, so a name here couldn't be matched
+					InetAddress address;
+					try {
+						address= Address.getByAddress(text);
+					} catch (UnknownHostException addressException) {
+						throw new FormatException(
+								"rateLimit.servers [" + text + "] is not a valid address");
+					}
+
+					@SuppressWarnings("null")
+					@NonNull Composite serverConfig= entry.getValue();
+
+					serverBudgets.put(address, parseBudget(
+							serverConfig, defaultBudget, "rateLimit.servers." + text));
+				}
+			}
+		}
+
+		rateLimiter.setBudget(defaultBudget, serverBudgets);
+	}
+
+	// Read a budget, taking whatever it leaves out from the one it falls back on
+	private static @NonNull QueryBudget parseBudget(
+			@NonNull Composite config,
+			@NonNull QueryBudget fallback,
+			@NonNull String path) throws SchemaException
+	{
+		double rate= fallback.getRate();
+		Integer configRate= config.getOptionalInteger("rate");
+		if (configRate != null) {
+			if (configRate < 1) {
+				throw new RangeException(path + ".rate must be at least 1");
+			}
+			rate= configRate;
+		}
+
+		double burst= fallback.getBurst();
+		Integer configBurst= config.getOptionalInteger("burst");
+		if (configBurst != null) {
+			if (configBurst < 1) {
+				throw new RangeException(path + ".burst must be at least 1");
+			}
+			burst= configBurst;
+		}
+
+		return QueryBudget.Create(rate, burst);
+	}
+
+	/**
+	 * getResolver
+	 *
+	 * Get the resolver an alias should use.
+	 *
+	 * @param alias						Alias
+	 * @return							Resolver for the alias
+	 */
+	public @NonNull SourceResolver getResolver(@NonNull Alias alias) {
+		switch (alias.getSourceMode()) {
+		case AUTHORITATIVE:
+			return authoritativeResolver;
+
+		case TRANSFER:
+			return transferResolver;
+
+		default:
+			break;
+		}
+
+		switch (alias.getSourceTransport()) {
+		case TCP:
+			return tcpResolver;
+
+		case TLS:
+			return tlsResolver;
+
+		case HTTPS:
+			return httpsResolver;
+
+		default:
+			return udpResolver;
+		}
+	}
+
+	/**
+	 * getSerialTracker
+	 *
+	 * Get the tracker for source zone serials, which is shared by every alias.
+	 *
+	 * @return							Serial tracker
+	 */
+	public @NonNull ZoneSerialTracker getSerialTracker() {
+		return serialTracker;
+	}
+
+	/**
+	 * getDirectResolver
+	 *
+	 * Get the resolver that sends queries straight to the servers it's given, without caching.
+	 *
+	 * @return							Direct resolver
+	 */
+	public @NonNull SourceResolver getDirectResolver() {
+		return directResolver;
+	}
+
+	/**
+	 * getAuthoritativeResolver
+	 *
+	 * Get the resolver that finds the authoritative servers for a name itself.
+	 *
+	 * @return							Authoritative resolver
+	 */
+	public @NonNull SourceResolver getAuthoritativeResolver() {
+		return authoritativeResolver;
+	}
+
+	/**
+	 * getRateLimiter
+	 *
+	 * Get the rate limiter shared by every resolver.
+	 *
+	 * @return							Rate limiter
+	 */
+	public @NonNull QueryRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * invalidate
+	 *
+	 * Drop whatever is held for names in a zone, for when the zone is known to have changed.
+	 * Cached answers and the zone serial are forgotten, and copies of the zone are checked for
+	 * changes on their next lookup.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void invalidate(@NonNull Name zone) {
+		invalidateCaches(zone);
+		transferResolver.invalidate(zone);
+	}
+
+	/**
+	 * invalidateCaches
+	 *
+	 * Same as invalidate, but leaves copies of the zone alone, for when it's a transfer of the
+	 * zone that found the change.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void invalidateCaches(@NonNull Name zone) {
+		udpResolver.invalidate(zone);
+		tcpResolver.invalidate(zone);
+		tlsResolver.invalidate(zone);
+		httpsResolver.invalidate(zone);
+		serialTracker.invalidate(zone);
+	}
+
+	/**
+	 * setZoneChangeHandler
+	 *
+	 * Set what is told when a copy of a zone kept by transfer is brought up to a new serial.
+	 *
+	 * @param handler					Handler, or null for none
+	 */
+	public void setZoneChangeHandler(@Nullable ZoneChangeHandler handler) {
+		transferResolver.setChangeHandler(handler);
+	}
+
+	/**
+	 * logStatistics
+	 *
+	 * Write the cache and rate limit statistics to the log.
+	 */
+	public void logStatistics() {
+		udpResolver.logStatistics();
+		tcpResolver.logStatistics();
+		tlsResolver.logStatistics();
+		httpsResolver.logStatistics();
+		rateLimiter.logStatistics();
+	}
+}
@@ -0,0 +1,363 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.dnsalias.resolver.Transport;
+
+/**
+ * StreamTransport
+ *
+ * Implementation of Transport over a persistent stream connection, using the two byte length
+ * framing that DNS over TCP and DNS over TLS both use.  Any number of queries can be outstanding
+ * on the connection at once, and answers are matched back up by message ID in whatever order
+ * they arrive, so one connection is shared by every alias using the server.
+ *
+ * For TLS the connection is opened with the server's name, so the certificate is checked
+ * against it and the session can be resumed when the connection has to be re-opened.
+ *
+ * If a connection can't be opened, further attempts are held off for a while that doubles with
+ * each failure.  Queries during that time fail straight away, so the resolver moves on to the
+ * next server instead of waiting on a connect timeout every time.
+ *
+ * Nothing waits on a thread of its own.  Each connection has one thread, which opens it and then
+ * reads answers from it, and queries sent while it is being opened are written as soon as it is
+ * up.  Queries that go unanswered are failed by the shared query timer.
+ */
+public class StreamTransport implements Transport {
+	private static final Logger log= LoggerFactory.getLogger(StreamTransport.class);
+
+	// How long to wait for a connection to be set up
+	private static final int CONNECT_TIMEOUT_MSEC= 5_000;
+
+	// How long to wait for an answer once the query has been written
+	private static final long QUERY_TIMEOUT_MSEC= 10_000;
+
+	// Hold-off after a failed connect, doubling on each failure up to the maximum
+	private static final long INITIAL_BACKOFF_MSEC= 1_000;
+	private static final long MAXIMUM_BACKOFF_MSEC= 60_000;
+
+	// Counter to set thread names
+	private static final AtomicInteger threadCounter= new AtomicInteger(1);
+
+	private final @NonNull InetSocketAddress server;
+
+	// Null for plain TCP
+	private final @Nullable SSLSocketFactory sslSocketFactory;
+
+	// One open connection.  When it fails everything waiting on it fails with it, and the next
+	// query opens a new one.
+	private class Connection implements Runnable {
+		private final @NonNull Socket socket;
+		private final @NonNull OutputStream outputStream;
+		private final @NonNull DataInputStream inputStream;
+
+		// Queries waiting for an answer, by the ID they were sent with
+		private final @NonNull Map<@NonNull Integer, @NonNull CompletableFuture<byte[]>> pending=
+				new ConcurrentHashMap<>();
+
+		private volatile boolean closed;
+
+		private Connection(@NonNull Socket socket) throws IOException {
+			this.socket= socket;
+
+			@SuppressWarnings("null")
+			@NonNull OutputStream tmpOutputStream= socket.getOutputStream();
+			outputStream= tmpOutputStream;
+
+			inputStream= new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		// Each frame goes out in a single write, so queries from different threads can't be
+		// interleaved with each other.
+		private synchronized void write(byte @NonNull [] frame) throws IOException {
+			outputStream.write(frame);
+			outputStream.flush();
+		}
+
+		private void fail(@NonNull IOException exception) {
+			closed= true;
+
+			try {
+				socket.close();
+			} catch (IOException closeException) {
+			}
+
+			for (Integer id : pending.keySet()) {
+				CompletableFuture<byte[]> future= pending.remove(id);
+				if (future != null) {
+					future.completeExceptionally(exception);
+				}
+			}
+		}
+
+		// Reads answers until the connection drops.  Servers are allowed to close connections
+		// that sit idle, so that isn't treated as anything unusual.
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					int length= inputStream.readUnsignedShort();
+					byte[] data= new byte[length];
+					inputStream.readFully(data);
+
+					if (length < 2) {
+						continue;
+					}
+
+					int id= ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+
+					CompletableFuture<byte[]> future= pending.remove(id);
+					if (future != null) {
+						future.complete(data);
+					} else {
+						log.debug("Discarding answer from " + server + " with unknown ID " + id);
+					}
+				}
+			} catch (IOException readException) {
+				if (!closed) {
+					log.debug("Connection to " + server + " closed", readException);
+				}
+
+				fail(new IOException("Connection to " + server + " closed", readException));
+			}
+		}
+	}
+
+	// Guarded by this - the open connection, or the one being opened
+	private Connection connection;
+	private CompletableFuture<@NonNull Connection> connecting;
+
+	// Guarded by this - when the next connect can be tried, and how long to wait after that
+	private long nextConnectTime;
+	private long backoffMsec= INITIAL_BACKOFF_MSEC;
+
+	private StreamTransport(
+			@NonNull InetSocketAddress server,
+			@Nullable SSLSocketFactory sslSocketFactory)
+	{
+		this.server= server;
+		this.sslSocketFactory= sslSocketFactory;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a transport to one server.
+	 *
+	 * @param server					Server address and port
+	 * @param sslSocketFactory			Factory for TLS sockets, or null for plain TCP
+	 *
+	 * @return							New transport
+	 */
+	public static @NonNull StreamTransport Create(
+			@NonNull InetSocketAddress server,
+			@Nullable SSLSocketFactory sslSocketFactory)
+	{
+		return new StreamTransport(server, sslSocketFactory);
+	}
+
+	private @NonNull Socket connect() throws IOException {
+		Socket socket= new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(server, CONNECT_TIMEOUT_MSEC);
+
+		SSLSocketFactory factory= sslSocketFactory;
+		if (factory == null) {
+			return socket;
+		}
+
+		try {
+			// Layering on with the server name sets SNI and the session cache key
+			SSLSocket sslSocket= (SSLSocket)factory.createSocket(
+					socket, server.getHostString(), server.getPort(), true);
+
+			SSLParameters parameters= sslSocket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			sslSocket.setSSLParameters(parameters);
+
+			sslSocket.startHandshake();
+
+			return sslSocket;
+		} catch (IOException handshakeException) {
+			socket.close();
+			throw handshakeException;
+		}
+	}
+
+	private synchronized @NonNull CompletableFuture<@NonNull Connection> getConnection() {
+		Connection current= connection;
+		if ((current != null) && !current.closed) {
+			@SuppressWarnings("null")
+			@NonNull CompletableFuture<@NonNull Connection> open=
+					CompletableFuture.completedFuture(current);
+
+			return open;
+		}
+
+		CompletableFuture<@NonNull Connection> opening= connecting;
+		if (opening != null) {
+			return opening;
+		}
+
+		opening= new CompletableFuture<>();
+
+		long now= System.currentTimeMillis();
+		if (now < nextConnectTime) {
+			opening.completeExceptionally(new IOException("Not connecting to " + server +
+					" for another " + (nextConnectTime - now) + " milliseconds after failures"));
+
+			return opening;
+		}
+
+		connecting= opening;
+
+		CompletableFuture<@NonNull Connection> tmpOpening= opening;
+		Thread thread= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				open(tmpOpening);
+			}
+		}, "stream-reader-" + threadCounter.getAndIncrement());
+		thread.setDaemon(true);
+		thread.start();
+
+		return opening;
+	}
+
+	// Runs on the connection's own thread, which goes on to read from it once it's open
+	private void open(@NonNull CompletableFuture<@NonNull Connection> opening) {
+		Connection opened;
+		try {
+			opened= new Connection(connect());
+		} catch (IOException connectException) {
+			synchronized (this) {
+				connecting= null;
+				nextConnectTime= System.currentTimeMillis() + backoffMsec;
+				backoffMsec= Math.min(backoffMsec * 2, MAXIMUM_BACKOFF_MSEC);
+			}
+
+			log.debug("Unable to connect to " + server, connectException);
+			opening.completeExceptionally(connectException);
+
+			return;
+		}
+
+		synchronized (this) {
+			connecting= null;
+			nextConnectTime= 0;
+			backoffMsec= INITIAL_BACKOFF_MSEC;
+
+			connection= opened;
+		}
+
+		log.debug("Opened connection to " + server);
+
+		// Queries waiting on the connect are written from here before reading starts
+		opening.complete(opened);
+		opened.run();
+	}
+
+	@Override
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query)
+	{
+		CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+		if (query.length < 2) {
+			future.completeExceptionally(new IOException("Query is too short to carry an ID"));
+			return future;
+		}
+
+		byte[] frame= new byte[query.length + 2];
+		frame[0]= (byte)(query.length >>> 8);
+		frame[1]= (byte)query.length;
+		System.arraycopy(query, 0, frame, 2, query.length);
+
+		QueryTimer.failAfter(future, QUERY_TIMEOUT_MSEC,
+				"Timed out waiting for answer from " + server);
+
+		send(query, frame, future, false);
+
+		return future;
+	}
+
+	private void send(
+			byte @NonNull [] query,
+			byte @NonNull [] frame,
+			@NonNull CompletableFuture<byte @NonNull []> future,
+			boolean retry)
+	{
+		getConnection().whenComplete((current, connectException) -> {
+			if (connectException != null) {
+				future.completeExceptionally(connectException);
+				return;
+			}
+
+			// Timed out while the connection was being opened
+			if (future.isDone()) {
+				return;
+			}
+
+			int originalId= ((query[0] & 0xFF) << 8) | (query[1] & 0xFF);
+
+			// IDs only have to be unique among the queries outstanding on this connection
+			CompletableFuture<byte[]> answer= new CompletableFuture<>();
+			int id= originalId;
+			while (current.pending.putIfAbsent(id, answer) != null) {
+				id= ThreadLocalRandom.current().nextInt(0x10000);
+			}
+			frame[2]= (byte)(id >>> 8);
+			frame[3]= (byte)id;
+
+			try {
+				current.write(frame);
+			} catch (IOException writeException) {
+				current.pending.remove(id);
+				current.fail(writeException);
+
+				// A connection the server has quietly closed only shows up when we write to it,
+				// so that gets one more try on a new connection.
+				if (retry) {
+					future.completeExceptionally(writeException);
+				} else {
+					send(query, frame, future, true);
+				}
+				return;
+			}
+
+			// A query that times out or is given up on stops waiting for its answer
+			int sentId= id;
+			future.whenComplete((result, exception) -> current.pending.remove(sentId, answer));
+
+			answer.whenComplete((data, exception) -> {
+				if (exception != null) {
+					future.completeExceptionally(exception);
+				} else {
+					// Only answers at least two bytes long are ever matched to a query
+					data[0]= query[0];
+					data[1]= query[1];
+
+					future.complete(data);
+				}
+			});
+		});
+	}
+}
@@ -0,0 +1,39 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.dnsalias.resolver.Transport;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+
+/**
+ * TcpTransportFactory
+ *
+ * Implementation of TransportFactory for DNS over TCP.  Each server gets one persistent
+ * connection that every alias shares, with queries pipelined on it the way RFC 7766 describes,
+ * so large answers don't cost a new handshake on every poll.
+ */
+public class TcpTransportFactory implements TransportFactory {
+	private final @NonNull Map<@NonNull InetSocketAddress, @NonNull Transport> transportMap=
+			new ConcurrentHashMap<>();
+
+	private TcpTransportFactory() {}
+
+	public static @NonNull TransportFactory Create() {
+		return new TcpTransportFactory();
+	}
+
+	@Override
+	public @NonNull Transport getTransport(
+			@NonNull InetSocketAddress server)
+	{
+		@SuppressWarnings("null")
+		@NonNull Transport transport= transportMap.computeIfAbsent(
+				server, k -> StreamTransport.Create(server, null));
+
+		return transport;
+	}
+}
@@ -0,0 +1,65 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.teaglu.dnsalias.resolver.Transport;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+
+/**
+ * TlsTransportFactory
+ *
+ * Implementation of TransportFactory for DNS over TLS (RFC 7858).  Each server gets one
+ * persistent connection that every alias shares.  All connections come from the same socket
+ * factory, so a connection that has to be re-opened can resume its TLS session.
+ */
+public class TlsTransportFactory implements TransportFactory {
+	private final @NonNull SSLSocketFactory sslSocketFactory;
+
+	private final @NonNull Map<@NonNull InetSocketAddress, @NonNull Transport> transportMap=
+			new ConcurrentHashMap<>();
+
+	private TlsTransportFactory(@NonNull SSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory= sslSocketFactory;
+	}
+
+	public static @NonNull TransportFactory Create() {
+		@SuppressWarnings("null")
+		@NonNull SSLSocketFactory defaultFactory= (SSLSocketFactory)SSLSocketFactory.getDefault();
+
+		return new TlsTransportFactory(defaultFactory);
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a factory whose connections use a particular TLS context, such as one that trusts
+	 * a private CA.
+	 *
+	 * @param sslContext				Context for the connections
+	 * @return							New factory
+	 */
+	public static @NonNull TransportFactory Create(@NonNull SSLContext sslContext) {
+		@SuppressWarnings("null")
+		@NonNull SSLSocketFactory factory= sslContext.getSocketFactory();
+
+		return new TlsTransportFactory(factory);
+	}
+
+	@Override
+	public @NonNull Transport getTransport(
+			@NonNull InetSocketAddress server)
+	{
+		@SuppressWarnings("null")
+		@NonNull Transport transport= transportMap.computeIfAbsent(
+				server, k -> StreamTransport.Create(server, sslSocketFactory));
+
+		return transport;
+	}
+}
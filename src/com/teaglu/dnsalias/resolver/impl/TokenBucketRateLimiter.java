@@ -0,0 +1,360 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.dnsalias.resolver.QueryBudget;
+import com.teaglu.dnsalias.resolver.QueryRateLimiter;
+
+/**
+ * TokenBucketRateLimiter
+ *
+ * Implementation of QueryRateLimiter with a token bucket for each server.  A bucket holds up to
+ * a burst of queries and refills at a steady rate, so a quiet server can take a quick burst but
+ * nothing can be sent faster than the rate for long.  Every server gets the same budget unless
+ * its address has one of its own.
+ *
+ * Queries waiting on an empty bucket are grouped by what they ask about, and as tokens come in
+ * the groups take turns, the same way fair queuing shares a link between flows.  Nothing blocks
+ * while it waits - the shared query timer hands out tokens as they come in, and completes the
+ * futures of the queries that get them.
+ */
+public class TokenBucketRateLimiter implements QueryRateLimiter {
+	private static final Logger log= LoggerFactory.getLogger(TokenBucketRateLimiter.class);
+
+	// Longest a query waits for a token before giving up on it
+	private static final long MAXIMUM_WAIT_MSEC= 10_000;
+
+	private final @NonNull Lock lock= new ReentrantLock();
+
+	// Budget for servers without one of their own, and the ones that have one.  Guarded by the
+	// lock.
+	private @NonNull QueryBudget defaultBudget;
+	private @NonNull Map<@NonNull InetAddress, @NonNull QueryBudget> serverBudgets=
+			new HashMap<>();
+
+	private static class Waiter {
+		private final @NonNull String flow;
+		private final long start= System.nanoTime();
+
+		private final @NonNull CompletableFuture<@Nullable Void> future=
+				new CompletableFuture<>();
+
+		private Waiter(@NonNull String flow) {
+			this.flow= flow;
+		}
+	}
+
+	private class Bucket {
+		// Queries a second the bucket refills with, and the most it can hold
+		private double rate;
+		private double burst;
+
+		private double tokens;
+		private long refillNanos= System.nanoTime();
+
+		// Waiting queries for each flow, in the order the flows take their turns
+		private final @NonNull LinkedHashMap<@NonNull String, @NonNull ArrayDeque<@NonNull Waiter>>
+				flows= new LinkedHashMap<>();
+
+		private int waiting;
+
+		// Whether the timer is already set for the next token
+		private boolean tickScheduled;
+
+		// Statistics since they were last logged
+		private long overBudget;
+		private long waits;
+		private long waitMsec;
+		private long timeouts;
+
+		private Bucket(@NonNull QueryBudget budget) {
+			rate= budget.getRate();
+			burst= budget.getBurst();
+			tokens= burst;
+		}
+
+		// Tokens already in the bucket are kept, up to the new burst
+		private void setBudget(@NonNull QueryBudget budget) {
+			refill();
+
+			rate= budget.getRate();
+			burst= budget.getBurst();
+			tokens= Math.min(tokens, burst);
+		}
+
+		private void refill() {
+			long now= System.nanoTime();
+			tokens= Math.min(burst, tokens + (((now - refillNanos) * rate) / 1_000_000_000.0));
+			refillNanos= now;
+		}
+
+		// Hand out whatever tokens there are, one flow at a time.  The waiters that got one are
+		// returned so their futures can be completed outside the lock.
+		private @NonNull List<@NonNull Waiter> grant() {
+			refill();
+
+			List<@NonNull Waiter> granted= new ArrayList<>();
+			while ((tokens >= 1.0) && !flows.isEmpty()) {
+				Iterator<Map.Entry<@NonNull String, @NonNull ArrayDeque<@NonNull Waiter>>> iter=
+						flows.entrySet().iterator();
+
+				Map.Entry<@NonNull String, @NonNull ArrayDeque<@NonNull Waiter>> flow= iter.next();
+				iter.remove();
+
+				Waiter waiter= flow.getValue().poll();
+				if (waiter != null) {
+					tokens-= 1.0;
+					waiting--;
+					waitMsec+= TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.start);
+					granted.add(waiter);
+				}
+
+				// Back of the line for its next turn
+				if (!flow.getValue().isEmpty()) {
+					flows.put(flow.getKey(), flow.getValue());
+				}
+			}
+
+			return granted;
+		}
+
+		private boolean remove(@NonNull Waiter waiter) {
+			ArrayDeque<@NonNull Waiter> queue= flows.get(waiter.flow);
+			if ((queue != null) && queue.remove(waiter)) {
+				waiting--;
+				if (queue.isEmpty()) {
+					flows.remove(waiter.flow);
+				}
+				return true;
+			}
+
+			return false;
+		}
+
+		// How long until the next token comes in
+		private long getRefillWaitMsec() {
+			return Math.max(1, (long)Math.ceil(((1.0 - tokens) * 1000.0) / rate));
+		}
+
+		// Set the timer for the next token if anything is waiting on one
+		private void scheduleTick() {
+			if (!tickScheduled && (waiting > 0)) {
+				tickScheduled= true;
+				QueryTimer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						tick(Bucket.this);
+					}
+				}, getRefillWaitMsec());
+			}
+		}
+	}
+
+	// Guarded by the lock
+	private final @NonNull Map<@NonNull InetSocketAddress, @NonNull Bucket> buckets=
+			new HashMap<>();
+
+	private TokenBucketRateLimiter(@NonNull QueryBudget defaultBudget) {
+		this.defaultBudget= defaultBudget;
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a limiter with the same budget for every server, until others are set.
+	 *
+	 * @param defaultBudget				Budget for each server
+	 *
+	 * @return							New limiter
+	 */
+	public static @NonNull QueryRateLimiter Create(@NonNull QueryBudget defaultBudget) {
+		return new TokenBucketRateLimiter(defaultBudget);
+	}
+
+	private @NonNull QueryBudget getBudget(@NonNull InetSocketAddress server) {
+		QueryBudget budget= serverBudgets.get(server.getAddress());
+		return (budget != null) ? budget : defaultBudget;
+	}
+
+	private @NonNull Bucket getBucket(@NonNull InetSocketAddress server) {
+		Bucket bucket= buckets.get(server);
+		if (bucket == null) {
+			bucket= new Bucket(getBudget(server));
+			buckets.put(server, bucket);
+		}
+
+		return bucket;
+	}
+
+	@Override
+	public void setBudget(
+			@NonNull QueryBudget defaultBudget,
+			@NonNull Map<@NonNull InetAddress, @NonNull QueryBudget> serverBudgets)
+	{
+		lock.lock();
+		try {
+			this.defaultBudget= defaultBudget;
+			this.serverBudgets= new HashMap<>(serverBudgets);
+
+			for (Map.Entry<@NonNull InetSocketAddress, @NonNull Bucket> entry
+					: buckets.entrySet())
+			{
+				entry.getValue().setBudget(getBudget(entry.getKey()));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean tryAcquire(@NonNull InetSocketAddress server) {
+		lock.lock();
+		try {
+			Bucket bucket= getBucket(server);
+			bucket.refill();
+
+			// Queries already waiting go first
+			if ((bucket.waiting == 0) && (bucket.tokens >= 1.0)) {
+				bucket.tokens-= 1.0;
+				return true;
+			}
+
+			bucket.overBudget++;
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public @NonNull CompletableFuture<@Nullable Void> acquire(
+			@NonNull InetSocketAddress server,
+			@NonNull String flow)
+	{
+		Waiter waiter= new Waiter(flow);
+		Bucket bucket;
+
+		lock.lock();
+		try {
+			bucket= getBucket(server);
+			bucket.refill();
+
+			if ((bucket.waiting == 0) && (bucket.tokens >= 1.0)) {
+				bucket.tokens-= 1.0;
+
+				@SuppressWarnings("null")
+				@NonNull CompletableFuture<@Nullable Void> granted=
+						CompletableFuture.completedFuture(null);
+
+				return granted;
+			}
+
+			ArrayDeque<@NonNull Waiter> queue= bucket.flows.get(flow);
+			if (queue == null) {
+				queue= new ArrayDeque<>();
+				bucket.flows.put(flow, queue);
+			}
+			queue.add(waiter);
+			bucket.waiting++;
+			bucket.waits++;
+
+			bucket.scheduleTick();
+		} finally {
+			lock.unlock();
+		}
+
+		ScheduledFuture<?> expiry= QueryTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expire(bucket, waiter, server);
+			}
+		}, MAXIMUM_WAIT_MSEC);
+		waiter.future.whenComplete((result, exception) -> expiry.cancel(false));
+
+		return waiter.future;
+	}
+
+	private void tick(@NonNull Bucket bucket) {
+		List<@NonNull Waiter> granted;
+
+		lock.lock();
+		try {
+			bucket.tickScheduled= false;
+			granted= bucket.grant();
+			bucket.scheduleTick();
+		} finally {
+			lock.unlock();
+		}
+
+		for (Waiter waiter : granted) {
+			waiter.future.complete(null);
+		}
+	}
+
+	private void expire(
+			@NonNull Bucket bucket,
+			@NonNull Waiter waiter,
+			@NonNull InetSocketAddress server)
+	{
+		lock.lock();
+		try {
+			if (!bucket.remove(waiter)) {
+				// Already got its token
+				return;
+			}
+
+			bucket.timeouts++;
+			bucket.waitMsec+= MAXIMUM_WAIT_MSEC;
+		} finally {
+			lock.unlock();
+		}
+
+		waiter.future.completeExceptionally(new IOException("Query to " + server.toString() +
+				" was held back by the rate limit for more than " +
+				MAXIMUM_WAIT_MSEC + " milliseconds"));
+	}
+
+	@Override
+	public void logStatistics() {
+		lock.lock();
+		try {
+			for (Map.Entry<@NonNull InetSocketAddress, @NonNull Bucket> entry
+					: buckets.entrySet())
+			{
+				Bucket bucket= entry.getValue();
+				if ((bucket.overBudget > 0) || (bucket.waits > 0)) {
+					log.info("Rate limit for " + entry.getKey().toString() + ": over budget " +
+							bucket.overBudget + " times, " + bucket.waits + " queries waited " +
+							bucket.waitMsec + " milliseconds in all, " + bucket.timeouts +
+							" gave up waiting");
+				}
+
+				bucket.overBudget= 0;
+				bucket.waits= 0;
+				bucket.waitMsec= 0;
+				bucket.timeouts= 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,733 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.ZoneTransferException;
+import org.xbill.DNS.ZoneTransferIn;
+
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.resolver.ZoneChangeHandler;
+
+/**
+ * TransferSourceResolver
+ *
+ * Implementation of SourceResolver that keeps a copy of each source zone by zone transfer, and
+ * answers queries from the copy instead of sending them anywhere.  However many aliases have
+ * names in a zone, keeping them all up to date costs one transfer per refresh interval.
+ *
+ * The zone a name belongs to is found with one SOA query to the listed servers the first time
+ * the name is asked for.  The whole zone is then transferred by AXFR, and after that it's
+ * brought up to date by IXFR every time the refresh interval in its SOA record passes, falling
+ * back to AXFR for servers that don't keep the changes.  If a refresh fails it's retried after
+ * the retry interval, and the copy is used until the expire interval passes.
+ *
+ * Refreshes run in the background on a small pool, and lookups go on being answered from the
+ * current copy while one is under way.  Only the first transfer of a zone, or one asked for by
+ * invalidate, is waited for, and that wait is on a future rather than a thread.  When a refresh
+ * brings in a new serial the change handler is told, so the aliases reading the zone can be run
+ * again straight away.
+ *
+ * If the first transfer of a zone fails, lookups in it fail straight away for a while before
+ * another is tried, starting at the shortest refresh time and doubling each time up to a limit.
+ *
+ * Only the records that can answer for an address - A, AAAA and CNAME - are kept from the zone.
+ * A CNAME leading out of the zone can't be followed, so those names fail to resolve.
+ */
+public class TransferSourceResolver implements SourceResolver {
+	private static final Logger log= LoggerFactory.getLogger(TransferSourceResolver.class);
+
+	// How long a transfer can take
+	private static final Duration TRANSFER_TIMEOUT= Duration.ofSeconds(60);
+
+	// Shortest time between transfers, no matter what the SOA record says
+	private static final long MINIMUM_REFRESH_MSEC= 30_000;
+
+	// Longest wait before trying again to load a zone that has never been transferred
+	private static final long MAXIMUM_LOAD_BACKOFF_MSEC= 15 * 60_000;
+
+	// Most CNAMEs followed within the zone
+	private static final int MAXIMUM_CNAME_STEPS= 8;
+
+	// Threads for running transfers.  Zones are only transferred when they're due, so any beyond
+	// this wait their turn in the queue.
+	private static final int TRANSFER_THREADS= 4;
+
+	private static final class ZoneKey {
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+		private final @NonNull Name name;
+
+		private ZoneKey(
+				@NonNull List<@NonNull InetSocketAddress> servers,
+				@NonNull Name name)
+		{
+			this.servers= servers;
+			this.name= name;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof ZoneKey)) {
+				return false;
+			}
+
+			ZoneKey otherKey= (ZoneKey)other;
+			return name.equals(otherKey.name) && servers.equals(otherKey.servers);
+		}
+
+		@Override
+		public int hashCode() {
+			return (servers.hashCode() * 31) + name.hashCode();
+		}
+	}
+
+	private static boolean isKept(@NonNull Record record) {
+		switch (record.getType()) {
+		case Type.A:
+		case Type.AAAA:
+		case Type.CNAME:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	// What lookups are answered from.  A refresh builds a new one instead of changing the one in
+	// use, so lookups never wait on a transfer that's under way.
+	private static final class Copy {
+		private final @NonNull Map<@NonNull Name, @NonNull List<@NonNull Record>> records;
+		private final @NonNull SOARecord soa;
+		private final long expires;
+
+		private Copy(
+				@NonNull Map<@NonNull Name, @NonNull List<@NonNull Record>> records,
+				@NonNull SOARecord soa)
+		{
+			this.records= records;
+			this.soa= soa;
+
+			expires= System.currentTimeMillis() + (soa.getExpire() * 1000);
+		}
+	}
+
+	// The copy of one zone from one set of servers.  Transfers run on the pool, and are started
+	// by the refresh timer of the SOA record or by invalidate.
+	private final class MirroredZone {
+		private final @NonNull Name zone;
+		private final @NonNull List<@NonNull InetSocketAddress> servers;
+
+		private volatile Copy copy;
+
+		// Guarded by this
+		private boolean refreshing;
+		private boolean refreshAgain;
+		private ScheduledFuture<?> refreshTimer;
+
+		// Guarded by this - what lookups wait on instead of using the copy, which is the first
+		// transfer or one asked for by invalidate, and what the running transfer will complete.
+		private CompletableFuture<@NonNull Copy> waiting;
+		private CompletableFuture<@NonNull Copy> serving;
+
+		// Guarded by this - while a zone that has never loaded is backing off, when the next
+		// try can be made, how long the wait was, and why the last try failed
+		private long loadRetry;
+		private long loadBackoffMsec;
+		private Exception loadFailure;
+
+		private MirroredZone(
+				@NonNull Name zone,
+				@NonNull List<@NonNull InetSocketAddress> servers)
+		{
+			this.zone= zone;
+			this.servers= servers;
+		}
+
+		// The copy to answer from, which has to wait for the first transfer, or for a transfer
+		// asked for because the zone is known to have changed.
+		private synchronized @NonNull CompletableFuture<@NonNull Copy> ready() {
+			CompletableFuture<@NonNull Copy> future= waiting;
+			if (future == null) {
+				Copy current= copy;
+				if (current != null) {
+					@SuppressWarnings("null")
+					@NonNull CompletableFuture<@NonNull Copy> completed=
+							CompletableFuture.completedFuture(current);
+
+					return completed;
+				}
+
+				// Nothing loaded yet.  If the last try failed, lookups fail until it's time
+				// for another.
+				long now= System.currentTimeMillis();
+				if (now < loadRetry) {
+					future= new CompletableFuture<>();
+					future.completeExceptionally(new IOException("Unable to transfer zone " +
+							zone + " - trying again in " +
+							TimeUnit.MILLISECONDS.toSeconds(loadRetry - now + 999) + " seconds",
+							loadFailure));
+
+					return future;
+				}
+
+				future= new CompletableFuture<>();
+				waiting= future;
+			}
+
+			startRefresh();
+
+			return future;
+		}
+
+		// Check for changes now instead of waiting for the refresh interval.  Lookups from now
+		// on wait for a transfer started after this.
+		private synchronized void refreshNow() {
+			if ((waiting == null) || (waiting == serving)) {
+				waiting= new CompletableFuture<>();
+			}
+
+			if (refreshing) {
+				refreshAgain= true;
+			} else {
+				startRefresh();
+			}
+		}
+
+		// Must hold the monitor
+		private void startRefresh() {
+			if (refreshing) {
+				return;
+			}
+
+			if (refreshTimer != null) {
+				refreshTimer.cancel(false);
+				refreshTimer= null;
+			}
+
+			refreshing= true;
+			serving= waiting;
+
+			transferService.execute(new Runnable() {
+				@Override
+				public void run() {
+					refresh();
+				}
+			});
+		}
+
+		private void refresh() {
+			Copy current= copy;
+			Copy next= null;
+			Exception failure= null;
+
+			try {
+				next= transfer(current);
+			} catch (IOException | ZoneTransferException | RuntimeException transferException) {
+				failure= transferException;
+			}
+
+			CompletableFuture<@NonNull Copy> served;
+			synchronized (this) {
+				served= serving;
+				serving= null;
+				refreshing= false;
+
+				if (waiting == served) {
+					waiting= null;
+				}
+
+				long delayMsec;
+				if (next != null) {
+					copy= next;
+					delayMsec= Math.max(next.soa.getRefresh() * 1000, MINIMUM_REFRESH_MSEC);
+
+					loadRetry= 0;
+					loadBackoffMsec= 0;
+					loadFailure= null;
+				} else if (current != null) {
+					delayMsec= Math.max(current.soa.getRetry() * 1000, MINIMUM_REFRESH_MSEC);
+				} else {
+					// Never loaded, so the first lookup after the backoff tries again
+					delayMsec= -1;
+
+					loadBackoffMsec= (loadBackoffMsec == 0) ? MINIMUM_REFRESH_MSEC :
+							Math.min(loadBackoffMsec * 2, MAXIMUM_LOAD_BACKOFF_MSEC);
+					loadRetry= System.currentTimeMillis() + loadBackoffMsec;
+					loadFailure= failure;
+				}
+
+				if (refreshAgain || (waiting != null)) {
+					refreshAgain= false;
+					startRefresh();
+				} else if (delayMsec >= 0) {
+					refreshTimer= QueryTimer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (MirroredZone.this) {
+								refreshTimer= null;
+								startRefresh();
+							}
+						}
+					}, delayMsec);
+				}
+			}
+
+			if (next != null) {
+				if (served != null) {
+					served.complete(next);
+				}
+
+				ZoneChangeHandler handler= changeHandler;
+				if ((handler != null) && (current != null) &&
+						(next.soa.getSerial() != current.soa.getSerial()))
+				{
+					try {
+						handler.zoneChanged(zone);
+					} catch (RuntimeException handlerException) {
+						log.error("Exception handling the change to zone " + zone,
+								handlerException);
+					}
+				}
+			} else if (current != null) {
+				log.warn("Unable to refresh zone " + zone + " - still using serial " +
+						current.soa.getSerial(), failure);
+
+				// Lookups go on with the copy there is, until it expires
+				if (served != null) {
+					served.complete(current);
+				}
+			} else {
+				log.warn("Unable to transfer zone " + zone, failure);
+
+				if (served != null) {
+					served.completeExceptionally(
+							new IOException("Unable to transfer zone " + zone, failure));
+				}
+			}
+		}
+
+		// Try each server until one gives a transfer
+		private @NonNull Copy transfer(
+				@Nullable Copy current) throws IOException, ZoneTransferException
+		{
+			Exception lastException= null;
+
+			for (InetSocketAddress server : servers) {
+				ZoneTransferIn transfer= (current != null) ?
+						ZoneTransferIn.newIXFR(zone, current.soa.getSerial(), true, server, null) :
+						ZoneTransferIn.newAXFR(zone, server, null);
+
+				transfer.setTimeout(TRANSFER_TIMEOUT);
+
+				try {
+					transfer.run();
+				} catch (IOException | ZoneTransferException transferException) {
+					log.debug("Transfer of " + zone + " from " + server + " failed",
+							transferException);
+
+					lastException= transferException;
+					continue;
+				}
+
+				Copy next;
+				if (transfer.isCurrent() && (current != null)) {
+					log.debug("Zone " + zone + " is still at serial " + current.soa.getSerial());
+
+					next= new Copy(current.records, current.soa);
+				} else if (transfer.isAXFR() || (current == null)) {
+					next= load(transfer.getAXFR());
+
+					log.info("Transferred zone " + zone + " at serial " + next.soa.getSerial() +
+							" from " + server);
+				} else {
+					next= apply(current, transfer.getIXFR());
+
+					log.info("Updated zone " + zone + " to serial " + next.soa.getSerial() +
+							" from " + server);
+				}
+
+				return next;
+			}
+
+			if (lastException instanceof ZoneTransferException) {
+				throw (ZoneTransferException)lastException;
+			}
+			throw new IOException("No server would transfer zone " + zone, lastException);
+		}
+
+		private @NonNull Copy load(@NonNull List<Record> transferred) throws ZoneTransferException {
+			Map<@NonNull Name, @NonNull List<@NonNull Record>> loadRecords= new HashMap<>();
+			SOARecord loadSoa= null;
+
+			for (Record record : transferred) {
+				if (record instanceof SOARecord) {
+					if (record.getName().equals(zone)) {
+						loadSoa= (SOARecord)record;
+					}
+				} else if (isKept(record)) {
+					loadRecords.computeIfAbsent(record.getName(), k -> new ArrayList<>(2))
+							.add(record);
+				}
+			}
+
+			if (loadSoa == null) {
+				throw new ZoneTransferException("Transfer of " + zone + " had no SOA record");
+			}
+
+			return new Copy(loadRecords, loadSoa);
+		}
+
+		// Apply the changes to a new map, since the current one may be answering lookups.  Record
+		// equality ignores the TTL, so a delete matches the record however it was added.
+		private @NonNull Copy apply(
+				@NonNull Copy current,
+				@NonNull List<ZoneTransferIn.Delta> deltas)
+		{
+			Map<@NonNull Name, @NonNull List<@NonNull Record>> applyRecords=
+					new HashMap<>(current.records.size() * 2);
+			for (Map.Entry<@NonNull Name, @NonNull List<@NonNull Record>> entry :
+					current.records.entrySet())
+			{
+				applyRecords.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+			}
+
+			SOARecord applySoa= current.soa;
+
+			for (ZoneTransferIn.Delta delta : deltas) {
+				for (Record record : delta.deletes) {
+					if (isKept(record)) {
+						List<@NonNull Record> existing= applyRecords.get(record.getName());
+						if (existing != null) {
+							existing.remove(record);
+							if (existing.isEmpty()) {
+								applyRecords.remove(record.getName());
+							}
+						}
+					}
+				}
+
+				for (Record record : delta.adds) {
+					if (record instanceof SOARecord) {
+						if (record.getName().equals(zone)) {
+							applySoa= (SOARecord)record;
+						}
+					} else if (isKept(record)) {
+						applyRecords.computeIfAbsent(record.getName(), k -> new ArrayList<>(2))
+								.add(record);
+					}
+				}
+			}
+
+			return new Copy(applyRecords, applySoa);
+		}
+
+		// Answer a query from a copy the way the zone's own servers would.  Empty answers carry
+		// the SOA record so the negative TTL can be worked out.
+		private @NonNull Message answer(
+				@NonNull Copy current,
+				@NonNull Message query,
+				@NonNull Record question) throws IOException
+		{
+			if (System.currentTimeMillis() >= current.expires) {
+				throw new IOException("Copy of zone " + zone + " has expired after failed " +
+						"transfers");
+			}
+
+			Message response= new Message(query.getHeader().getID());
+			response.getHeader().setFlag(Flags.QR);
+			response.getHeader().setFlag(Flags.AA);
+			if (query.getHeader().getFlag(Flags.RD)) {
+				response.getHeader().setFlag(Flags.RD);
+			}
+			response.addRecord(question, Section.QUESTION);
+
+			int type= question.getType();
+			Name name= question.getName();
+
+			if ((type == Type.SOA) && name.equals(zone)) {
+				response.addRecord(current.soa, Section.ANSWER);
+				return response;
+			}
+
+			for (int step= 0; step <= MAXIMUM_CNAME_STEPS; step++) {
+				List<@NonNull Record> nameRecords= current.records.get(name);
+				Record cname= null;
+				boolean found= false;
+
+				if (nameRecords != null) {
+					for (Record record : nameRecords) {
+						if (record.getType() == type) {
+							response.addRecord(record, Section.ANSWER);
+							found= true;
+						} else if (record instanceof CNAMERecord) {
+							cname= record;
+						}
+					}
+				}
+
+				if (found || (cname == null) || (type == Type.CNAME)) {
+					if (!found) {
+						response.addRecord(current.soa, Section.AUTHORITY);
+					}
+					return response;
+				}
+
+				response.addRecord(cname, Section.ANSWER);
+
+				name= ((CNAMERecord)cname).getTarget();
+				if (!name.subdomain(zone)) {
+					throw new IOException("CNAME chain for " + question.getName() +
+							" leads out of the transferred zone " + zone);
+				}
+			}
+
+			throw new IOException("CNAME chain too long resolving " + question.getName());
+		}
+	}
+
+	// Used to find out which zone a name is in
+	private final @NonNull SourceResolver delegate;
+
+	private final @NonNull Map<@NonNull ZoneKey, @NonNull MirroredZone> zones=
+			new ConcurrentHashMap<>();
+
+	// Which zone each name asked for belongs to, so that's only looked up once
+	private final @NonNull Map<@NonNull ZoneKey, @NonNull MirroredZone> nameZones=
+			new ConcurrentHashMap<>();
+
+	// Threads the transfers run on.  Lookups never wait on one of these, only on a future a
+	// transfer completes.
+	private final @NonNull ExecutorService transferService;
+
+	// Counter to set thread names
+	private final AtomicInteger threadCounter= new AtomicInteger(1);
+
+	// Told when a refresh brings in a new serial
+	private volatile @Nullable ZoneChangeHandler changeHandler;
+
+	private TransferSourceResolver(@NonNull SourceResolver delegate) {
+		this.delegate= delegate;
+
+		ThreadPoolExecutor tmpTransferService= new ThreadPoolExecutor(
+				TRANSFER_THREADS, TRANSFER_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread= new Thread(runnable,
+								"transfer-worker-" + threadCounter.getAndIncrement());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+
+		tmpTransferService.allowCoreThreadTimeOut(true);
+
+		transferService= tmpTransferService;
+	}
+
+	public static @NonNull TransferSourceResolver Create(@NonNull SourceResolver delegate) {
+		return new TransferSourceResolver(delegate);
+	}
+
+	/**
+	 * setChangeHandler
+	 *
+	 * Set what is told when a refresh brings a copy of a zone up to a new serial.  It isn't told
+	 * about the first transfer of a zone, or about a refresh asked for by invalidate that finds
+	 * the same serial.
+	 *
+	 * @param changeHandler				Handler, or null for none
+	 */
+	public void setChangeHandler(@Nullable ZoneChangeHandler changeHandler) {
+		this.changeHandler= changeHandler;
+	}
+
+	/**
+	 * invalidate
+	 *
+	 * Have copies of a zone checked for changes now instead of waiting for the refresh interval,
+	 * for when the zone is known to have changed.  The transfer runs in the background, and
+	 * lookups made after this wait for it instead of answering from the copy they would have.
+	 *
+	 * @param zone						Zone apex
+	 */
+	public void invalidate(@NonNull Name zone) {
+		for (MirroredZone mirror : zones.values()) {
+			if (mirror.zone.equals(zone)) {
+				mirror.refreshNow();
+			}
+		}
+	}
+
+	// The SOA record comes back in the answer for the apex, and in the authority section for
+	// any other name
+	private @NonNull CompletableFuture<@NonNull MirroredZone> findZone(
+			@NonNull Name name,
+			@NonNull List<@NonNull InetSocketAddress> servers)
+	{
+		ZoneKey nameKey= new ZoneKey(servers, name);
+
+		MirroredZone mirror= nameZones.get(nameKey);
+		if (mirror != null) {
+			@SuppressWarnings("null")
+			@NonNull CompletableFuture<@NonNull MirroredZone> future=
+					CompletableFuture.completedFuture(mirror);
+
+			return future;
+		}
+
+		CompletableFuture<@NonNull MirroredZone> future= new CompletableFuture<>();
+
+		delegate.exchangeAsync(
+				Message.newQuery(Record.newRecord(name, Type.SOA, DClass.IN)).toWire(), servers)
+				.whenComplete((wire, exception) -> {
+			if (exception != null) {
+				future.completeExceptionally(exception);
+				return;
+			}
+
+			Message response;
+			try {
+				response= new Message(wire);
+			} catch (IOException parseException) {
+				future.completeExceptionally(parseException);
+				return;
+			}
+
+			Name zone= null;
+			for (int section : new int[] { Section.ANSWER, Section.AUTHORITY }) {
+				for (Record record : response.getSection(section)) {
+					if ((record instanceof SOARecord) && name.subdomain(record.getName())) {
+						zone= record.getName();
+					}
+				}
+			}
+
+			if (zone == null) {
+				future.completeExceptionally(
+						new IOException("Unable to find the zone " + name + " belongs to"));
+				return;
+			}
+
+			@SuppressWarnings("null")
+			@NonNull MirroredZone zoneMirror= zones.computeIfAbsent(
+					new ZoneKey(servers, zone), k -> new MirroredZone(k.name, servers));
+
+			nameZones.put(nameKey, zoneMirror);
+
+			future.complete(zoneMirror);
+		});
+
+		return future;
+	}
+
+	@Override
+	public @NonNull Message send(
+			@NonNull Message query,
+			@Nullable List<@NonNull InetSocketAddress> servers) throws IOException
+	{
+		CompletableFuture<byte @NonNull []> future= exchangeAsync(query.toWire(), servers);
+		try {
+			return new Message(future.get());
+		} catch (InterruptedException interruptedException) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("Interrupted waiting for an answer");
+		} catch (ExecutionException executionException) {
+			Throwable cause= executionException.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException("Error waiting for an answer", cause);
+		}
+	}
+
+	// Answered straight from the copy once there is one, without taking a thread
+	@Override
+	public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+			byte @NonNull [] query,
+			@Nullable List<@NonNull InetSocketAddress> servers)
+	{
+		CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+
+		Message message;
+		try {
+			message= new Message(query);
+		} catch (IOException parseException) {
+			future.completeExceptionally(parseException);
+			return future;
+		}
+
+		if (servers == null) {
+			future.completeExceptionally(
+					new IOException("Zone transfers need the servers to be listed"));
+			return future;
+		}
+
+		Record question= message.getQuestion();
+		if ((question == null) || (question.getDClass() != DClass.IN)) {
+			future.completeExceptionally(
+					new IOException("Only IN class questions can be answered from a transfer"));
+			return future;
+		}
+
+		@SuppressWarnings("null")
+		@NonNull Name name= question.getName();
+
+		findZone(name, servers).whenComplete((mirror, findException) -> {
+			if (findException != null) {
+				future.completeExceptionally(findException);
+				return;
+			}
+
+			mirror.ready().whenComplete((copy, loadException) -> {
+				if (loadException != null) {
+					future.completeExceptionally(loadException);
+					return;
+				}
+
+				try {
+					future.complete(mirror.answer(copy, message, question).toWire());
+				} catch (IOException answerException) {
+					future.completeExceptionally(answerException);
+				} catch (RuntimeException runtimeException) {
+					future.completeExceptionally(runtimeException);
+				}
+			});
+		});
+
+		return future;
+	}
+}
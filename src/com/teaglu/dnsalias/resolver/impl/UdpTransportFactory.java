@@ -0,0 +1,362 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.dnsalias.resolver.Transport;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+
+/**
+ * UdpTransportFactory
+ *
+ * Implementation of TransportFactory for plain DNS over UDP.  Each query goes out from its own
+ * socket on a random port, and only an answer from the server carrying the query's ID and
+ * question is taken.
+ *
+ * The sockets are non-blocking, and a single selector thread for the factory reads the answers
+ * for every outstanding query, so waiting on a slow server doesn't cost a thread.
+ *
+ * When an answer is truncated the query is sent again over the transport for TCP, which keeps
+ * a connection open to the server instead of opening a new one each time.  That's handed to a
+ * thread of its own, since writing to a slow connection would otherwise hold up the selector.
+ */
+public class UdpTransportFactory implements TransportFactory {
+	private static final Logger log= LoggerFactory.getLogger(UdpTransportFactory.class);
+
+	// How long to wait for an answer
+	private static final int QUERY_TIMEOUT_MSEC= 10_000;
+
+	// Largest datagram that can arrive
+	private static final int MAXIMUM_DATAGRAM_SIZE= 65_535;
+
+	// Threads sending truncated queries again over TCP
+	private static final int TRUNCATION_THREADS= 2;
+
+	// Counter to set thread names
+	private static final AtomicInteger threadCounter= new AtomicInteger(1);
+
+	// One query waiting on its answer
+	private static class Exchange {
+		private final byte @NonNull [] query;
+		private final @NonNull InetSocketAddress server;
+		private final @NonNull DatagramChannel channel;
+
+		private final @NonNull CompletableFuture<byte @NonNull []> future=
+				new CompletableFuture<>();
+
+		private Exchange(
+				byte @NonNull [] query,
+				@NonNull InetSocketAddress server,
+				@NonNull DatagramChannel channel)
+		{
+			this.query= query;
+			this.server= server;
+			this.channel= channel;
+		}
+	}
+
+	private class UdpTransport implements Transport {
+		private final @NonNull InetSocketAddress server;
+
+		private UdpTransport(@NonNull InetSocketAddress server) {
+			this.server= server;
+		}
+
+		@Override
+		public @NonNull CompletableFuture<byte @NonNull []> exchangeAsync(
+				byte @NonNull [] query)
+		{
+			if (query.length < 12) {
+				CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+				future.completeExceptionally(
+						new IOException("Query is too short to be a DNS message"));
+
+				return future;
+			}
+
+			DatagramChannel channel= null;
+			try {
+				channel= DatagramChannel.open();
+				channel.configureBlocking(false);
+
+				// Connecting the socket drops datagrams from anywhere but the server
+				channel.connect(server);
+				channel.write(ByteBuffer.wrap(query));
+			} catch (IOException sendException) {
+				close(channel);
+
+				CompletableFuture<byte @NonNull []> future= new CompletableFuture<>();
+				future.completeExceptionally(sendException);
+
+				return future;
+			}
+
+			Exchange exchange= new Exchange(query, server, channel);
+
+			// The socket goes away however the query ends
+			DatagramChannel tmpChannel= channel;
+			exchange.future.whenComplete((result, exception) -> close(tmpChannel));
+
+			QueryTimer.failAfter(exchange.future, QUERY_TIMEOUT_MSEC,
+					"Timed out waiting for answer from " + server);
+
+			register(exchange);
+
+			return exchange.future;
+		}
+	}
+
+	// Transports used when an answer doesn't fit in UDP, and the threads that send to them
+	private final @NonNull TransportFactory truncationFactory;
+	private final @NonNull ThreadPoolExecutor truncationService;
+
+	private final @NonNull Map<@NonNull InetSocketAddress, @NonNull Transport> transportMap=
+			new ConcurrentHashMap<>();
+
+	// Queries sent but not yet registered with the selector, which can only be done from its
+	// own thread without risking a deadlock with select().
+	private final @NonNull Queue<@NonNull Exchange> registrations=
+			new ConcurrentLinkedQueue<>();
+
+	// Guarded by this - opened with the first query
+	private Selector selector;
+
+	private UdpTransportFactory(@NonNull TransportFactory truncationFactory) {
+		this.truncationFactory= truncationFactory;
+
+		truncationService= new ThreadPoolExecutor(
+				TRUNCATION_THREADS, TRUNCATION_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread= new Thread(runnable,
+								"udp-truncation-" + threadCounter.getAndIncrement());
+						thread.setDaemon(true);
+
+						return thread;
+					}
+				});
+
+		truncationService.allowCoreThreadTimeOut(true);
+	}
+
+	public static @NonNull TransportFactory Create() {
+		return new UdpTransportFactory(TcpTransportFactory.Create());
+	}
+
+	public static @NonNull TransportFactory Create(
+			@NonNull TransportFactory truncationFactory)
+	{
+		return new UdpTransportFactory(truncationFactory);
+	}
+
+	private static void close(@Nullable DatagramChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException closeException) {
+			}
+		}
+	}
+
+	private void register(@NonNull Exchange exchange) {
+		Selector current;
+		synchronized (this) {
+			current= selector;
+			if (current == null) {
+				try {
+					current= Selector.open();
+				} catch (IOException openException) {
+					exchange.future.completeExceptionally(openException);
+					return;
+				}
+
+				Selector tmpSelector= current;
+				Thread thread= new Thread(new Runnable() {
+					@Override
+					public void run() {
+						select(tmpSelector);
+					}
+				}, "udp-selector-" + threadCounter.getAndIncrement());
+				thread.setDaemon(true);
+				thread.start();
+
+				selector= current;
+			}
+		}
+
+		registrations.add(exchange);
+		current.wakeup();
+	}
+
+	// Reads answers for every outstanding query.  Nothing ever shuts a factory down, so this
+	// runs for the life of the program.
+	private void select(@NonNull Selector current) {
+		ByteBuffer buffer= ByteBuffer.allocate(MAXIMUM_DATAGRAM_SIZE);
+
+		while (true) {
+			try {
+				current.select();
+			} catch (IOException selectException) {
+				log.error("Error waiting on UDP sockets", selectException);
+				continue;
+			}
+
+			for (Exchange exchange; (exchange= registrations.poll()) != null; ) {
+				try {
+					exchange.channel.register(current, SelectionKey.OP_READ, exchange);
+				} catch (ClosedChannelException closedException) {
+					// Timed out before it was registered
+				}
+			}
+
+			Iterator<SelectionKey> iter= current.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key= iter.next();
+				iter.remove();
+
+				Exchange exchange= (Exchange)key.attachment();
+				if (key.isValid() && (exchange != null)) {
+					receive(exchange, buffer);
+				}
+			}
+		}
+	}
+
+	private void receive(@NonNull Exchange exchange, @NonNull ByteBuffer buffer) {
+		try {
+			for (;;) {
+				buffer.clear();
+				if (exchange.channel.read(buffer) <= 0) {
+					return;
+				}
+
+				if (matches(exchange.query, buffer)) {
+					break;
+				}
+
+				// Anything not answering this query is left to time out
+				log.debug("Discarding datagram from " + exchange.server + " not matching query");
+			}
+		} catch (IOException readException) {
+			// Includes the server's port being unreachable, which fails the query straight away
+			exchange.future.completeExceptionally(readException);
+			return;
+		}
+
+		byte[] response= new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(response);
+
+		if ((response[2] & 0x02) != 0) {
+			log.debug("Answer from " + exchange.server + " was truncated - retrying over TCP");
+
+			truncationService.execute(new Runnable() {
+				@Override
+				public void run() {
+					retryOverTcp(exchange);
+				}
+			});
+
+			return;
+		}
+
+		exchange.future.complete(response);
+	}
+
+	private void retryOverTcp(@NonNull Exchange exchange) {
+		// Timed out while it waited for a thread
+		if (exchange.future.isDone()) {
+			return;
+		}
+
+		truncationFactory.getTransport(exchange.server).exchangeAsync(exchange.query)
+				.whenComplete((result, exception) -> {
+					if (exception != null) {
+						exchange.future.completeExceptionally(exception);
+					} else {
+						exchange.future.complete(result);
+					}
+				});
+	}
+
+	// Whether a datagram answers the query it came back on.  Besides the ID the question has to
+	// be the one we asked, so a forged answer has to guess more than 16 bits to be taken.
+	private static boolean matches(byte @NonNull [] query, @NonNull ByteBuffer buffer) {
+		int length= buffer.position();
+		if ((length < 12) || (buffer.get(0) != query[0]) || (buffer.get(1) != query[1])) {
+			return false;
+		}
+
+		// Same question count
+		if ((buffer.get(4) != query[4]) || (buffer.get(5) != query[5])) {
+			return false;
+		}
+		if ((query[4] == 0) && (query[5] == 0)) {
+			return true;
+		}
+
+		// Our own queries never compress the name, so the question can be compared byte for
+		// byte.  Servers are allowed to change the case of the name, but not the type or class.
+		int nameEnd= 12;
+		while ((nameEnd < query.length) && (query[nameEnd] != 0)) {
+			if ((query[nameEnd] & 0xC0) != 0) {
+				return false;
+			}
+			nameEnd+= (query[nameEnd] & 0xFF) + 1;
+		}
+
+		int questionEnd= nameEnd + 5;
+		if ((questionEnd > query.length) || (questionEnd > length)) {
+			return false;
+		}
+
+		for (int i= 12; i <= nameEnd; i++) {
+			if (Character.toLowerCase((char)(query[i] & 0xFF)) !=
+					Character.toLowerCase((char)(buffer.get(i) & 0xFF)))
+			{
+				return false;
+			}
+		}
+		for (int i= nameEnd + 1; i < questionEnd; i++) {
+			if (query[i] != buffer.get(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public @NonNull Transport getTransport(
+			@NonNull InetSocketAddress server)
+	{
+		@SuppressWarnings("null")
+		@NonNull Transport transport= transportMap.computeIfAbsent(
+				server, k -> new UdpTransport(server));
+
+		return transport;
+	}
+}
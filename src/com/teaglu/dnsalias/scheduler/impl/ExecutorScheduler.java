@@ -1,43 +1,78 @@
 package com.teaglu.dnsalias.scheduler.impl;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
 
 import com.teaglu.composite.Composite;
+import com.teaglu.composite.exception.RangeException;
 import com.teaglu.composite.exception.SchemaException;
 import com.teaglu.composite.exception.UndefinedOptionException;
 import com.teaglu.configure.exception.ConfigException;
 import com.teaglu.configure.secret.SecretProvider;
 import com.teaglu.dnsalias.alert.AlertCategory;
+import com.teaglu.dnsalias.alert.AlertSink;
 import com.teaglu.dnsalias.alert.impl.ConfigurableSinkProxy;
 import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.alias.AliasType;
 import com.teaglu.dnsalias.alias.impl.CompositeAlias;
+import com.teaglu.dnsalias.convergence.ConvergenceTracker;
+import com.teaglu.dnsalias.convergence.impl.PollingConvergenceTracker;
 import com.teaglu.dnsalias.dns.DnsProvider;
 import com.teaglu.dnsalias.dns.DnsProviderFactory;
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.dns.exception.DnsException;
+import com.teaglu.dnsalias.health.HealthProber;
+import com.teaglu.dnsalias.health.impl.NioHealthProber;
+import com.teaglu.dnsalias.notify.NotifyHandler;
+import com.teaglu.dnsalias.notify.NotifyListener;
+import com.teaglu.dnsalias.notify.impl.DnsNotifyListener;
+import com.teaglu.dnsalias.processor.ChangeHandler;
+import com.teaglu.dnsalias.processor.Deadline;
 import com.teaglu.dnsalias.processor.Processor;
 import com.teaglu.dnsalias.processor.dnsjava.DnsJavaProcessor;
+import com.teaglu.dnsalias.processor.dnsjava.SpfProcessor;
 import com.teaglu.dnsalias.processor.exception.SourceException;
 import com.teaglu.dnsalias.processor.exception.DestinationException;
+import com.teaglu.dnsalias.resolver.ZoneChangeHandler;
+import com.teaglu.dnsalias.resolver.impl.SourceResolverSet;
 import com.teaglu.dnsalias.scheduler.Scheduler;
+import com.teaglu.dnsalias.stage.Stage;
+import com.teaglu.dnsalias.stage.impl.RingBufferStage;
 
 /**
  * ExecutorScheduler
@@ -70,12 +105,98 @@ public class ExecutorScheduler implements Scheduler {
 	// For exceptions that could be transient network errors, allow this many consecutive
 	// exceptions before sending an alert.  This might need to be configurable in the future.
 	private static final int ALLOWED_CONSECUTIVE_EXCEPTIONS= 1;
+
+	// How long past its deadline a run is left before its thread is interrupted.  The processor
+	// keeps to the deadline on its own where it can, so this is only for calls that can't be
+	// given one, like the provider APIs.
+	private static final long DEADLINE_GRACE_MSEC= 2_000;
+
+	// Alias runs are made on a fixed number of threads.  An alias is only ever queued once, so
+	// the queue in front of them can't grow past the number of aliases, and its depth shows up
+	// in the statistics when the threads can't keep up.
+	private static final int RUN_THREADS= 16;
+
+	// Provider writes are made on their own threads, so a slow provider doesn't hold up the
+	// lookups for other aliases.  Each thread has a queue of this many writes.
+	private static final int WRITE_THREADS= 4;
+	private static final int WRITE_QUEUE_SIZE= 256;
+
+	// Alerts are sent on their own thread, so a slow mail server holds up neither lookups nor
+	// writes
+	private static final int ALERT_QUEUE_SIZE= 1024;
+
+	// How often the queue statistics of the stages, the convergence times and the rate limit
+	// statistics are logged
+	private static final long STATISTICS_MSEC= 15 * 60_000;
+
+	// How long it takes by default to read every destination back once, looking for changes
+	// made by something else.  Zones are read back one at a time spread across the interval,
+	// but never closer together than the gap.
+	private static final long DEFAULT_RECONCILE_SECONDS= 6 * 3600;
+	private static final long MINIMUM_RECONCILE_GAP_MSEC= 1_000;
+
+	// How often to look again when reading back is turned off or there are no aliases
+	private static final long RECONCILE_IDLE_MSEC= 60_000;
 	
 	private @NonNull ConfigurableSinkProxy alertSinkProxy= new ConfigurableSinkProxy();
 
+	private final @NonNull Stage writeStage=
+			RingBufferStage.Create("write", WRITE_THREADS, WRITE_QUEUE_SIZE);
+
+	private final @NonNull Stage alertStage= RingBufferStage.Create("alert", 1, ALERT_QUEUE_SIZE);
+
+	// Hands alerts to the alert stage, which passes them on to whatever is configured
+	private final @NonNull AlertSink alertSink= new AlertSink() {
+		@Override
+		public void sendAlert(
+				@NonNull AlertCategory category,
+				@NonNull String message,
+				@Nullable Exception exception)
+		{
+			alertStage.submit(null, new Runnable() {
+				@Override
+				public void run() {
+					alertSinkProxy.sendAlert(category, message, exception);
+				}
+			});
+		}
+	};
+
 	private final MessageDigest nodeDigest;
 	private final Base64.Encoder base64Encoder;
 	
+	// Shared by every alias, so nameserver performance is learned across all of them and
+	// survives configuration changes.
+	private final @NonNull SourceResolverSet sourceResolvers= SourceResolverSet.Create();
+
+	// Watches writes until the provider's servers are answering with them, which is when the
+	// aliases reading the destination are moved up
+	private final @NonNull ConvergenceTracker convergenceTracker=
+			PollingConvergenceTracker.Create(
+					sourceResolvers.getAuthoritativeResolver(),
+					sourceResolvers.getDirectResolver());
+
+	// Shared by every alias that probes its addresses, so addresses they have in common are
+	// only probed once
+	private final @NonNull HealthProber healthProber= NioHealthProber.Create();
+
+	// How long it takes to read every destination back once in milliseconds, or 0 if they
+	// aren't read back
+	private volatile long reconcileMsec= DEFAULT_RECONCILE_SECONDS * 1000;
+
+	// Zones left to read back in this pass, each with the aliases writing to it, and how many
+	// the pass started with.  Only used on the timer thread.
+	private final @NonNull ArrayDeque<@NonNull List<@NonNull AliasEntry>> reconcileBatches=
+			new ArrayDeque<>();
+	private int reconcilePassSize;
+
+	private final @NonNull Runnable reconcileTask= new Runnable() {
+		@Override
+		public void run() {
+			reconcileNext();
+		}
+	};
+	
 	private ExecutorScheduler() {
 		try {
 			nodeDigest= MessageDigest.getInstance("SHA-1");
@@ -83,6 +204,15 @@ public class ExecutorScheduler implements Scheduler {
 			throw new RuntimeException("SHA not available");
 		}
 		base64Encoder= Base64.getEncoder();
+
+		// Aliases reading a transferred zone are run as soon as a refresh finds it changed,
+		// the same as for a NOTIFY
+		sourceResolvers.setZoneChangeHandler(new ZoneChangeHandler() {
+			@Override
+			public void zoneChanged(@NonNull Name zone) {
+				rescheduleZone(zone, true);
+			}
+		});
 	}
 	
 	public static @NonNull Scheduler Create() {
@@ -116,9 +246,14 @@ public class ExecutorScheduler implements Scheduler {
 		
 		// Next scheduled time for execution.  This is not locked because only modified after
 		// creation by the object itself when called on an executor service thread, and that is
-		// guaranteed to only be in-flight on one thread.
+		// guaranteed to only be in-flight on one thread.  The exception is a NOTIFY moving it up,
+		// which takes it out of the queue under the dispatch lock first.
 		private long next;
 
+		// Set under the dispatch lock when a NOTIFY comes in while the entry isn't in the queue,
+		// so it runs again as soon as it's queued instead of waiting out its TTL.
+		private boolean rerun;
+
 		// Used for messages during debugging
 		private final @NonNull String name;
 
@@ -128,17 +263,56 @@ public class ExecutorScheduler implements Scheduler {
 		
 		// Processor to run
 		private final @NonNull Processor processor;
+
+		// How long one run can take in milliseconds, or 0 for no limit
+		private final long deadlineMsec;
+
+		// Thread running the processor while it has a deadline, guarded by the entry
+		private Thread runningThread;
+
+		// Destination zone as configured, which is how the provider looks it up
+		private final @NonNull String destinationZoneText;
+
+		// Destination zone and the full destination name, or null if they aren't valid names
+		private final @Nullable Name destinationZone;
+		private final @Nullable Name destination;
+
+		// Source names, used to find which aliases read the destination of another
+		private final @NonNull List<@NonNull Name> sources;
+
+		// Aliases with a source name that is this alias's destination.  Replaced as a whole
+		// under the alias map lock each time the configuration is loaded.
+		private volatile @NonNull List<@NonNull AliasEntry> dependents= Collections.emptyList();
 		
 		private AliasEntry(
 				@NonNull String digest,
 				@NonNull String name,
 				@NonNull ProviderEntry providerEntry,
-				@NonNull Processor processor)
+				@NonNull Processor processor,
+				@NonNull Alias alias)
 		{
 			this.digest= digest;
 			this.name= name;
 			this.providerEntry= providerEntry;
 			this.processor= processor;
+			this.deadlineMsec= alias.getDeadline();
+
+			String zoneText= alias.getDestinationZone();
+			String nameText= alias.getDestinationName();
+
+			destinationZoneText= zoneText;
+			destinationZone= parseName(zoneText);
+			destination= (nameText.isBlank() || nameText.equals("@")) ?
+					destinationZone : parseName(nameText + "." + zoneText);
+
+			List<@NonNull Name> sourceList= new ArrayList<>(4);
+			for (String sourceName : alias.getSourceNames()) {
+				Name source= parseName(sourceName);
+				if (source != null) {
+					sourceList.add(source);
+				}
+			}
+			sources= sourceList;
 		}
 		
 		// Java heap removal doesn't have a good O(), so if items don't need
@@ -181,14 +355,40 @@ public class ExecutorScheduler implements Scheduler {
 			// 300 is used in case of exception, so this is the amount of time to wait to retry
 			// in the exception case.
 			long recheckSeconds= 300;
+
+			Deadline deadline= Deadline.Create(deadlineMsec);
+
+			// If the run is still going a while after the deadline the thread is interrupted,
+			// which the waits in the processor and the AWS SDK both give up on
+			ScheduledFuture<?> watchdog= null;
+			if (deadline != Deadline.NONE) {
+				Thread worker= Thread.currentThread();
+				synchronized (this) {
+					runningThread= worker;
+				}
+
+				watchdog= timerService.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (AliasEntry.this) {
+							if (runningThread == worker) {
+								log.warn("Interrupting " + processor.toString() +
+										" which is still running past its deadline");
+								worker.interrupt();
+							}
+						}
+					}
+				}, deadlineMsec + DEADLINE_GRACE_MSEC, TimeUnit.MILLISECONDS);
+			}
+
 			try {
-				recheckSeconds= processor.process(alertSinkProxy);
+				recheckSeconds= processor.process(alertSink, deadline);
 
 				// Zero the counter
 				consecutiveExceptions= 0;
 			} catch (SourceException sourceException) {
 				if (++consecutiveExceptions > ALLOWED_CONSECUTIVE_EXCEPTIONS) {
-					alertSinkProxy.sendAlert(
+					alertSink.sendAlert(
 							AlertCategory.LOOKUP_EXCEPTION,
 							"An exception occurred reading source data for " +
 							processor.toString(),
@@ -200,7 +400,7 @@ public class ExecutorScheduler implements Scheduler {
 				}
 			} catch (DestinationException destinationException) {
 				if (++consecutiveExceptions > ALLOWED_CONSECUTIVE_EXCEPTIONS) {
-					alertSinkProxy.sendAlert(
+					alertSink.sendAlert(
 							AlertCategory.UPDATE_EXCEPTION,
 							"An exception occurred in the DNS provider for " +
 							processor.toString(),
@@ -211,24 +411,48 @@ public class ExecutorScheduler implements Scheduler {
 							destinationException);
 				}
 			} catch (Exception generalException) {
-				// This shouldn't really happen except for unchecked stuff
-				log.error("Exception processing alias", generalException);
-				
-				alertSinkProxy.sendAlert(
-						AlertCategory.PROCESSING_EXCEPTION,
-						"An exception occurred processing an alias",
-						generalException);
+				if (deadline.isExpired()) {
+					// Most likely a provider call that was interrupted, which is counted below
+					log.warn("Exception processing alias after its deadline passed",
+							generalException);
+				} else {
+					// This shouldn't really happen except for unchecked stuff
+					log.error("Exception processing alias", generalException);
+					
+					alertSink.sendAlert(
+							AlertCategory.PROCESSING_EXCEPTION,
+							"An exception occurred processing an alias",
+							generalException);
+				}
 			} catch (Error error) {
 				// I didn't think I'd run into these, but I got some weird MethodNotDefined
 				// error from the AWS SDK.  It can't hurt to catch everything we can.
 				log.error("Java error processing alias", error);
 				
-				alertSinkProxy.sendAlert(
+				alertSink.sendAlert(
 						AlertCategory.PROCESSING_EXCEPTION,
 						"A java error occurred processing an alias - check log files",
 						null);
 			}
 
+			if (watchdog != null) {
+				watchdog.cancel(false);
+				synchronized (this) {
+					runningThread= null;
+				}
+
+				// Clear an interrupt that came after the processor was done with it
+				Thread.interrupted();
+			}
+
+			if (deadline.isExpired()) {
+				long overruns= overrunCount.incrementAndGet();
+				log.warn("Processing " + processor.toString() + " ran " +
+						(System.currentTimeMillis() - deadline.getExpires()) +
+						" milliseconds past its deadline of " + deadlineMsec +
+						" milliseconds (overruns so far: " + overruns + ")");
+			}
+
 			// The active flag is synchronized on the alias entry - otherwise there could be
 			// a race condition with the configuration update
 			boolean localActive= false;
@@ -262,6 +486,12 @@ public class ExecutorScheduler implements Scheduler {
 	
 	private final Map<String, ProviderEntry> providerMap= new TreeMap<>();
 	private final Map<String, AliasEntry> aliasMap= new TreeMap<>();
+
+	// Listener for NOTIFY messages and the digest of its configuration, or null if the
+	// configuration doesn't have one.  Guarded by notifyLock.
+	private final Object notifyLock= new Object();
+	private NotifyListener notifyListener;
+	private String notifyDigest;
 	
 	public void configure(
 			@NonNull Composite config,
@@ -275,6 +505,148 @@ public class ExecutorScheduler implements Scheduler {
 		
 		Composite aliasesConfig= config.getRequiredObject("aliases");
 		configureAliases(aliasesConfig);
+
+		Composite notifyConfig= config.getOptionalObject("notify");
+		configureNotify(notifyConfig, secretProvider);
+
+		Composite reconcileConfig= config.getOptionalObject("reconcile");
+		configureReconcile(reconcileConfig);
+
+		Composite rateLimitConfig= config.getOptionalObject("rateLimit");
+		sourceResolvers.configure(rateLimitConfig);
+	}
+
+	private void configureReconcile(@Nullable Composite config) throws SchemaException {
+		long seconds= DEFAULT_RECONCILE_SECONDS;
+		if (config != null) {
+			Integer interval= config.getOptionalInteger("interval");
+			if (interval != null) {
+				if (interval < 0) {
+					throw new RangeException("reconcile.interval can't be negative");
+				}
+				seconds= interval;
+			}
+		}
+
+		reconcileMsec= seconds * 1000;
+	}
+
+	private void configureNotify(
+			@Nullable Composite config,
+			@NonNull SecretProvider secretProvider) throws SchemaException, ConfigException
+	{
+		synchronized (notifyLock) {
+			String digest= (config == null) ? null : getNodeDigest(config);
+			if ((digest == null) ? (notifyDigest == null) : digest.equals(notifyDigest)) {
+				return;
+			}
+
+			// Build the new one before stopping the old one, so a bad configuration leaves the
+			// old listener running
+			NotifyListener listener= null;
+			if (config != null) {
+				listener= DnsNotifyListener.Create(config, secretProvider, new NotifyHandler() {
+					@Override
+					public void zoneNotified(@NonNull Name zone) {
+						rescheduleZone(zone, false);
+					}
+				});
+			}
+
+			if (notifyListener != null) {
+				notifyListener.stop();
+			}
+
+			notifyListener= listener;
+			notifyDigest= digest;
+
+			if (listener != null) {
+				try {
+					listener.start();
+				} catch (IOException bindException) {
+					log.error("Unable to listen for NOTIFY messages", bindException);
+
+					alertSinkProxy.sendAlert(
+							AlertCategory.CONFIGURATION_EXCEPTION,
+							"Unable to listen for NOTIFY messages",
+							bindException);
+				}
+			}
+		}
+	}
+
+	// Called when a NOTIFY is accepted for a zone, or when a transfer of the zone brings in a
+	// new serial.  Whatever is held for names in the zone is dropped, and every alias with source
+	// names in it is moved up to run now.  A transfer that found the change has already brought
+	// its copy up to date, so that's left alone instead of being transferred again.
+	private void rescheduleZone(@NonNull Name zone, boolean transferred) {
+		if (transferred) {
+			sourceResolvers.invalidateCaches(zone);
+		} else {
+			sourceResolvers.invalidate(zone);
+		}
+
+		String zoneText= zone.toString();
+		List<AliasEntry> matched= new ArrayList<>();
+
+		synchronized (aliasMap) {
+			for (AliasEntry entry : aliasMap.values()) {
+				if (entry.processor.zoneChanged(zoneText)) {
+					matched.add(entry);
+				}
+			}
+		}
+
+		for (AliasEntry entry : matched) {
+			reschedule(entry);
+		}
+
+		log.info((transferred ? "Transfer of " : "NOTIFY for ") + zoneText + " moved up " +
+				matched.size() + " aliases");
+	}
+
+	// Called once a change an alias wrote is being served, which can be after the entry has been
+	// replaced.  The destination is a source name of its dependents, so anything held for it is
+	// dropped and they're moved up to run now instead of waiting out the TTL of what they last
+	// read.
+	private void triggerDependents(@NonNull String name, @NonNull String digest) {
+		AliasEntry entry;
+		synchronized (aliasMap) {
+			entry= aliasMap.get(name);
+		}
+		if ((entry == null) || !entry.digest.equals(digest)) {
+			return;
+		}
+
+		List<@NonNull AliasEntry> dependents= entry.dependents;
+		Name destinationZone= entry.destinationZone;
+		Name destination= entry.destination;
+		if (dependents.isEmpty() || (destinationZone == null) || (destination == null)) {
+			return;
+		}
+
+		String destinationText= destination.toString();
+
+		log.info("Change to " + destinationText + " moved up " + dependents.size() +
+				" dependent aliases");
+
+		sourceResolvers.invalidate(destinationZone);
+
+		for (AliasEntry dependent : dependents) {
+			if (dependent.processor.zoneChanged(destinationText)) {
+				reschedule(dependent);
+			}
+		}
+	}
+
+	// Parse a name from the configuration as an absolute name, or null if it isn't valid.  The
+	// processors report names that aren't valid when they're created.
+	private static @Nullable Name parseName(@NonNull String text) {
+		try {
+			return Name.fromString(text, Name.root);
+		} catch (TextParseException parseException) {
+			return null;
+		}
 	}
 	
 	public void configureProviders(
@@ -388,10 +760,44 @@ public class ExecutorScheduler implements Scheduler {
 								"DNS provider " + providerName + " is not defined.");
 					}
 					
+					ChangeHandler changeHandler= new ChangeHandler() {
+						@Override
+						public void destinationChanged(
+								@NonNull DnsZone zone,
+								@NonNull String apex,
+								@NonNull List<@NonNull DnsRecord> records)
+						{
+							convergenceTracker.track(name, zone, apex, records, new Runnable() {
+								@Override
+								public void run() {
+									triggerDependents(name, digest);
+								}
+							});
+						}
+					};
+
 					Alias alias= CompositeAlias.Create(aliasConfig);
-					Processor processor= DnsJavaProcessor.Create(alias, providerEntry.provider);
+					Processor processor;
+					if (alias.getType() == AliasType.SPF) {
+						processor= SpfProcessor.Create(
+								alias,
+								providerEntry.provider,
+								sourceResolvers.getResolver(alias),
+								writeStage,
+								changeHandler);
+					} else {
+						processor= DnsJavaProcessor.Create(
+								alias,
+								providerEntry.provider,
+								sourceResolvers.getResolver(alias),
+								sourceResolvers.getSerialTracker(),
+								healthProber,
+								true,
+								writeStage,
+								changeHandler);
+					}
 					
-					entry= new AliasEntry(digest, name, providerEntry, processor);
+					entry= new AliasEntry(digest, name, providerEntry, processor, alias);
 					entry.next= checkTime;
 					entry.active= true;
 					entry.configDelete= false;
@@ -423,9 +829,185 @@ public class ExecutorScheduler implements Scheduler {
 					}
 				}
 			}
+
+			linkDependents();
 		}
 	}
 
+	// Read back the next zone in the pass, starting a new pass once the last one is done, and
+	// schedule the one after.  The reads are made on the write stage, so a slow provider doesn't
+	// hold up the timer and they count against the same bound as the writes.
+	private void reconcileNext() {
+		ScheduledExecutorService timer= timerService;
+		if (timer == null) {
+			return;
+		}
+
+		long interval= reconcileMsec;
+		if (interval <= 0) {
+			reconcileBatches.clear();
+			timer.schedule(reconcileTask, RECONCILE_IDLE_MSEC, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		if (reconcileBatches.isEmpty()) {
+			// Keyed by provider and zone, so aliases in the same zone are read back together
+			Map<String, List<@NonNull AliasEntry>> batches= new TreeMap<>();
+			synchronized (aliasMap) {
+				for (AliasEntry entry : aliasMap.values()) {
+					String key= entry.providerEntry.digest + ":" + entry.destinationZoneText;
+
+					List<@NonNull AliasEntry> batch= batches.get(key);
+					if (batch == null) {
+						batch= new ArrayList<>(4);
+						batches.put(key, batch);
+					}
+					batch.add(entry);
+				}
+			}
+
+			reconcileBatches.addAll(batches.values());
+			reconcilePassSize= reconcileBatches.size();
+		}
+
+		List<@NonNull AliasEntry> batch= reconcileBatches.poll();
+		if (batch == null) {
+			timer.schedule(reconcileTask, RECONCILE_IDLE_MSEC, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		AliasEntry first= batch.get(0);
+		String key= "reconcile:" + first.providerEntry.digest + ":" + first.destinationZoneText;
+
+		writeStage.submit(key, new Runnable() {
+			@Override
+			public void run() {
+				reconcileZone(first.providerEntry.provider, first.destinationZoneText, batch);
+			}
+		});
+
+		long gap= Math.max(MINIMUM_RECONCILE_GAP_MSEC, interval / reconcilePassSize);
+		timer.schedule(reconcileTask, gap, TimeUnit.MILLISECONDS);
+	}
+
+	// Read back the destinations of every alias writing to one zone, looking the zone up once
+	// for all of them.  Any that have drifted are moved up to write over it.
+	private void reconcileZone(
+			@NonNull DnsProvider provider,
+			@NonNull String zoneText,
+			@NonNull List<@NonNull AliasEntry> batch)
+	{
+		DnsZone zone;
+		try {
+			zone= provider.getZone(zoneText);
+		} catch (IOException | DnsException lookupException) {
+			log.warn("Unable to look up zone " + zoneText + " to read back its aliases",
+					lookupException);
+			return;
+		}
+
+		if (zone == null) {
+			log.warn("Zone " + zoneText + " could not be located to read back its aliases");
+			return;
+		}
+
+		int drifted= 0;
+		for (AliasEntry entry : batch) {
+			// Replaced or removed since the pass started
+			synchronized (entry) {
+				if (!entry.active) {
+					continue;
+				}
+			}
+
+			try {
+				if (entry.processor.reconcile(zone, alertSink)) {
+					drifted++;
+					reschedule(entry);
+				}
+			} catch (DestinationException destinationException) {
+				log.warn("Unable to read back the destination of " + entry.processor.toString(),
+						destinationException);
+			}
+		}
+
+		log.debug("Read back " + batch.size() + " aliases in zone " + zoneText + ", " +
+				drifted + " had drifted");
+	}
+
+	// Point each alias at the aliases that read its destination as a source name.  A link that
+	// is part of a cycle is left out, since following it would have the aliases trigger each
+	// other forever - changes along it wait for the TTL like any other.  Called with the alias
+	// map locked.
+	private void linkDependents() {
+		Map<AliasEntry, List<@NonNull AliasEntry>> links= new HashMap<>();
+
+		for (AliasEntry upstream : aliasMap.values()) {
+			List<@NonNull AliasEntry> dependents= new ArrayList<>(2);
+
+			Name destination= upstream.destination;
+			if (destination != null) {
+				for (AliasEntry downstream : aliasMap.values()) {
+					if (downstream.sources.contains(destination)) {
+						dependents.add(downstream);
+					}
+				}
+			}
+
+			links.put(upstream, dependents);
+		}
+
+		int linkCount= 0;
+		for (AliasEntry upstream : aliasMap.values()) {
+			List<@NonNull AliasEntry> dependents= new ArrayList<>(2);
+
+			for (AliasEntry downstream : links.get(upstream)) {
+				if (isReachable(links, downstream, upstream)) {
+					log.warn("Alias " + upstream.name + " feeds alias " + downstream.name +
+							", which leads back to it - changes between them won't be " +
+							"passed on until the TTL runs out");
+				} else {
+					dependents.add(downstream);
+				}
+			}
+
+			@SuppressWarnings("null")
+			@NonNull List<@NonNull AliasEntry> tmpDependents=
+					Collections.unmodifiableList(dependents);
+			upstream.dependents= tmpDependents;
+
+			linkCount+= dependents.size();
+		}
+
+		if (linkCount > 0) {
+			log.info("Found " + linkCount + " aliases reading the destination of another alias");
+		}
+	}
+
+	// Whether there's a path of links from one alias to another
+	private static boolean isReachable(
+			@NonNull Map<AliasEntry, List<@NonNull AliasEntry>> links,
+			@NonNull AliasEntry from,
+			@NonNull AliasEntry to)
+	{
+		Set<AliasEntry> visited= new HashSet<>();
+		List<AliasEntry> pending= new ArrayList<>();
+		pending.add(from);
+
+		while (!pending.isEmpty()) {
+			AliasEntry entry= pending.remove(pending.size() - 1);
+			if (entry == to) {
+				return true;
+			}
+
+			if (visited.add(entry)) {
+				pending.addAll(links.get(entry));
+			}
+		}
+
+		return false;
+	}
+
 	// Main scheduling queue ordered by the next event time
 	private final PriorityQueue<AliasEntry> dispatchQueue= new PriorityQueue<>();
 	
@@ -440,15 +1022,29 @@ public class ExecutorScheduler implements Scheduler {
 	private Thread dispatchThread;
 	
 	// Executor service used for the actual running of tasks
-	private ExecutorService executorService= null;
+	private volatile ThreadPoolExecutor executorService= null;
 	
 	// Counter to set thread names
 	private AtomicInteger threadCounter= new AtomicInteger(1);
+
+	// Interrupts runs that are still going well past their deadline, moves up dependent
+	// aliases a while after a change, and logs statistics
+	private volatile ScheduledExecutorService timerService= null;
+
+	// Runs that finished past their deadline, since the program started
+	private final @NonNull AtomicLong overrunCount= new AtomicLong();
 	
 	// Queue a new entry for dispatch
 	private void queue(@NonNull AliasEntry entry) {
 		dispatchLock.lock();
 		try {
+			// A NOTIFY came in while the entry was running, so what it found may already be old
+			if (entry.rerun) {
+				entry.rerun= false;
+				entry.next= Math.min(entry.next,
+						System.currentTimeMillis() + MINIMUM_SCHEDULE_MSEC);
+			}
+
 			// This is O(n log n)
 			dispatchQueue.add(entry);
 
@@ -462,6 +1058,28 @@ public class ExecutorScheduler implements Scheduler {
 		}
 	}
 	
+	// Move an entry up to run now.  Its position in the heap depends on the next member, so it
+	// has to come out of the queue while that's changed.  An entry that isn't in the queue is
+	// running, and is flagged to run again as soon as it's put back.
+	private void reschedule(@NonNull AliasEntry entry) {
+		dispatchLock.lock();
+		try {
+			// This is O(n), but only happens on a NOTIFY
+			if (dispatchQueue.remove(entry)) {
+				entry.next= System.currentTimeMillis();
+				dispatchQueue.add(entry);
+
+				if (dispatchQueue.peek() == entry) {
+					dispatchWake.signal();
+				}
+			} else {
+				entry.rerun= true;
+			}
+		} finally {
+			dispatchLock.unlock();
+		}
+	}
+
 	private void dispatchLoop() {
 		long lastEvent= 0;
 		
@@ -528,15 +1146,52 @@ public class ExecutorScheduler implements Scheduler {
 	}
 
 	public void start() {
-		// I'm not sure a cached thread pool is the best just because it doesn't have a
-		// max size - that's something to meditate on.
-		executorService= Executors.newCachedThreadPool(new ThreadFactory() {
+		ThreadPoolExecutor tmpExecutorService= new ThreadPoolExecutor(
+				RUN_THREADS, RUN_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable,
+								"scheduler-worker-" + threadCounter.getAndIncrement());
+					}
+				});
+
+		tmpExecutorService.allowCoreThreadTimeOut(true);
+
+		executorService= tmpExecutorService;
+		
+		timerService= Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 			@Override
 			public Thread newThread(Runnable runnable) {
-				return new Thread(runnable,
-						"scheduler-worker-" + threadCounter.getAndIncrement());
+				Thread thread= new Thread(runnable, "scheduler-timer");
+				thread.setDaemon(true);
+
+				return thread;
 			}
 		});
+
+		timerService.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				ThreadPoolExecutor tmpExecutorService= executorService;
+				if (tmpExecutorService != null) {
+					log.info("Scheduler: " + tmpExecutorService.getQueue().size() +
+							" runs waiting for a thread, " +
+							tmpExecutorService.getActiveCount() + " running on " +
+							tmpExecutorService.getPoolSize() + " of " + RUN_THREADS +
+							" threads, " + tmpExecutorService.getCompletedTaskCount() +
+							" finished since start");
+				}
+
+				writeStage.logStatistics();
+				alertStage.logStatistics();
+				convergenceTracker.logStatistics();
+				sourceResolvers.getRateLimiter().logStatistics();
+			}
+		}, STATISTICS_MSEC, STATISTICS_MSEC, TimeUnit.MILLISECONDS);
+
+		// The first pass starts after the aliases have had a chance to read their destinations
+		timerService.schedule(reconcileTask, RECONCILE_IDLE_MSEC, TimeUnit.MILLISECONDS);
 		
 		// Go ahead and preload anything that might be waiting.  In practice this isn't used
 		// because the config thread takes a while to pull the config.
@@ -565,6 +1220,14 @@ public class ExecutorScheduler implements Scheduler {
 	}
 
 	public void stop() {
+		synchronized (notifyLock) {
+			if (notifyListener != null) {
+				notifyListener.stop();
+			}
+			notifyListener= null;
+			notifyDigest= null;
+		}
+
 		// Wait for the dispatch thread to clean up
 		dispatchLock.lock();
 		try {
@@ -587,6 +1250,14 @@ public class ExecutorScheduler implements Scheduler {
 		}
 		executorService= null;
 
+		// Writes from the last runs are made before the alerts they send are
+		writeStage.stop();
+		alertStage.stop();
+		convergenceTracker.stop();
+
+		timerService.shutdownNow();
+		timerService= null;
+
 		// Clear the queue references.  This has to be after the dispatch thread and the
 		// executor service are done, since the tasks could re-queue themselves.  Not that it
 		// matters - I just like to "stick the landing".
@@ -16,13 +16,19 @@ import com.teaglu.dnsalias.alert.AlertCategory;
 import com.teaglu.dnsalias.alert.AlertSink;
 import com.teaglu.dnsalias.alert.AlertSinkFactory;
 import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.alias.AliasType;
 import com.teaglu.dnsalias.alias.impl.CompositeAlias;
 import com.teaglu.dnsalias.dns.DnsProvider;
 import com.teaglu.dnsalias.dns.DnsProviderFactory;
+import com.teaglu.dnsalias.health.HealthProber;
+import com.teaglu.dnsalias.health.impl.NioHealthProber;
+import com.teaglu.dnsalias.processor.Deadline;
 import com.teaglu.dnsalias.processor.Processor;
 import com.teaglu.dnsalias.processor.dnsjava.DnsJavaProcessor;
+import com.teaglu.dnsalias.processor.dnsjava.SpfProcessor;
 import com.teaglu.dnsalias.processor.exception.DestinationException;
 import com.teaglu.dnsalias.processor.exception.SourceException;
+import com.teaglu.dnsalias.resolver.impl.SourceResolverSet;
 import com.teaglu.dnsalias.singlerun.SingleRunExecutor;
 
 /**
@@ -45,10 +51,16 @@ public class ParallelSingleRunExecutor implements SingleRunExecutor {
 		private @NonNull AlertSink alertSink;
 		private @NonNull Processor processor;
 		private @NonNull Thread thread;
+		private long deadlineMsec;
 		
-		private Job(@NonNull Processor processor, @NonNull AlertSink alertSink) {
+		private Job(
+				@NonNull Processor processor,
+				@NonNull AlertSink alertSink,
+				long deadlineMsec)
+		{
 			this.processor= processor;
 			this.alertSink= alertSink;
+			this.deadlineMsec= deadlineMsec;
 			
 			this.thread= new Thread(this, "oneshot-" + (threadNoCounter++));
 		}
@@ -56,7 +68,7 @@ public class ParallelSingleRunExecutor implements SingleRunExecutor {
 		@Override
 		public void run() {
 			try {
-				processor.process(alertSink);
+				processor.process(alertSink, Deadline.Create(deadlineMsec));
 			} catch (SourceException sourceException) {
 				alertSink.sendAlert(
 						AlertCategory.LOOKUP_EXCEPTION,
@@ -133,6 +145,12 @@ public class ParallelSingleRunExecutor implements SingleRunExecutor {
 			providerMap.put(name, provider);
 		}
 
+		// One set of resolvers for the whole run so the aliases share what's learned about
+		// servers, and share answers and health probes for names they have in common
+		SourceResolverSet sourceResolvers= SourceResolverSet.Create();
+		sourceResolvers.configure(config.getOptionalObject("rateLimit"));
+		HealthProber healthProber= NioHealthProber.Create();
+		
 		List<Job> jobs= new ArrayList<>(8);
 		
 		Composite aliasesConfig= config.getRequiredObject("aliases");
@@ -151,9 +169,25 @@ public class ParallelSingleRunExecutor implements SingleRunExecutor {
 			}
 			
 			Alias alias= CompositeAlias.Create(aliasConfig);
-			Processor processor= DnsJavaProcessor.Create(alias, provider);
+			Processor processor;
+			if (alias.getType() == AliasType.SPF) {
+				processor= SpfProcessor.Create(
+						alias,
+						provider,
+						sourceResolvers.getResolver(alias));
+			} else {
+				// Each alias is only processed once, so there's no earlier serial to compare
+				// with and nothing to damp changes against
+				processor= DnsJavaProcessor.Create(
+						alias,
+						provider,
+						sourceResolvers.getResolver(alias),
+						null,
+						healthProber,
+						false);
+			}
 			
-			jobs.add(new Job(processor, alertShim));
+			jobs.add(new Job(processor, alertShim, alias.getDeadline()));
 		}
 
 		for (Job job : jobs) {
@@ -163,5 +197,7 @@ public class ParallelSingleRunExecutor implements SingleRunExecutor {
 		for (Job job : jobs) {
 			job.join();
 		}
+		
+		sourceResolvers.logStatistics();
 	}
 }
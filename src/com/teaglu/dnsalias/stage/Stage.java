@@ -0,0 +1,48 @@
+package com.teaglu.dnsalias.stage;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Stage
+ *
+ * One step of processing that runs on its own threads, fed through a bounded queue.  Handing
+ * work to a stage lets the caller get on with something else instead of waiting on it.
+ */
+public interface Stage {
+	/**
+	 * submit
+	 *
+	 * Queue a task to be run on one of the stage's threads.  Tasks with the same key run one at
+	 * a time in the order they were submitted, and a task that hasn't started yet is replaced by
+	 * a newer one with the same key, so only the latest is run.  Tasks without a key are always
+	 * run.  If the queue is full this waits for room.
+	 *
+	 * @param key						Key of what the task acts on, or null
+	 * @param task						Task to run
+	 */
+	public void submit(@Nullable String key, @NonNull Runnable task);
+
+	/**
+	 * getDepth
+	 *
+	 * Number of tasks waiting to be run, not counting ones already running.
+	 *
+	 * @return							Tasks queued
+	 */
+	public int getDepth();
+
+	/**
+	 * logStatistics
+	 *
+	 * Write the queue statistics since the last call to the log.
+	 */
+	public void logStatistics();
+
+	/**
+	 * stop
+	 *
+	 * Run whatever is still queued and stop the threads.  Nothing can be submitted afterwards.
+	 */
+	public void stop();
+}
@@ -0,0 +1,296 @@
+package com.teaglu.dnsalias.stage.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.teaglu.dnsalias.stage.Stage;
+
+/**
+ * RingBufferStage
+ *
+ * Implementation of Stage with a fixed number of threads, each with its own ring buffer that is
+ * allocated up front.  Tasks with a key always go to the same thread, which is what keeps them
+ * in order, and tasks without one are spread across the threads in turn.
+ *
+ * A full ring makes the submitter wait, so a slow stage holds back whatever feeds it instead of
+ * queueing without limit.  How often that happens shows up in the statistics.
+ */
+public class RingBufferStage implements Stage {
+	private static final Logger log= LoggerFactory.getLogger(RingBufferStage.class);
+
+	// How long stop waits for each thread to run what's left in its queue
+	private static final long STOP_WAIT_MSEC= 30_000;
+
+	// Used for thread names and messages
+	private final @NonNull String name;
+
+	private final Lane[] lanes;
+
+	// Lane for the next task without a key
+	private final @NonNull AtomicInteger nextLane= new AtomicInteger();
+
+	private class Lane implements Runnable {
+		private final @NonNull Lock lock= new ReentrantLock();
+		private final @NonNull Condition notEmpty= lock.newCondition();
+		private final @NonNull Condition notFull= lock.newCondition();
+
+		// Ring of queued tasks and their keys, starting at head.  Everything below is guarded by
+		// the lock.
+		private final Runnable[] tasks;
+		private final String[] keys;
+		private int head;
+		private int count;
+
+		// Slot holding the queued task for each key, so a newer one can take its place
+		private final @NonNull Map<@NonNull String, @NonNull Integer> slots;
+
+		private boolean running= true;
+
+		// Statistics since they were last logged
+		private long submitted;
+		private long replaced;
+		private long waits;
+		private int deepest;
+
+		// Whether a full ring has been logged since the statistics were
+		private boolean fullLogged;
+
+		private final @NonNull Thread thread;
+
+		private Lane(int capacity, int index) {
+			tasks= new Runnable[capacity];
+			keys= new String[capacity];
+			slots= new HashMap<>(capacity * 2);
+
+			thread= new Thread(this, name + "-stage-" + index);
+			thread.setDaemon(true);
+		}
+
+		// Returns false if the lane has been stopped, so the caller has to run the task itself
+		private boolean submit(@Nullable String key, @NonNull Runnable task) {
+			lock.lock();
+			try {
+				boolean waited= false;
+
+				while (running) {
+					if (key != null) {
+						Integer slot= slots.get(key);
+						if (slot != null) {
+							tasks[slot]= task;
+							replaced++;
+							return true;
+						}
+					}
+
+					if (count < tasks.length) {
+						int slot= (head + count) % tasks.length;
+						tasks[slot]= task;
+						keys[slot]= key;
+						if (key != null) {
+							slots.put(key, slot);
+						}
+
+						count++;
+						submitted++;
+						if (count > deepest) {
+							deepest= count;
+						}
+
+						notEmpty.signal();
+						return true;
+					}
+
+					if (!waited) {
+						waited= true;
+						waits++;
+
+						if (!fullLogged) {
+							fullLogged= true;
+							log.warn("The " + name + " stage has " + tasks.length +
+									" tasks queued on one thread - holding back new ones");
+						}
+					}
+
+					notFull.awaitUninterruptibly();
+				}
+
+				return false;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				Runnable task;
+
+				lock.lock();
+				try {
+					while ((count == 0) && running) {
+						notEmpty.awaitUninterruptibly();
+					}
+
+					// Whatever is queued is still run once the stage is stopped
+					if (count == 0) {
+						return;
+					}
+
+					task= tasks[head];
+					String key= keys[head];
+					tasks[head]= null;
+					keys[head]= null;
+					if (key != null) {
+						slots.remove(key);
+					}
+
+					head= (head + 1) % tasks.length;
+					count--;
+
+					notFull.signal();
+				} finally {
+					lock.unlock();
+				}
+
+				if (task != null) {
+					runTask(task);
+				}
+			}
+		}
+	}
+
+	private RingBufferStage(@NonNull String name, int threads, int capacity) {
+		this.name= name;
+
+		lanes= new Lane[threads];
+		for (int i= 0; i < threads; i++) {
+			lanes[i]= new Lane(capacity, i + 1);
+		}
+
+		for (Lane lane : lanes) {
+			lane.thread.start();
+		}
+	}
+
+	/**
+	 * Create
+	 *
+	 * Create a stage and start its threads.
+	 *
+	 * @param name						Name for thread names and messages
+	 * @param threads					Number of threads
+	 * @param capacity					Tasks each thread can have queued
+	 *
+	 * @return							New stage
+	 */
+	public static @NonNull Stage Create(@NonNull String name, int threads, int capacity) {
+		return new RingBufferStage(name, threads, capacity);
+	}
+
+	private void runTask(@NonNull Runnable task) {
+		try {
+			task.run();
+		} catch (Exception exception) {
+			log.error("Exception running a task on the " + name + " stage", exception);
+		} catch (Error error) {
+			log.error("Java error running a task on the " + name + " stage", error);
+		}
+	}
+
+	@Override
+	public void submit(@Nullable String key, @NonNull Runnable task) {
+		Lane lane= (key == null) ?
+				lanes[Math.floorMod(nextLane.getAndIncrement(), lanes.length)] :
+				lanes[Math.floorMod(key.hashCode(), lanes.length)];
+
+		if (!lane.submit(key, task)) {
+			// Only happens while shutting down, when it's better to be late than to lose it
+			runTask(task);
+		}
+	}
+
+	@Override
+	public int getDepth() {
+		int depth= 0;
+		for (Lane lane : lanes) {
+			lane.lock.lock();
+			try {
+				depth+= lane.count;
+			} finally {
+				lane.lock.unlock();
+			}
+		}
+
+		return depth;
+	}
+
+	@Override
+	public void logStatistics() {
+		int depth= 0;
+		int deepest= 0;
+		long submitted= 0;
+		long replaced= 0;
+		long waits= 0;
+
+		for (Lane lane : lanes) {
+			lane.lock.lock();
+			try {
+				depth+= lane.count;
+				deepest= Math.max(deepest, lane.deepest);
+				submitted+= lane.submitted;
+				replaced+= lane.replaced;
+				waits+= lane.waits;
+
+				lane.deepest= lane.count;
+				lane.submitted= 0;
+				lane.replaced= 0;
+				lane.waits= 0;
+				lane.fullLogged= false;
+			} finally {
+				lane.lock.unlock();
+			}
+		}
+
+		log.info("Stage " + name + ": " + depth + " queued on " + lanes.length +
+				" threads, deepest queue " + deepest + " of " + lanes[0].tasks.length + ", " +
+				submitted + " submitted, " + replaced + " replaced by newer tasks, " +
+				waits + " waits for room");
+	}
+
+	@Override
+	public void stop() {
+		for (Lane lane : lanes) {
+			lane.lock.lock();
+			try {
+				lane.running= false;
+				lane.notEmpty.signalAll();
+				lane.notFull.signalAll();
+			} finally {
+				lane.lock.unlock();
+			}
+		}
+
+		long until= System.currentTimeMillis() + STOP_WAIT_MSEC;
+		for (Lane lane : lanes) {
+			try {
+				lane.thread.join(Math.max(1, until - System.currentTimeMillis()));
+			} catch (InterruptedException _ie) {
+			}
+
+			if (lane.thread.isAlive()) {
+				log.warn("The " + name + " stage didn't finish its queue within " +
+						TimeUnit.MILLISECONDS.toSeconds(STOP_WAIT_MSEC) + " seconds");
+			}
+		}
+	}
+}
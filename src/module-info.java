@@ -19,6 +19,9 @@ module com.teaglu.dnsalias {
 	// DNS resolution library
 	requires org.dnsjava;
 	
+	// For DNS over HTTPS
+	requires java.net.http;
+	
 	// For sending alert emails
 	requires jakarta.mail;
 	requires aws.lambda.java.core;
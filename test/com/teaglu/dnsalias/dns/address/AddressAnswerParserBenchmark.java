@@ -0,0 +1,108 @@
+package com.teaglu.dnsalias.dns.address;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * AddressAnswerParserBenchmark
+ *
+ * Compares reading an answer straight off the wire with parsing it into a dnsjava message and
+ * going through rdataToString, which is how addresses were read before the parser.  Run it from
+ * the test classpath with the main method below.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class AddressAnswerParserBenchmark {
+	// Address records in the answer
+	@Param({ "1", "8" })
+	public int addresses;
+
+	// CNAMEs in front of the addresses
+	@Param({ "0", "2" })
+	public int cnames;
+
+	private byte[] wire;
+
+	private final Inet4SetBuilder v4Builder= new Inet4SetBuilder();
+	private final Inet6SetBuilder v6Builder= new Inet6SetBuilder();
+
+	@Setup
+	public void setup() throws Exception {
+		Name question= Name.fromString("www.example.com.");
+
+		Message message= new Message();
+		message.getHeader().setFlag(Flags.QR);
+		message.getHeader().setFlag(Flags.RD);
+		message.getHeader().setFlag(Flags.RA);
+		message.addRecord(Record.newRecord(question, Type.A, DClass.IN), Section.QUESTION);
+
+		Name owner= question;
+		for (int i= 0; i < cnames; i++) {
+			Name target= Name.fromString("edge" + i + ".cdn.example.net.");
+			message.addRecord(new CNAMERecord(owner, DClass.IN, 300, target), Section.ANSWER);
+			owner= target;
+		}
+		for (int i= 0; i < addresses; i++) {
+			message.addRecord(new ARecord(owner, DClass.IN, 60,
+					InetAddress.getByName("198.51.100." + (i + 1))), Section.ANSWER);
+		}
+
+		wire= message.toWire();
+	}
+
+	@Benchmark
+	public Object parser() {
+		v4Builder.clear();
+		v6Builder.clear();
+
+		AddressAnswerParser.readAddresses(wire, Type.A, v4Builder, v6Builder);
+
+		return v4Builder.build();
+	}
+
+	@Benchmark
+	public void message(Blackhole blackhole) throws Exception {
+		Message message= new Message(wire);
+
+		for (Record record : message.getSection(Section.ANSWER)) {
+			if (record.getType() == Type.A) {
+				blackhole.consume(record.rdataToString());
+				blackhole.consume(record.getTTL());
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(AddressAnswerParserBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
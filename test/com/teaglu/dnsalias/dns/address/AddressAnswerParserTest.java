@@ -0,0 +1,344 @@
+package com.teaglu.dnsalias.dns.address;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSSEC;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRSIGRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+public class AddressAnswerParserTest {
+	private static final int TYPE_A= 1;
+	private static final int TYPE_CNAME= 5;
+
+	private static final byte[] ADDRESS= { (byte)192, 0, 2, 1 };
+
+	private final Inet4SetBuilder v4Builder= new Inet4SetBuilder();
+	private final Inet6SetBuilder v6Builder= new Inet6SetBuilder();
+
+	@BeforeEach
+	public void clear() {
+		v4Builder.clear();
+		v6Builder.clear();
+	}
+
+	private static Name name(String text) throws Exception {
+		return Name.fromString(text);
+	}
+
+	private static Message response(String question, int type) throws Exception {
+		Message message= new Message();
+		message.getHeader().setFlag(Flags.QR);
+		message.addRecord(Record.newRecord(name(question), type, DClass.IN), Section.QUESTION);
+
+		return message;
+	}
+
+	private static ARecord a(String owner, long ttl, String address) throws Exception {
+		return new ARecord(name(owner), DClass.IN, ttl, InetAddress.getByName(address));
+	}
+
+	private static CNAMERecord cname(String owner, long ttl, String target) throws Exception {
+		return new CNAMERecord(name(owner), DClass.IN, ttl, name(target));
+	}
+
+	private long read(Message message, int type) {
+		return AddressAnswerParser.readAddresses(message.toWire(), type, v4Builder, v6Builder);
+	}
+
+	private long read(byte[] wire, int type) {
+		return AddressAnswerParser.readAddresses(wire, type, v4Builder, v6Builder);
+	}
+
+	@Test
+	public void readsAddressRecords() throws Exception {
+		Message message= response("www.example.com.", Type.A);
+		message.addRecord(a("www.example.com.", 300, "192.0.2.2"), Section.ANSWER);
+		message.addRecord(a("www.example.com.", 60, "192.0.2.1"), Section.ANSWER);
+
+		assertEquals(60, read(message, Type.A));
+		assertEquals("192.0.2.1, 192.0.2.2", v4Builder.build().toString());
+	}
+
+	@Test
+	public void readsIpv6Records() throws Exception {
+		Message message= response("www.example.com.", Type.AAAA);
+		message.addRecord(new AAAARecord(name("www.example.com."), DClass.IN, 120,
+				InetAddress.getByName("2001:db8::1")), Section.ANSWER);
+
+		assertEquals(120, read(message, Type.AAAA));
+		assertEquals("2001:db8::1", v6Builder.build().toString());
+	}
+
+	@Test
+	public void followsCnameChain() throws Exception {
+		Message message= response("www.example.com.", Type.A);
+		message.addRecord(cname("www.example.com.", 3600, "edge.cdn.example.net."),
+				Section.ANSWER);
+		message.addRecord(cname("edge.cdn.example.net.", 600, "pop1.cdn.example.net."),
+				Section.ANSWER);
+		message.addRecord(a("pop1.cdn.example.net.", 20, "198.51.100.1"), Section.ANSWER);
+		message.addRecord(a("pop1.cdn.example.net.", 30, "198.51.100.2"), Section.ANSWER);
+
+		// Only the address records count towards the TTL
+		assertEquals(20, read(message, Type.A));
+		assertEquals("198.51.100.1, 198.51.100.2", v4Builder.build().toString());
+	}
+
+	@Test
+	public void rejectsBrokenCnameChains() throws Exception {
+		// Addresses for a name that isn't the end of the chain
+		Message skipped= response("www.example.com.", Type.A);
+		skipped.addRecord(cname("www.example.com.", 300, "edge.example.net."), Section.ANSWER);
+		skipped.addRecord(a("other.example.net.", 300, "198.51.100.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(skipped, Type.A));
+
+		// CNAME after the addresses
+		clear();
+		Message late= response("www.example.com.", Type.A);
+		late.addRecord(a("www.example.com.", 300, "198.51.100.1"), Section.ANSWER);
+		late.addRecord(cname("www.example.com.", 300, "edge.example.net."), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(late, Type.A));
+
+		// Chain that never reaches an address is left for the full parser
+		clear();
+		Message dangling= response("www.example.com.", Type.A);
+		dangling.addRecord(cname("www.example.com.", 300, "edge.example.net."), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(dangling, Type.A));
+	}
+
+	@Test
+	public void skipsSignatures() throws Exception {
+		Message message= response("www.example.com.", Type.A);
+		message.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		message.addRecord(new RRSIGRecord(name("www.example.com."), DClass.IN, 5, Type.A,
+				DNSSEC.Algorithm.ECDSAP256SHA256, 300, Instant.ofEpochSecond(2_000_000_000L),
+				Instant.ofEpochSecond(1_000_000_000L), 12345, name("example.com."),
+				new byte[64]), Section.ANSWER);
+
+		// The signature's TTL doesn't count either
+		assertEquals(300, read(message, Type.A));
+		assertEquals("192.0.2.1", v4Builder.build().toString());
+	}
+
+	@Test
+	public void leavesOtherRecordTypes() throws Exception {
+		Message message= response("www.example.com.", Type.A);
+		message.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		message.addRecord(new TXTRecord(name("www.example.com."), DClass.IN, 300, "x"),
+				Section.ANSWER);
+
+		assertEquals(AddressAnswerParser.UNHANDLED, read(message, Type.A));
+	}
+
+	@Test
+	public void leavesTruncatedAndErrorAnswers() throws Exception {
+		Message truncated= response("www.example.com.", Type.A);
+		truncated.getHeader().setFlag(Flags.TC);
+		truncated.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(truncated, Type.A));
+
+		for (int rcode : new int[] { Rcode.NXDOMAIN, Rcode.SERVFAIL, Rcode.REFUSED }) {
+			clear();
+			Message failed= response("www.example.com.", Type.A);
+			failed.getHeader().setRcode(rcode);
+			failed.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+			assertEquals(AddressAnswerParser.UNHANDLED, read(failed, Type.A), Rcode.string(rcode));
+		}
+
+		// A query rather than a response
+		clear();
+		Message query= Message.newQuery(a("www.example.com.", 300, "192.0.2.1"));
+		query.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(query, Type.A));
+
+		// Nothing in the answer, which needs the authority section for its TTL
+		clear();
+		assertEquals(AddressAnswerParser.UNHANDLED,
+				read(response("www.example.com.", Type.A), Type.A));
+	}
+
+	@Test
+	public void leavesMismatchedQuestions() throws Exception {
+		// Asked for A, but the question is for AAAA
+		Message type= response("www.example.com.", Type.AAAA);
+		type.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(type, Type.A));
+
+		// Question in the wrong class
+		clear();
+		Message dclass= new Message();
+		dclass.getHeader().setFlag(Flags.QR);
+		dclass.addRecord(Record.newRecord(name("www.example.com."), Type.A, DClass.CH),
+				Section.QUESTION);
+		dclass.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(dclass, Type.A));
+
+		// Addresses for some other name than the question
+		clear();
+		Message owner= response("www.example.com.", Type.A);
+		owner.addRecord(a("mail.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(owner, Type.A));
+
+		// Only A and AAAA are read
+		clear();
+		Message mx= response("www.example.com.", Type.A);
+		mx.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		assertEquals(AddressAnswerParser.UNHANDLED, read(mx, Type.MX));
+	}
+
+	@Test
+	public void readsTopBitTtlAsZero() throws Exception {
+		Wire wire= new Wire(1);
+		wire.name("www.example.com").question(TYPE_A);
+		wire.pointer(12).record(TYPE_A, 0x80000000L, ADDRESS);
+
+		assertEquals(0, read(wire.toByteArray(), TYPE_A));
+	}
+
+	@Test
+	public void followsCompressionPointers() throws Exception {
+		// Owner is a pointer to the question, and the CNAME target is a new label followed by a
+		// pointer to "example.com" inside the question
+		Wire wire= new Wire(2);
+		wire.name("www.example.com").question(TYPE_A);
+		wire.pointer(12).record(TYPE_CNAME, 300, nameData("edge", 16));
+
+		// The target starts right after the fixed part of the CNAME record
+		int target= wire.size() - nameData("edge", 16).length;
+		wire.pointer(target).record(TYPE_A, 60, ADDRESS);
+
+		assertEquals(60, read(wire.toByteArray(), TYPE_A));
+		assertEquals("192.0.2.1", v4Builder.build().toString());
+
+		// Pointing the address record at the question instead breaks the chain
+		clear();
+		Wire wrong= new Wire(2);
+		wrong.name("www.example.com").question(TYPE_A);
+		wrong.pointer(12).record(TYPE_CNAME, 300, nameData("edge", 16));
+		wrong.pointer(12).record(TYPE_A, 60, ADDRESS);
+
+		assertEquals(AddressAnswerParser.UNHANDLED, read(wrong.toByteArray(), TYPE_A));
+	}
+
+	@Test
+	public void comparesNamesWithoutCase() throws Exception {
+		Wire wire= new Wire(1);
+		wire.name("WWW.Example.COM").question(TYPE_A);
+		wire.name("www.example.com").record(TYPE_A, 60, ADDRESS);
+
+		assertEquals(60, read(wire.toByteArray(), TYPE_A));
+	}
+
+	@Test
+	public void stopsOnPointerLoops() throws Exception {
+		// Owner points at itself
+		Wire wire= new Wire(1);
+		wire.name("www.example.com").question(TYPE_A);
+		wire.pointer(wire.size()).record(TYPE_A, 60, ADDRESS);
+
+		assertEquals(AddressAnswerParser.UNHANDLED, read(wire.toByteArray(), TYPE_A));
+	}
+
+	@Test
+	public void stopsOnShortMessages() throws Exception {
+		Message message= response("www.example.com.", Type.A);
+		message.addRecord(a("www.example.com.", 300, "192.0.2.1"), Section.ANSWER);
+		byte[] full= message.toWire();
+
+		for (int length= 0; length < full.length; length++) {
+			byte[] shortened= Arrays.copyOf(full, length);
+			assertEquals(AddressAnswerParser.UNHANDLED, read(shortened, Type.A), "" + length);
+			clear();
+		}
+	}
+
+	// A name as rdata - one label followed by a compression pointer
+	private static byte[] nameData(String label, int pointer) {
+		byte[] data= new byte[label.length() + 3];
+		data[0]= (byte)label.length();
+		for (int i= 0; i < label.length(); i++) {
+			data[i + 1]= (byte)label.charAt(i);
+		}
+		data[label.length() + 1]= (byte)(0xC0 | (pointer >>> 8));
+		data[label.length() + 2]= (byte)pointer;
+
+		return data;
+	}
+
+	// Writes a response by hand, for shapes dnsjava won't produce
+	private static final class Wire {
+		private final ByteArrayOutputStream output= new ByteArrayOutputStream();
+
+		private Wire(int answers) {
+			putShort(0x1234);
+			putShort(0x8180);
+			putShort(1);
+			putShort(answers);
+			putShort(0);
+			putShort(0);
+		}
+
+		private int size() {
+			return output.size();
+		}
+
+		private void putShort(int value) {
+			output.write(value >>> 8);
+			output.write(value);
+		}
+
+		private Wire name(String name) {
+			for (String label : name.split("\\.")) {
+				output.write(label.length());
+				for (int i= 0; i < label.length(); i++) {
+					output.write(label.charAt(i));
+				}
+			}
+			output.write(0);
+			return this;
+		}
+
+		private Wire pointer(int offset) {
+			putShort(0xC000 | offset);
+			return this;
+		}
+
+		private Wire question(int type) {
+			putShort(type);
+			putShort(DClass.IN);
+			return this;
+		}
+
+		private Wire record(int type, long ttl, byte[] rdata) {
+			putShort(type);
+			putShort(DClass.IN);
+			putShort((int)(ttl >>> 16));
+			putShort((int)ttl);
+			putShort(rdata.length);
+			output.write(rdata, 0, rdata.length);
+			return this;
+		}
+
+		private byte[] toByteArray() {
+			return output.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.teaglu.dnsalias.dns.address;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class Inet4SetTest {
+	private static Inet4Set build(String... addresses) {
+		Inet4SetBuilder builder= new Inet4SetBuilder();
+		for (String address : addresses) {
+			assertTrue(builder.add(address), address);
+		}
+
+		return builder.build();
+	}
+
+	@Test
+	public void sortsAcrossTheSignBit() {
+		// 128.0.0.0 and up are negative as ints, but have to sort after 127.255.255.255
+		Inet4Set set= build("200.1.1.1", "10.0.0.1", "128.0.0.0", "127.255.255.255", "255.0.0.1");
+
+		assertEquals("10.0.0.1, 127.255.255.255, 128.0.0.0, 200.1.1.1, 255.0.0.1",
+				set.toString());
+
+		assertTrue(set.contains(0x80000000));
+		assertTrue(set.contains(0xFF000001));
+		assertFalse(set.contains(0x80000001));
+	}
+
+	@Test
+	public void dropsDuplicates() {
+		Inet4Set set= build("10.0.0.2", "10.0.0.1", "10.0.0.2", "10.0.0.1");
+
+		assertEquals(2, set.size());
+		assertEquals(0x0A000001, set.get(0));
+		assertEquals(0x0A000002, set.get(1));
+	}
+
+	@Test
+	public void rejectsBadText() {
+		Inet4SetBuilder builder= new Inet4SetBuilder();
+
+		assertFalse(builder.add("10.0.0"));
+		assertFalse(builder.add("10.0.0.256"));
+		assertFalse(builder.add("10.0.0.1."));
+		assertFalse(builder.add("10..0.1"));
+		assertFalse(builder.add("10.0.0.0001"));
+		assertFalse(builder.add("10.0.0.x"));
+		assertEquals(0, builder.size());
+	}
+
+	@Test
+	public void readsRdataBytes() {
+		Inet4SetBuilder builder= new Inet4SetBuilder();
+		builder.add(new byte[] { 0, (byte)192, 0, 2, (byte)129 }, 1);
+
+		assertEquals("192.0.2.129", builder.build().toString());
+	}
+
+	@Test
+	public void sameContentsAreEqual() {
+		Inet4Set first= build("192.0.2.1", "198.51.100.7");
+		Inet4Set second= build("198.51.100.7", "192.0.2.1", "192.0.2.1");
+
+		assertEquals(first, second);
+		assertEquals(first.getFingerprint(), second.getFingerprint());
+		assertEquals(first.hashCode(), second.hashCode());
+	}
+
+	@Test
+	public void differentContentsAreNotEqual() {
+		Inet4Set set= build("192.0.2.1", "198.51.100.7");
+
+		assertNotEquals(set, build("192.0.2.1"));
+		assertNotEquals(set, build("192.0.2.1", "198.51.100.8"));
+		assertNotEquals(set.getFingerprint(), build("192.0.2.1").getFingerprint());
+		assertNotEquals(set.getFingerprint(),
+				build("192.0.2.1", "198.51.100.8").getFingerprint());
+	}
+
+	@Test
+	public void sameAsNeedsMatchingContentsNotJustFingerprint() {
+		Inet4Set set= build("192.0.2.1", "198.51.100.7");
+
+		int[] same= { 0xC0000201, 0xC6336407 };
+		int[] other= { 0xC0000201, 0xC6336408 };
+
+		assertTrue(set.sameAs(same, 2, Inet4Set.fingerprint(same, 2)));
+
+		// A colliding fingerprint still has to match address by address
+		assertFalse(set.sameAs(other, 2, set.getFingerprint()));
+
+		// Only the first count entries count
+		assertFalse(set.sameAs(same, 1, Inet4Set.fingerprint(same, 1)));
+	}
+
+	@Test
+	public void builderMatchesWithoutBuilding() {
+		Inet4Set set= build("192.0.2.1", "198.51.100.7");
+
+		Inet4SetBuilder builder= new Inet4SetBuilder();
+		builder.add("198.51.100.7");
+		builder.add("192.0.2.1");
+		assertTrue(builder.matches(set));
+		assertFalse(builder.matches(null));
+
+		builder.add("203.0.113.9");
+		assertFalse(builder.matches(set));
+
+		builder.clear();
+		assertTrue(builder.matches(Inet4Set.EMPTY));
+		assertSame(Inet4Set.EMPTY, builder.build());
+	}
+
+	@Test
+	public void containsAll() {
+		Inet4Set set= build("10.0.0.1", "128.0.0.1", "250.0.0.1");
+
+		assertTrue(set.containsAll(build("128.0.0.1", "250.0.0.1")));
+		assertTrue(set.containsAll(Inet4Set.EMPTY));
+		assertFalse(set.containsAll(build("10.0.0.1", "200.0.0.1")));
+		assertFalse(Inet4Set.EMPTY.containsAll(set));
+	}
+}
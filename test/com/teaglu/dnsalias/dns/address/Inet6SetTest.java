@@ -0,0 +1,148 @@
+package com.teaglu.dnsalias.dns.address;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class Inet6SetTest {
+	private static Inet6Set build(String... addresses) {
+		Inet6SetBuilder builder= new Inet6SetBuilder();
+		for (String address : addresses) {
+			assertTrue(builder.add(address), address);
+		}
+
+		return builder.build();
+	}
+
+	// Parse and format one address
+	private static String format(String address) {
+		return build(address).toString();
+	}
+
+	@Test
+	public void compressesTheLongestZeroRun() {
+		assertEquals("::", format("0:0:0:0:0:0:0:0"));
+		assertEquals("::1", format("0:0:0:0:0:0:0:1"));
+		assertEquals("1::", format("1:0:0:0:0:0:0:0"));
+		assertEquals("2001:db8::1", format("2001:db8:0:0:0:0:0:1"));
+
+		// The longest run wins, wherever it is
+		assertEquals("2001:0:0:1::1", format("2001:0:0:1:0:0:0:1"));
+
+		// Between runs of the same length the first one is shortened
+		assertEquals("2001:db8::1:0:0:1", format("2001:db8:0:0:1:0:0:1"));
+
+		// A run can cross from the high half into the low half
+		assertEquals("1:2:3::6:7:8", format("1:2:3:0:0:6:7:8"));
+	}
+
+	@Test
+	public void leavesASingleZeroGroup() {
+		assertEquals("2001:db8:0:1:1:1:1:1", format("2001:db8:0:1:1:1:1:1"));
+		assertEquals("1:0:1:0:1:0:1:0", format("1:0:1:0:1:0:1:0"));
+	}
+
+	@Test
+	public void formatsLowerCaseWithoutLeadingZeros() {
+		assertEquals("2001:db8:ab::", format("2001:0DB8:00AB:0:0:0:0:0"));
+		assertEquals("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff",
+				format("FFFF:FFFF:FFFF:FFFF:FFFF:FFFF:FFFF:FFFF"));
+	}
+
+	@Test
+	public void sortsAcrossTheSignBit() {
+		// fe80:: and 8000:: are negative in the high half, and ::8000:0:0:0 in the low half
+		Inet6Set set= build("fe80::1", "2001:db8::1", "::8000:0:0:0", "::1", "8000::");
+
+		assertEquals("::1, ::8000:0:0:0, 2001:db8::1, 8000::, fe80::1", set.toString());
+		assertEquals(0x2001_0DB8_0000_0000L, set.getHigh(2));
+		assertEquals(1L, set.getLow(2));
+	}
+
+	@Test
+	public void dropsDuplicates() {
+		Inet6Set set= build("2001:db8::1", "2001:0db8:0:0::1", "2001:db8::2");
+
+		assertEquals(2, set.size());
+		assertEquals("2001:db8::1, 2001:db8::2", set.toString());
+	}
+
+	@Test
+	public void rejectsBadText() {
+		Inet6SetBuilder builder= new Inet6SetBuilder();
+
+		assertFalse(builder.add("192.0.2.1"));
+		assertFalse(builder.add("example.com"));
+		assertFalse(builder.add("2001:db8::1::2"));
+		assertEquals(0, builder.size());
+	}
+
+	@Test
+	public void sameContentsAreEqual() {
+		Inet6Set first= build("2001:db8::1", "fe80::1");
+		Inet6Set second= build("fe80::1", "2001:db8::1");
+
+		assertEquals(first, second);
+		assertEquals(first.getFingerprint(), second.getFingerprint());
+		assertEquals(first.hashCode(), second.hashCode());
+	}
+
+	@Test
+	public void differentContentsAreNotEqual() {
+		Inet6Set set= build("2001:db8::1", "fe80::1");
+
+		assertNotEquals(set, build("2001:db8::1"));
+		assertNotEquals(set, build("2001:db8::1", "fe80::2"));
+
+		// Swapping the halves has to change the fingerprint
+		assertNotEquals(build("1::2").getFingerprint(), build("2::1").getFingerprint());
+	}
+
+	@Test
+	public void sameAsNeedsMatchingContentsNotJustFingerprint() {
+		Inet6Set set= build("2001:db8::1", "fe80::1");
+
+		long[] same= { 0x2001_0DB8_0000_0000L, 1L, 0xFE80_0000_0000_0000L, 1L };
+		long[] other= { 0x2001_0DB8_0000_0000L, 1L, 0xFE80_0000_0000_0000L, 2L };
+
+		assertTrue(set.sameAs(same, 2, Inet6Set.fingerprint(same, 2)));
+
+		// A colliding fingerprint still has to match address by address
+		assertFalse(set.sameAs(other, 2, set.getFingerprint()));
+
+		// Only the first count addresses count
+		assertFalse(set.sameAs(same, 1, Inet6Set.fingerprint(same, 1)));
+	}
+
+	@Test
+	public void builderMatchesWithoutBuilding() {
+		Inet6Set set= build("2001:db8::1", "fe80::1");
+
+		Inet6SetBuilder builder= new Inet6SetBuilder();
+		builder.add(0xFE80_0000_0000_0000L, 1L);
+		builder.add(0x2001_0DB8_0000_0000L, 1L);
+		assertTrue(builder.matches(set));
+		assertFalse(builder.matches(null));
+
+		builder.add("2001:db8::2");
+		assertFalse(builder.matches(set));
+
+		builder.clear();
+		assertTrue(builder.matches(Inet6Set.EMPTY));
+		assertSame(Inet6Set.EMPTY, builder.build());
+	}
+
+	@Test
+	public void containsAll() {
+		Inet6Set set= build("::1", "2001:db8::1", "fe80::1");
+
+		assertTrue(set.containsAll(build("2001:db8::1", "fe80::1")));
+		assertTrue(set.containsAll(Inet6Set.EMPTY));
+		assertFalse(set.containsAll(build("::1", "fe80::2")));
+		assertFalse(Inet6Set.EMPTY.containsAll(set));
+	}
+}
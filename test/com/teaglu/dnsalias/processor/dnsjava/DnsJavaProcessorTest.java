@@ -0,0 +1,173 @@
+package com.teaglu.dnsalias.processor.dnsjava;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+import com.teaglu.dnsalias.alias.Alias;
+import com.teaglu.dnsalias.alias.AliasType;
+import com.teaglu.dnsalias.alias.DampingThreshold;
+import com.teaglu.dnsalias.alias.SourceMode;
+import com.teaglu.dnsalias.alias.SourceTransport;
+import com.teaglu.dnsalias.dns.DnsProvider;
+import com.teaglu.dnsalias.dns.DnsRecord;
+import com.teaglu.dnsalias.dns.DnsRecordType;
+import com.teaglu.dnsalias.dns.DnsZone;
+import com.teaglu.dnsalias.processor.Deadline;
+import com.teaglu.dnsalias.processor.Processor;
+import com.teaglu.dnsalias.resolver.SourceResolver;
+import com.teaglu.dnsalias.resolver.ZoneSerialTracker;
+import com.teaglu.dnsalias.resolver.impl.CachingSourceResolver;
+
+public class DnsJavaProcessorTest {
+	// One source name in a zone with a serial, copied to alias.example.com
+	private static class TestAlias implements Alias {
+		@Override public AliasType getType() { return AliasType.ADDRESS; }
+		@Override public Iterable<String> getSourceNames() { return List.of("www.example.test"); }
+		@Override public Iterable<String> getSourceServers() { return List.of("192.0.2.53"); }
+		@Override public SourceMode getSourceMode() { return SourceMode.RECURSIVE; }
+		@Override public SourceTransport getSourceTransport() { return SourceTransport.UDP; }
+		@Override public long getSourceTimeout() { return 5000; }
+		@Override public boolean isDualStack() { return false; }
+		@Override public long getMaxNegativeTtl() { return 300; }
+		@Override public int getSourceQuorum() { return 0; }
+		@Override public String getSourceZone() { return "example.test"; }
+		@Override public long getSerialInterval() { return 60; }
+		@Override public long getSerialCeiling() { return 3600; }
+		@Override public DampingThreshold getAdditionDamping() { return DampingThreshold.NONE; }
+		@Override public DampingThreshold getRemovalDamping() { return DampingThreshold.NONE; }
+		@Override public DampingThreshold getEmptyDamping() { return DampingThreshold.NONE; }
+		@Override public int getHealthPort() { return 0; }
+		@Override public long getHealthTimeout() { return 0; }
+		@Override public long getHealthInterval() { return 0; }
+		@Override public long getDeadline() { return 0; }
+		@Override public String getDestinationZone() { return "example.com"; }
+		@Override public String getDestinationName() { return "alias"; }
+	}
+
+	// Answers with whatever address it currently has, and counts the queries that reach it
+	private static class FakeServer implements SourceResolver {
+		private final AtomicInteger queries= new AtomicInteger();
+		private volatile String address= "192.0.2.1";
+
+		@Override
+		public Message send(Message query, List<InetSocketAddress> servers) throws IOException {
+			queries.incrementAndGet();
+
+			Record question= query.getQuestion();
+
+			Message response= new Message(query.getHeader().getID());
+			response.getHeader().setFlag(Flags.QR);
+			response.addRecord(question, Section.QUESTION);
+			response.addRecord(new ARecord(question.getName(), DClass.IN, 300,
+					InetAddress.getByName(address)), Section.ANSWER);
+
+			return response;
+		}
+
+		@Override
+		public CompletableFuture<byte[]> exchangeAsync(
+				byte[] query,
+				List<InetSocketAddress> servers)
+		{
+			try {
+				Message response= send(new Message(query), servers);
+				return CompletableFuture.completedFuture(response.toWire());
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+	}
+
+	// Keeps whatever is written to it
+	private static class FakeZone implements DnsZone {
+		private final Map<String, DnsRecord> records= new HashMap<>();
+
+		@Override
+		public Iterable<DnsRecord> findRecords(String name, DnsRecordType type) {
+			DnsRecord record= records.get(name + ":" + type);
+			return (record == null) ? List.of() : List.of(record);
+		}
+
+		@Override
+		public void createRecord(DnsRecord record, boolean overwrite) {
+			records.put(record.getName() + ":" + record.getType(), record);
+		}
+
+		@Override
+		public boolean deleteRecord(String name, DnsRecordType type) {
+			return records.remove(name + ":" + type) != null;
+		}
+
+		@Override public long getNegativeTtl() { return 300; }
+		@Override public String getProviderType() { return "test"; }
+		@Override public Boolean isSynchronized() { return null; }
+
+		private List<String> getValues(String name, DnsRecordType type) {
+			List<String> values= new ArrayList<>();
+			for (DnsRecord record : findRecords(name, type)) {
+				record.getValues().forEach(values::add);
+			}
+			return values;
+		}
+	}
+
+	@Test
+	public void serialChangeReachesTheServer() throws Exception {
+		FakeServer server= new FakeServer();
+		FakeZone zone= new FakeZone();
+
+		// The cache is shared with other aliases in practice, so it holds the old answer
+		SourceResolver resolver= CachingSourceResolver.Create(server);
+
+		AtomicInteger serial= new AtomicInteger(1);
+		ZoneSerialTracker serialTracker= new ZoneSerialTracker() {
+			@Override
+			public long getSerial(
+					Name zoneName,
+					List<InetSocketAddress> servers,
+					SourceResolver sourceResolver,
+					long intervalMsec)
+			{
+				return serial.get();
+			}
+
+			@Override
+			public void invalidate(Name zoneName) {
+			}
+		};
+
+		DnsProvider provider= (apex, deadline) -> zone;
+
+		Processor processor= DnsJavaProcessor.Create(
+				new TestAlias(), provider, resolver, serialTracker, null, false);
+
+		processor.process((category, message, exception) -> {}, Deadline.NONE);
+		assertEquals(List.of("192.0.2.1"), zone.getValues("alias", DnsRecordType.A));
+
+		// The name isn't due for a long time, but the serial says the zone has changed
+		server.address= "192.0.2.2";
+		serial.set(2);
+
+		processor.process((category, message, exception) -> {}, Deadline.NONE);
+		assertEquals(2, server.queries.get());
+		assertEquals(List.of("192.0.2.2"), zone.getValues("alias", DnsRecordType.A));
+	}
+}
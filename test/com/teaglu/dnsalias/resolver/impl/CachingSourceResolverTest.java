@@ -0,0 +1,148 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.SourceResolver;
+
+public class CachingSourceResolverTest {
+	private static final List<InetSocketAddress> SERVERS=
+			List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), 53));
+
+	// Answers every question with a CNAME from www to a load balancer name, optionally along
+	// with an address for an unrelated name, and counts the queries that reach it
+	private static class FakeServer implements SourceResolver {
+		private final AtomicInteger queries= new AtomicInteger();
+		private final boolean stray;
+
+		private FakeServer(boolean stray) {
+			this.stray= stray;
+		}
+
+		private Message answer(Message query) throws IOException {
+			queries.incrementAndGet();
+
+			Record question= query.getQuestion();
+			Name balancer= Name.fromString("lb.example.net.");
+
+			Message response= new Message(query.getHeader().getID());
+			response.getHeader().setFlag(Flags.QR);
+			response.addRecord(question, Section.QUESTION);
+
+			if (question.getName().equals(Name.fromString("www.example.test."))) {
+				response.addRecord(new CNAMERecord(
+						question.getName(), DClass.IN, 300, balancer), Section.ANSWER);
+			}
+			response.addRecord(new ARecord(balancer, DClass.IN, 300,
+					InetAddress.getByName("192.0.2.1")), Section.ANSWER);
+			if (stray) {
+				response.addRecord(new ARecord(Name.fromString("bank.example.org."), DClass.IN,
+						300, InetAddress.getByName("192.0.2.66")), Section.ANSWER);
+			}
+
+			return response;
+		}
+
+		@Override
+		public Message send(Message query, List<InetSocketAddress> servers) throws IOException {
+			return answer(query);
+		}
+
+		@Override
+		public CompletableFuture<byte[]> exchangeAsync(
+				byte[] query,
+				List<InetSocketAddress> servers)
+		{
+			try {
+				return CompletableFuture.completedFuture(answer(new Message(query)).toWire());
+			} catch (IOException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+	}
+
+	private static Message query(String name) throws IOException {
+		return Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+	}
+
+	@Test
+	public void keepsTheChainForTheQuestion() throws Exception {
+		FakeServer server= new FakeServer(false);
+		CachingSourceResolver resolver= CachingSourceResolver.Create(server);
+
+		resolver.send(query("www.example.test."), SERVERS);
+
+		// Both steps of the chain answer from the cache
+		Message response= resolver.send(query("lb.example.net."), SERVERS);
+		assertEquals(1, server.queries.get());
+		assertEquals(1, response.getSection(Section.ANSWER).size());
+
+		response= resolver.send(query("www.example.test."), SERVERS);
+		assertEquals(1, server.queries.get());
+		assertEquals(2, response.getSection(Section.ANSWER).size());
+	}
+
+	@Test
+	public void dropsRecordsOffTheChain() throws Exception {
+		FakeServer server= new FakeServer(true);
+		CachingSourceResolver resolver= CachingSourceResolver.Create(server);
+
+		resolver.send(query("www.example.test."), SERVERS);
+
+		// The unrelated address that came along with the answer has to come from the server
+		resolver.send(query("bank.example.org."), SERVERS);
+		assertEquals(2, server.queries.get());
+	}
+
+	@Test
+	public void repeatedQuestionCopiesTheAnswer() throws Exception {
+		FakeServer server= new FakeServer(false);
+		CachingSourceResolver resolver= CachingSourceResolver.Create(server);
+
+		Message first= query("www.example.test.");
+		Message firstResponse= new Message(
+				resolver.exchangeAsync(first.toWire(), SERVERS).get());
+
+		Message second= query("www.example.test.");
+		Message secondResponse= new Message(
+				resolver.exchangeAsync(second.toWire(), SERVERS).get());
+
+		assertEquals(1, server.queries.get());
+		assertEquals(2, resolver.getHits() + resolver.getMisses());
+		assertEquals(second.getHeader().getID(), secondResponse.getHeader().getID());
+		assertEquals(firstResponse.getSection(Section.ANSWER),
+				secondResponse.getSection(Section.ANSWER));
+	}
+
+	@Test
+	public void invalidateDropsWholeAnswers() throws Exception {
+		FakeServer server= new FakeServer(false);
+		CachingSourceResolver resolver= CachingSourceResolver.Create(server);
+
+		byte[] wire= query("www.example.test.").toWire();
+		resolver.exchangeAsync(wire, SERVERS).get();
+
+		// The CNAME target's zone changing has to reach the answer for the name pointing at it
+		resolver.invalidate(Name.fromString("example.net."));
+		resolver.exchangeAsync(wire, SERVERS).get();
+
+		assertEquals(2, server.queries.get());
+	}
+}
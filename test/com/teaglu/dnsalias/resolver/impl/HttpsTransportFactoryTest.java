@@ -0,0 +1,53 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.Transport;
+
+public class HttpsTransportFactoryTest {
+	private LoopbackDnsServer server;
+	private Transport transport;
+
+	@BeforeEach
+	public void start() throws Exception {
+		server= new LoopbackDnsServer();
+		transport= HttpsTransportFactory.Create(server.getSslContext())
+				.getTransport(server.getHttpsAddress());
+	}
+
+	@AfterEach
+	public void stop() throws Exception {
+		server.close();
+	}
+
+	private static Message query(String name) throws Exception {
+		return Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+	}
+
+	@Test
+	public void reusesWarmConnection() throws Exception {
+		for (String name : new String[] { "first.example.", "second.example." }) {
+			Message query= query(name);
+			Message response= new Message(transport.exchange(query.toWire()));
+
+			// The ID goes out as zero and has to be put back
+			assertEquals(query.getHeader().getID(), response.getHeader().getID());
+			assertEquals(query.getQuestion(), response.getQuestion());
+			assertEquals(LoopbackDnsServer.ANSWER_ADDRESS,
+					response.getSection(Section.ANSWER).get(0).rdataToString());
+		}
+
+		assertEquals(2, server.getHttpsQueries());
+		assertEquals(1, server.getHttpsConnections());
+	}
+}
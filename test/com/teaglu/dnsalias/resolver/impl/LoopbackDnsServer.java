@@ -0,0 +1,217 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * LoopbackDnsServer
+ *
+ * DNS over TLS and DNS over HTTPS server on the loopback address for testing the transports.
+ * Every A query is answered with 192.0.2.1.  The server counts the connections it accepts, so
+ * tests can check that queries after the first reuse a warm connection.
+ *
+ * The certificate is self-signed for 127.0.0.1 and localhost, and getSslContext() returns a
+ * context that both serves it and trusts it.
+ */
+public final class LoopbackDnsServer implements AutoCloseable {
+	private static final String KEYSTORE= "/loopback.p12";
+	private static final char[] KEYSTORE_PASSWORD= "loopback".toCharArray();
+
+	static final String ANSWER_ADDRESS= "192.0.2.1";
+
+	private final SSLContext sslContext;
+
+	private final SSLServerSocket tlsSocket;
+	private final HttpsServer httpsServer;
+
+	private final ExecutorService executorService= Executors.newCachedThreadPool();
+
+	private final AtomicInteger tlsConnections= new AtomicInteger();
+	private final AtomicInteger tlsQueries= new AtomicInteger();
+
+	// HTTP clients can't be seen connecting, so connections are told apart by client port
+	private final Set<InetSocketAddress> httpsClients= ConcurrentHashMap.newKeySet();
+	private final AtomicInteger httpsQueries= new AtomicInteger();
+
+	private volatile boolean closed;
+
+	public LoopbackDnsServer() throws Exception {
+		sslContext= createSslContext();
+
+		InetAddress loopback= InetAddress.getByName("127.0.0.1");
+
+		tlsSocket= (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket(
+				0, 50, loopback);
+
+		executorService.execute(this::acceptTls);
+
+		httpsServer= HttpsServer.create(new InetSocketAddress(loopback, 0), 0);
+		httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+		httpsServer.setExecutor(executorService);
+		httpsServer.createContext("/dns-query", exchange -> {
+			httpsClients.add(exchange.getRemoteAddress());
+			httpsQueries.incrementAndGet();
+
+			byte[] query;
+			try (InputStream input= exchange.getRequestBody()) {
+				query= input.readAllBytes();
+			}
+
+			byte[] response= answer(query);
+
+			exchange.getResponseHeaders().set("Content-Type", "application/dns-message");
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream output= exchange.getResponseBody()) {
+				output.write(response);
+			}
+		});
+		httpsServer.start();
+	}
+
+	public static SSLContext createSslContext() throws Exception {
+		KeyStore keyStore= KeyStore.getInstance("PKCS12");
+		try (InputStream input= LoopbackDnsServer.class.getResourceAsStream(KEYSTORE)) {
+			if (input == null) {
+				throw new IOException("Test keystore " + KEYSTORE + " is missing");
+			}
+			keyStore.load(input, KEYSTORE_PASSWORD);
+		}
+
+		KeyManagerFactory keyManagerFactory=
+				KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+
+		// The certificate of the key entry is the only thing trusted
+		TrustManagerFactory trustManagerFactory=
+				TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(keyStore);
+
+		SSLContext context= SSLContext.getInstance("TLS");
+		context.init(keyManagerFactory.getKeyManagers(),
+				trustManagerFactory.getTrustManagers(), null);
+
+		return context;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	public InetSocketAddress getTlsAddress() {
+		return new InetSocketAddress(tlsSocket.getInetAddress(), tlsSocket.getLocalPort());
+	}
+
+	public InetSocketAddress getHttpsAddress() {
+		return httpsServer.getAddress();
+	}
+
+	public int getTlsConnections() {
+		return tlsConnections.get();
+	}
+
+	public int getTlsQueries() {
+		return tlsQueries.get();
+	}
+
+	public int getHttpsConnections() {
+		return httpsClients.size();
+	}
+
+	public int getHttpsQueries() {
+		return httpsQueries.get();
+	}
+
+	static byte[] answer(byte[] query) throws IOException {
+		Message request= new Message(query);
+		Record question= request.getQuestion();
+
+		Message response= new Message(request.getHeader().getID());
+		response.getHeader().setFlag(Flags.QR);
+		response.getHeader().setFlag(Flags.AA);
+		response.addRecord(question, Section.QUESTION);
+
+		if (question.getType() == Type.A) {
+			response.addRecord(new ARecord(question.getName(), DClass.IN, 300,
+					InetAddress.getByName(ANSWER_ADDRESS)), Section.ANSWER);
+		}
+
+		return response.toWire();
+	}
+
+	private void acceptTls() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket= tlsSocket.accept();
+			} catch (IOException acceptException) {
+				return;
+			}
+
+			tlsConnections.incrementAndGet();
+			executorService.execute(() -> serveTls(socket));
+		}
+	}
+
+	// Answers are written in the order the queries arrive, each as one two byte length frame
+	private void serveTls(Socket socket) {
+		try {
+			DataInputStream input= new DataInputStream(socket.getInputStream());
+			DataOutputStream output= new DataOutputStream(socket.getOutputStream());
+
+			while (true) {
+				byte[] query= new byte[input.readUnsignedShort()];
+				input.readFully(query);
+				tlsQueries.incrementAndGet();
+
+				byte[] response= answer(query);
+				output.writeShort(response.length);
+				output.write(response);
+				output.flush();
+			}
+		} catch (IOException closeException) {
+			// Client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException closeException) {
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed= true;
+
+		tlsSocket.close();
+		httpsServer.stop(0);
+		executorService.shutdownNow();
+	}
+}
@@ -0,0 +1,84 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.Transport;
+
+public class StreamTransportTest {
+	private LoopbackDnsServer server;
+	private Transport transport;
+
+	@BeforeEach
+	public void start() throws Exception {
+		server= new LoopbackDnsServer();
+		transport= TlsTransportFactory.Create(server.getSslContext())
+				.getTransport(server.getTlsAddress());
+	}
+
+	@AfterEach
+	public void stop() throws Exception {
+		server.close();
+	}
+
+	private static Message query(String name) throws Exception {
+		return Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+	}
+
+	private static void assertAnswers(Message query, byte[] wire) throws Exception {
+		Message response= new Message(wire);
+
+		assertEquals(query.getHeader().getID(), response.getHeader().getID());
+		assertEquals(query.getQuestion(), response.getQuestion());
+		assertEquals(LoopbackDnsServer.ANSWER_ADDRESS,
+				response.getSection(Section.ANSWER).get(0).rdataToString());
+	}
+
+	@Test
+	public void reusesWarmConnection() throws Exception {
+		Message first= query("first.example.");
+		assertAnswers(first, transport.exchange(first.toWire()));
+
+		Message second= query("second.example.");
+		assertAnswers(second, transport.exchange(second.toWire()));
+
+		assertEquals(1, server.getTlsConnections());
+		assertEquals(2, server.getTlsQueries());
+	}
+
+	@Test
+	public void matchesConcurrentAnswersById() throws Exception {
+		// Warm up first, so every query below goes over the open connection
+		Message warm= query("warm.example.");
+		assertAnswers(warm, transport.exchange(warm.toWire()));
+
+		List<Message> queries= new ArrayList<>();
+		List<CompletableFuture<byte[]>> answers= new ArrayList<>();
+		for (int i= 0; i < 50; i++) {
+			Message query= query("name" + i + ".example.");
+
+			queries.add(query);
+			answers.add(transport.exchangeAsync(query.toWire()));
+		}
+
+		for (int i= 0; i < queries.size(); i++) {
+			assertAnswers(queries.get(i), answers.get(i).get(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(1, server.getTlsConnections());
+	}
+}
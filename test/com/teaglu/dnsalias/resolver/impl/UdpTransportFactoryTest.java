@@ -0,0 +1,156 @@
+package com.teaglu.dnsalias.resolver.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import com.teaglu.dnsalias.resolver.Transport;
+import com.teaglu.dnsalias.resolver.TransportFactory;
+
+public class UdpTransportFactoryTest {
+	private static Message query(String name, int type, int dclass) throws Exception {
+		return Message.newQuery(Record.newRecord(Name.fromString(name), type, dclass));
+	}
+
+	// Answer each query with the given forgeries first, all carrying the query's ID, and then
+	// with the real answer
+	private static Thread serve(DatagramSocket socket, Message... forgeries) {
+		Thread thread= new Thread(() -> {
+			try {
+				byte[] buffer= new byte[512];
+				DatagramPacket packet= new DatagramPacket(buffer, buffer.length);
+				socket.receive(packet);
+
+				byte[] query= Arrays.copyOf(buffer, packet.getLength());
+				int id= new Message(query).getHeader().getID();
+
+				for (Message forgery : forgeries) {
+					forgery.getHeader().setID(id);
+					byte[] wire= LoopbackDnsServer.answer(forgery.toWire());
+					socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+				}
+
+				byte[] wire= LoopbackDnsServer.answer(query);
+				socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+			} catch (Exception exception) {
+				// Test fails on the client side
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+
+		return thread;
+	}
+
+	// Answer a query with nothing but the truncation flag
+	private static void truncate(DatagramSocket socket) {
+		Thread thread= new Thread(() -> {
+			try {
+				byte[] buffer= new byte[512];
+				DatagramPacket packet= new DatagramPacket(buffer, buffer.length);
+				socket.receive(packet);
+
+				Message query= new Message(Arrays.copyOf(buffer, packet.getLength()));
+				Message response= new Message(query.getHeader().getID());
+				response.getHeader().setFlag(Flags.QR);
+				response.getHeader().setFlag(Flags.TC);
+				response.addRecord(query.getQuestion(), Section.QUESTION);
+
+				byte[] wire= response.toWire();
+				socket.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+			} catch (Exception exception) {
+				// Test fails on the client side
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static InetSocketAddress address(DatagramSocket socket) {
+		return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+	}
+
+	@Test
+	public void slowRetryOverTcpDoesNotHoldUpOtherQueries() throws Exception {
+		try (DatagramSocket truncating= new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+				DatagramSocket plain= new DatagramSocket(0, InetAddress.getByName("127.0.0.1")))
+		{
+			truncate(truncating);
+			serve(plain);
+
+			// Stands in for a TCP connection whose write is stuck
+			CountDownLatch entered= new CountDownLatch(1);
+			CountDownLatch release= new CountDownLatch(1);
+			TransportFactory stuck= server -> query -> {
+				entered.countDown();
+				try {
+					release.await();
+					return CompletableFuture.completedFuture(LoopbackDnsServer.answer(query));
+				} catch (Exception exception) {
+					CompletableFuture<byte[]> failed= new CompletableFuture<>();
+					failed.completeExceptionally(exception);
+					return failed;
+				}
+			};
+
+			TransportFactory factory= UdpTransportFactory.Create(stuck);
+
+			CompletableFuture<byte[]> retried= factory.getTransport(address(truncating))
+					.exchangeAsync(query("large.example.", Type.A, DClass.IN).toWire());
+			assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+			// Still answered while the retry is stuck
+			Message response= new Message(factory.getTransport(address(plain))
+					.exchangeAsync(query("wanted.example.", Type.A, DClass.IN).toWire())
+					.get(5, TimeUnit.SECONDS));
+			assertEquals(LoopbackDnsServer.ANSWER_ADDRESS,
+					response.getSection(Section.ANSWER).get(0).rdataToString());
+
+			release.countDown();
+			Message retriedResponse= new Message(retried.get(5, TimeUnit.SECONDS));
+			assertFalse(retriedResponse.getHeader().getFlag(Flags.TC));
+		}
+	}
+
+	@Test
+	public void skipsAnswersToOtherQuestions() throws Exception {
+		try (DatagramSocket socket= new DatagramSocket(0, InetAddress.getByName("127.0.0.1"))) {
+			// Same ID, but a different name, type or class
+			serve(socket,
+					query("forged.example.", Type.A, DClass.IN),
+					query("wanted.example.", Type.AAAA, DClass.IN),
+					query("wanted.example.", Type.A, DClass.CH));
+
+			Transport transport= UdpTransportFactory.Create().getTransport(
+					new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort()));
+
+			// Case of the name doesn't matter
+			Message query= query("Wanted.Example.", Type.A, DClass.IN);
+			Message response= new Message(transport.exchange(query.toWire()));
+
+			assertEquals(query.getHeader().getID(), response.getHeader().getID());
+			assertEquals(query.getQuestion(), response.getQuestion());
+			assertEquals(DClass.IN, response.getQuestion().getDClass());
+			assertEquals(LoopbackDnsServer.ANSWER_ADDRESS,
+					response.getSection(Section.ANSWER).get(0).rdataToString());
+		}
+	}
+}
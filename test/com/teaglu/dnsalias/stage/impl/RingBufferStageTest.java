@@ -0,0 +1,115 @@
+package com.teaglu.dnsalias.stage.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.teaglu.dnsalias.stage.Stage;
+
+public class RingBufferStageTest {
+	// Holds the stage's only thread until released, so whatever is submitted after it stays
+	// queued
+	private static CountDownLatch block(Stage stage) throws InterruptedException {
+		CountDownLatch started= new CountDownLatch(1);
+		CountDownLatch release= new CountDownLatch(1);
+
+		stage.submit(null, () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException _ie) {
+			}
+		});
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		return release;
+	}
+
+	@Test
+	public void runsOnlyTheLatestForAKey() throws Exception {
+		Stage stage= RingBufferStage.Create("test", 1, 8);
+		List<String> ran= new CopyOnWriteArrayList<>();
+
+		CountDownLatch release= block(stage);
+
+		stage.submit("a", () -> ran.add("a1"));
+		stage.submit("b", () -> ran.add("b1"));
+		stage.submit("a", () -> ran.add("a2"));
+		stage.submit(null, () -> ran.add("none"));
+		stage.submit("a", () -> ran.add("a3"));
+
+		// Replacing a task doesn't take another slot
+		assertEquals(3, stage.getDepth());
+
+		release.countDown();
+		stage.stop();
+
+		// The latest task for a key keeps the place of the first one
+		assertEquals(List.of("a3", "b1", "none"), ran);
+	}
+
+	@Test
+	public void startedTaskIsNotReplaced() throws Exception {
+		Stage stage= RingBufferStage.Create("test", 1, 8);
+		List<String> ran= new CopyOnWriteArrayList<>();
+
+		CountDownLatch started= new CountDownLatch(1);
+		CountDownLatch release= new CountDownLatch(1);
+		stage.submit("a", () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException _ie) {
+			}
+			ran.add("a1");
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		stage.submit("a", () -> ran.add("a2"));
+		assertEquals(1, stage.getDepth());
+
+		release.countDown();
+		stage.stop();
+
+		assertEquals(List.of("a1", "a2"), ran);
+	}
+
+	@Test
+	public void fullRingHoldsBackSubmitter() throws Exception {
+		Stage stage= RingBufferStage.Create("test", 1, 2);
+		List<String> ran= new CopyOnWriteArrayList<>();
+
+		CountDownLatch release= block(stage);
+
+		stage.submit("a", () -> ran.add("a1"));
+		stage.submit(null, () -> ran.add("none1"));
+		assertEquals(2, stage.getDepth());
+
+		// A newer task for a queued key still gets in, since it needs no room
+		stage.submit("a", () -> ran.add("a2"));
+
+		CountDownLatch submitted= new CountDownLatch(1);
+		Thread submitter= new Thread(() -> {
+			stage.submit(null, () -> ran.add("none2"));
+			submitted.countDown();
+		});
+		submitter.setDaemon(true);
+		submitter.start();
+
+		assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, stage.getDepth());
+
+		release.countDown();
+		assertTrue(submitted.await(5, TimeUnit.SECONDS));
+		stage.stop();
+
+		assertEquals(List.of("a2", "none1", "none2"), ran);
+	}
+}